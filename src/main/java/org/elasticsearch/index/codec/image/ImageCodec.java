@@ -0,0 +1,158 @@
+package org.elasticsearch.index.codec.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.StoredFieldsFormat;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.codecs.StoredFieldsWriter;
+import org.apache.lucene.codecs.lucene54.Lucene54Codec;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * Codec of the indices with {@code index.codec: image}, the default codec except that it does not write the stored
+ * copy of the features of image fields, {@code path.FEATURE}, which are read from their doc values. Features mapped
+ * with {@code store: true} are dropped as well: the codec overrides the mapping.
+ *
+ * Segments are rewritten without the stored copy when they are flushed or merged, so an existing index drops the
+ * copies of its documents once it is closed, switched to this codec and force merged. Per field postings formats of
+ * the mapping, those of completion fields, are not applied, so indices with completion fields cannot use the codec,
+ * see {@link org.elasticsearch.plugin.image.ImageCodecFilter}.
+ *
+ * Segments record the name of their codec, an index with segments written by it can only be opened by nodes with the
+ * plugin, until they are all rewritten by another codec.
+ */
+public class ImageCodec extends FilterCodec {
+
+    public static final String NAME = "image";
+
+    private static final Set<String> FEATURE_NAMES = new HashSet<String>();
+
+    static {
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            FEATURE_NAMES.add(featureEnum.name());
+        }
+    }
+
+    private final StoredFieldsFormat storedFieldsFormat;
+
+    public ImageCodec() {
+        super(NAME, new Lucene54Codec());
+        this.storedFieldsFormat = new FeatureDroppingStoredFieldsFormat(delegate.storedFieldsFormat());
+    }
+
+    @Override
+    public StoredFieldsFormat storedFieldsFormat() {
+        return storedFieldsFormat;
+    }
+
+    /**
+     * Whether a stored field may be the copy of a feature of an image field, a binary value named after a feature
+     */
+    static boolean isFeatureName(FieldInfo fieldInfo, IndexableField field) {
+        int dot = fieldInfo.name.lastIndexOf('.');
+        return dot > 0 && field.binaryValue() != null && FEATURE_NAMES.contains(fieldInfo.name.substring(dot + 1));
+    }
+
+    /**
+     * Whether a stored field is the copy of a feature of an image field: features always have binary doc values of the
+     * same name, other binary fields named like a feature are kept
+     */
+    static boolean isFeature(FieldInfo fieldInfo, IndexableField field) {
+        return isFeatureName(fieldInfo, field) && fieldInfo.getDocValuesType() == DocValuesType.BINARY;
+    }
+
+    /**
+     * Reads like its delegate, writes like it without the features
+     */
+    static final class FeatureDroppingStoredFieldsFormat extends StoredFieldsFormat {
+
+        private final StoredFieldsFormat delegate;
+
+        FeatureDroppingStoredFieldsFormat(StoredFieldsFormat delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public StoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+            return delegate.fieldsReader(directory, si, fn, context);
+        }
+
+        @Override
+        public StoredFieldsWriter fieldsWriter(Directory directory, SegmentInfo si, IOContext context) throws IOException {
+            return new FeatureDroppingStoredFieldsWriter(delegate.fieldsWriter(directory, si, context));
+        }
+    }
+
+    /**
+     * Merges document by document, rather than copying the compressed chunks of the merged segments, so the features
+     * of existing segments are dropped too.
+     *
+     * The stored copy of a feature is written before its doc values, so the first document of a flushed segment has
+     * its field without a doc values type yet: such fields are held until the end of the document, and only written
+     * if the field did not get binary doc values.
+     */
+    static final class FeatureDroppingStoredFieldsWriter extends StoredFieldsWriter {
+
+        private final StoredFieldsWriter delegate;
+        private final List<FieldInfo> pendingInfos = new ArrayList<FieldInfo>();
+        private final List<IndexableField> pendingFields = new ArrayList<IndexableField>();
+
+        FeatureDroppingStoredFieldsWriter(StoredFieldsWriter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void startDocument() throws IOException {
+            delegate.startDocument();
+        }
+
+        @Override
+        public void finishDocument() throws IOException {
+            for (int i = 0; i < pendingInfos.size(); i++) {
+                if (!isFeature(pendingInfos.get(i), pendingFields.get(i))) {
+                    delegate.writeField(pendingInfos.get(i), pendingFields.get(i));
+                }
+            }
+            pendingInfos.clear();
+            pendingFields.clear();
+            delegate.finishDocument();
+        }
+
+        @Override
+        public void writeField(FieldInfo info, IndexableField field) throws IOException {
+            if (!isFeatureName(info, field)) {
+                delegate.writeField(info, field);
+            } else if (info.getDocValuesType() == DocValuesType.NONE) {
+                // merges reuse the field, so the value is copied
+                pendingInfos.add(info);
+                pendingFields.add(new StoredField(info.name, BytesRef.deepCopyOf(field.binaryValue())));
+            } else if (info.getDocValuesType() != DocValuesType.BINARY) {
+                delegate.writeField(info, field);
+            }
+        }
+
+        @Override
+        public void finish(FieldInfos fis, int numDocs) throws IOException {
+            delegate.finish(fis, numDocs);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package org.elasticsearch.index.mapper.image;
 
 
+/**
+ * Built in hash families, see {@link ImageHashes} for all of them
+ */
 public enum HashEnum {
-    BIT_SAMPLING, LSH;
+    BIT_SAMPLING, LSH, MULTI_PROBE_LSH;
 
     public static HashEnum getByName(String name) {
         return valueOf(name.toUpperCase());
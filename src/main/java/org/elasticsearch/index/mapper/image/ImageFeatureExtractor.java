@@ -0,0 +1,249 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.imageanalysis.JCD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+/**
+ * Extracts features of one decoded image, sharing the work the features have in common.
+ * {@link FeatureEnum#JCD} is the join of {@link FeatureEnum#CEDD} and {@link FeatureEnum#FCTH}, each of them is only
+ * extracted once however many of the three are configured at the same working resolution.
+ * <p>
+ * Each feature can have its own working resolution, the maximum dimension it is extracted at. The image is scaled
+ * down once per resolution.
+ * The extracted features are the same as extracting each feature on its own from the image.
+ * Scaling and extraction times are recorded in the given stats, if any.
+ * <p>
+ * The features do not share the 8 bit RGB raster most of them convert the image to: that conversion is cheap, and
+ * LIRE reads the {@code TYPE_3BYTE_BGR} raster it would accept as is noticeably slower than the converted one.
+ */
+public class ImageFeatureExtractor {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(ImageFeatureExtractor.class.getName());
+
+    /**
+     * A feature at a working resolution
+     */
+    private static final class Extraction {
+        final FeatureEnum featureEnum;
+        final int maxDimension;
+
+        Extraction(FeatureEnum featureEnum, int maxDimension) {
+            this.featureEnum = featureEnum;
+            this.maxDimension = maxDimension;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Extraction)) {
+                return false;
+            }
+            Extraction that = (Extraction) o;
+            return featureEnum == that.featureEnum && maxDimension == that.maxDimension;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * featureEnum.hashCode() + maxDimension;
+        }
+    }
+
+    private final BufferedImage image;
+    private final Map<FeatureEnum, Integer> maxDimensions;
+    private final ImageStats.ExtractStats stats;
+    private final Map<Integer, BufferedImage> scaledImages = Maps.newHashMap();
+
+    public ImageFeatureExtractor(BufferedImage image) {
+        this(image, Collections.<FeatureEnum, Integer>emptyMap());
+    }
+
+    /**
+     * @param maxDimensions working resolution per feature, features without one are extracted from the image as is
+     */
+    public ImageFeatureExtractor(BufferedImage image, Map<FeatureEnum, Integer> maxDimensions) {
+        this(image, maxDimensions, null);
+    }
+
+    /**
+     * @param stats where to record scaling and extraction times, {@code null} to not record them
+     */
+    public ImageFeatureExtractor(BufferedImage image, Map<FeatureEnum, Integer> maxDimensions, ImageStats.ExtractStats stats) {
+        this.image = image;
+        this.maxDimensions = maxDimensions;
+        this.stats = stats;
+    }
+
+    /**
+     * Extracts a single feature on the calling thread
+     */
+    public LireFeature extract(FeatureEnum featureEnum) throws ReflectiveOperationException {
+        return extract(extraction(featureEnum));
+    }
+
+    private LireFeature extract(Extraction extraction) throws ReflectiveOperationException {
+        if (extraction.featureEnum == FeatureEnum.JCD) {
+            return new JCD((CEDD) extract(new Extraction(FeatureEnum.CEDD, extraction.maxDimension)),
+                    (FCTH) extract(new Extraction(FeatureEnum.FCTH, extraction.maxDimension)));
+        }
+        BufferedImage scaledImage = scaledImage(extraction.maxDimension);
+        long start = System.nanoTime();
+        LireFeature lireFeature = extraction.featureEnum.getFeatureClass().newInstance();
+        lireFeature.extract(scaledImage);
+        if (stats != null) {
+            stats.extract(extraction.featureEnum).recordSince(start);
+        }
+        return lireFeature;
+    }
+
+    /**
+     * Extracts the features, in parallel on the executor if there is one. Features failing to extract are logged and
+     * missing from the result.
+     *
+     * @param abortOnRejection whether to throw when the executor rejects an extraction, otherwise it runs on the calling thread
+     */
+    public Map<FeatureEnum, LireFeature> extract(Collection<FeatureEnum> featureEnums, Executor executor, boolean abortOnRejection) {
+        // JCD is joined from CEDD and FCTH once they are extracted
+        Set<Extraction> toExtract = new LinkedHashSet<Extraction>();
+        for (FeatureEnum featureEnum : featureEnums) {
+            Extraction extraction = extraction(featureEnum);
+            if (featureEnum == FeatureEnum.JCD) {
+                toExtract.add(new Extraction(FeatureEnum.CEDD, extraction.maxDimension));
+                toExtract.add(new Extraction(FeatureEnum.FCTH, extraction.maxDimension));
+            } else {
+                toExtract.add(extraction);
+            }
+        }
+
+        Map<Extraction, LireFeature> extracted;
+        if (executor != null && toExtract.size() > 1) {
+            extracted = extractInParallel(toExtract, executor, abortOnRejection);
+        } else {
+            extracted = Maps.newHashMap();
+            for (Extraction extraction : toExtract) {
+                extracted.put(extraction, extractOrLog(extraction));
+            }
+        }
+
+        Map<FeatureEnum, LireFeature> result = Maps.newEnumMap(FeatureEnum.class);
+        for (FeatureEnum featureEnum : featureEnums) {
+            LireFeature lireFeature;
+            if (featureEnum == FeatureEnum.JCD) {
+                int maxDimension = extraction(featureEnum).maxDimension;
+                CEDD cedd = (CEDD) extracted.get(new Extraction(FeatureEnum.CEDD, maxDimension));
+                FCTH fcth = (FCTH) extracted.get(new Extraction(FeatureEnum.FCTH, maxDimension));
+                lireFeature = cedd != null && fcth != null ? new JCD(cedd, fcth) : null;
+            } else {
+                lireFeature = extracted.get(extraction(featureEnum));
+            }
+            if (lireFeature != null) {
+                result.put(featureEnum, lireFeature);
+            }
+        }
+        return result;
+    }
+
+    private Map<Extraction, LireFeature> extractInParallel(Collection<Extraction> extractions, Executor executor, boolean abortOnRejection) {
+        final Map<Extraction, LireFeature> extracted = new MapMaker().makeMap();
+        final CountDownLatch latch = new CountDownLatch(extractions.size());
+        List<Runnable> callerRuns = new ArrayList<Runnable>();
+        EsRejectedExecutionException rejection = null;
+        for (final Extraction extraction : extractions) {
+            Runnable extractor = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        LireFeature lireFeature = extractOrLog(extraction);
+                        if (lireFeature != null) {
+                            extracted.put(extraction, lireFeature);
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            if (rejection != null) {  // aborting, don't submit the remaining features
+                latch.countDown();
+                continue;
+            }
+            try {
+                executor.execute(extractor);
+            } catch (EsRejectedExecutionException e) {
+                if (abortOnRejection) {
+                    rejection = e;
+                    latch.countDown();
+                } else {
+                    callerRuns.add(extractor);
+                }
+            }
+        }
+        for (Runnable extractor : callerRuns) {
+            extractor.run();
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted extract feature from image", e);
+            Thread.currentThread().interrupt();
+        }
+        if (rejection != null) {
+            throw rejection;
+        }
+        return extracted;
+    }
+
+    private LireFeature extractOrLog(Extraction extraction) {
+        try {
+            return extract(extraction);
+        } catch (Throwable e) {
+            logger.error("Failed to extract feature from image", e);
+            return null;
+        }
+    }
+
+    private Extraction extraction(FeatureEnum featureEnum) {
+        Integer maxDimension = maxDimensions.get(featureEnum);
+        return new Extraction(featureEnum, maxDimension == null ? Integer.MAX_VALUE : maxDimension);
+    }
+
+    /**
+     * The image scaled down to at most {@code maxDimension} on its longest side
+     */
+    private BufferedImage scaledImage(int maxDimension) {
+        if (Math.max(image.getWidth(), image.getHeight()) <= maxDimension) {
+            return image;
+        }
+        synchronized (scaledImages) {
+            BufferedImage scaledImage = scaledImages.get(maxDimension);
+            if (scaledImage == null) {
+                long start = System.nanoTime();
+                scaledImage = ImageUtils.scaleImage(image, maxDimension);
+                if (stats != null) {
+                    stats.scale().recordSince(start);
+                }
+                scaledImages.put(maxDimension, scaledImage);
+            }
+            return scaledImage;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.index.mapper.image;
+
+/**
+ * Family of hash functions of image features. Each hash of an indexed feature is indexed as a term of the hash
+ * field, and the docs sharing terms with the query feature are the candidates of the hash queries.
+ *
+ * Families are registered by name in {@link ImageHashes} and selected per feature in the mapping.
+ */
+public interface ImageHash {
+
+    /**
+     * Hashes of a feature, one per hash table
+     */
+    int[] hash(double[] histogram);
+
+    /**
+     * Hashes to search for a query feature: its own hashes and, for families able to probe, those of up to
+     * {@code probes} neighbouring buckets per hash table, most likely to hold near neighbours first. The hashes are
+     * grouped by table, the same number for every table, so they can be tagged with their table.
+     */
+    int[] probe(double[] histogram, int probes);
+
+    /**
+     * Probes per hash table when the query does not ask for a number, 0 if the family does not probe
+     */
+    int defaultProbes();
+}
@@ -0,0 +1,184 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.ParseContext;
+
+/**
+ * Hashes of a feature indexed as fixed width binary terms, one per hash, without analysis. The hashes are given by
+ * {@link ImageMapper} as the external value, an {@code int[]} of one hash per table.
+ *
+ * Decimal string terms through the standard analyzer, as image fields used to index their hashes, take up to 10 bytes
+ * per term and a token stream per doc. Binary terms are 4 bytes, or 6 bytes tagged with their table.
+ */
+public class ImageHashFieldMapper extends FieldMapper {
+
+    public static final String CONTENT_TYPE = "image_hash";
+
+    /**
+     * How the hashes of a feature are indexed, see {@link ImageMapper#HASH_ENCODING}
+     */
+    public enum Encoding {
+
+        /**
+         * Decimal strings through the standard analyzer, the terms of image fields mapped before the binary terms, and
+         * still of mappings without {@link ImageMapper#HASH_ENCODING}
+         */
+        STRING,
+
+        /**
+         * The 4 bytes of the hash, big endian
+         */
+        BINARY,
+
+        /**
+         * The 2 bytes of the hash table then the 4 bytes of the hash, big endian. The same hash in two tables are
+         * different terms, so only the buckets of the same table collide.
+         */
+        TAGGED;
+
+        /**
+         * Stored mappings have no encoding from before the binary terms, so they keep matching the terms they indexed
+         */
+        public static final Encoding DEFAULT = STRING;
+
+        public static Encoding fromString(String name) {
+            for (Encoding encoding : values()) {
+                if (encoding.name().equalsIgnoreCase(name)) {
+                    return encoding;
+                }
+            }
+            throw new IllegalArgumentException("Unknown hash encoding [" + name + "]");
+        }
+
+        /**
+         * Terms of hashes grouped by table, the same number for each of {@code tables} tables
+         */
+        public BytesRef[] terms(int[] hashes, int tables) {
+            if (this == TAGGED && (tables <= 0 || tables > 0xFFFF || hashes.length % tables != 0)) {
+                throw new IllegalArgumentException("Cannot tag [" + hashes.length + "] hashes with [" + tables + "] tables");
+            }
+            BytesRef[] terms = new BytesRef[hashes.length];
+            for (int i = 0; i < hashes.length; i++) {
+                int h = hashes[i];
+                switch (this) {
+                    case STRING:
+                        terms[i] = new BytesRef(Integer.toString(h));
+                        break;
+                    case BINARY:
+                        terms[i] = new BytesRef(new byte[] {(byte) (h >>> 24), (byte) (h >>> 16), (byte) (h >>> 8), (byte) h});
+                        break;
+                    default:
+                        int table = i / (hashes.length / tables);
+                        terms[i] = new BytesRef(new byte[] {(byte) (table >>> 8), (byte) table,
+                                (byte) (h >>> 24), (byte) (h >>> 16), (byte) (h >>> 8), (byte) h});
+                }
+            }
+            return terms;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    public static class Defaults {
+        public static final MappedFieldType FIELD_TYPE = new ImageHashFieldType();
+
+        static {
+            FIELD_TYPE.setTokenized(false);
+            FIELD_TYPE.setOmitNorms(true);
+            FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
+            FIELD_TYPE.freeze();
+        }
+    }
+
+    public static class Builder extends FieldMapper.Builder<Builder, ImageHashFieldMapper> {
+
+        private Encoding encoding = Encoding.BINARY;
+
+        public Builder(String name) {
+            super(name, Defaults.FIELD_TYPE, Defaults.FIELD_TYPE);
+            this.builder = this;
+        }
+
+        public Builder encoding(Encoding encoding) {
+            if (encoding == Encoding.STRING) {
+                throw new IllegalArgumentException("String hashes are indexed by a string field");
+            }
+            this.encoding = encoding;
+            return this;
+        }
+
+        @Override
+        public ImageHashFieldMapper build(BuilderContext context) {
+            docValues(false);  // only searched by term
+            setupFieldType(context);
+            return new ImageHashFieldMapper(name, encoding, fieldType, defaultFieldType, context.indexSettings(), copyTo);
+        }
+    }
+
+    static final class ImageHashFieldType extends MappedFieldType {
+
+        ImageHashFieldType() {
+        }
+
+        private ImageHashFieldType(ImageHashFieldType ref) {
+            super(ref);
+        }
+
+        @Override
+        public MappedFieldType clone() {
+            return new ImageHashFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return CONTENT_TYPE;
+        }
+
+        @Override
+        public Object value(Object value) {
+            return value;
+        }
+    }
+
+    private final Encoding encoding;
+
+    protected ImageHashFieldMapper(String simpleName, Encoding encoding, MappedFieldType fieldType, MappedFieldType defaultFieldType,
+                                   Settings indexSettings, CopyTo copyTo) {
+        super(simpleName, fieldType, defaultFieldType, indexSettings, MultiFields.empty(), copyTo);
+        this.encoding = encoding;
+    }
+
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<Field> fields) throws IOException {
+        int[] hashes = context.parseExternalValue(int[].class);
+        if (hashes == null) {
+            throw new MapperParsingException("Hashes of [" + fieldType().names().fullName() + "] are only given by their image field");
+        }
+        for (BytesRef term : encoding.terms(hashes, hashes.length)) {
+            fields.add(new Field(fieldType().names().indexName(), term, (FieldType) fieldType()));
+        }
+    }
+
+    @Override
+    protected String contentType() {
+        return CONTENT_TYPE;
+    }
+}
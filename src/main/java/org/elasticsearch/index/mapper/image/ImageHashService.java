@@ -0,0 +1,124 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Hash families of each index: the ones registered in {@link ImageHashes}, or the ones trained on the features of the
+ * index when its settings have trained parameters under {@link #settingPrefix}. Indexing and hash queries both hash
+ * through it, so they agree on the terms of the index.
+ *
+ * The parameters are dynamic index settings, trained families are built again only when they change, and dropped
+ * once their index is deleted.
+ */
+public class ImageHashService extends AbstractComponent {
+
+    public static final String SETTING_PREFIX = "index.image.hash.";
+
+    private final ClusterService clusterService;
+
+    // by index, field, feature and family
+    private final ConcurrentMap<String, IndexHash> indexHashes = new MapMaker().makeMap();
+
+    @Inject
+    public ImageHashService(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.clusterService = clusterService;
+        clusterService.add(new ClusterStateListener() {
+            @Override
+            public void clusterChanged(ClusterChangedEvent event) {
+                if (event.metaDataChanged()) {
+                    dropDeletedIndices(event.state().metaData());
+                }
+            }
+        });
+    }
+
+    /**
+     * Prefix of the trained parameters of a hash family for the feature of an image field
+     */
+    public static String settingPrefix(String field, FeatureEnum featureEnum, String hashName) {
+        return SETTING_PREFIX + field + "." + featureEnum.name() + "." + ImageHashes.name(hashName) + ".";
+    }
+
+    /**
+     * @param index {@code null} for the registered family
+     * @throws IllegalArgumentException if no family is registered with that name, or if the trained parameters of the
+     *                                  index are not valid for it
+     */
+    public ImageHash hash(@Nullable String index, String field, FeatureEnum featureEnum, String hashName) {
+        ImageHash hash = ImageHashes.get(hashName);
+        if (index == null || !(hash instanceof TrainableImageHash)) {
+            return hash;
+        }
+        IndexMetaData indexMetaData = clusterService.state().metaData().index(index);
+        if (indexMetaData == null) {
+            return hash;
+        }
+        Settings indexSettings = indexMetaData.getSettings();
+        String key = index + "/" + field + "/" + featureEnum.name() + "/" + hashName;
+        IndexHash indexHash = indexHashes.get(key);
+        if (indexHash != null && indexHash.indexSettings == indexSettings) {
+            return indexHash.hash;
+        }
+
+        Settings parameters = indexSettings.getByPrefix(settingPrefix(field, featureEnum, hashName));
+        ImageHash trained;
+        if (indexHash != null && indexHash.parameters.equals(parameters)) {
+            trained = indexHash.hash;
+        } else if (parameters.getAsMap().isEmpty()) {
+            trained = hash;
+        } else {
+            try {
+                trained = ((TrainableImageHash) hash).trained(parameters);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid trained [" + hashName + "] for [" + field + "] feature ["
+                        + featureEnum.name() + "] of index [" + index + "]: " + e.getMessage(), e);
+            }
+            logger.debug("[{}] hashes [{}] feature [{}] with trained [{}]", index, field, featureEnum.name(), hashName);
+        }
+        indexHashes.put(key, new IndexHash(index, indexSettings, parameters, trained));
+        return trained;
+    }
+
+    /**
+     * Families resolved for the fields of the indices
+     */
+    public long size() {
+        return indexHashes.size();
+    }
+
+    void dropDeletedIndices(MetaData metaData) {
+        for (Iterator<IndexHash> iterator = indexHashes.values().iterator(); iterator.hasNext(); ) {
+            if (!metaData.hasIndex(iterator.next().index)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static final class IndexHash {
+        final String index;
+        final Settings indexSettings;
+        final Settings parameters;
+        final ImageHash hash;
+
+        IndexHash(String index, Settings indexSettings, Settings parameters, ImageHash hash) {
+            this.index = index;
+            this.indexSettings = indexSettings;
+            this.parameters = parameters;
+            this.hash = hash;
+        }
+    }
+}
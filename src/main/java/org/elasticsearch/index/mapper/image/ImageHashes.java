@@ -0,0 +1,126 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+
+/**
+ * Hash families by name: the built in ones of {@link HashEnum} and those registered by other plugins, see
+ * {@code ImageModule#registerHash}. Names are upper case, lookups are not case sensitive.
+ */
+public final class ImageHashes {
+
+    private static final ESLogger logger = Loggers.getLogger(ImageHashes.class);
+
+    public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
+    public static final String LSH_HASH_FILE = "/hash/lshHashFunctions.obj";
+
+    private static final ConcurrentMap<String, ImageHash> HASHES = new MapMaker().makeMap();
+
+    static {
+        double[][][] bitSampling = new double[0][][];
+        double[][] lsh = new double[0][];
+        try {
+            bitSampling = BitSampling.readHashFunctions(ImageHashes.class.getResourceAsStream(BIT_SAMPLING_FILE));
+            lsh = LocalitySensitiveHashing.readHashFunctions(ImageHashes.class.getResourceAsStream(LSH_HASH_FILE));
+        } catch (IOException e) {
+            logger.error("Failed to initialize hash function", e);
+        }
+        register(HashEnum.BIT_SAMPLING.name(), new LireBitSampling(bitSampling));
+        register(HashEnum.LSH.name(), new LireLsh(lsh));
+        register(HashEnum.MULTI_PROBE_LSH.name(), new MultiProbeLsh(MultiProbeLsh.DEFAULT_TABLES, MultiProbeLsh.DEFAULT_PROJECTIONS,
+                MultiProbeLsh.DEFAULT_WIDTH, MultiProbeLsh.DEFAULT_PROBES, 0));
+    }
+
+    private ImageHashes() {
+    }
+
+    /**
+     * Registers a hash family, its name can then be used in mappings and queries
+     *
+     * @throws IllegalArgumentException if a family is already registered with that name
+     */
+    public static void register(String name, ImageHash hash) {
+        if (HASHES.putIfAbsent(name.toUpperCase(Locale.ROOT), hash) != null) {
+            throw new IllegalArgumentException("Hash [" + name + "] is already registered");
+        }
+    }
+
+    /**
+     * Registered name of a hash family
+     *
+     * @throws IllegalArgumentException if no family is registered with that name
+     */
+    public static String name(String name) {
+        String upperCase = name.toUpperCase(Locale.ROOT);
+        if (!HASHES.containsKey(upperCase)) {
+            throw new IllegalArgumentException("Unknown hash [" + name + "], expected one of " + names());
+        }
+        return upperCase;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no family is registered with that name
+     */
+    public static ImageHash get(String name) {
+        return HASHES.get(name(name));
+    }
+
+    public static Set<String> names() {
+        return ImmutableSet.copyOf(HASHES.keySet());
+    }
+
+    /**
+     * Trained parameter of a hash family, numbers are parsed by the caller and throw a {@link NumberFormatException}
+     *
+     * @throws IllegalArgumentException if it is missing
+     */
+    static String parameter(Settings parameters, String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Trained hash parameter [" + name + "] is missing");
+        }
+        return value;
+    }
+
+    /**
+     * Floats of a trained parameter, as base64 so that they take one setting
+     */
+    static String encode(float[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+        buffer.asFloatBuffer().put(values);
+        return Base64.encodeBytes(buffer.array());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the parameter is missing or not encoded by {@link #encode}
+     */
+    static float[] decode(Settings parameters, String name) {
+        String value = parameter(parameters, name);
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Trained hash parameter [" + name + "] is not base64", e);
+        }
+        if (bytes.length % 4 != 0) {
+            throw new IllegalArgumentException("Trained hash parameter [" + name + "] is not an array of floats");
+        }
+        float[] values = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+        return values;
+    }
+}
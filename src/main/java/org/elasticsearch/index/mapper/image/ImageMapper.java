@@ -8,16 +8,17 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
-import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Field;
@@ -25,16 +26,23 @@ import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchImageProcessException;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.index.mapper.MapperParsingException;
 import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.query.image.FeatureColumn;
+import org.elasticsearch.index.query.image.HnswGraph;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ProductQuantizer;
+import org.elasticsearch.plugin.image.stats.ImageStats;
 import org.elasticsearch.threadpool.ThreadPool;
 
 import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
@@ -45,12 +53,9 @@ import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
-import net.semanticmetadata.lire.indexing.hashing.BitSampling;
-import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
@@ -60,25 +65,78 @@ public class ImageMapper extends FieldMapper {
 
 	public static final int MAX_IMAGE_DIMENSION = 1024;
 
+	/**
+	 * Working resolution, the image and each feature can have their own, see {@link #MAX_DIMENSION_SETTING}
+	 */
+	public static final String MAX_DIMENSION = "max_dimension";
+
+	/**
+	 * Default working resolution of image fields not setting one in their mapping
+	 */
+	public static final String MAX_DIMENSION_SETTING = "index.image.max_dimension";
+
+	/**
+	 * Thread pool used to extract features in parallel, see {@code index.image.use_thread_pool}
+	 */
+	public static final String THREAD_POOL_NAME = "image_extract";
+
+	/**
+	 * What to do when the extract thread pool is full: {@code caller_runs} extracts on the indexing thread,
+	 * {@code abort} rejects the document
+	 */
+	public static final String REJECTION_POLICY_SETTING = "image.extract.rejection_policy";
+
 	public static final String CONTENT_TYPE = "image";
 
 	public static final String HASH = "hash";
 
+	/**
+	 * How the hashes of a feature are indexed, see {@link ImageHashFieldMapper.Encoding}
+	 */
+	public static final String HASH_ENCODING = "hash_encoding";
+
+	/**
+	 * Per feature, builds a {@link HnswGraph} of each segment for {@code k} nearest neighbour queries with {@code ef},
+	 * {@code true} or the {@code m} and {@code ef_construction} of the graphs
+	 */
+	public static final String HNSW = "hnsw";
+
+	public static final String HNSW_M = "m";
+
+	public static final String HNSW_EF_CONSTRUCTION = "ef_construction";
+
+	/**
+	 * Per feature, quantizes the features of each segment with a {@link ProductQuantizer} for {@code k} nearest
+	 * neighbour queries with {@code pq}, {@code true} or the {@code subspaces} and {@code centroids} of the quantizers
+	 */
+	public static final String PQ = "pq";
+
+	public static final String PQ_SUBSPACES = "subspaces";
+
+	public static final String PQ_CENTROIDS = "centroids";
+
+	/**
+	 * Per feature, decodes the features of each segment to a {@link FeatureColumn} that queries without hash, graph or
+	 * quantization scan instead of the doc values, only for the features with a fixed width column
+	 */
+	public static final String COLUMN = "column";
+
+	/**
+	 * Per feature, whether the serialized feature is also kept as a stored field besides its doc values, which
+	 * lookups, queries and fetches read, see {@link #store(FeatureEnum)}
+	 */
+	public static final String STORE = "store";
+
+	/**
+	 * Whether images larger than twice the decode dimension are subsampled while decoding, {@code false} if the mapping
+	 * does not have it: subsampled images get slightly different features, so documents indexed with the full decode
+	 * must be reindexed to keep matching query images exactly once it is enabled
+	 */
+	public static final String SUBSAMPLE = "subsample";
+
 	public static final String FEATURE = "feature";
 	public static final String METADATA = "metadata";
 
-	public static final String BIT_SAMPLING_FILE = "/hash/LshBitSampling.obj";
-	public static final String LSH_HASH_FILE = "/hash/lshHashFunctions.obj";
-	
-	 static {
-	        try {
-	            BitSampling.readHashFunctions(ImageMapper.class.getResourceAsStream(BIT_SAMPLING_FILE));
-	            LocalitySensitiveHashing.readHashFunctions(ImageMapper.class.getResourceAsStream(LSH_HASH_FILE));
-	        } catch (IOException e) {
-	            logger.error("Failed to initialize hash function", e);
-	        }
-	    }
-
 	  // Reference {StringFieldMapper}
 	  public static class Defaults {
 	        public static final MappedFieldType FIELD_TYPE = new ImageFieldType();
@@ -92,6 +150,16 @@ public class ImageMapper extends FieldMapper {
 
 	        private ThreadPool threadPool;
 
+	        private ImageStats imageStats;
+
+	        private ImageHashService hashService;
+
+	        private String index;
+
+	        private Integer maxDimension;
+
+	        private boolean subsample;
+
 	        private Map<FeatureEnum, Map<String, Object>> features = Maps.newHashMap();
 
 	        private Map<String, FieldMapper.Builder> metadataBuilders = Maps.newHashMap();
@@ -102,6 +170,30 @@ public class ImageMapper extends FieldMapper {
 	            this.builder = this;
 	        }
 
+	        public Builder imageStats(ImageStats imageStats) {
+	            this.imageStats = imageStats;
+	            return this;
+	        }
+
+	        /**
+	         * Hash families of the index the field is mapped in, {@code null} for the registered ones
+	         */
+	        public Builder hashService(ImageHashService hashService, String index) {
+	            this.hashService = hashService;
+	            this.index = index;
+	            return this;
+	        }
+
+	        public Builder maxDimension(int maxDimension) {
+	            this.maxDimension = maxDimension;
+	            return this;
+	        }
+
+	        public Builder subsample(boolean subsample) {
+	            this.subsample = subsample;
+	            return this;
+	        }
+
 	        public Builder addFeature(FeatureEnum featureEnum, Map<String, Object> featureMap) {
 	            this.features.put(featureEnum, featureMap);
 	            return this;
@@ -129,14 +221,19 @@ public class ImageMapper extends FieldMapper {
 	                String featureName = featureEnum.name();
 
 	                // add feature mapper
-	                featureMappers.put(featureName, binaryField(featureName).store(true).includeInAll(false).index(false).build(context));
+	                featureMappers.put(featureName, binaryField(featureName).store(ImageMapper.store(featureMap)).includeInAll(false).index(false).build(context));
 
 	                // add hash mapper if hash is required
 	                if (featureMap.containsKey(HASH)){
 	                    List<String> hashes = (List<String>) featureMap.get(HASH);
+	                    ImageHashFieldMapper.Encoding encoding = hashEncoding(featureMap);
 	                    for (String h : hashes) {
 	                        String hashFieldName = featureName + "." + HASH + "." + h;
-	                        hashMappers.put(hashFieldName, stringField(hashFieldName).store(true).includeInAll(false).index(true).build(context));
+	                        if (encoding == ImageHashFieldMapper.Encoding.STRING) {
+	                            hashMappers.put(hashFieldName, stringField(hashFieldName).store(true).includeInAll(false).index(true).build(context));
+	                        } else {
+	                            hashMappers.put(hashFieldName, new ImageHashFieldMapper.Builder(hashFieldName).encoding(encoding).build(context));
+	                        }
 	                    }
 	                }
 	            }
@@ -152,7 +249,10 @@ public class ImageMapper extends FieldMapper {
 	            context.path().remove();  // remove METADATA
 	            context.path().remove();  // remove name
 
-	            return new ImageMapper(name, threadPool,fieldType,defaultFieldType, context.indexSettings(), features, 
+	            // resolved once, so changing the index default does not change the features of an existing mapping
+	            int maxDimension = this.maxDimension != null ? this.maxDimension : context.indexSettings().getAsInt(MAX_DIMENSION_SETTING, MAX_IMAGE_DIMENSION);
+
+	            return new ImageMapper(name, threadPool, imageStats, hashService, index, fieldType,defaultFieldType, context.indexSettings(), maxDimension, subsample, features,
 	            		featureMappers, hashMappers, metadataMappers, multiFieldsBuilder.build(this, context),copyTo);
 	        }
 	
@@ -160,19 +260,40 @@ public class ImageMapper extends FieldMapper {
 
 	public static class TypeParser implements Mapper.TypeParser {
 
-		private ThreadPool threadPool;
-		
-		public TypeParser(ThreadPool threadPool) {
+		private volatile ThreadPool threadPool;
+
+		private volatile ImageStats imageStats;
+
+		private volatile ImageHashService hashService;
+
+		/**
+		 * The node thread pool only exists once the node is built, after the plugin registered this parser
+		 */
+		@Inject
+		public void setThreadPool(ThreadPool threadPool) {
 			this.threadPool = threadPool;
 		}
 
+		@Inject
+		public void setImageStats(ImageStats imageStats) {
+			this.imageStats = imageStats;
+		}
+
+		@Inject
+		public void setHashService(ImageHashService hashService) {
+			this.hashService = hashService;
+		}
+
 		@SuppressWarnings({ "unchecked" })
 		@Override
 		public Mapper.Builder parse(String name, Map<String, Object> node,
 				ParserContext parserContext) throws MapperParsingException {
 
 			// process image field
-			ImageMapper.Builder builder = new ImageMapper.Builder(name,threadPool);
+			ImageMapper.Builder builder = new ImageMapper.Builder(name,threadPool).imageStats(imageStats);
+			if (parserContext.mapperService() != null) {
+				builder.hashService(hashService, parserContext.mapperService().index().name());
+			}
 			Map<String, Object> features = Maps.newHashMap();
 			Map<String, Object> metadatas = Maps.newHashMap();
 
@@ -187,7 +308,13 @@ public class ImageMapper extends FieldMapper {
                 }else if (METADATA.equals(fieldName)) {
                 	metadatas = (Map<String, Object>) fieldNode;
                 	iterator.remove();
-				}   
+				}else if (MAX_DIMENSION.equals(fieldName)) {
+					builder.maxDimension(parseMaxDimension(fieldNode));
+					iterator.remove();
+				}else if (SUBSAMPLE.equals(fieldName)) {
+					builder.subsample(XContentMapValues.nodeBooleanValue(fieldNode));
+					iterator.remove();
+				}
 		    }
 
 			if (features == null || features.isEmpty()) {
@@ -206,17 +333,60 @@ public class ImageMapper extends FieldMapper {
 					List<String> hashes = Lists.newArrayList();
 					if (hashVal instanceof List) {
 						for (String h : (List<String>) hashVal) {
-							hashes.add(HashEnum.valueOf(h).name());
+							hashes.add(ImageHashes.name(h));
 						}
 					} else if (hashVal instanceof String) {
-						hashes.add(HashEnum.valueOf((String) hashVal).name());
+						hashes.add(ImageHashes.name((String) hashVal));
 					} else {
 						throw new ElasticsearchException("Malformed hash value");
 					}
 					featureMap.put(HASH, hashes);
+					// resolved once, so changing the default does not change the terms of an existing mapping
+					try {
+						ImageHashFieldMapper.Encoding encoding = featureMap.containsKey(HASH_ENCODING)
+								? ImageHashFieldMapper.Encoding.fromString(String.valueOf(featureMap.get(HASH_ENCODING)))
+								: ImageHashFieldMapper.Encoding.DEFAULT;
+						featureMap.put(HASH_ENCODING, encoding.toString());
+					} catch (IllegalArgumentException e) {
+						throw new MapperParsingException(e.getMessage(), e);
+					}
+				}
+
+				if (featureMap.containsKey(MAX_DIMENSION)) {
+					featureMap.put(MAX_DIMENSION, parseMaxDimension(featureMap.get(MAX_DIMENSION)));
+				}
+
+				// resolved once, mappings without it keep storing the features they always stored
+				featureMap.put(STORE, featureMap.containsKey(STORE) ? XContentMapValues.nodeBooleanValue(featureMap.get(STORE)) : true);
+
+				// resolved once, so changing the defaults does not rebuild the graphs of an existing mapping
+				if (featureMap.containsKey(HNSW)) {
+					Map<String, Integer> hnsw = parseHnsw(featureMap.get(HNSW));
+					if (hnsw != null) {
+						featureMap.put(HNSW, hnsw);
+					} else {
+						featureMap.remove(HNSW);
+					}
+				}
+				if (featureMap.containsKey(PQ)) {
+					Map<String, Integer> pq = parsePq(featureMap.get(PQ));
+					if (pq != null) {
+						featureMap.put(PQ, pq);
+					} else {
+						featureMap.remove(PQ);
+					}
 				}
 
 				FeatureEnum featureEnum = FeatureEnum.getByName(feature);
+				if (featureMap.containsKey(COLUMN)) {
+					if (!XContentMapValues.nodeBooleanValue(featureMap.get(COLUMN))) {
+						featureMap.remove(COLUMN);
+					} else if (FeatureColumn.stride(featureEnum) < 0) {
+						throw new MapperParsingException("[" + COLUMN + "] is not supported by feature [" + featureEnum.name() + "]");
+					} else {
+						featureMap.put(COLUMN, true);
+					}
+				}
 				builder.addFeature(featureEnum, featureMap);
 			}
 
@@ -234,9 +404,136 @@ public class ImageMapper extends FieldMapper {
 
 			return builder;
 		}
+
+		private static int parseMaxDimension(Object node) {
+			int maxDimension = XContentMapValues.nodeIntegerValue(node);
+			if (maxDimension <= 0) {
+				throw new MapperParsingException("[" + MAX_DIMENSION + "] must be greater than 0, got [" + maxDimension + "]");
+			}
+			return maxDimension;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Map<String, Integer> parseHnsw(Object node) {
+			int m = HnswGraph.DEFAULT_M;
+			int efConstruction = HnswGraph.DEFAULT_EF_CONSTRUCTION;
+			if (node instanceof Map) {
+				for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+					if (HNSW_M.equals(entry.getKey())) {
+						m = XContentMapValues.nodeIntegerValue(entry.getValue());
+					} else if (HNSW_EF_CONSTRUCTION.equals(entry.getKey())) {
+						efConstruction = XContentMapValues.nodeIntegerValue(entry.getValue());
+					} else {
+						throw new MapperParsingException("[" + HNSW + "] does not support [" + entry.getKey() + "]");
+					}
+				}
+			} else if (!XContentMapValues.nodeBooleanValue(node)) {
+				return null;
+			}
+			if (m < 2) {
+				throw new MapperParsingException("[" + HNSW + "." + HNSW_M + "] must be at least 2, got [" + m + "]");
+			}
+			if (efConstruction < m) {
+				throw new MapperParsingException("[" + HNSW + "." + HNSW_EF_CONSTRUCTION + "] must be at least [" + HNSW_M + "], got ["
+						+ efConstruction + "]");
+			}
+			Map<String, Integer> hnsw = Maps.newHashMap();
+			hnsw.put(HNSW_M, m);
+			hnsw.put(HNSW_EF_CONSTRUCTION, efConstruction);
+			return hnsw;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Map<String, Integer> parsePq(Object node) {
+			int subspaces = ProductQuantizer.DEFAULT_SUBSPACES;
+			int centroids = ProductQuantizer.DEFAULT_CENTROIDS;
+			if (node instanceof Map) {
+				for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+					if (PQ_SUBSPACES.equals(entry.getKey())) {
+						subspaces = XContentMapValues.nodeIntegerValue(entry.getValue());
+					} else if (PQ_CENTROIDS.equals(entry.getKey())) {
+						centroids = XContentMapValues.nodeIntegerValue(entry.getValue());
+					} else {
+						throw new MapperParsingException("[" + PQ + "] does not support [" + entry.getKey() + "]");
+					}
+				}
+			} else if (!XContentMapValues.nodeBooleanValue(node)) {
+				return null;
+			}
+			if (subspaces < 1) {
+				throw new MapperParsingException("[" + PQ + "." + PQ_SUBSPACES + "] must be greater than 0, got [" + subspaces + "]");
+			}
+			if (centroids < 2 || centroids > 256) {
+				throw new MapperParsingException("[" + PQ + "." + PQ_CENTROIDS + "] must be between 2 and 256, got [" + centroids + "]");
+			}
+			Map<String, Integer> pq = Maps.newHashMap();
+			pq.put(PQ_SUBSPACES, subspaces);
+			pq.put(PQ_CENTROIDS, centroids);
+			return pq;
+		}
 	}
 
 	// Reference {StringFieldMapper}
+	/**
+	 * Working resolution of a feature and the resolution the image is decoded at, the largest working resolution of
+	 * the features of its field
+	 */
+	public static final class Resolution {
+
+		/**
+		 * Resolution of query images on fields without mapping
+		 */
+		public static final Resolution DEFAULT = new Resolution(MAX_IMAGE_DIMENSION, MAX_IMAGE_DIMENSION);
+
+		private final int maxDimension;
+		private final int decodeDimension;
+		private final boolean subsample;
+
+		public Resolution(int maxDimension, int decodeDimension) {
+			this(maxDimension, decodeDimension, false);
+		}
+
+		public Resolution(int maxDimension, int decodeDimension, boolean subsample) {
+			this.maxDimension = maxDimension;
+			this.decodeDimension = decodeDimension;
+			this.subsample = subsample;
+		}
+
+		public int maxDimension() {
+			return maxDimension;
+		}
+
+		public int decodeDimension() {
+			return decodeDimension;
+		}
+
+		/**
+		 * Whether large images are subsampled while decoding, see {@link ImageMapper#SUBSAMPLE}
+		 */
+		public boolean subsample() {
+			return subsample;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Resolution)) {
+				return false;
+			}
+			Resolution that = (Resolution) o;
+			return maxDimension == that.maxDimension && decodeDimension == that.decodeDimension && subsample == that.subsample;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * maxDimension + decodeDimension) + (subsample ? 1 : 0);
+		}
+
+		@Override
+		public String toString() {
+			return "[" + maxDimension + "] decoded at [" + decodeDimension + "]" + (subsample ? " subsampled" : "");
+		}
+	}
+
 	public static final class ImageFieldType extends MappedFieldType {
 
 		public ImageFieldType() {
@@ -266,8 +563,18 @@ public class ImageMapper extends FieldMapper {
 
 	private final ThreadPool threadPool;
 
+	private final ImageStats imageStats;
+
+	private final ImageHashService hashService;
+
+	private final String index;
+
 	private final Settings settings;
 
+	private final int maxDimension;
+
+	private final boolean subsample;
+
 	private volatile ImmutableOpenMap<FeatureEnum, Map<String, Object>> features = ImmutableOpenMap.of();
 
 	private volatile ImmutableOpenMap<String, FieldMapper> featureMappers = ImmutableOpenMap.of();
@@ -276,15 +583,21 @@ public class ImageMapper extends FieldMapper {
 
 	private volatile ImmutableOpenMap<String, FieldMapper> metadataMappers = ImmutableOpenMap.of();
 
-	public ImageMapper(String name, ThreadPool threadPool,MappedFieldType fieldType, MappedFieldType defaultFieldType,
-			Settings settings,Map<FeatureEnum, Map<String, Object>> features, Map<String, FieldMapper> featureMappers,
+	public ImageMapper(String name, ThreadPool threadPool, ImageStats imageStats, ImageHashService hashService, String index,
+			MappedFieldType fieldType, MappedFieldType defaultFieldType,
+			Settings settings, int maxDimension, boolean subsample, Map<FeatureEnum, Map<String, Object>> features, Map<String, FieldMapper> featureMappers,
 			Map<String, FieldMapper> hashMappers, Map<String, FieldMapper> metadataMappers,
 			MultiFields multiFields, CopyTo copyTo) {
 
 		super(name, fieldType, defaultFieldType, settings, multiFields, copyTo);
 		this.name = name;
 		this.threadPool = threadPool;
+		this.imageStats = imageStats;
+		this.hashService = hashService;
+		this.index = index;
 		this.settings = settings;
+		this.maxDimension = maxDimension;
+		this.subsample = subsample;
 		if (features != null) {
 			this.features = ImmutableOpenMap.builder(this.features).putAll(features).build();
 		}
@@ -299,11 +612,198 @@ public class ImageMapper extends FieldMapper {
 		}
 	}
 
+	/**
+	 * Working resolution of each feature
+	 */
+	public Map<FeatureEnum, Integer> maxDimensions() {
+		Map<FeatureEnum, Integer> maxDimensions = Maps.newEnumMap(FeatureEnum.class);
+		for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+			Integer featureMaxDimension = (Integer) cursor.value.get(MAX_DIMENSION);
+			maxDimensions.put(cursor.key, featureMaxDimension != null ? featureMaxDimension : maxDimension);
+		}
+		return maxDimensions;
+	}
+
+	/**
+	 * Resolution a feature is extracted at, query images get the same features as indexed images at the same resolution
+	 */
+	public Resolution resolution(FeatureEnum featureEnum) {
+		Map<FeatureEnum, Integer> maxDimensions = maxDimensions();
+		Integer featureMaxDimension = maxDimensions.get(featureEnum);
+		return new Resolution(featureMaxDimension != null ? featureMaxDimension : Integer.MAX_VALUE, decodeDimension(maxDimensions), subsample);
+	}
+
+	/**
+	 * Resolution of a feature from the mapping of an image field as serialized in the cluster state,
+	 * {@code null} if the field does not have the feature
+	 */
+	@SuppressWarnings("unchecked")
+	public static Resolution resolution(Map<String, Object> fieldMapping, FeatureEnum featureEnum) {
+		if (!CONTENT_TYPE.equals(fieldMapping.get("type")) || !(fieldMapping.get(FEATURE) instanceof Map)) {
+			return null;
+		}
+		Map<String, Object> features = (Map<String, Object>) fieldMapping.get(FEATURE);
+		if (!(features.get(featureEnum.name()) instanceof Map)) {
+			return null;
+		}
+		int fieldMaxDimension = XContentMapValues.nodeIntegerValue(fieldMapping.get(MAX_DIMENSION), MAX_IMAGE_DIMENSION);
+		Map<FeatureEnum, Integer> maxDimensions = Maps.newEnumMap(FeatureEnum.class);
+		for (Map.Entry<String, Object> entry : features.entrySet()) {
+			Object featureMaxDimension = entry.getValue() instanceof Map ? ((Map<String, Object>) entry.getValue()).get(MAX_DIMENSION) : null;
+			maxDimensions.put(FeatureEnum.getByName(entry.getKey()), XContentMapValues.nodeIntegerValue(featureMaxDimension, fieldMaxDimension));
+		}
+		return new Resolution(maxDimensions.get(featureEnum), Collections.max(maxDimensions.values()),
+				XContentMapValues.nodeBooleanValue(fieldMapping.get(SUBSAMPLE), false));
+	}
+
+	/**
+	 * Hash families of a feature from the mapping of an image field as serialized in the cluster state,
+	 * {@code null} if the field does not have the feature
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<String> hashes(Map<String, Object> fieldMapping, FeatureEnum featureEnum) {
+		if (!CONTENT_TYPE.equals(fieldMapping.get("type")) || !(fieldMapping.get(FEATURE) instanceof Map)) {
+			return null;
+		}
+		Object featureMap = ((Map<String, Object>) fieldMapping.get(FEATURE)).get(featureEnum.name());
+		if (!(featureMap instanceof Map)) {
+			return null;
+		}
+		Object hashes = ((Map<String, Object>) featureMap).get(HASH);
+		return hashes instanceof List ? (List<String>) hashes : Collections.<String>emptyList();
+	}
+
+	/**
+	 * How the hashes of a feature are indexed, {@link ImageHashFieldMapper.Encoding#DEFAULT} if it has none
+	 */
+	public ImageHashFieldMapper.Encoding hashEncoding(FeatureEnum featureEnum) {
+		Map<String, Object> featureMap = features.get(featureEnum);
+		return featureMap != null ? hashEncoding(featureMap) : ImageHashFieldMapper.Encoding.DEFAULT;
+	}
+
+	private static ImageHashFieldMapper.Encoding hashEncoding(Map<String, Object> featureMap) {
+		Object encoding = featureMap.get(HASH_ENCODING);
+		return encoding != null ? ImageHashFieldMapper.Encoding.fromString(encoding.toString()) : ImageHashFieldMapper.Encoding.DEFAULT;
+	}
+
+	/**
+	 * The {@code m} and {@code ef_construction} of the graphs of a feature, {@code null} if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Integer> hnsw(FeatureEnum featureEnum) {
+		Map<String, Object> featureMap = features.get(featureEnum);
+		return featureMap != null ? (Map<String, Integer>) featureMap.get(HNSW) : null;
+	}
+
+	/**
+	 * The {@code subspaces} and {@code centroids} of the quantizers of a feature, {@code null} if it has none
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, Integer> pq(FeatureEnum featureEnum) {
+		Map<String, Object> featureMap = features.get(featureEnum);
+		return featureMap != null ? (Map<String, Integer>) featureMap.get(PQ) : null;
+	}
+
+	/**
+	 * Whether queries scan the {@link FeatureColumn} of a feature
+	 */
+	public boolean column(FeatureEnum featureEnum) {
+		Map<String, Object> featureMap = features.get(featureEnum);
+		return featureMap != null && Boolean.TRUE.equals(featureMap.get(COLUMN));
+	}
+
+	/**
+	 * Whether a feature is kept as a stored field besides its doc values, {@code true} if the field does not have it
+	 */
+	public boolean store(FeatureEnum featureEnum) {
+		Map<String, Object> featureMap = features.get(featureEnum);
+		return featureMap == null || store(featureMap);
+	}
+
+	private static boolean store(Map<String, Object> featureMap) {
+		Object store = featureMap.get(STORE);
+		return store == null || XContentMapValues.nodeBooleanValue(store);
+	}
+
+	/**
+	 * Hash family the feature is hashed with in the index of the field, trained or registered
+	 */
+	public ImageHash hash(FeatureEnum featureEnum, String hashName) {
+		return hashService != null ? hashService.hash(index, fieldType().names().fullName(), featureEnum, hashName) : ImageHashes.get(hashName);
+	}
+
+	private int decodeDimension(Map<FeatureEnum, Integer> maxDimensions) {
+		return maxDimensions.isEmpty() ? maxDimension : Collections.max(maxDimensions.values());
+	}
+
+	/**
+	 * Decodes the image once at the largest working resolution of the features, {@code null} if the format is not
+	 * supported. Indexing and query by image both extract through it, so the same image gets the same features.
+	 *
+	 * @param stats where to record decoding and extraction, {@code null} to not record them
+	 */
+	public ImageFeatureExtractor extractor(byte[] content, ImageStats.ExtractStats stats) throws IOException {
+		Map<FeatureEnum, Integer> maxDimensions = maxDimensions();
+		BufferedImage img = readImage(content, decodeDimension(maxDimensions), subsample, stats);
+		return img == null ? null : new ImageFeatureExtractor(img, maxDimensions, stats);
+	}
+
+	/**
+	 * Decodes the image scaled down to at most {@code maxDimension} on its longest side, {@code null} if the format is
+	 * not supported. With {@code subsample}, large images are subsampled while decoding, down to twice
+	 * {@code maxDimension}, so their full resolution raster is never allocated, at the cost of slightly different pixels.
+	 */
+	public static BufferedImage readImage(byte[] content, int maxDimension, boolean subsample) throws IOException {
+		return readImage(content, maxDimension, subsample, null);
+	}
+
+	/**
+	 * @param stats where to record decoding and scaling, {@code null} to not record them
+	 */
+	public static BufferedImage readImage(byte[] content, int maxDimension, boolean subsample, ImageStats.ExtractStats stats) throws IOException {
+		long start = System.nanoTime();
+		ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(content));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			BufferedImage img;
+			try {
+				reader.setInput(input, true, true);
+				ImageReadParam param = reader.getDefaultReadParam();
+				int subsampling = subsample ? Math.max(reader.getWidth(0), reader.getHeight(0)) / (2 * maxDimension) : 1;
+				if (subsampling > 1) {
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				}
+				img = reader.read(0, param);
+			} finally {
+				reader.dispose();
+			}
+			if (stats != null) {
+				stats.decode().recordSince(start);
+			}
+			if (Math.max(img.getHeight(), img.getWidth()) > maxDimension) {
+				start = System.nanoTime();
+				img = ImageUtils.scaleImage(img, maxDimension);
+				if (stats != null) {
+					stats.scale().recordSince(start);
+				}
+			}
+			return img;
+		} finally {
+			input.close();
+		}
+	}
+
 	@Override
 	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
 		builder.startObject(name);
 
 		builder.field("type", CONTENT_TYPE);
+		builder.field(MAX_DIMENSION, maxDimension);
+		builder.field(SUBSAMPLE, subsample);
 
 		builder.startObject(FEATURE);
 		for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
@@ -363,45 +863,18 @@ public class ImageMapper extends FieldMapper {
 
         final Boolean useThreadPool = settings.getAsBoolean("index.image.use_thread_pool", true);
         final Boolean ignoreMetadataError = settings.getAsBoolean("index.image.ignore_metadata_error", true);
-		BufferedImage img =ImageIO.read(new ByteArrayInputStream(content));
-		if(img==null) return null;
-
-        if (Math.max(img.getHeight(), img.getWidth()) > MAX_IMAGE_DIMENSION) {
-            img = ImageUtils.scaleImage(img, MAX_IMAGE_DIMENSION);
+		ImageStats.ExtractStats stats = imageStats == null ? null : imageStats.indexing();
+		ImageFeatureExtractor extractor = extractor(content, stats);
+		if(extractor==null) return null;
+        List<FeatureEnum> featureEnums = new ArrayList<FeatureEnum>(features.size());
+        for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
+            featureEnums.add(cursor.key);
         }
-        final BufferedImage finalImg = img;
-        
-        final Map<FeatureEnum, LireFeature> featureExtractMap = new MapMaker().makeMap();
 
         // have multiple features, use ThreadPool to process each feature
-        if (useThreadPool && features.size() > 1) {
-            final CountDownLatch latch = new CountDownLatch(features.size());
-            Executor executor = threadPool.generic();
-            for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
-                final FeatureEnum featureEnum = cursor.key;
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
-                            lireFeature.extract(finalImg);
-                            featureExtractMap.put(featureEnum, lireFeature);
-                        } catch (Throwable e){
-                            logger.error("Failed to extract feature from image", e);
-                        } finally {
-                            latch.countDown();
-                        }
-                    }
-                });
-            }
-            try {
-                latch.await();
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted extract feature from image", e);
-                Thread.currentThread().interrupt();
-            }
-        }
-
+        Executor executor = useThreadPool && threadPool != null ? threadPool.executor(THREAD_POOL_NAME) : null;
+        boolean abortOnRejection = "abort".equals(settings.get(REJECTION_POLICY_SETTING, "caller_runs"));
+        Map<FeatureEnum, LireFeature> featureExtractMap = extractor.extract(featureEnums, executor, abortOnRejection);
 
         for (ObjectObjectCursor<FeatureEnum, Map<String, Object>> cursor : features) {
             FeatureEnum featureEnum = cursor.key;
@@ -412,8 +885,7 @@ public class ImageMapper extends FieldMapper {
                 if (featureExtractMap.containsKey(featureEnum)) {   // already processed
                     lireFeature = featureExtractMap.get(featureEnum);
                 } else {
-                    lireFeature = featureEnum.getFeatureClass().newInstance();
-                    lireFeature.extract(img);
+                    lireFeature = extractor.extract(featureEnum);
                 }
                 byte[] parsedContent = lireFeature.getByteArrayRepresentation();
 
@@ -426,20 +898,24 @@ public class ImageMapper extends FieldMapper {
 
                 // add hash if required
                 if (featureMap.containsKey(HASH)) {
+                    // hash the feature as queries and training read it back, see ImageFeatureCache#extract
+                    double[] histogram = ImageFeatureCache.feature(featureEnum, parsedContent).getDoubleHistogram();
                     List<String> hashes = (List<String>) featureMap.get(HASH);
                     for (String h : hashes) {
-                        HashEnum hashEnum = HashEnum.valueOf(h);
-                        int[] hashVals = null;
-                        if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                            hashVals = BitSampling.generateHashes(lireFeature.getDoubleHistogram());
-                        } else if (hashEnum.equals(HashEnum.LSH)) {
-                            hashVals = LocalitySensitiveHashing.generateHashes(lireFeature.getDoubleHistogram());
+                        long start = System.nanoTime();
+                        int[] hashVals = hash(featureEnum, h).hash(histogram);
+                        if (stats != null) {
+                            stats.hash(h).recordSince(start);
                         }
 
                         String mapperName = featureEnum.name() + "." + HASH + "." + h;
                         FieldMapper hashMapper = hashMappers.get(mapperName);
                        
-                        context=context.createExternalValueContext(SerializationUtils.arrayToString(hashVals));
+                        if (hashMapper instanceof ImageHashFieldMapper) {
+                            context=context.createExternalValueContext(hashVals);
+                        } else {  // string hashes
+                            context=context.createExternalValueContext(SerializationUtils.arrayToString(hashVals));
+                        }
                         hashMapper.parse(context);
                     }
                 }
@@ -450,6 +926,7 @@ public class ImageMapper extends FieldMapper {
 
         // process metadata if required
         if (!metadataMappers.isEmpty()) {
+            long start = System.nanoTime();
             try {
                 Metadata metadata =ImageMetadataReader.readMetadata(new ByteArrayInputStream(content));
                 for (Directory directory : metadata.getDirectories()) {
@@ -471,6 +948,9 @@ public class ImageMapper extends FieldMapper {
                     throw new ElasticsearchImageProcessException("Failed to extract metadata from image", e);
                 }
             }
+            if (imageStats != null) {
+                imageStats.metadata().recordSince(start);
+            }
         }
 		return null;
     }
@@ -0,0 +1,107 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.settings.Settings;
+
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+
+/**
+ * The static LIRE bit sampling tables, each hash is the bits of the signs of the histogram on the random vectors of a
+ * table. It cannot probe.
+ *
+ * Histograms have no negative bin, so a vector with mostly positive components gives all of them the same bit.
+ * Training thresholds each vector at the median of the sample instead of at 0, so every bit splits the sample in two
+ * halves. Trained hashes also mix the table in, so that the same bits in two tables are different terms.
+ */
+final class LireBitSampling implements TrainableImageHash {
+
+    private final double[][][] functions;
+
+    // trained threshold of each vector of each table, null to hash like LIRE
+    private final float[] thresholds;
+
+    LireBitSampling(double[][][] functions) {
+        this(functions, null);
+    }
+
+    private LireBitSampling(double[][][] functions, float[] thresholds) {
+        this.functions = functions;
+        this.thresholds = thresholds;
+    }
+
+    @Override
+    public int[] hash(double[] histogram) {
+        if (thresholds == null) {
+            return BitSampling.generateHashes(histogram);
+        }
+        int[] hashes = new int[functions.length];
+        int[] bits = new int[1];
+        for (int t = 0; t < functions.length; t++) {
+            bits[0] = 0;
+            for (int j = 0; j < functions[t].length; j++) {
+                if (dot(functions[t][j], histogram) >= thresholds[t * functions[t].length + j]) {
+                    bits[0] |= 1 << j;
+                }
+            }
+            hashes[t] = MultiProbeLsh.term(t, bits);
+        }
+        return hashes;
+    }
+
+    @Override
+    public int[] probe(double[] histogram, int probes) {
+        return hash(histogram);
+    }
+
+    @Override
+    public int defaultProbes() {
+        return 0;
+    }
+
+    @Override
+    public Settings train(List<double[]> sample) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("No features to train bit sampling on");
+        }
+        int bitsPerTable = functions.length == 0 ? 0 : functions[0].length;
+        float[] trainedThresholds = new float[functions.length * bitsPerTable];
+        double[] values = new double[sample.size()];
+        for (int t = 0; t < functions.length; t++) {
+            for (int j = 0; j < bitsPerTable; j++) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = dot(functions[t][j], sample.get(i));
+                }
+                Arrays.sort(values);
+                trainedThresholds[t * bitsPerTable + j] = (float) values[values.length / 2];
+            }
+        }
+        return Settings.builder()
+                .put("tables", functions.length)
+                .put("bits", bitsPerTable)
+                .put("thresholds", ImageHashes.encode(trainedThresholds))
+                .build();
+    }
+
+    @Override
+    public LireBitSampling trained(Settings parameters) {
+        int tables = Integer.parseInt(ImageHashes.parameter(parameters, "tables"));
+        int bitsPerTable = Integer.parseInt(ImageHashes.parameter(parameters, "bits"));
+        float[] trainedThresholds = ImageHashes.decode(parameters, "thresholds");
+        if (tables != functions.length || (tables > 0 && bitsPerTable != functions[0].length)
+                || trainedThresholds.length != tables * bitsPerTable) {
+            throw new IllegalArgumentException("Trained bit sampling has [" + trainedThresholds.length + "] thresholds for ["
+                    + tables + "] tables of [" + bitsPerTable + "] bits, the tables have [" + functions.length + "]");
+        }
+        return new LireBitSampling(functions, trainedThresholds);
+    }
+
+    private static double dot(double[] function, double[] histogram) {
+        double product = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            product += function[i] * histogram[i];
+        }
+        return product;
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.common.settings.Settings;
+
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+
+/**
+ * The static LIRE locality sensitive hashing tables, each hash is the bucket of the histogram on the random vector of a
+ * table. It cannot probe.
+ *
+ * LIRE buckets are {@link LocalitySensitiveHashing#binLength} wide whatever the spread of the features, and the bucket
+ * numbers of all tables are the same terms. Training centers each vector on the mean of the sample and makes its
+ * buckets {@link #TRAINED_WIDTH} standard deviations of the sample wide, and trained hashes mix the table in.
+ */
+final class LireLsh implements TrainableImageHash {
+
+    /**
+     * Width of the trained buckets in standard deviations of the sample on their vector
+     */
+    static final float TRAINED_WIDTH = 0.25f;
+
+    private final double[][] functions;
+
+    // trained scale and shift of each vector, null to hash like LIRE
+    private final float[] scale;
+    private final float[] shift;
+
+    LireLsh(double[][] functions) {
+        this(functions, null, null);
+    }
+
+    private LireLsh(double[][] functions, float[] scale, float[] shift) {
+        this.functions = functions;
+        this.scale = scale;
+        this.shift = shift;
+    }
+
+    @Override
+    public int[] hash(double[] histogram) {
+        if (scale == null) {
+            return LocalitySensitiveHashing.generateHashes(histogram);
+        }
+        int[] hashes = new int[functions.length];
+        int[] bucket = new int[1];
+        for (int t = 0; t < functions.length; t++) {
+            bucket[0] = (int) Math.floor(dot(functions[t], histogram) * scale[t] + shift[t]);
+            hashes[t] = MultiProbeLsh.term(t, bucket);
+        }
+        return hashes;
+    }
+
+    @Override
+    public int[] probe(double[] histogram, int probes) {
+        return hash(histogram);
+    }
+
+    @Override
+    public int defaultProbes() {
+        return 0;
+    }
+
+    @Override
+    public Settings train(List<double[]> sample) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("No features to train locality sensitive hashing on");
+        }
+        float[] trainedScale = new float[functions.length];
+        float[] trainedShift = new float[functions.length];
+        Random random = new Random(0);  // the same sample gives the same parameters
+        for (int t = 0; t < functions.length; t++) {
+            double sum = 0;
+            double sumOfSquares = 0;
+            for (double[] histogram : sample) {
+                double product = dot(functions[t], histogram);
+                sum += product;
+                sumOfSquares += product * product;
+            }
+            double mean = sum / sample.size();
+            double bucketWidth = Math.sqrt(Math.max(0, sumOfSquares / sample.size() - mean * mean)) * TRAINED_WIDTH;
+            if (bucketWidth <= 0) {  // a sample of one feature, or of the same one
+                bucketWidth = LocalitySensitiveHashing.binLength;
+            }
+            trainedScale[t] = (float) (1 / bucketWidth);
+            trainedShift[t] = (float) (-mean / bucketWidth + random.nextDouble());
+        }
+        return Settings.builder()
+                .put("tables", functions.length)
+                .put("scale", ImageHashes.encode(trainedScale))
+                .put("shift", ImageHashes.encode(trainedShift))
+                .build();
+    }
+
+    @Override
+    public LireLsh trained(Settings parameters) {
+        int tables = Integer.parseInt(ImageHashes.parameter(parameters, "tables"));
+        float[] trainedScale = ImageHashes.decode(parameters, "scale");
+        float[] trainedShift = ImageHashes.decode(parameters, "shift");
+        if (tables != functions.length || trainedScale.length != tables || trainedShift.length != tables) {
+            throw new IllegalArgumentException("Trained locality sensitive hashing has [" + trainedScale.length + "] scales and ["
+                    + trainedShift.length + "] shifts for [" + tables + "] tables, the tables have [" + functions.length + "]");
+        }
+        return new LireLsh(functions, trainedScale, trainedShift);
+    }
+
+    private static double dot(double[] function, double[] histogram) {
+        double product = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            product += function[i] * histogram[i];
+        }
+        return product;
+    }
+}
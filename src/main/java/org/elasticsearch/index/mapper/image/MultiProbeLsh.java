@@ -0,0 +1,368 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.settings.Settings;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Multi-probe LSH (Lv et al., "Multi-Probe LSH: Efficient Indexing for High-Dimensional Similarity Search"), p-stable
+ * projections of the L2 normalized histogram grouped in tables of {@code projections} buckets each.
+ *
+ * A feature is indexed with one term per table, the hash of the table and of its buckets, so the same buckets in two
+ * tables are different terms. Queries also probe the neighbouring buckets of each table in the order the
+ * paper's query-directed probing sequence gives: the perturbations whose query is the closest to the bucket
+ * boundaries first. Probing reaches the recall of many more tables with few of them, keeping the postings small.
+ *
+ * Projections are drawn from {@code seed} per histogram length, so a given feature always gets the same ones.
+ *
+ * Training keeps the projections but centers them on the mean of the sample and scales each one to its spread, so
+ * buckets are {@link #TRAINED_WIDTH} standard deviations of the sample wide. Features all lying in a small cone, as
+ * histograms do, otherwise fall in the few buckets it crosses.
+ */
+public class MultiProbeLsh implements TrainableImageHash {
+
+    public static final int DEFAULT_TABLES = 8;
+    public static final int DEFAULT_PROJECTIONS = 10;
+    public static final float DEFAULT_WIDTH = 1.5f;
+    public static final int DEFAULT_PROBES = 32;
+
+    /**
+     * Width of the trained buckets in standard deviations of the sample on their projection
+     */
+    public static final float TRAINED_WIDTH = 2.0f;
+
+    private final int tables;
+    private final int projections;
+    private final float width;
+    private final int defaultProbes;
+    private final long seed;
+    private final ConcurrentMap<Integer, Projections> projectionsByLength = new MapMaker().makeMap();
+
+    // trained scale and shift of each projection, for histograms of the trained length only
+    private final int trainedLength;
+    private final float[] scale;
+    private final float[] shift;
+
+    public MultiProbeLsh(int tables, int projections, float width, int defaultProbes, long seed) {
+        this(tables, projections, width, defaultProbes, seed, 0, null, null);
+    }
+
+    private MultiProbeLsh(int tables, int projections, float width, int defaultProbes, long seed, int trainedLength,
+                          float[] scale, float[] shift) {
+        if (tables <= 0 || projections <= 0 || width <= 0 || defaultProbes < 0) {
+            throw new IllegalArgumentException("Invalid multi-probe LSH [" + tables + "] tables of [" + projections
+                    + "] projections of width [" + width + "] with [" + defaultProbes + "] probes");
+        }
+        this.tables = tables;
+        this.projections = projections;
+        this.width = width;
+        this.defaultProbes = defaultProbes;
+        this.seed = seed;
+        this.trainedLength = trainedLength;
+        this.scale = scale;
+        this.shift = shift;
+    }
+
+    public int tables() {
+        return tables;
+    }
+
+    public int projections() {
+        return projections;
+    }
+
+    public float width() {
+        return width;
+    }
+
+    @Override
+    public int defaultProbes() {
+        return defaultProbes;
+    }
+
+    /**
+     * Whether the projections were fit to the features of an index
+     */
+    public boolean isTrained() {
+        return scale != null;
+    }
+
+    @Override
+    public Settings train(List<double[]> sample) {
+        return train(sample, TRAINED_WIDTH);
+    }
+
+    Settings train(List<double[]> sample, float trainedWidth) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("No features to train multi-probe LSH on");
+        }
+        int length = sample.get(0).length;
+        int count = tables * projections;
+        Projections p = projections(length);
+        double[] sum = new double[count];
+        double[] sumOfSquares = new double[count];
+        int n = 0;
+        for (double[] histogram : sample) {
+            if (histogram.length != length) {
+                continue;
+            }
+            double norm = norm(histogram);
+            for (int k = 0; k < count; k++) {
+                double product = dot(histogram, p.a[k]) / norm;
+                sum[k] += product;
+                sumOfSquares[k] += product * product;
+            }
+            n++;
+        }
+        float[] trainedScale = new float[count];
+        float[] trainedShift = new float[count];
+        for (int k = 0; k < count; k++) {
+            double mean = sum[k] / n;
+            double bucketWidth = Math.sqrt(Math.max(0, sumOfSquares[k] / n - mean * mean)) * trainedWidth;
+            if (bucketWidth <= 0) {  // a sample of one feature, or of the same one
+                bucketWidth = width;
+            }
+            trainedScale[k] = (float) (1 / bucketWidth);
+            // keeps the random offset of the projection, in bucket widths, so that a boundary is not always at the mean
+            trainedShift[k] = (float) (-mean / bucketWidth + p.b[k] / width);
+        }
+        return Settings.builder()
+                .put("tables", tables)
+                .put("projections", projections)
+                .put("width", width)
+                .put("probes", defaultProbes)
+                .put("seed", seed)
+                .put("length", length)
+                .put("scale", ImageHashes.encode(trainedScale))
+                .put("shift", ImageHashes.encode(trainedShift))
+                .build();
+    }
+
+    @Override
+    public MultiProbeLsh trained(Settings parameters) {
+        int trainedTables = Integer.parseInt(ImageHashes.parameter(parameters, "tables"));
+        int trainedProjections = Integer.parseInt(ImageHashes.parameter(parameters, "projections"));
+        float[] trainedScale = ImageHashes.decode(parameters, "scale");
+        float[] trainedShift = ImageHashes.decode(parameters, "shift");
+        if (trainedScale.length != trainedTables * trainedProjections || trainedShift.length != trainedScale.length) {
+            throw new IllegalArgumentException("Trained multi-probe LSH has [" + trainedScale.length + "] scales and ["
+                    + trainedShift.length + "] shifts for [" + trainedTables * trainedProjections + "] projections");
+        }
+        return new MultiProbeLsh(trainedTables, trainedProjections, Float.parseFloat(ImageHashes.parameter(parameters, "width")),
+                Integer.parseInt(ImageHashes.parameter(parameters, "probes")), Long.parseLong(ImageHashes.parameter(parameters, "seed")),
+                Integer.parseInt(ImageHashes.parameter(parameters, "length")), trainedScale, trainedShift);
+    }
+
+    @Override
+    public int[] hash(double[] histogram) {
+        double[] positions = positions(histogram);
+        int[] buckets = new int[projections];
+        int[] hashes = new int[tables];
+        for (int t = 0; t < tables; t++) {
+            for (int j = 0; j < projections; j++) {
+                buckets[j] = (int) Math.floor(positions[t * projections + j]);
+            }
+            hashes[t] = term(t, buckets);
+        }
+        return hashes;
+    }
+
+    @Override
+    public int[] probe(double[] histogram, int probes) {
+        if (probes <= 0) {
+            return hash(histogram);
+        }
+        double[] positions = positions(histogram);
+        int[] hashes = new int[tables * (probes + 1)];
+        int count = 0;
+        int[] buckets = new int[projections];
+        int[] probed = new int[projections];
+        Perturbation[] perturbations = new Perturbation[2 * projections];
+        for (int t = 0; t < tables; t++) {
+            int first = count;
+            for (int j = 0; j < projections; j++) {
+                double position = positions[t * projections + j];
+                buckets[j] = (int) Math.floor(position);
+                double fraction = position - buckets[j];
+                perturbations[2 * j] = new Perturbation(j, -1, fraction);
+                perturbations[2 * j + 1] = new Perturbation(j, 1, 1 - fraction);
+            }
+            hashes[count++] = term(t, buckets);
+
+            // the shift/expand generation of the paper over the perturbations sorted by distance to the boundary,
+            // perturbing the same projection both ways is skipped but still expanded
+            Arrays.sort(perturbations);
+            PriorityQueue<int[]> sets = new PriorityQueue<int[]>(4 * probes, new PerturbationSetComparator(perturbations));
+            sets.add(new int[] {0});
+            int emitted = 0;
+            while (emitted < probes && !sets.isEmpty()) {
+                int[] set = sets.poll();
+                int last = set[set.length - 1];
+                if (last + 1 < perturbations.length) {
+                    int[] shifted = set.clone();
+                    shifted[shifted.length - 1] = last + 1;
+                    sets.add(shifted);
+                    int[] expanded = Arrays.copyOf(set, set.length + 1);
+                    expanded[set.length] = last + 1;
+                    sets.add(expanded);
+                }
+                if (!valid(set, perturbations)) {
+                    continue;
+                }
+                System.arraycopy(buckets, 0, probed, 0, projections);
+                for (int i : set) {
+                    probed[perturbations[i].projection] += perturbations[i].delta;
+                }
+                hashes[count++] = term(t, probed);
+                emitted++;
+            }
+            // out of perturbations, repeat the bucket so every table has as many hashes
+            while (count < first + probes + 1) {
+                hashes[count++] = hashes[first];
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Positions of the normalized histogram on all projections, in bucket widths
+     */
+    private double[] positions(double[] histogram) {
+        Projections p = projections(histogram.length);
+        double norm = norm(histogram);
+        boolean trained = scale != null && histogram.length == trainedLength;
+        double[] positions = new double[tables * projections];
+        for (int k = 0; k < positions.length; k++) {
+            double product = dot(histogram, p.a[k]) / norm;
+            positions[k] = trained ? product * scale[k] + shift[k] : (product + p.b[k]) / width;
+        }
+        return positions;
+    }
+
+    private static double norm(double[] histogram) {
+        double norm = 0;
+        for (double v : histogram) {
+            norm += v * v;
+        }
+        return norm > 0 ? Math.sqrt(norm) : 1;
+    }
+
+    private static double dot(double[] histogram, float[] a) {
+        double product = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            product += histogram[i] * a[i];
+        }
+        return product;
+    }
+
+    private Projections projections(int length) {
+        Projections p = projectionsByLength.get(length);
+        if (p == null) {
+            p = new Projections(tables * projections, length, width, seed);
+            Projections existing = projectionsByLength.putIfAbsent(length, p);
+            if (existing != null) {
+                p = existing;
+            }
+        }
+        return p;
+    }
+
+    private static boolean valid(int[] set, Perturbation[] perturbations) {
+        for (int i = 0; i < set.length; i++) {
+            for (int j = i + 1; j < set.length; j++) {
+                if (perturbations[set[i]].projection == perturbations[set[j]].projection) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Murmur3 of the table and its buckets, non negative since hash terms go through the standard analyzer
+     */
+    static int term(int table, int[] buckets) {
+        int h = mix(0x9747b28c, table);
+        for (int bucket : buckets) {
+            h = mix(h, bucket);
+        }
+        h ^= (buckets.length + 1) * 4;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & 0x7FFFFFFF;
+    }
+
+    private static int mix(int h, int k) {
+        k *= 0xcc9e2d51;
+        k = Integer.rotateLeft(k, 15);
+        k *= 0x1b873593;
+        h ^= k;
+        h = Integer.rotateLeft(h, 13);
+        return h * 5 + 0xe6546b64;
+    }
+
+    private static final class Projections {
+        final float[][] a;
+        final float[] b;
+
+        Projections(int count, int length, float width, long seed) {
+            Random random = new Random(seed * 31 + length);
+            a = new float[count][length];
+            b = new float[count];
+            for (int k = 0; k < count; k++) {
+                for (int i = 0; i < length; i++) {
+                    a[k][i] = (float) random.nextGaussian();
+                }
+                b[k] = random.nextFloat() * width;
+            }
+        }
+    }
+
+    private static final class Perturbation implements Comparable<Perturbation> {
+        final int projection;
+        final int delta;
+        final double score;
+
+        Perturbation(int projection, int delta, double distance) {
+            this.projection = projection;
+            this.delta = delta;
+            this.score = distance * distance;
+        }
+
+        @Override
+        public int compareTo(Perturbation o) {
+            return Double.compare(score, o.score);
+        }
+    }
+
+    private static final class PerturbationSetComparator implements Comparator<int[]> {
+        private final Perturbation[] perturbations;
+
+        PerturbationSetComparator(Perturbation[] perturbations) {
+            this.perturbations = perturbations;
+        }
+
+        @Override
+        public int compare(int[] set1, int[] set2) {
+            return Double.compare(score(set1), score(set2));
+        }
+
+        private double score(int[] set) {
+            double score = 0;
+            for (int i : set) {
+                score += perturbations[i].score;
+            }
+            return score;
+        }
+    }
+}
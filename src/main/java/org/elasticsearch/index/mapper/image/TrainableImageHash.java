@@ -0,0 +1,30 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.List;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Hash family whose parameters can be fit to the features of an index, so that its buckets are evenly filled by them
+ * instead of by the features the family was drawn for.
+ *
+ * Trained parameters are stored in the index settings, see {@link ImageHashService}, and the index then hashes with
+ * {@link #trained} instead of the registered family. The trained hashes are different terms, documents indexed before
+ * training have to be reindexed to be found by hash queries.
+ */
+public interface TrainableImageHash extends ImageHash {
+
+    /**
+     * Parameters fit to the histograms of sample features
+     *
+     * @throws IllegalArgumentException if the sample is too small to train on
+     */
+    Settings train(List<double[]> sample);
+
+    /**
+     * The family hashing with parameters returned by {@link #train}
+     *
+     * @throws IllegalArgumentException if the parameters are not valid for this family
+     */
+    ImageHash trained(Settings parameters);
+}
@@ -7,10 +7,8 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchImageProcessException;
-
-import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.elasticsearch.plugin.image.stats.ImageStats;
 
 /**
  * Calculate score for each image
@@ -19,16 +17,22 @@ import net.semanticmetadata.lire.imageanalysis.LireFeature;
 public abstract class AbstractImageScorer extends Scorer {
 
     private final String luceneFieldName;
-    private final LireFeature lireFeature;
+    private final DistanceKernel distanceKernel;
+    private final ImageDistanceCache.QueryDistances distanceCache;
     private final IndexReader reader;
     private final float boost;
     private BinaryDocValues binaryDocValues;
+    private FeatureColumn column;
+    private ImageStats.SearchStats stats;
+    private long startNanos;
+    private int docsScored;
 
-    protected AbstractImageScorer(Weight weight, String luceneFieldName, LireFeature lireFeature, IndexReader reader,
-                                  float boost) {
+    protected AbstractImageScorer(Weight weight, String luceneFieldName, DistanceKernel distanceKernel,
+                                  ImageDistanceCache.QueryDistances distanceCache, IndexReader reader, float boost) {
         super(weight);
         this.luceneFieldName = luceneFieldName;
-        this.lireFeature = lireFeature;
+        this.distanceKernel = distanceKernel;
+        this.distanceCache = distanceCache;
         this.reader = reader;
         this.boost = boost;
     }
@@ -37,34 +41,108 @@ public abstract class AbstractImageScorer extends Scorer {
     public float score() throws IOException {
         assert docID() != NO_MORE_DOCS;
 
+        try {
+
+            if(docValues()!=null){
+                return score(distance(docID(), Float.POSITIVE_INFINITY));
+            }
+
+            return 0;
+
+        } catch (Exception e) {
+            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+        }
+    }
+
+    protected BinaryDocValues docValues() throws IOException {
         if (binaryDocValues == null) {
         	
         	LeafReader leftReader = (LeafReader) reader;
             binaryDocValues = leftReader.getBinaryDocValues(luceneFieldName);
         }
+        return binaryDocValues;
+    }
 
-        try {
+    /**
+     * Reads the features of the docs that have one from the column of the segment instead of its doc values
+     */
+    void useColumn(FeatureColumn column) {
+        this.column = column;
+    }
 
-            if(binaryDocValues!=null){
-                BytesRef bytesRef = binaryDocValues.get(docID());
-                LireFeature docFeature = lireFeature.getClass().newInstance();
-                docFeature.setByteArrayRepresentation(bytesRef.bytes);
-
-                float distance = lireFeature.getDistance(docFeature);
-                float score;
-                if (Float.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
-                    score = 2f - distance;
-                } else {
-                    score = 1 / distance;
-                }
-                return score * boost;
-            }
+    /**
+     * Records the docs scored and the scoring time of the segment once the scorer is exhausted
+     */
+    void recordStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+        this.startNanos = System.nanoTime();
+    }
 
-            return 0;
+    /**
+     * To be returned by subclasses once they run out of docs
+     */
+    protected int exhausted() {
+        if (stats != null) {
+            stats.docsScored().record(docsScored);
+            stats.score().recordSince(startNanos);
+            stats = null;
+        }
+        return NO_MORE_DOCS;
+    }
 
-        } catch (Exception e) {
-            throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+    /**
+     * Distance of the doc to the query image, see {@link DistanceKernel#distance(byte[], int, int, float)}
+     * for the meaning of {@code threshold}
+     */
+    protected float distance(int doc, float threshold) {
+        docsScored++;
+        return distance(distanceKernel, distanceCache, (LeafReader) reader, binaryDocValues, column, doc, threshold);
+    }
+
+    static float distance(DistanceKernel distanceKernel, ImageDistanceCache.QueryDistances distanceCache,
+                          LeafReader reader, BinaryDocValues binaryDocValues, int doc, float threshold) {
+        return distance(distanceKernel, distanceCache, reader, binaryDocValues, null, doc, threshold);
+    }
+
+    /**
+     * @param column column of the segment, {@code null} to read the doc values
+     */
+    static float distance(DistanceKernel distanceKernel, ImageDistanceCache.QueryDistances distanceCache,
+                          LeafReader reader, BinaryDocValues binaryDocValues, FeatureColumn column, int doc, float threshold) {
+        if (distanceCache == null) {
+            return distance(distanceKernel, binaryDocValues, column, doc, threshold);
+        }
+        float cached = distanceCache.get(reader, doc);
+        if (!Float.isNaN(cached)) {
+            return cached;
+        }
+        float distance = distance(distanceKernel, binaryDocValues, column, doc, threshold);
+        if (distance <= threshold) {  // only exact distances are cached
+            distanceCache.put(reader, doc, distance);
+        }
+        return distance;
+    }
+
+    private static float distance(DistanceKernel distanceKernel, BinaryDocValues binaryDocValues, FeatureColumn column, int doc,
+                                  float threshold) {
+        if (column != null && column.has(doc)) {
+            return distanceKernel.distance(column, doc, threshold);
+        }
+        return distanceKernel.distance(binaryDocValues.get(doc), threshold);
+    }
+
+    protected float score(float distance) {
+        return score(distance, boost);
+    }
+
+    static float score(float distance, float boost) {
+        float score;
+        if (Float.compare(distance, 1.0f) <= 0) { // distance less than 1, consider as same image
+            score = 2f - distance;
+        } else {
+            score = 1 / distance;
         }
+        return score * boost;
     }
 
     @Override
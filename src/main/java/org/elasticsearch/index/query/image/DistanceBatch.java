@@ -0,0 +1,105 @@
+package org.elasticsearch.index.query.image;
+
+/**
+ * Docs of a segment scored together by {@link DistanceKernel#distances(FeatureColumn, DistanceBatch, float)}, in the
+ * order they were added. Docs added with their distance, cached ones, keep it, the others are pending until the kernel
+ * computes them. A batch also holds the scratch arrays of the kernels, so it is reused by one thread at a time.
+ */
+public final class DistanceBatch {
+
+    /**
+     * Docs per batch, lanes of the loops of the kernels
+     */
+    public static final int SIZE = 32;
+
+    private final int[] docs = new int[SIZE];
+    private final float[] distances = new float[SIZE];
+    private final int[] pending = new int[SIZE];  // entries without distance
+    private int size;
+    private int numPending;
+
+    // scratch of the kernels, one value per doc of the batch
+    final int[][] intLanes = new int[3][SIZE];
+    private byte[] bytes = new byte[0];
+    private double[] doubles = new double[0];
+    private int[] ints = new int[0];
+
+    /**
+     * Adds a doc to score
+     *
+     * @return whether the batch is full
+     */
+    public boolean add(int doc) {
+        pending[numPending++] = size;
+        return add(doc, Float.NaN);
+    }
+
+    /**
+     * Adds a doc with a known distance
+     *
+     * @return whether the batch is full
+     */
+    public boolean add(int doc, float distance) {
+        docs[size] = doc;
+        distances[size] = distance;
+        size++;
+        return size == SIZE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int doc(int i) {
+        return docs[i];
+    }
+
+    /**
+     * Distance of the i-th doc, with the contract of {@link DistanceKernel#distance(FeatureColumn, int, float)}
+     */
+    public float distance(int i) {
+        return distances[i];
+    }
+
+    public void clear() {
+        size = 0;
+        numPending = 0;
+    }
+
+    int pending() {
+        return numPending;
+    }
+
+    int pendingDoc(int lane) {
+        return docs[pending[lane]];
+    }
+
+    float pendingDistance(int lane) {
+        return distances[pending[lane]];
+    }
+
+    void pendingDistance(int lane, float distance) {
+        distances[pending[lane]] = distance;
+    }
+
+    byte[] bytes(int length) {
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        return bytes;
+    }
+
+    double[] doubles(int length) {
+        if (doubles.length < length) {
+            doubles = new double[length];
+        }
+        return doubles;
+    }
+
+    int[] ints(int length) {
+        if (ints.length < length) {
+            ints = new int[length];
+        }
+        return ints;
+    }
+}
@@ -0,0 +1,130 @@
+package org.elasticsearch.index.query.image;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the {@code k} smallest distances seen so far, optionally with the doc they belong to.
+ * The largest of them is the threshold a distance has to beat to make it into the top k.
+ */
+final class DistanceHeap {
+
+    private final int k;
+    private final float[] heap;  // max heap, 1 based
+    private final int[] docs;
+    private int size;
+
+    DistanceHeap(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be greater than 0");
+        }
+        this.k = k;
+        this.heap = new float[k + 1];
+        this.docs = new int[k + 1];
+    }
+
+    /**
+     * Distances greater than or equal to the threshold cannot make it into the top k
+     */
+    float threshold() {
+        return size < k ? Float.POSITIVE_INFINITY : heap[1];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds the distance if it is one of the k smallest so far
+     *
+     * @return whether the distance was added
+     */
+    boolean offer(float distance) {
+        return offer(distance, -1);
+    }
+
+    /**
+     * Adds the distance of the doc if it is one of the k smallest so far
+     *
+     * @return whether the distance was added
+     */
+    boolean offer(float distance, int doc) {
+        if (size < k) {
+            heap[++size] = distance;
+            docs[size] = doc;
+            upHeap(size);
+            return true;
+        }
+        if (distance < heap[1]) {
+            heap[1] = distance;
+            docs[1] = doc;
+            downHeap(1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Distance of the i-th entry, {@code 0 <= i < size()}, in no particular order
+     */
+    float distance(int i) {
+        return heap[i + 1];
+    }
+
+    /**
+     * Doc of the i-th entry, {@code 0 <= i < size()}, in no particular order
+     */
+    int doc(int i) {
+        return docs[i + 1];
+    }
+
+    /**
+     * The docs in increasing order, their distances are written to {@code distances} in the same order
+     */
+    int[] docsInOrder(float[] distances) {
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = (long) docs[i + 1] << 32 | Float.floatToRawIntBits(heap[i + 1]) & 0xFFFFFFFFL;
+        }
+        Arrays.sort(sorted);
+        int[] inOrder = new int[size];
+        for (int i = 0; i < size; i++) {
+            inOrder[i] = (int) (sorted[i] >>> 32);
+            distances[i] = Float.intBitsToFloat((int) sorted[i]);
+        }
+        return inOrder;
+    }
+
+    private void upHeap(int i) {
+        float value = heap[i];
+        int doc = docs[i];
+        int parent = i >>> 1;
+        while (parent > 0 && value > heap[parent]) {
+            heap[i] = heap[parent];
+            docs[i] = docs[parent];
+            i = parent;
+            parent = i >>> 1;
+        }
+        heap[i] = value;
+        docs[i] = doc;
+    }
+
+    private void downHeap(int i) {
+        float value = heap[i];
+        int doc = docs[i];
+        int child = i << 1;
+        while (child <= size) {
+            if (child < size && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= value) {
+                break;
+            }
+            heap[i] = heap[child];
+            docs[i] = docs[child];
+            i = child;
+            child = i << 1;
+        }
+        heap[i] = value;
+        docs[i] = doc;
+    }
+}
@@ -0,0 +1,102 @@
+package org.elasticsearch.index.query.image;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Computes the distance between a query feature and a document feature directly from the
+ * serialized bytes written by {@link org.elasticsearch.index.mapper.image.ImageMapper},
+ * without creating a {@link LireFeature} per document.
+ *
+ * Results are the same as {@link LireFeature#getDistance(LireFeature)} with the query feature
+ * as receiver. Kernels only hold immutable state derived from the query feature, so a single
+ * instance can be shared by all scorers of a query.
+ */
+public abstract class DistanceKernel {
+
+    /**
+     * Distance between the query feature and the feature serialized in
+     * {@code bytes[offset, offset + length)}
+     */
+    public abstract float distance(byte[] bytes, int offset, int length);
+
+    public final float distance(BytesRef bytesRef) {
+        return distance(bytesRef.bytes, bytesRef.offset, bytesRef.length);
+    }
+
+    /**
+     * Same as {@link #distance(byte[], int, int)} when the distance is not greater than {@code threshold}.
+     * Otherwise the kernel may stop as soon as a lower bound of the distance exceeds the threshold and return
+     * any value greater than it. Kernels without a cheap lower bound always compute the exact distance.
+     */
+    public float distance(byte[] bytes, int offset, int length, float threshold) {
+        return distance(bytes, offset, length);
+    }
+
+    public final float distance(BytesRef bytesRef, float threshold) {
+        return distance(bytesRef.bytes, bytesRef.offset, bytesRef.length, threshold);
+    }
+
+    /**
+     * Same as {@link #distance(byte[], int, int, float)} on the feature of a doc decoded in a {@link FeatureColumn},
+     * only kernels of features with a column implement it
+     */
+    public float distance(FeatureColumn column, int doc, float threshold) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not read feature columns");
+    }
+
+    /**
+     * Computes the pending distances of the batch, docs with a feature in the column, each with the contract of
+     * {@link #distance(FeatureColumn, int, float)}. Kernels that override it copy the features of the batch out of the
+     * column and keep the order of the sums of each doc, so that the distances stay exactly the same.
+     */
+    public void distances(FeatureColumn column, DistanceBatch batch, float threshold) {
+        for (int lane = 0; lane < batch.pending(); lane++) {
+            batch.pendingDistance(lane, distance(column, batch.pendingDoc(lane), threshold));
+        }
+    }
+
+    public static DistanceKernel forFeature(FeatureEnum featureEnum, LireFeature queryFeature) {
+        switch (featureEnum) {
+            case AUTO_COLOR_CORRELOGRAM:
+                return new DistanceKernels.AutoColorCorrelogramKernel(queryFeature);
+            case BINARY_PATTERNS_PYRAMID:
+                return new DistanceKernels.NibbleL1Kernel(queryFeature, true);
+            case CEDD:
+                return new DistanceKernels.TanimotoKernel(queryFeature, DistanceKernels.TanimotoKernel.NIBBLE);
+            case SIMPLE_COLOR_HISTOGRAM:
+                return new DistanceKernels.SimpleColorHistogramKernel(queryFeature);
+            case COLOR_LAYOUT:
+                return new DistanceKernels.ColorLayoutKernel(queryFeature);
+            case EDGE_HISTOGRAM:
+                return new DistanceKernels.EdgeHistogramKernel(queryFeature);
+            case FCTH:
+                return new DistanceKernels.TanimotoKernel(queryFeature, DistanceKernels.TanimotoKernel.HALF_NIBBLE);
+            case GABOR:
+                return new DistanceKernels.GaborKernel(queryFeature);
+            case JCD:
+                return new DistanceKernels.TanimotoKernel(queryFeature, DistanceKernels.TanimotoKernel.RUN_LENGTH);
+            case JOINT_HISTOGRAM:
+                return new DistanceKernels.JointHistogramKernel(queryFeature);
+            case JPEG_COEFFICIENT_HISTOGRAM:
+                return new DistanceKernels.JpegCoefficientHistogramKernel(queryFeature);
+            case LOCAL_BINARY_PATTERNS:
+            case ROTATION_INVARIANT_LOCAL_BINARY_PATTERNS:
+                return new DistanceKernels.ByteL1Kernel(queryFeature, true);
+            case LUMINANCE_LAYOUT:
+                return new DistanceKernels.ByteL1Kernel(queryFeature, false);
+            case OPPONENT_HISTOGRAM:
+                return new DistanceKernels.OpponentHistogramKernel(queryFeature);
+            case PHOG:
+                return new DistanceKernels.NibbleL1Kernel(queryFeature, false);
+            case SCALABLE_COLOR:
+                return new DistanceKernels.ScalableColorKernel(queryFeature);
+            case TAMURA:
+                return new DistanceKernels.TamuraKernel(queryFeature);
+            default:
+                throw new IllegalArgumentException("No distance kernel for feature [" + featureEnum.name() + "]");
+        }
+    }
+}
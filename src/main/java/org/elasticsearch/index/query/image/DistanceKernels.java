@@ -0,0 +1,773 @@
+package org.elasticsearch.index.query.image;
+
+import java.nio.ByteBuffer;
+
+import net.semanticmetadata.lire.imageanalysis.ColorLayout;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * {@link DistanceKernel} implementations, one per serialization format / metric used by LIRE.
+ *
+ * Each kernel decodes the document feature on the fly from the serialized bytes and replays the
+ * arithmetic of the corresponding LIRE {@code getDistance} in the same order, so the result is
+ * identical to building the document {@link LireFeature} and calling {@code getDistance} on the query.
+ */
+final class DistanceKernels {
+
+    private DistanceKernels() {
+    }
+
+    static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | (bytes[pos + 3] & 0xFF);
+    }
+
+    static double readDouble(byte[] bytes, int pos) {
+        long bits = (long) readInt(bytes, pos) << 32 | (readInt(bytes, pos + 4) & 0xFFFFFFFFL);
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Value at {@code index} of a histogram packed as two 4 bit values per byte (shifted by 128),
+     * 0 past the end of the serialized bytes
+     */
+    static int nibble(byte[] bytes, int offset, int length, int index) {
+        int pos = index >> 1;
+        if (pos >= length) {
+            return 0;
+        }
+        int tmp = bytes[offset + pos] + 128;
+        return (index & 1) == 0 ? tmp >> 4 : tmp & 0xF;
+    }
+
+    static int[] toIntArray(double[] values) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (int) values[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returned instead of the distance once its lower bound exceeds the threshold
+     */
+    static final float ABOVE_THRESHOLD = Float.POSITIVE_INFINITY;
+
+    /**
+     * Lower bounds are only checked every {@code CHECK_INTERVAL} bins to keep the loops tight.
+     * Bounds are compared after the same float conversion as the distance, so a pruned distance
+     * is never equal to the threshold.
+     */
+    static final int CHECK_INTERVAL = 32;
+
+    static void checkLength(boolean valid, String feature) {
+        if (!valid) {
+            throw new IllegalArgumentException("Feature length of " + feature + " does not match the query feature");
+        }
+    }
+
+    /**
+     * Tanimoto coefficient used by CEDD, FCTH and JCD
+     */
+    static final class TanimotoKernel extends DistanceKernel {
+
+        /** CEDD: two 4 bit values per byte */
+        static final int NIBBLE = 0;
+        /** FCTH: two 4 bit values per byte, halved */
+        static final int HALF_NIBBLE = 1;
+        /** JCD: doubled values, runs of zeros as negative counts */
+        static final int RUN_LENGTH = 2;
+
+        // the norm bound is computed with a different rounding than the distance itself
+        private static final double BOUND_SLACK = 1e-3;
+
+        private final int encoding;
+        private final int size;
+        private final double querySum;
+        private final double[] normalizedQuery;
+        private final double querySquares;
+
+        TanimotoKernel(LireFeature queryFeature, int encoding) {
+            this.encoding = encoding;
+            double[] histogram = queryFeature.getDoubleHistogram();
+            this.size = histogram.length;
+            double sum = 0.0;
+            for (int i = 0; i < size; i++) {
+                sum += histogram[i];
+            }
+            this.querySum = sum;
+            this.normalizedQuery = new double[size];
+            double squares = 0.0;
+            if (sum != 0.0) {
+                for (int i = 0; i < size; i++) {
+                    normalizedQuery[i] = histogram[i] / sum;
+                    squares += normalizedQuery[i] * normalizedQuery[i];
+                }
+            }
+            this.querySquares = squares;
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            // first pass: sum of the document histogram, used to normalize it, and of its squares for the bound
+            int sum = 0;
+            int squares = 0;
+            if (encoding == RUN_LENGTH) {
+                int index = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    int b = bytes[i];
+                    if (b > 0) {
+                        sum += b;
+                        squares += b * b;
+                        index++;
+                    } else {
+                        index -= b;
+                    }
+                }
+                checkLength(index <= size, "histogram");
+            } else {
+                checkLength(length << 1 <= size, "histogram");
+                for (int i = offset; i < offset + length; i++) {
+                    int tmp = bytes[i] + 128;
+                    int high = tmp >> 4;
+                    int low = tmp & 0xF;
+                    sum += high + low;
+                    squares += high * high + low * low;
+                }
+            }
+            double scale = scale();
+            double docSum = (double) sum / scale;
+            float fromSums = distanceFromSums(docSum, (double) squares / (scale * scale), threshold);
+            if (!Float.isNaN(fromSums)) {
+                return fromSums;
+            }
+
+            double products = 0.0;
+            double docSquares = 0.0;
+            if (encoding == RUN_LENGTH) {
+                int index = 0;
+                for (int i = offset; i < offset + length; i++) {
+                    byte b = bytes[i];
+                    if (b > 0) {
+                        double d = (double) b / 2.0 / docSum;
+                        products += d * normalizedQuery[index];
+                        docSquares += d * d;
+                        index++;
+                    } else {
+                        index -= b;
+                    }
+                }
+            } else {
+                for (int i = 0; i < length; i++) {
+                    int tmp = bytes[offset + i] + 128;
+                    int high = tmp >> 4;
+                    int low = tmp & 0xF;
+                    if (high != 0) {
+                        double d = (double) high / scale / docSum;
+                        products += d * normalizedQuery[i << 1];
+                        docSquares += d * d;
+                    }
+                    if (low != 0) {
+                        double d = (double) low / scale / docSum;
+                        products += d * normalizedQuery[(i << 1) + 1];
+                        docSquares += d * d;
+                    }
+                }
+            }
+            return distance(products, docSquares);
+        }
+
+        /**
+         * Same arithmetic on one byte per bin, see {@link FeatureColumn}, with the sums of the bins of the column
+         */
+        @Override
+        public float distance(FeatureColumn column, int doc, float threshold) {
+            double scale = scale();
+            double docSum = (double) column.binSum(doc) / scale;
+            float fromSums = distanceFromSums(docSum, (double) column.binSquares(doc) / (scale * scale), threshold);
+            if (!Float.isNaN(fromSums)) {
+                return fromSums;
+            }
+
+            // empty bins add exact zeros, so they are skipped
+            ByteBuffer buffer = column.column();
+            int offset = column.offset(doc);
+            double products = 0.0;
+            double docSquares = 0.0;
+            for (int i = 0; i < size; i++) {
+                int value = buffer.get(offset + i);
+                if (value != 0) {
+                    double d = (double) value / scale / docSum;
+                    products += d * normalizedQuery[i];
+                    docSquares += d * d;
+                }
+            }
+            return distance(products, docSquares);
+        }
+
+        /**
+         * Computes the products of the docs the sums of the column do not decide over their non empty bins only,
+         * gathered without branches since sparse histograms would mispredict most of them. Bins take a few distinct
+         * small values, so the normalized values are divided once per value and doc rather than once per bin.
+         */
+        @Override
+        public void distances(FeatureColumn column, DistanceBatch batch, float threshold) {
+            double scale = scale();
+            byte[] bins = batch.bytes(size);
+            int[] nonEmptyBins = batch.ints(size);
+            double[] quotients = batch.doubles(Byte.MAX_VALUE + 1);
+            // the sums decide most docs under a threshold, the others are left for the products
+            int[] undecided = batch.intLanes[0];
+            int numUndecided = 0;
+            for (int lane = 0; lane < batch.pending(); lane++) {
+                int doc = batch.pendingDoc(lane);
+                float fromSums = distanceFromSums((double) column.binSum(doc) / scale,
+                        (double) column.binSquares(doc) / (scale * scale), threshold);
+                batch.pendingDistance(lane, fromSums);
+                undecided[numUndecided] = lane;
+                numUndecided += Float.isNaN(fromSums) ? 1 : 0;
+            }
+
+            ByteBuffer buffer = column.column().duplicate();
+            for (int u = 0; u < numUndecided; u++) {
+                int lane = undecided[u];
+                int doc = batch.pendingDoc(lane);
+                double docSum = (double) column.binSum(doc) / scale;
+                buffer.position(column.offset(doc));
+                buffer.get(bins, 0, size);
+                int nonEmpty = 0;
+                int maxBits = 0;  // values are not negative, their or bounds the largest
+                for (int i = 0; i < size; i++) {
+                    int value = bins[i];
+                    nonEmptyBins[nonEmpty] = i;
+                    nonEmpty += -value >>> 31;
+                    maxBits |= value;
+                }
+                for (int value = 1; value <= maxBits; value++) {
+                    quotients[value] = (double) value / scale / docSum;
+                }
+                double products = 0.0;
+                double docSquares = 0.0;
+                for (int k = 0; k < nonEmpty; k++) {
+                    int i = nonEmptyBins[k];
+                    double d = quotients[bins[i]];
+                    products += d * normalizedQuery[i];
+                    docSquares += d * d;
+                }
+                batch.pendingDistance(lane, distance(products, docSquares));
+            }
+        }
+
+        /**
+         * Values of the column are the bins of the histogram times the scale. Sums of the bins and of their squares
+         * are multiples of 1/4 small enough to be exact in doubles, so they are summed as ints and scaled once.
+         */
+        private double scale() {
+            return encoding == NIBBLE ? 1.0 : 2.0;
+        }
+
+        private float distance(double products, double docSquares) {
+            return (float) (100.0 - 100.0 * (products / (querySquares + docSquares - products)));
+        }
+
+        /**
+         * The distance when the sums of the document histogram decide it, {@code NaN} when the products are needed
+         */
+        private float distanceFromSums(double docSum, double rawSquares, float threshold) {
+            if (docSum == 0.0 && querySum == 0.0) {
+                return 0.0f;
+            }
+            if (docSum == 0.0 || querySum == 0.0) {
+                return 100.0f;
+            }
+
+            if (threshold < 100.0f) {
+                // products <= |query| * |doc|, which bounds the coefficient by the norms only
+                double normalizedSquares = rawSquares / (docSum * docSum);
+                double maxProducts = Math.sqrt(querySquares * normalizedSquares);
+                double bound = 100.0 - 100.0 * (maxProducts / (querySquares + normalizedSquares - maxProducts));
+                if (bound - BOUND_SLACK > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return Float.NaN;
+        }
+    }
+
+    /**
+     * L1 distance on histograms packed as two 4 bit values per byte (BinaryPatternsPyramid, PHOG)
+     */
+    static final class NibbleL1Kernel extends DistanceKernel {
+
+        private final double[] query;
+        private final boolean normalize;
+
+        NibbleL1Kernel(LireFeature queryFeature, boolean normalize) {
+            this.query = queryFeature.getDoubleHistogram();
+            this.normalize = normalize;
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(length << 1 <= query.length, "histogram");
+            double sum = 0.0;
+            for (int i = 0; i < query.length; i++) {
+                sum += Math.abs(query[i] - nibble(bytes, offset, length, i));
+                if (i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && (float) (normalize ? sum / (double) query.length : sum) > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) (normalize ? sum / (double) query.length : sum);
+        }
+    }
+
+    /**
+     * Normalized L1 distance on one signed byte per bin (LocalBinaryPatterns,
+     * RotationInvariantLocalBinaryPatterns, LuminanceLayout)
+     */
+    static final class ByteL1Kernel extends DistanceKernel {
+
+        private final double[] query;
+        private final boolean padded;
+
+        /**
+         * @param padded whether LIRE decodes into a fixed size histogram, so shorter documents are padded with zeros
+         */
+        ByteL1Kernel(LireFeature queryFeature, boolean padded) {
+            this.query = queryFeature.getDoubleHistogram();
+            this.padded = padded;
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(padded ? length <= query.length : length >= query.length, "histogram");
+            double sum = 0.0;
+            for (int i = 0; i < query.length; i++) {
+                double d = i < length ? bytes[offset + i] : 0;
+                sum += Math.abs(query[i] - d);
+                if (i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && (float) (sum / (double) query.length) > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) (sum / (double) query.length);
+        }
+    }
+
+    /**
+     * Jensen-Shannon divergence on int histograms (SimpleColorHistogram)
+     */
+    static final class SimpleColorHistogramKernel extends DistanceKernel {
+
+        private final int[] query;
+
+        SimpleColorHistogramKernel(LireFeature queryFeature) {
+            this.query = toIntArray(queryFeature.getDoubleHistogram());
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            checkLength(length >> 2 == query.length, "histogram");
+            double sum = 0.0;
+            for (int i = 0; i < query.length; i++) {
+                int q = query[i];
+                int d = readInt(bytes, offset + (i << 2));
+                sum += (q > 0 ? (double) q * Math.log(2.0 * (double) q / (double) (q + d)) : 0.0)
+                        + (d > 0 ? (double) d * Math.log(2.0 * (double) d / (double) (q + d)) : 0.0);
+            }
+            return (float) sum;
+        }
+    }
+
+    /**
+     * Weighted coefficient distance of MPEG-7 ColorLayout
+     */
+    static final class ColorLayoutKernel extends DistanceKernel {
+
+        // decoded documents always hold the default number of coefficients
+        private static final int DOC_Y_COEFFICIENTS = 21;
+        private static final int DOC_C_COEFFICIENTS = 6;
+
+        private static final int[] Y_WEIGHTS = {2, 2, 2};
+        private static final int[] CB_WEIGHTS = {2, 1, 1};
+        private static final int[] CR_WEIGHTS = {4, 2, 2};
+
+        private final int[] yCoeff;
+        private final int[] cbCoeff;
+        private final int[] crCoeff;
+        private final int numY;
+        private final int numC;
+
+        ColorLayoutKernel(LireFeature queryFeature) {
+            ColorLayout colorLayout = (ColorLayout) queryFeature;
+            this.yCoeff = colorLayout.YCoeff;
+            this.cbCoeff = colorLayout.CbCoeff;
+            this.crCoeff = colorLayout.CrCoeff;
+            this.numY = Math.min(yCoeff.length, DOC_Y_COEFFICIENTS);
+            this.numC = Math.min(cbCoeff.length, DOC_C_COEFFICIENTS);
+        }
+
+        private static int weight(int[] weights, int j) {
+            return j < weights.length ? weights[j] : 1;
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            int docY = bytes[offset];
+            int docC = bytes[offset + 1];
+            checkLength(docY <= DOC_Y_COEFFICIENTS && docC <= DOC_C_COEFFICIENTS, "color layout");
+            int sumY = 0;
+            int sumCb = 0;
+            int sumCr = 0;
+            for (int j = 0; j < numY; j++) {
+                int diff = yCoeff[j] - (j < docY ? bytes[offset + 2 + j] : 0);
+                sumY += weight(Y_WEIGHTS, j) * diff * diff;
+            }
+            for (int j = 0; j < numC; j++) {
+                int diffCb = cbCoeff[j] - (j < docC ? bytes[offset + 2 + docY + j] : 0);
+                sumCb += weight(CB_WEIGHTS, j) * diffCb * diffCb;
+                int diffCr = crCoeff[j] - (j < docC ? bytes[offset + 2 + docY + docC + j] : 0);
+                sumCr += weight(CR_WEIGHTS, j) * diffCr * diffCr;
+            }
+            return (float) (Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr));
+        }
+
+        /**
+         * Coefficients past the counts of the doc are zero in the column, as they are in the doc feature
+         */
+        @Override
+        public float distance(FeatureColumn column, int doc, float threshold) {
+            ByteBuffer buffer = column.column();
+            int offset = column.offset(doc);
+            int sumY = 0;
+            int sumCb = 0;
+            int sumCr = 0;
+            for (int j = 0; j < numY; j++) {
+                int diff = yCoeff[j] - buffer.get(offset + FeatureColumn.COLOR_LAYOUT_Y + j);
+                sumY += weight(Y_WEIGHTS, j) * diff * diff;
+            }
+            for (int j = 0; j < numC; j++) {
+                int diffCb = cbCoeff[j] - buffer.get(offset + FeatureColumn.COLOR_LAYOUT_CB + j);
+                sumCb += weight(CB_WEIGHTS, j) * diffCb * diffCb;
+                int diffCr = crCoeff[j] - buffer.get(offset + FeatureColumn.COLOR_LAYOUT_CR + j);
+                sumCr += weight(CR_WEIGHTS, j) * diffCr * diffCr;
+            }
+            return (float) (Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr));
+        }
+
+        /**
+         * Sums the coefficients of each doc copied out of the column at once, then takes the square roots of all
+         * docs in one loop over the lanes
+         */
+        @Override
+        public void distances(FeatureColumn column, DistanceBatch batch, float threshold) {
+            int n = batch.pending();
+            ByteBuffer buffer = column.column().duplicate();
+            byte[] coefficients = batch.bytes(FeatureColumn.COLOR_LAYOUT_STRIDE);
+            int[] sumY = batch.intLanes[0];
+            int[] sumCb = batch.intLanes[1];
+            int[] sumCr = batch.intLanes[2];
+            for (int lane = 0; lane < n; lane++) {
+                buffer.position(column.offset(batch.pendingDoc(lane)));
+                buffer.get(coefficients, 0, FeatureColumn.COLOR_LAYOUT_STRIDE);
+                int y = 0;
+                for (int j = 0; j < numY; j++) {
+                    int diff = yCoeff[j] - coefficients[FeatureColumn.COLOR_LAYOUT_Y + j];
+                    y += weight(Y_WEIGHTS, j) * diff * diff;
+                }
+                int cb = 0;
+                int cr = 0;
+                for (int j = 0; j < numC; j++) {
+                    int diffCb = cbCoeff[j] - coefficients[FeatureColumn.COLOR_LAYOUT_CB + j];
+                    cb += weight(CB_WEIGHTS, j) * diffCb * diffCb;
+                    int diffCr = crCoeff[j] - coefficients[FeatureColumn.COLOR_LAYOUT_CR + j];
+                    cr += weight(CR_WEIGHTS, j) * diffCr * diffCr;
+                }
+                sumY[lane] = y;
+                sumCb[lane] = cb;
+                sumCr[lane] = cr;
+            }
+            for (int lane = 0; lane < n; lane++) {
+                batch.pendingDistance(lane, (float) (Math.sqrt(sumY[lane]) + Math.sqrt(sumCb[lane]) + Math.sqrt(sumCr[lane])));
+            }
+        }
+    }
+
+    /**
+     * MPEG-7 EdgeHistogram distance
+     */
+    static final class EdgeHistogramKernel extends DistanceKernel {
+
+        private static final int BINS = 80;
+
+        // EdgeHistogramImplementation.QuantTable
+        private static final double[][] QUANT_TABLE = {
+                {0.010867, 0.057915, 0.099526, 0.144849, 0.195573, 0.260504, 0.358031, 0.530128},
+                {0.012266, 0.069934, 0.125879, 0.182307, 0.243396, 0.314563, 0.411728, 0.564319},
+                {0.004193, 0.025852, 0.04686, 0.068519, 0.093286, 0.12349, 0.161505, 0.22896},
+                {0.004174, 0.025924, 0.046232, 0.067163, 0.089655, 0.115391, 0.151904, 0.217745},
+                {0.006778, 0.051667, 0.10865, 0.166257, 0.224226, 0.285691, 0.356375, 0.450972}};
+
+        private final int[] query;
+
+        EdgeHistogramKernel(LireFeature queryFeature) {
+            this.query = toIntArray(queryFeature.getDoubleHistogram());
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            checkLength(length << 1 <= BINS && query.length == BINS, "edge histogram");
+            double result = 0.0;
+            for (int i = 0; i < BINS; i++) {
+                result += Math.abs(QUANT_TABLE[i % 5][nibble(bytes, offset, length, i)] - QUANT_TABLE[i % 5][query[i]]);
+            }
+            for (int i = 0; i <= 4; i++) {
+                result += 5.0 * (double) Math.abs(nibble(bytes, offset, length, i) - query[i]);
+            }
+            for (int i = 5; i < BINS; i++) {
+                result += (double) Math.abs(nibble(bytes, offset, length, i) - query[i]);
+            }
+            return (float) result;
+        }
+    }
+
+    /**
+     * Gabor texture distance, sum of euclidean distances of (mean, deviation) pairs
+     */
+    static final class GaborKernel extends DistanceKernel {
+
+        private final double[] query;
+
+        GaborKernel(LireFeature queryFeature) {
+            this.query = queryFeature.getDoubleHistogram();
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(length >> 3 == query.length && query.length >= 60, "gabor");
+            double distance = 0.0;
+            for (int k = 0; k < 60; k += 2) {
+                double d0 = readDouble(bytes, offset + (k << 3)) - query[k];
+                double d1 = readDouble(bytes, offset + ((k + 1) << 3)) - query[k + 1];
+                distance += Math.sqrt(d0 * d0 + d1 * d1);
+                if ((float) distance > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) distance;
+        }
+    }
+
+    /**
+     * Jensen-Shannon divergence on one signed byte per bin (JointHistogram)
+     */
+    static final class JointHistogramKernel extends DistanceKernel {
+
+        private final double[] query;
+
+        JointHistogramKernel(LireFeature queryFeature) {
+            this.query = queryFeature.getDoubleHistogram();
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            checkLength(length <= query.length, "joint histogram");
+            double sum = 0.0;
+            for (int i = 0; i < length; i++) {
+                double d = bytes[offset + i];
+                double q = query[i];
+                sum += (d > 0.0 ? d / 2.0 * Math.log(2.0 * d / (d + q)) : 0.0)
+                        + (q > 0.0 ? q / 2.0 * Math.log(2.0 * q / (d + q)) : 0.0);
+            }
+            return (float) sum;
+        }
+    }
+
+    /**
+     * Root mean square distance of the 192 JPEG coefficient bins
+     */
+    static final class JpegCoefficientHistogramKernel extends DistanceKernel {
+
+        private static final int SIZE = 192;
+
+        private final int[] query;
+
+        JpegCoefficientHistogramKernel(LireFeature queryFeature) {
+            this.query = toIntArray(queryFeature.getDoubleHistogram());
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(length >> 2 >= SIZE && query.length >= SIZE, "jpeg coefficient histogram");
+            double distance = 0.0;
+            for (int i = 0; i < SIZE; i++) {
+                int diff = query[i] - readInt(bytes, offset + (i << 2));
+                distance += (double) (diff * diff);
+                if (i % CHECK_INTERVAL == CHECK_INTERVAL - 1 && (float) Math.sqrt(distance / (double) SIZE) > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) Math.sqrt(distance / (double) SIZE);
+        }
+    }
+
+    /**
+     * Jensen-Shannon divergence on signed byte histograms (OpponentHistogram)
+     */
+    static final class OpponentHistogramKernel extends DistanceKernel {
+
+        private final int[] query;
+
+        OpponentHistogramKernel(LireFeature queryFeature) {
+            this.query = toIntArray(queryFeature.getDoubleHistogram());
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            checkLength(length <= query.length, "opponent histogram");
+            double sum = 0.0;
+            for (int i = 0; i < query.length; i++) {
+                int d = i < length ? bytes[offset + i] : 0;
+                int q = query[i];
+                sum += (d > 0 ? (double) d * Math.log(2.0 * (double) d / (double) (d + q)) : 0.0)
+                        + (q > 0 ? (double) q * Math.log(2.0 * (double) q / (double) (d + q)) : 0.0);
+            }
+            return (float) sum;
+        }
+    }
+
+    /**
+     * L1 distance of the Haar transformed MPEG-7 ScalableColor histogram
+     */
+    static final class ScalableColorKernel extends DistanceKernel {
+
+        private final int bitplanesDiscarded;
+        private final int coefficients;
+        private final int[] haar;
+
+        ScalableColorKernel(LireFeature queryFeature) {
+            byte[] bytes = queryFeature.getByteArrayRepresentation();
+            this.bitplanesDiscarded = readInt(bytes, 0);
+            this.coefficients = readInt(bytes, 4);
+            this.haar = new int[(bytes.length >> 2) - 2];
+            for (int i = 0; i < haar.length; i++) {
+                haar[i] = readInt(bytes, (i + 2) << 2);
+            }
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(length >= 8, "scalable color");
+            if (readInt(bytes, offset) != bitplanesDiscarded || readInt(bytes, offset + 4) != coefficients) {
+                return -1f;
+            }
+            checkLength((length >> 2) - 2 >= coefficients, "scalable color");
+            int sum = 0;
+            for (int l = 0; l < coefficients; l++) {
+                sum += Math.abs(haar[l] - readInt(bytes, offset + ((l + 2) << 2)));
+                if (l % CHECK_INTERVAL == CHECK_INTERVAL - 1 && (float) sum > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) sum;
+        }
+    }
+
+    /**
+     * Tamura texture distance, squared euclidean distance without coarseness and contrast
+     */
+    static final class TamuraKernel extends DistanceKernel {
+
+        private final double[] query;
+
+        TamuraKernel(LireFeature queryFeature) {
+            this.query = queryFeature.getDoubleHistogram();
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            int size = length >> 3;
+            checkLength(size <= query.length, "tamura");
+            double result = 0.0;
+            for (int i = 2; i < size; i++) {
+                double diff = readDouble(bytes, offset + (i << 3)) - query[i];
+                result += diff * diff;
+                if ((float) result > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return (float) result;
+        }
+    }
+
+    /**
+     * Jensen-Shannon divergence on the float correlogram of AutoColorCorrelogram
+     */
+    static final class AutoColorCorrelogramKernel extends DistanceKernel {
+
+        private final float[] query;
+
+        AutoColorCorrelogramKernel(LireFeature queryFeature) {
+            double[] histogram = queryFeature.getDoubleHistogram();
+            this.query = new float[histogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                query[i] = (float) histogram[i];
+            }
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length) {
+            return distance(bytes, offset, length, Float.POSITIVE_INFINITY);
+        }
+
+        @Override
+        public float distance(byte[] bytes, int offset, int length, float threshold) {
+            checkLength(length << 1 <= query.length, "correlogram");
+            float result = 0.0f;
+            for (int k = 0; k < query.length; k++) {
+                float q = query[k];
+                float d = nibble(bytes, offset, length, k);
+                // the divergence of each bin is not negative, so the partial sum is a lower bound
+                result = (float) ((double) result + ((q > 0.0f ? (double) (q / 2.0f) * Math.log(2.0f * q / (q + d)) : 0.0)
+                        + (d > 0.0f ? (double) (d / 2.0f) * Math.log(2.0f * d / (q + d)) : 0.0)));
+                if (k % CHECK_INTERVAL == CHECK_INTERVAL - 1 && result > threshold) {
+                    return ABOVE_THRESHOLD;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * The features of a segment decoded to a fixed number of bytes per doc, {@link #stride(FeatureEnum)}, next to each
+ * other in a direct buffer outside of the heap. Scans read the feature of a doc in place at {@code doc * stride},
+ * instead of looking its variable length doc values up and copying them.
+ *
+ * Only features whose serialized values are small integers have a column: one byte per bin for CEDD, FCTH and JCD,
+ * the coefficient counts then the padded coefficients for COLOR_LAYOUT, so distances on the column are exactly the
+ * distances on the doc values, see {@link DistanceKernel#distance(FeatureColumn, int, float)}. The sum of the bins
+ * of each histogram and the sum of their squares, which do not depend on the query, are kept next to the column.
+ */
+public final class FeatureColumn {
+
+    static final int CEDD_BINS = 144;
+    static final int FCTH_BINS = 192;
+    static final int JCD_BINS = 168;
+
+    // number of Y and of Cb/Cr coefficients, followed by the Y, Cb and Cr coefficients, padded with zeros
+    static final int COLOR_LAYOUT_Y = 2;
+    static final int COLOR_LAYOUT_CB = COLOR_LAYOUT_Y + 21;
+    static final int COLOR_LAYOUT_CR = COLOR_LAYOUT_CB + 6;
+    static final int COLOR_LAYOUT_STRIDE = COLOR_LAYOUT_CR + 6;
+
+    private final ByteBuffer column;  // column[doc * stride, (doc + 1) * stride)
+    private final int stride;
+    private final FixedBitSet docsWithFeature;
+    private final int docs;
+    private final int[] binSums;  // null for COLOR_LAYOUT
+    private final int[] binSquares;
+
+    private FeatureColumn(ByteBuffer column, int stride, FixedBitSet docsWithFeature, int docs, int[] binSums, int[] binSquares) {
+        this.column = column;
+        this.stride = stride;
+        this.docsWithFeature = docsWithFeature;
+        this.docs = docs;
+        this.binSums = binSums;
+        this.binSquares = binSquares;
+    }
+
+    /**
+     * Bytes per doc of the column of a feature, {@code -1} if the feature has no column
+     */
+    public static int stride(FeatureEnum featureEnum) {
+        switch (featureEnum) {
+            case CEDD:
+                return CEDD_BINS;
+            case FCTH:
+                return FCTH_BINS;
+            case JCD:
+                return JCD_BINS;
+            case COLOR_LAYOUT:
+                return COLOR_LAYOUT_STRIDE;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Whether the column of a segment of {@code maxDoc} docs fits in a single buffer, about 15M docs for CEDD
+     */
+    public static boolean fits(int maxDoc, FeatureEnum featureEnum) {
+        return (long) maxDoc * stride(featureEnum) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Decodes the features of all docs of the segment, deleted or not
+     */
+    public static FeatureColumn build(LeafReader reader, String luceneFieldName, FeatureEnum featureEnum) throws IOException {
+        int stride = stride(featureEnum);
+        if (stride < 0) {
+            throw new IllegalArgumentException("Feature [" + featureEnum.name() + "] has no column");
+        }
+        int maxDoc = reader.maxDoc();
+        FixedBitSet docsWithFeature = new FixedBitSet(Math.max(1, maxDoc));
+        BinaryDocValues values = reader.getBinaryDocValues(luceneFieldName);
+        boolean histogram = featureEnum != FeatureEnum.COLOR_LAYOUT;
+        if (values == null) {
+            return new FeatureColumn(ByteBuffer.allocateDirect(0), stride, docsWithFeature, 0,
+                    histogram ? new int[0] : null, histogram ? new int[0] : null);
+        }
+        if (!fits(maxDoc, featureEnum)) {
+            throw new IllegalArgumentException("Column of [" + luceneFieldName + "] would take [" + ((long) maxDoc * stride) + "] bytes");
+        }
+        ByteBuffer column = ByteBuffer.allocateDirect(maxDoc * stride);  // zeroed
+        int[] binSums = histogram ? new int[maxDoc] : null;
+        int[] binSquares = histogram ? new int[maxDoc] : null;
+        int docs = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            BytesRef bytes = values.get(doc);
+            if (bytes.length == 0) {  // no image
+                continue;
+            }
+            encode(featureEnum, bytes, column, doc * stride);
+            if (histogram) {
+                for (int i = doc * stride; i < (doc + 1) * stride; i++) {
+                    int value = column.get(i);
+                    binSums[doc] += value;
+                    binSquares[doc] += value * value;
+                }
+            }
+            docsWithFeature.set(doc);
+            docs++;
+        }
+        return new FeatureColumn(column, stride, docsWithFeature, docs, binSums, binSquares);
+    }
+
+    private static void encode(FeatureEnum featureEnum, BytesRef bytes, ByteBuffer column, int offset) {
+        byte[] b = bytes.bytes;
+        int end = bytes.offset + bytes.length;
+        switch (featureEnum) {
+            case CEDD:
+            case FCTH:
+                // two 4 bit values per byte, shifted by 128
+                DistanceKernels.checkLength(bytes.length << 1 <= stride(featureEnum), "histogram");
+                for (int i = bytes.offset, bin = offset; i < end; i++) {
+                    int tmp = b[i] + 128;
+                    column.put(bin++, (byte) (tmp >> 4));
+                    column.put(bin++, (byte) (tmp & 0xF));
+                }
+                break;
+            case JCD:
+                // doubled values, runs of zeros as negative counts
+                int bin = 0;
+                for (int i = bytes.offset; i < end; i++) {
+                    if (b[i] > 0) {
+                        DistanceKernels.checkLength(bin < JCD_BINS, "histogram");
+                        column.put(offset + bin, b[i]);
+                        bin++;
+                    } else {
+                        bin -= b[i];
+                    }
+                }
+                break;
+            case COLOR_LAYOUT:
+                int numY = b[bytes.offset];
+                int numC = b[bytes.offset + 1];
+                DistanceKernels.checkLength(numY <= COLOR_LAYOUT_CB - COLOR_LAYOUT_Y && numC <= COLOR_LAYOUT_CR - COLOR_LAYOUT_CB
+                        && 2 + numY + 2 * numC <= bytes.length, "color layout");
+                column.put(offset, (byte) numY);
+                column.put(offset + 1, (byte) numC);
+                for (int j = 0; j < numY; j++) {
+                    column.put(offset + COLOR_LAYOUT_Y + j, b[bytes.offset + 2 + j]);
+                }
+                for (int j = 0; j < numC; j++) {
+                    column.put(offset + COLOR_LAYOUT_CB + j, b[bytes.offset + 2 + numY + j]);
+                    column.put(offset + COLOR_LAYOUT_CR + j, b[bytes.offset + 2 + numY + numC + j]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Feature [" + featureEnum.name() + "] has no column");
+        }
+    }
+
+    /**
+     * Docs with a feature
+     */
+    public int docs() {
+        return docs;
+    }
+
+    public boolean has(int doc) {
+        return doc < docsWithFeature.length() && docsWithFeature.get(doc);
+    }
+
+    /**
+     * The column, read with absolute gets, shared by all readers of the segment
+     */
+    ByteBuffer column() {
+        return column;
+    }
+
+    /**
+     * Position of the feature of the doc in the {@link #column()}
+     */
+    int offset(int doc) {
+        return doc * stride;
+    }
+
+    /**
+     * Sum of the values of the column of the doc, histograms only
+     */
+    int binSum(int doc) {
+        return binSums[doc];
+    }
+
+    /**
+     * Sum of the squares of the values of the column of the doc, histograms only
+     */
+    int binSquares(int doc) {
+        return binSquares[doc];
+    }
+
+    /**
+     * Heap and direct memory taken by the column
+     */
+    public long ramBytesUsed() {
+        long sums = binSums == null ? 0 : RamUsageEstimator.sizeOf(binSums) + RamUsageEstimator.sizeOf(binSquares);
+        return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + column.capacity() + docsWithFeature.ramBytesUsed() + sums;
+    }
+}
@@ -0,0 +1,72 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Node level cache of the {@link FeatureColumn} of each feature of each segment, bounded by
+ * {@code image.column.cache.size}. Columns are held in direct memory, which the heap size does not bound, so the
+ * setting is an absolute size (256mb by default) rather than a share of the heap, and has to fit in
+ * {@code -XX:MaxDirectMemorySize} along with the network buffers.
+ *
+ * Columns evicted from the cache or of closed segments keep their direct memory until the garbage collector collects
+ * their buffer: they are not unmapped explicitly, as queries still scanning them would read freed memory.
+ */
+public class FeatureColumnCache extends ImageSegmentCache<FeatureColumn> {
+
+    public static final String SIZE_SETTING = "image.column.cache.size";
+
+    public static final ByteSizeValue DEFAULT_SIZE = new ByteSizeValue(256, ByteSizeUnit.MB);
+
+    private final ImageStats imageStats;
+
+    @Inject
+    public FeatureColumnCache(Settings settings, ImageStats imageStats) {
+        super(settings, "feature column", size(settings));
+        this.imageStats = imageStats;
+    }
+
+    static ByteSizeValue size(Settings settings) {
+        String size = settings.get(SIZE_SETTING);
+        if (size != null && size.trim().endsWith("%")) {
+            throw new IllegalArgumentException("[" + SIZE_SETTING + "] bounds the direct memory of the columns, it takes an "
+                    + "absolute size and not a share of the heap, got [" + size + "]");
+        }
+        return settings.getAsBytesSize(SIZE_SETTING, DEFAULT_SIZE);
+    }
+
+    /**
+     * The direct bytes of the column, along with its few heap bytes per doc, which count against the bound too
+     */
+    @Override
+    protected long ramBytesUsed(FeatureColumn column) {
+        return column.ramBytesUsed();
+    }
+
+    /**
+     * Column of a feature of the segment, decoded now if it is not cached, {@code null} if the segment is too large for
+     * a column, whose docs are then read from their doc values
+     */
+    public FeatureColumn column(final LeafReader reader, final String luceneFieldName, final FeatureEnum featureEnum) throws IOException {
+        if (!FeatureColumn.fits(reader.maxDoc(), featureEnum)) {
+            return null;
+        }
+        return get(reader, luceneFieldName, featureEnum, new Callable<FeatureColumn>() {
+            @Override
+            public FeatureColumn call() throws Exception {
+                long start = System.nanoTime();
+                FeatureColumn column = FeatureColumn.build(reader, luceneFieldName, featureEnum);
+                imageStats.search().columnBuild().recordSince(start);
+                return column;
+            }
+        });
+    }
+}
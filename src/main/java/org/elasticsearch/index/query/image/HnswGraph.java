@@ -0,0 +1,481 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.SparseFixedBitSet;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * Hierarchical navigable small world graph (Malkov and Yashunin, "Efficient and robust approximate nearest neighbor
+ * search using Hierarchical Navigable Small World graphs") of the features of a segment, built from the doc values
+ * {@link org.elasticsearch.index.mapper.image.ImageMapper} writes.
+ *
+ * Each doc with a feature is a node linked to its {@code m} nearest nodes on each of its levels, {@code 2 * m} on the
+ * bottom level, found by searching the graph built so far with {@code efConstruction} candidates. Searches descend
+ * greedily from the top level and search the bottom level with {@code ef} candidates, so a larger {@code ef} visits
+ * more docs and misses fewer of the nearest ones.
+ *
+ * Distances are those of {@link DistanceKernel}, which are symmetric for all features, so the distance of a new node
+ * to a neighbour is also the distance of the neighbour to the new node. Deleted docs stay in the graph as stepping
+ * stones but are not returned.
+ */
+public final class HnswGraph {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+    private final int maxDoc;
+    private final int entryPoint;  // -1 if no doc has a feature
+    private final int maxLevel;
+    private final int[][] links;  // bottom level neighbours per doc, null for docs without feature
+    private final int[][][] upperLinks;  // upperLinks[doc][level - 1], null for docs only on the bottom level
+    private final int nodes;
+    private final Neighbours neighbours = new Neighbours() {
+        @Override
+        public int[] neighbours(int doc, int level) {
+            return HnswGraph.this.neighbours(doc, level);
+        }
+    };
+
+    private HnswGraph(int maxDoc, int entryPoint, int maxLevel, int[][] links, int[][][] upperLinks, int nodes) {
+        this.maxDoc = maxDoc;
+        this.entryPoint = entryPoint;
+        this.maxLevel = maxLevel;
+        this.links = links;
+        this.upperLinks = upperLinks;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Builds the graph of the features of all docs of the segment, deleted or not
+     */
+    public static HnswGraph build(LeafReader reader, String luceneFieldName, FeatureEnum featureEnum, int m,
+                                  int efConstruction) throws IOException {
+        if (m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException("Invalid HNSW graph of [" + m + "] links with [" + efConstruction
+                    + "] candidates while building");
+        }
+        int maxDoc = reader.maxDoc();
+        Builder builder = new Builder(maxDoc, m, Math.max(m, efConstruction));
+        BinaryDocValues values = reader.getBinaryDocValues(luceneFieldName);
+        Bits docsWithField = reader.getDocsWithField(luceneFieldName);
+        if (values != null) {
+            // the levels only depend on the segment, so the same segment always gets the same graph
+            Random random = new Random(maxDoc);
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (docsWithField != null && !docsWithField.get(doc)) {
+                    continue;
+                }
+                BytesRef bytes = values.get(doc);
+                if (bytes.length == 0) {
+                    continue;
+                }
+                byte[] feature = Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length);
+                DistanceKernel kernel = DistanceKernel.forFeature(featureEnum, ImageFeatureCache.feature(featureEnum, feature));
+                builder.insert(doc, kernel, values, random);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Docs of the graph
+     */
+    public int nodes() {
+        return nodes;
+    }
+
+    public int maxLevel() {
+        return maxLevel;
+    }
+
+    /**
+     * Neighbours of a doc on a level, {@code null} if the doc is not on that level
+     */
+    int[] neighbours(int doc, int level) {
+        if (level == 0) {
+            return links[doc];
+        }
+        int[][] upper = upperLinks[doc];
+        return upper == null || level > upper.length ? null : upper[level - 1];
+    }
+
+    public long ramBytesUsed() {
+        long bytes = RamUsageEstimator.shallowSizeOf(links) + RamUsageEstimator.shallowSizeOf(upperLinks);
+        for (int doc = 0; doc < maxDoc; doc++) {
+            if (links[doc] != null) {
+                bytes += RamUsageEstimator.sizeOf(links[doc]);
+            }
+            if (upperLinks[doc] != null) {
+                bytes += RamUsageEstimator.shallowSizeOf(upperLinks[doc]);
+                for (int[] level : upperLinks[doc]) {
+                    bytes += RamUsageEstimator.sizeOf(level);
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Nearest docs found by the search, sorted by doc
+     */
+    public static final class Result {
+
+        public final int[] docs;
+        public final float[] distances;
+
+        /**
+         * Distances computed by the search, the docs it visited
+         */
+        public final int visited;
+
+        Result(int[] docs, float[] distances, int visited) {
+            this.docs = docs;
+            this.distances = distances;
+            this.visited = visited;
+        }
+    }
+
+    /**
+     * The {@code k} nearest live docs of the query among {@code ef} candidates
+     */
+    public Result search(DistanceKernel kernel, BinaryDocValues values, Bits liveDocs, int k, int ef) {
+        if (entryPoint < 0) {
+            return new Result(new int[0], new float[0], 0);
+        }
+        int[] count = new int[1];
+        int entry = entryPoint;
+        float entryDistance = distance(kernel, values, entry, Float.POSITIVE_INFINITY, count);
+        for (int level = maxLevel; level > 0; level--) {
+            DistanceHeap nearest = searchLevel(neighbours, kernel, values, entry, entryDistance, 1, level, new VisitedDocs(maxDoc), count);
+            entry = nearest.doc(0);
+            entryDistance = nearest.distance(0);
+        }
+        DistanceHeap candidates = searchLevel(neighbours, kernel, values, entry, entryDistance, Math.max(ef, k), 0, new VisitedDocs(maxDoc), count);
+
+        DistanceHeap top = new DistanceHeap(k);
+        for (int i = 0; i < candidates.size(); i++) {
+            int doc = candidates.doc(i);
+            if (liveDocs == null || liveDocs.get(doc)) {
+                top.offer(candidates.distance(i), doc);
+            }
+        }
+        float[] distances = new float[top.size()];
+        int[] docs = top.docsInOrder(distances);
+        return new Result(docs, distances, count[0]);
+    }
+
+    /**
+     * The {@code ef} nearest docs of a level reachable from the entry, the search of the paper
+     */
+    private static DistanceHeap searchLevel(Neighbours graph, DistanceKernel kernel, BinaryDocValues values, int entry,
+                                            float entryDistance, int ef, int level, Visited visited, int[] count) {
+        DistanceHeap nearest = new DistanceHeap(ef);
+        CandidateQueue candidates = new CandidateQueue();
+        visited.visit(entry);
+        nearest.offer(entryDistance, entry);
+        candidates.add(entryDistance, entry);
+        while (candidates.size() > 0) {
+            float distance = candidates.minDistance();
+            if (distance > nearest.threshold()) {  // all nearer candidates were expanded
+                break;
+            }
+            int[] neighbours = graph.neighbours(candidates.popDoc(), level);
+            if (neighbours == null) {
+                continue;
+            }
+            for (int neighbour : neighbours) {
+                if (neighbour < 0) {  // end of the links of a node being built
+                    break;
+                }
+                if (!visited.visit(neighbour)) {
+                    continue;
+                }
+                float threshold = nearest.threshold();
+                float neighbourDistance = distance(kernel, values, neighbour, threshold, count);
+                if (neighbourDistance < threshold && nearest.offer(neighbourDistance, neighbour)) {
+                    candidates.add(neighbourDistance, neighbour);
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static float distance(DistanceKernel kernel, BinaryDocValues values, int doc, float threshold, int[] count) {
+        count[0]++;
+        return kernel.distance(values.get(doc), threshold);
+    }
+
+    /**
+     * Neighbours of the nodes on a level, of the graph or of the graph being built
+     */
+    interface Neighbours {
+
+        /**
+         * Neighbours of a doc on a level, possibly followed by -1s, {@code null} if the doc is not on that level
+         */
+        int[] neighbours(int doc, int level);
+    }
+
+    /**
+     * Docs a search already computed the distance of
+     */
+    interface Visited {
+
+        /**
+         * Marks the doc as visited, {@code false} if it already was
+         */
+        boolean visit(int doc);
+    }
+
+    private static final class VisitedDocs implements Visited {
+        private final SparseFixedBitSet docs;
+
+        VisitedDocs(int maxDoc) {
+            docs = new SparseFixedBitSet(maxDoc);
+        }
+
+        @Override
+        public boolean visit(int doc) {
+            if (docs.get(doc)) {
+                return false;
+            }
+            docs.set(doc);
+            return true;
+        }
+    }
+
+    /**
+     * Inserts the docs one after another, keeping the distances to the neighbours to drop the farthest one once a
+     * node has too many
+     */
+    private static final class Builder implements Neighbours {
+
+        private final int maxDoc;
+        private final int m;
+        private final int efConstruction;
+        private final double levelMultiplier;
+        private final Links[][] links;  // links[doc][level]
+        private final int[] visitedMarks;
+        private int visitedMark;
+        private int entryPoint = -1;
+        private int maxLevel = -1;
+        private int nodes;
+
+        Builder(int maxDoc, int m, int efConstruction) {
+            this.maxDoc = maxDoc;
+            this.m = m;
+            this.efConstruction = efConstruction;
+            this.levelMultiplier = 1 / Math.log(m);
+            this.links = new Links[maxDoc][];
+            this.visitedMarks = new int[maxDoc];
+        }
+
+        @Override
+        public int[] neighbours(int doc, int level) {
+            Links[] docLinks = links[doc];
+            if (docLinks == null || level >= docLinks.length) {
+                return null;
+            }
+            return docLinks[level].docs;
+        }
+
+        void insert(int doc, DistanceKernel kernel, BinaryDocValues values, Random random) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[doc] = new Links[level + 1];
+            for (int l = 0; l <= level; l++) {
+                links[doc][l] = new Links(maxLinks(l) + 1);
+            }
+            nodes++;
+            if (entryPoint < 0) {
+                entryPoint = doc;
+                maxLevel = level;
+                return;
+            }
+
+            int[] count = new int[1];
+            int entry = entryPoint;
+            float entryDistance = distance(kernel, values, entry, Float.POSITIVE_INFINITY, count);
+            for (int l = maxLevel; l > level; l--) {
+                DistanceHeap nearest = searchLevel(this, kernel, values, entry, entryDistance, 1, l, visited(), count);
+                entry = nearest.doc(0);
+                entryDistance = nearest.distance(0);
+            }
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                DistanceHeap nearest = searchLevel(this, kernel, values, entry, entryDistance, efConstruction, l, visited(), count);
+                // link to the m nearest, and link them back
+                DistanceHeap selected = new DistanceHeap(m);
+                for (int i = 0; i < nearest.size(); i++) {
+                    selected.offer(nearest.distance(i), nearest.doc(i));
+                }
+                for (int i = 0; i < selected.size(); i++) {
+                    int neighbour = selected.doc(i);
+                    float distance = selected.distance(i);
+                    links[doc][l].add(neighbour, distance);
+                    Links neighbourLinks = links[neighbour][l];
+                    neighbourLinks.add(doc, distance);
+                    if (neighbourLinks.size > maxLinks(l)) {
+                        neighbourLinks.dropFarthest();
+                    }
+                    if (distance < entryDistance) {
+                        entry = neighbour;
+                        entryDistance = distance;
+                    }
+                }
+            }
+            if (level > maxLevel) {
+                entryPoint = doc;
+                maxLevel = level;
+            }
+        }
+
+        private int maxLinks(int level) {
+            return level == 0 ? 2 * m : m;
+        }
+
+        /**
+         * Docs visited by a search, reusing the marks of the previous ones
+         */
+        private Visited visited() {
+            if (++visitedMark == 0) {
+                Arrays.fill(visitedMarks, 0);
+                visitedMark = 1;
+            }
+            final int mark = visitedMark;
+            return new Visited() {
+                @Override
+                public boolean visit(int doc) {
+                    if (visitedMarks[doc] == mark) {
+                        return false;
+                    }
+                    visitedMarks[doc] = mark;
+                    return true;
+                }
+            };
+        }
+
+        HnswGraph build() {
+            int[][] frozen = new int[maxDoc][];
+            int[][][] frozenUpper = new int[maxDoc][][];
+            for (int doc = 0; doc < maxDoc; doc++) {
+                Links[] docLinks = links[doc];
+                if (docLinks == null) {
+                    continue;
+                }
+                frozen[doc] = Arrays.copyOf(docLinks[0].docs, docLinks[0].size);
+                if (docLinks.length > 1) {
+                    frozenUpper[doc] = new int[docLinks.length - 1][];
+                    for (int l = 1; l < docLinks.length; l++) {
+                        frozenUpper[doc][l - 1] = Arrays.copyOf(docLinks[l].docs, docLinks[l].size);
+                    }
+                }
+            }
+            return new HnswGraph(maxDoc, entryPoint, Math.max(maxLevel, 0), frozen, frozenUpper, nodes);
+        }
+    }
+
+    /**
+     * Neighbours of a node on a level being built with their distances, the unused slots are -1
+     */
+    private static final class Links {
+        final int[] docs;
+        final float[] distances;
+        int size;
+
+        Links(int capacity) {
+            docs = new int[capacity];
+            distances = new float[capacity];
+            Arrays.fill(docs, -1);
+        }
+
+        /**
+         * Only one more than the capacity, the farthest is then dropped
+         */
+        void add(int doc, float distance) {
+            docs[size] = doc;
+            distances[size] = distance;
+            size++;
+        }
+
+        void dropFarthest() {
+            int farthest = 0;
+            for (int i = 1; i < size; i++) {
+                if (distances[i] > distances[farthest]) {
+                    farthest = i;
+                }
+            }
+            size--;
+            docs[farthest] = docs[size];
+            distances[farthest] = distances[size];
+            docs[size] = -1;
+        }
+    }
+
+    /**
+     * Min heap of the candidates to expand, by distance
+     */
+    private static final class CandidateQueue {
+        private float[] distances = new float[16];
+        private int[] docs = new int[16];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        float minDistance() {
+            return distances[0];
+        }
+
+        void add(float distance, int doc) {
+            if (size == docs.length) {
+                distances = ArrayUtil.grow(distances, size + 1);
+                docs = ArrayUtil.grow(docs, size + 1);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                docs[i] = docs[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            docs[i] = doc;
+        }
+
+        int popDoc() {
+            int doc = docs[0];
+            size--;
+            float distance = distances[size];
+            int last = docs[size];
+            int i = 0;
+            int child = 1;
+            while (child < size) {
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                distances[i] = distances[child];
+                docs[i] = docs[child];
+                i = child;
+                child = 2 * i + 1;
+            }
+            distances[i] = distance;
+            docs[i] = last;
+            return doc;
+        }
+    }
+}
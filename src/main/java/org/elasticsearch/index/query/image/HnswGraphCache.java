@@ -0,0 +1,49 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Node level cache of the {@link HnswGraph} of each feature of each segment, bounded by {@code image.hnsw.cache.size}
+ * (memory, defaults to 10% of the heap)
+ */
+public class HnswGraphCache extends ImageSegmentCache<HnswGraph> {
+
+    public static final String SIZE_SETTING = "image.hnsw.cache.size";
+
+    private final ImageStats imageStats;
+
+    @Inject
+    public HnswGraphCache(Settings settings, ImageStats imageStats) {
+        super(settings, "hnsw graph", SIZE_SETTING, "10%");
+        this.imageStats = imageStats;
+    }
+
+    @Override
+    protected long ramBytesUsed(HnswGraph graph) {
+        return graph.ramBytesUsed();
+    }
+
+    /**
+     * Graph of a feature of the segment, built now if it is not cached
+     */
+    public HnswGraph graph(final LeafReader reader, final String luceneFieldName, final FeatureEnum featureEnum, final int m,
+                           final int efConstruction) throws IOException {
+        return get(reader, luceneFieldName, Arrays.asList(m, efConstruction), new Callable<HnswGraph>() {
+            @Override
+            public HnswGraph call() throws Exception {
+                long start = System.nanoTime();
+                HnswGraph graph = HnswGraph.build(reader, luceneFieldName, featureEnum, m, efConstruction);
+                imageStats.search().graphBuild().recordSince(start);
+                return graph;
+            }
+        });
+    }
+}
@@ -0,0 +1,138 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Top k nearest docs of many query images at once, the same docs as an {@link ImageQuery} with k per query image.
+ * The doc values of each segment are read once and every doc is compared to all query images, instead of one full
+ * scan per query image.
+ */
+public final class ImageBatch {
+
+    /**
+     * Nearest docs of one query image, by increasing distance
+     */
+    public static final class Hits {
+        private final int[] docs;
+        private final float[] distances;
+
+        Hits(int[] docs, float[] distances) {
+            this.docs = docs;
+            this.distances = distances;
+        }
+
+        public int size() {
+            return docs.length;
+        }
+
+        /**
+         * Doc id of the i-th nearest doc in the top level reader
+         */
+        public int doc(int i) {
+            return docs[i];
+        }
+
+        public float distance(int i) {
+            return distances[i];
+        }
+    }
+
+    private final String luceneFieldName;
+    private final DistanceKernel[] distanceKernels;
+    private final int k;
+    private final ImageStats.SearchStats stats;
+
+    /**
+     * @param distanceKernels kernels of the query images, {@code null} entries are skipped
+     * @param stats where to record the candidates, docs scored and scoring time of the segments, {@code null} to not record them
+     */
+    public ImageBatch(String luceneFieldName, DistanceKernel[] distanceKernels, int k, ImageStats.SearchStats stats) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be greater than 0");
+        }
+        this.luceneFieldName = luceneFieldName;
+        this.distanceKernels = distanceKernels;
+        this.k = k;
+        this.stats = stats;
+    }
+
+    /**
+     * The k live docs of the reader nearest to each query image, {@code null} for the skipped ones
+     */
+    public Hits[] topK(IndexReader reader) throws IOException {
+        DistanceHeap[] heaps = new DistanceHeap[distanceKernels.length];
+        for (int i = 0; i < distanceKernels.length; i++) {
+            if (distanceKernels[i] != null) {
+                heaps[i] = new DistanceHeap(k);
+            }
+        }
+
+        for (LeafReaderContext leaf : reader.leaves()) {
+            long start = System.nanoTime();
+            LeafReader leafReader = leaf.reader();
+            BinaryDocValues binaryDocValues = leafReader.getBinaryDocValues(luceneFieldName);
+            if (binaryDocValues == null) {
+                continue;
+            }
+            Bits liveDocs = leafReader.getLiveDocs();
+            int maxDoc = leafReader.maxDoc();
+            int docsScored = 0;
+            for (int doc = 0; doc < maxDoc; doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                BytesRef bytes = binaryDocValues.get(doc);
+                for (int i = 0; i < distanceKernels.length; i++) {
+                    if (heaps[i] != null) {
+                        heaps[i].offer(distanceKernels[i].distance(bytes, heaps[i].threshold()), leaf.docBase + doc);
+                    }
+                }
+                docsScored++;
+            }
+            if (stats != null) {
+                stats.candidates().record(maxDoc);
+                stats.docsScored().record(docsScored);
+                stats.score().recordSince(start);
+            }
+        }
+
+        Hits[] hits = new Hits[heaps.length];
+        for (int i = 0; i < heaps.length; i++) {
+            if (heaps[i] != null) {
+                hits[i] = sorted(heaps[i]);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Same score as the image queries without boost
+     */
+    public static float score(float distance) {
+        return AbstractImageScorer.score(distance, 1f);
+    }
+
+    private static Hits sorted(DistanceHeap heap) {
+        long[] entries = new long[heap.size()];  // distances are non negative, their bits sort like them
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = (long) Float.floatToRawIntBits(heap.distance(i)) << 32 | (heap.doc(i) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(entries);
+        int[] docs = new int[entries.length];
+        float[] distances = new float[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            docs[i] = (int) entries[i];
+            distances[i] = Float.intBitsToFloat((int) (entries[i] >>> 32));
+        }
+        return new Hits(docs, distances);
+    }
+}
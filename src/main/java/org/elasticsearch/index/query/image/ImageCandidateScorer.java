@@ -0,0 +1,76 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Calculate score only for a sorted list of candidate docs of a segment, optionally from distances
+ * that were already computed
+ */
+public class ImageCandidateScorer extends AbstractImageScorer {
+
+    private final int[] candidates;
+    private final int size;
+    private final float[] distances;
+    private int index = -1;
+    private int doc = -1;
+
+    /**
+     * @param candidates segment doc ids in increasing order, only the first {@code size} are used
+     */
+    public ImageCandidateScorer(Weight weight, String luceneFieldName, DistanceKernel distanceKernel,
+                                ImageDistanceCache.QueryDistances distanceCache, IndexReader reader, float boost,
+                                int[] candidates, int size) {
+        this(weight, luceneFieldName, distanceKernel, distanceCache, reader, boost, candidates, size, null);
+    }
+
+    /**
+     * @param distances distances of the candidates, {@code null} to compute them while scoring
+     */
+    public ImageCandidateScorer(Weight weight, String luceneFieldName, DistanceKernel distanceKernel,
+                                ImageDistanceCache.QueryDistances distanceCache, IndexReader reader, float boost,
+                                int[] candidates, int size, float[] distances) {
+        super(weight, luceneFieldName, distanceKernel, distanceCache, reader, boost);
+        this.candidates = candidates;
+        this.size = size;
+        this.distances = distances;
+    }
+
+    @Override
+    public float score() throws IOException {
+        if (distances == null) {
+            return super.score();
+        }
+        assert docID() != NO_MORE_DOCS;
+        return score(distances[index]);
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        if (++index >= size) {
+            index = size;
+            return doc = exhausted();
+        }
+        return doc = candidates[index];
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        while (doc < target) {
+            nextDoc();
+        }
+        return doc;
+    }
+
+    @Override
+    public long cost() {
+        return size;
+    }
+}
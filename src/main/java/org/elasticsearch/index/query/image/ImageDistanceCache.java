@@ -0,0 +1,280 @@
+package org.elasticsearch.index.query.image;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.MapMaker;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Node level cache of exact image distances, keyed by segment, doc and query feature, for the queries with
+ * {@code cache} set.
+ *
+ * Entries are primitive: the table holds the fingerprint of the query feature, the id of the segment and the doc, and
+ * the distance of each entry in parallel arrays, so looking a doc up neither allocates nor boxes. A distance replaces
+ * the entry hashed to the same slot. The table is bounded by {@code image.distance_cache.size} (memory, defaults to
+ * 1% of the heap, 0 disables it) and only allocated by the first query caching its distances.
+ *
+ * Segments get a new id when first cached, which is forgotten once the segment core is closed: the entries of a
+ * closed segment never match again and are replaced over time, closing a segment does not visit the table. Each
+ * segment counts its entries, so the size is the sum of the counts of the open segments, without visiting the table.
+ */
+public class ImageDistanceCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "image.distance_cache.size";
+
+    /**
+     * Heap cost of an entry: fingerprint, segment and doc, distance
+     */
+    static final int BYTES_PER_ENTRY = 20;
+
+    private static final int LOCKS = 64;
+
+    private final int capacity;
+    private volatile Table table;
+    private final ConcurrentMap<Object, Core> cores = new MapMaker().makeMap();
+    private final ConcurrentMap<Integer, Core> coresById = new MapMaker().makeMap();
+    private final AtomicInteger nextCoreId = new AtomicInteger();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+    private final CounterMetric evictions = new CounterMetric();
+    private final LeafReader.CoreClosedListener coreClosedListener = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            Core core = cores.remove(ownerCoreCacheKey);
+            if (core != null) {
+                coresById.remove(core.id);
+            }
+        }
+    };
+
+    @Inject
+    public ImageDistanceCache(Settings settings) {
+        super(settings);
+        ByteSizeValue size = settings.getAsMemory(SIZE_SETTING, "1%");
+        long maxEntries = Math.min(size.bytes() / BYTES_PER_ENTRY, 1 << 30);
+        // largest power of two, for the slot to be a mask of the hash
+        this.capacity = maxEntries > 0 ? Integer.highestOneBit((int) maxEntries) : 0;
+        logger.debug("using [{}] image distance cache with size [{}]", capacity == 0 ? "no" : "primitive", size);
+    }
+
+    /**
+     * Distances of one query feature, {@code null} if the cache is disabled
+     */
+    public QueryDistances forQuery(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature) {
+        if (capacity == 0) {
+            return null;
+        }
+        return new QueryDistances(fingerprint(luceneFieldName, featureEnum, lireFeature));
+    }
+
+    public CacheStats stats() {
+        return new CacheStats(hits.count(), misses.count(), 0, 0, 0, evictions.count());
+    }
+
+    /**
+     * Entries of the segments still open
+     */
+    public long size() {
+        long size = 0;
+        for (Core core : cores.values()) {
+            size += core.entries.get();
+        }
+        return size;
+    }
+
+    public void clear() {
+        Table table = this.table;
+        if (table != null) {
+            for (int slot = 0; slot < table.coreDocs.length; slot++) {
+                synchronized (table.lock(slot)) {
+                    long coreDoc = table.coreDocs[slot];
+                    if (coreDoc != 0) {
+                        table.coreDocs[slot] = 0;
+                        removed(coreDoc);
+                    }
+                }
+            }
+        }
+    }
+
+    private Table table() {
+        Table table = this.table;
+        if (table == null) {
+            synchronized (this) {
+                table = this.table;
+                if (table == null) {
+                    table = new Table(capacity);
+                    this.table = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * The segment, assigned an id and watched for closing on its first use
+     */
+    private Core core(LeafReader reader) {
+        Object coreKey = reader.getCoreCacheKey();
+        Core core = cores.get(coreKey);
+        if (core == null) {
+            Core newCore = new Core(nextCoreId.incrementAndGet());
+            core = cores.putIfAbsent(coreKey, newCore);
+            if (core == null) {
+                core = newCore;
+                coresById.put(core.id, core);
+                reader.addCoreClosedListener(coreClosedListener);
+            }
+        }
+        return core;
+    }
+
+    /**
+     * Uncounts an entry taken out of the table, unless its segment is closed and no longer counted
+     */
+    private void removed(long coreDoc) {
+        Core core = coresById.get((int) (coreDoc >>> 32));
+        if (core != null) {
+            core.entries.decrementAndGet();
+        }
+    }
+
+    static long fingerprint(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature) {
+        byte[] bytes = lireFeature.getByteArrayRepresentation();
+        MurmurHash3.Hash128 hash = MurmurHash3.hash128(bytes, 0, bytes.length, 0, new MurmurHash3.Hash128());
+        return hash.h1 ^ (31L * luceneFieldName.hashCode() + featureEnum.ordinal());
+    }
+
+    /**
+     * Cached distances of a single query feature
+     */
+    public final class QueryDistances {
+
+        private final long fingerprint;
+
+        // segment last looked up, most lookups are for the same segment as the one before
+        private volatile Leaf leaf;
+
+        QueryDistances(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * Cached distance of a doc, {@code NaN} if not cached yet
+         */
+        public float get(LeafReader reader, int doc) {
+            Table table = ImageDistanceCache.this.table;
+            if (table == null) {
+                misses.inc();
+                return Float.NaN;
+            }
+            long coreDoc = coreDoc(leaf(reader), doc);
+            int slot = table.slot(fingerprint, coreDoc);
+            synchronized (table.lock(slot)) {
+                if (table.coreDocs[slot] == coreDoc && table.fingerprints[slot] == fingerprint) {
+                    hits.inc();
+                    return table.distances[slot];
+                }
+            }
+            misses.inc();
+            return Float.NaN;
+        }
+
+        public void put(LeafReader reader, int doc, float distance) {
+            Table table = table();
+            Leaf leaf = leaf(reader);
+            long coreDoc = coreDoc(leaf, doc);
+            int slot = table.slot(fingerprint, coreDoc);
+            synchronized (table.lock(slot)) {
+                long replaced = table.coreDocs[slot];
+                if (replaced != coreDoc || table.fingerprints[slot] != fingerprint) {
+                    if (replaced != 0) {
+                        evictions.inc();
+                        removed(replaced);
+                    }
+                    leaf.core.entries.incrementAndGet();
+                }
+                table.fingerprints[slot] = fingerprint;
+                table.coreDocs[slot] = coreDoc;
+                table.distances[slot] = distance;
+            }
+        }
+
+        private Leaf leaf(LeafReader reader) {
+            Leaf leaf = this.leaf;
+            if (leaf == null || leaf.coreKey != reader.getCoreCacheKey()) {
+                leaf = new Leaf(reader.getCoreCacheKey(), core(reader));
+                this.leaf = leaf;
+            }
+            return leaf;
+        }
+
+        private long coreDoc(Leaf leaf, int doc) {
+            return ((long) leaf.core.id << 32) | doc;
+        }
+    }
+
+    private static final class Leaf {
+        final Object coreKey;
+        final Core core;
+
+        Leaf(Object coreKey, Core core) {
+            this.coreKey = coreKey;
+            this.core = core;
+        }
+    }
+
+    /**
+     * Id of an open segment and number of its entries in the table
+     */
+    private static final class Core {
+        final int id;
+        final AtomicLong entries = new AtomicLong();
+
+        Core(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Entries in parallel arrays, an entry is empty while its segment and doc are 0: segment ids start at 1
+     */
+    private static final class Table {
+        final long[] fingerprints;
+        final long[] coreDocs;
+        final float[] distances;
+        final Object[] locks = new Object[LOCKS];
+
+        Table(int capacity) {
+            fingerprints = new long[capacity];
+            coreDocs = new long[capacity];
+            distances = new float[capacity];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        int slot(long fingerprint, long coreDoc) {
+            long hash = fingerprint ^ (coreDoc * 0x9E3779B97F4A7C15L);
+            hash ^= hash >>> 32;
+            return (int) hash & (coreDocs.length - 1);
+        }
+
+        Object lock(int slot) {
+            return locks[slot & (LOCKS - 1)];
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MurmurHash3;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageFeatureExtractor;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Node level cache of the features of query images, keyed by a digest of the image bytes, the feature and the
+ * resolution it is extracted at. Searching the same image again, or on another shard of the node, skips decoding
+ * and extraction.
+ *
+ * The serialized features are cached, the cache is bounded by {@code image.feature_cache.size} (memory, defaults
+ * to 10mb, 0 disables it) and evicts least recently used entries first.
+ */
+public class ImageFeatureCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "image.feature_cache.size";
+
+    /**
+     * Rough heap cost of an entry besides the feature bytes: key and cache entry
+     */
+    static final int BYTES_PER_ENTRY = 96;
+
+    private final Cache<Key, byte[]> cache;
+
+    @Inject
+    public ImageFeatureCache(Settings settings) {
+        super(settings);
+        ByteSizeValue size = settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(10 * 1024 * 1024));
+        if (size.bytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(size.bytes())
+                    .weigher(new Weigher<Key, byte[]>() {
+                        @Override
+                        public int weigh(Key key, byte[] value) {
+                            return BYTES_PER_ENTRY + value.length;
+                        }
+                    })
+                    .recordStats()
+                    .build();
+        } else {
+            this.cache = null;
+        }
+        logger.debug("using [{}] image feature cache with size [{}]", cache == null ? "no" : "lru", size);
+    }
+
+    /**
+     * Feature of the image at the resolution, extracted unless cached, {@code null} if the image format is not supported.
+     * It is always read back from its serialized form, like the features of the documents: LIRE does not read every
+     * feature back as it extracted it, {@link FeatureEnum#JCD} moves some bins.
+     *
+     * @param stats where to record decoding and extraction, {@code null} to not record them
+     */
+    public LireFeature extract(byte[] image, FeatureEnum featureEnum, ImageMapper.Resolution resolution,
+                               ImageStats.ExtractStats stats) throws IOException {
+        Key key = null;
+        if (cache != null) {
+            key = new Key(MurmurHash3.hash128(image, 0, image.length, 0, new MurmurHash3.Hash128()), featureEnum, resolution);
+            byte[] cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return feature(featureEnum, cached);
+            }
+        }
+
+        BufferedImage img = ImageMapper.readImage(image, resolution.decodeDimension(), resolution.subsample(), stats);
+        if (img == null) {
+            return null;
+        }
+        LireFeature lireFeature;
+        try {
+            lireFeature = new ImageFeatureExtractor(img, Collections.singletonMap(featureEnum, resolution.maxDimension()), stats)
+                    .extract(featureEnum);
+        } catch (ReflectiveOperationException e) {
+            throw new ElasticsearchImageProcessException("Failed to initial feature", e);
+        }
+        byte[] bytes = lireFeature.getByteArrayRepresentation();
+        if (cache != null) {
+            cache.put(key, bytes);
+        }
+        return feature(featureEnum, bytes);
+    }
+
+    /**
+     * Features of the image at their resolutions, those not cached extracted from one decode of the image, at the
+     * largest decode dimension of their resolutions. Features failing to extract are missing from the result.
+     *
+     * @return {@code null} if the image format is not supported
+     */
+    public Map<FeatureEnum, LireFeature> extract(byte[] image, Map<FeatureEnum, ImageMapper.Resolution> resolutions,
+                                                 ImageStats.ExtractStats stats) throws IOException {
+        Map<FeatureEnum, LireFeature> features = Maps.newEnumMap(FeatureEnum.class);
+        Map<FeatureEnum, Key> keys = Maps.newEnumMap(FeatureEnum.class);
+        Map<FeatureEnum, Integer> maxDimensions = Maps.newEnumMap(FeatureEnum.class);
+        MurmurHash3.Hash128 digest = cache != null ? MurmurHash3.hash128(image, 0, image.length, 0, new MurmurHash3.Hash128()) : null;
+        int decodeDimension = 0;
+        boolean subsample = true;
+        for (Map.Entry<FeatureEnum, ImageMapper.Resolution> entry : resolutions.entrySet()) {
+            FeatureEnum featureEnum = entry.getKey();
+            ImageMapper.Resolution resolution = entry.getValue();
+            if (cache != null) {
+                Key key = new Key(digest, featureEnum, resolution);
+                byte[] cached = cache.getIfPresent(key);
+                if (cached != null) {
+                    features.put(featureEnum, feature(featureEnum, cached));
+                    continue;
+                }
+                keys.put(featureEnum, key);
+            }
+            maxDimensions.put(featureEnum, resolution.maxDimension());
+            decodeDimension = Math.max(decodeDimension, resolution.decodeDimension());
+            subsample &= resolution.subsample();
+        }
+        if (maxDimensions.isEmpty()) {
+            return features;
+        }
+
+        BufferedImage img = ImageMapper.readImage(image, decodeDimension, subsample, stats);
+        if (img == null) {
+            return null;
+        }
+        Map<FeatureEnum, LireFeature> extracted = new ImageFeatureExtractor(img, maxDimensions, stats)
+                .extract(maxDimensions.keySet(), null, false);
+        for (Map.Entry<FeatureEnum, LireFeature> entry : extracted.entrySet()) {
+            byte[] bytes = entry.getValue().getByteArrayRepresentation();
+            if (cache != null) {
+                cache.put(keys.get(entry.getKey()), bytes);
+            }
+            features.put(entry.getKey(), feature(entry.getKey(), bytes));
+        }
+        return features;
+    }
+
+    /**
+     * Deserializes a feature
+     */
+    public static LireFeature feature(FeatureEnum featureEnum, byte[] bytes) {
+        try {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.setByteArrayRepresentation(bytes);
+            return lireFeature;
+        } catch (ReflectiveOperationException e) {
+            throw new ElasticsearchImageProcessException("Failed to initial feature", e);
+        }
+    }
+
+    public CacheStats stats() {
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.stats();
+    }
+
+    public long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    static final class Key {
+        final long h1;
+        final long h2;
+        final FeatureEnum featureEnum;
+        final ImageMapper.Resolution resolution;
+        private final int hashCode;
+
+        Key(MurmurHash3.Hash128 digest, FeatureEnum featureEnum, ImageMapper.Resolution resolution) {
+            this.h1 = digest.h1;
+            this.h2 = digest.h2;
+            this.featureEnum = featureEnum;
+            this.resolution = resolution;
+            int result = (int) (h1 ^ (h1 >>> 32));
+            result = 31 * result + featureEnum.ordinal();
+            result = 31 * result + resolution.hashCode();
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return h1 == that.h1 && h2 == that.h2 && featureEnum == that.featureEnum && resolution.equals(that.resolution);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
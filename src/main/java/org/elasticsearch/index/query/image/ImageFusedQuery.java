@@ -0,0 +1,702 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Calculate score for all docs from the distances of several features of the query image, in one pass over the docs:
+ * the features of a doc are scored one after another, and combined by the {@link Fusion} with their weights. Only docs
+ * with all the features match.
+ * With {@code k > 0} only the k nearest images of the reader match, computed upfront once per search like the top k
+ * of {@link ImageQuery}.
+ */
+public class ImageFusedQuery extends Query {
+
+    /**
+     * How the weighted distances of the features of a doc make its score
+     */
+    public enum Fusion {
+        /**
+         * Score of the sum of the weighted distances
+         */
+        WEIGHTED_SUM,
+        /**
+         * Reciprocal rank fusion: sum of the weights over {@link #RANK_CONSTANT} plus the rank of the doc by the
+         * distance of each feature, ranked among the docs of the shard. Distances of all docs are computed upfront.
+         */
+        RANK,
+        /**
+         * Score of the smallest weighted distance, docs close to the query image by any feature score high
+         */
+        MIN;
+
+        public static final Fusion DEFAULT = WEIGHTED_SUM;
+
+        public static Fusion fromString(String name) {
+            for (Fusion fusion : values()) {
+                if (fusion.name().equalsIgnoreCase(name)) {
+                    return fusion;
+                }
+            }
+            throw new IllegalArgumentException("Unknown fusion [" + name + "]");
+        }
+    }
+
+    /**
+     * Dampens the weight of the first ranks in {@link Fusion#RANK}, as in the reciprocal rank fusion paper
+     */
+    public static final int RANK_CONSTANT = 60;
+
+    /**
+     * A feature of the query image and its weight
+     */
+    public static final class Clause {
+        final String luceneFieldName;
+        final FeatureEnum featureEnum;
+        final LireFeature lireFeature;
+        final float weight;
+        final DistanceKernel distanceKernel;
+        final ImageDistanceCache.QueryDistances distanceCache;
+        final boolean column;
+
+        /**
+         * @param column whether the feature is mapped with a {@link FeatureColumn}
+         */
+        public Clause(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, float weight,
+                      ImageDistanceCache.QueryDistances distanceCache, boolean column) {
+            if (!(weight > 0f) || Float.isInfinite(weight)) {
+                throw new IllegalArgumentException("Weight of [" + featureEnum.name() + "] must be greater than 0, got [" + weight + "]");
+            }
+            this.luceneFieldName = luceneFieldName;
+            this.featureEnum = featureEnum;
+            this.lireFeature = lireFeature;
+            this.weight = weight;
+            this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+            this.distanceCache = distanceCache;
+            this.column = column;
+        }
+    }
+
+    private Clause[] clauses;
+    private Fusion fusion;
+    private int k;
+    private FeatureColumnCache columnCache;
+    private ImageStats.SearchStats stats;
+    private float boost = 1.0f;
+
+    public ImageFusedQuery(Clause[] clauses, Fusion fusion, int k, float boost) {
+        if (clauses.length == 0) {
+            throw new IllegalArgumentException("No feature to fuse");
+        }
+        this.clauses = clauses;
+        this.fusion = fusion;
+        this.k = k;
+        this.boost = boost;
+    }
+
+    /**
+     * Scans the {@link FeatureColumn} of each segment for the features mapped with one
+     */
+    public void setColumns(FeatureColumnCache columnCache) {
+        this.columnCache = columnCache;
+    }
+
+    /**
+     * Where to record the candidates, docs scored and scoring time of the segments, {@code null} to not record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Reads the features of the docs of a segment, all features of a doc at once
+     */
+    private final class LeafFeatures {
+
+        private final LeafReader reader;
+        private final BinaryDocValues[] values;
+        private final FeatureColumn[] columns;
+        private final BytesRef[] bytes;
+        private final double[] weighted;
+
+        LeafFeatures(LeafReader reader, BinaryDocValues[] values) throws IOException {
+            this.reader = reader;
+            this.values = values;
+            this.columns = new FeatureColumn[clauses.length];
+            this.bytes = new BytesRef[clauses.length];
+            this.weighted = new double[clauses.length];
+            for (int i = 0; i < clauses.length; i++) {
+                if (columnCache != null && clauses[i].column) {
+                    columns[i] = columnCache.column(reader, clauses[i].luceneFieldName, clauses[i].featureEnum);
+                }
+            }
+        }
+
+        /**
+         * Reads the features of the doc, whether it has all of them
+         */
+        boolean advance(int doc) {
+            for (int i = 0; i < clauses.length; i++) {
+                if (columns[i] != null) {
+                    if (!columns[i].has(doc)) {
+                        return false;
+                    }
+                } else {
+                    bytes[i] = values[i].get(doc);
+                    if (bytes[i].length == 0) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Distance of a feature of the doc last advanced to, see {@link DistanceKernel#distance(byte[], int, int, float)}
+         * for the meaning of {@code threshold}
+         */
+        float distance(int clause, int doc, float threshold) {
+            ImageDistanceCache.QueryDistances distanceCache = clauses[clause].distanceCache;
+            if (distanceCache != null) {
+                float cached = distanceCache.get(reader, doc);
+                if (!Float.isNaN(cached)) {
+                    return cached;
+                }
+            }
+            DistanceKernel distanceKernel = clauses[clause].distanceKernel;
+            float distance = columns[clause] != null ? distanceKernel.distance(columns[clause], doc, threshold)
+                    : distanceKernel.distance(bytes[clause], threshold);
+            if (distanceCache != null && distance <= threshold) {  // only exact distances are cached
+                distanceCache.put(reader, doc, distance);
+            }
+            return distance;
+        }
+
+        /**
+         * Fused distance of the doc last advanced to, exact up to the threshold and any greater value above it. The
+         * threshold left to each feature is what the features before it did not use up, so a doc stops being scored
+         * as soon as it cannot make it.
+         */
+        float fusedDistance(int doc, float threshold) {
+            double fused = fusion == Fusion.MIN ? Double.POSITIVE_INFINITY : 0.0;
+            boolean above = false;
+            for (int i = 0; i < clauses.length; i++) {
+                float weight = clauses[i].weight;
+                double left = fusion == Fusion.MIN ? Math.min(threshold, fused) : threshold - fused;
+                // rounded up so that no distance under the threshold is cut off
+                float featureThreshold = Math.nextUp((float) (left / weight));
+                float distance = distance(i, doc, featureThreshold);
+                if (distance > featureThreshold) {  // cannot make it by this feature, and is not exact
+                    above = true;
+                    if (fusion == Fusion.MIN) {
+                        continue;
+                    }
+                    break;
+                }
+                // products of floats are exact in doubles
+                double weightedDistance = (double) weight * distance;
+                fused = fusion == Fusion.MIN ? Math.min(fused, weightedDistance) : fused + weightedDistance;
+            }
+            float distance = (float) fused;
+            if (above && !(distance <= threshold && fusion == Fusion.MIN)) {
+                return Math.max(distance, Math.nextUp(threshold));
+            }
+            return distance;
+        }
+
+        /**
+         * Exact distances of each feature of the doc last advanced to
+         */
+        double[] weightedDistances(int doc) {
+            for (int i = 0; i < clauses.length; i++) {
+                weighted[i] = (double) clauses[i].weight * distance(i, doc, Float.POSITIVE_INFINITY);
+            }
+            return weighted;
+        }
+    }
+
+    /**
+     * Visits all docs of the segment with all the features
+     */
+    private final class FusedScorer extends Scorer {
+
+        private final LeafFeatures features;
+        private final int maxDoc;
+        private final float boost;
+        private ImageStats.SearchStats stats;
+        private long startNanos;
+        private int docsScored;
+        private int doc = -1;
+        private float distance;
+
+        FusedScorer(Weight weight, LeafFeatures features, float boost) {
+            super(weight);
+            this.features = features;
+            this.maxDoc = features.reader.maxDoc();
+            this.boost = boost;
+        }
+
+        void recordStats(ImageStats.SearchStats stats) {
+            this.stats = stats;
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return advance(doc + 1);
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            try {
+                for (doc = target; doc < maxDoc; doc++) {
+                    if (features.advance(doc)) {
+                        docsScored++;
+                        distance = features.fusedDistance(doc, Float.POSITIVE_INFINITY);
+                        return doc;
+                    }
+                }
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+            }
+            if (stats != null) {
+                stats.docsScored().record(docsScored);
+                stats.score().recordSince(startNanos);
+                stats = null;
+            }
+            return doc = NO_MORE_DOCS;
+        }
+
+        @Override
+        public float score() throws IOException {
+            assert docID() != NO_MORE_DOCS;
+            return AbstractImageScorer.score(distance, boost);
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public long cost() {
+            return maxDoc;
+        }
+    }
+
+    /**
+     * Docs of a segment scored upfront, in increasing order
+     */
+    private static final class ScoredDocsScorer extends Scorer {
+
+        private final int[] docs;
+        private final float[] scores;
+        private int index = -1;
+        private int doc = -1;
+
+        ScoredDocsScorer(Weight weight, int[] docs, float[] scores) {
+            super(weight);
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            if (++index >= docs.length) {
+                index = docs.length;
+                return doc = NO_MORE_DOCS;
+            }
+            return doc = docs[index];
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            while (doc < target) {
+                nextDoc();
+            }
+            return doc;
+        }
+
+        @Override
+        public float score() throws IOException {
+            assert docID() != NO_MORE_DOCS;
+            return scores[index];
+        }
+
+        @Override
+        public int freq() {
+            return 1;
+        }
+
+        @Override
+        public long cost() {
+            return docs.length;
+        }
+    }
+
+    /**
+     * Live docs of a segment with all the features and their weighted distances, then their {@link Fusion#RANK} scores
+     */
+    private static final class LeafRanks {
+        int size;
+        int[] docs = new int[16];
+        double[][] distances;  // per feature
+        float[] scores;
+
+        LeafRanks(int features) {
+            distances = new double[features][16];
+        }
+
+        void add(int doc, double[] weighted) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                for (int i = 0; i < distances.length; i++) {
+                    distances[i] = Arrays.copyOf(distances[i], size * 2);
+                }
+            }
+            docs[size] = doc;
+            for (int i = 0; i < distances.length; i++) {
+                distances[i][size] = weighted[i];
+            }
+            size++;
+        }
+    }
+
+    private final class ImageFusedWeight extends Weight {
+
+        private final ImageSlices.LeafCandidates[] leafCandidates;  // top k computed upfront, per leaf ord
+        private final LeafRanks[] leafRanks;  // rank scores computed upfront, per leaf ord
+
+        ImageFusedWeight(IndexSearcher searcher) throws IOException {
+            super(ImageFusedQuery.this);
+            this.leafCandidates = k > 0 && fusion != Fusion.RANK ? topK(searcher.getIndexReader()) : null;
+            this.leafRanks = fusion == Fusion.RANK ? rank(searcher.getIndexReader()) : null;
+        }
+
+        /**
+         * The k live docs of the reader with the smallest fused distances. The threshold of the k-th distance so
+         * far carries over from one segment to the next, so that most docs stop being scored after a few features.
+         */
+        private ImageSlices.LeafCandidates[] topK(IndexReader indexReader) throws IOException {
+            List<LeafReaderContext> leaves = indexReader.leaves();
+            DistanceHeap heap = new DistanceHeap(k);
+            for (LeafReaderContext context : leaves) {
+                if (stats != null) {
+                    stats.candidates().record(context.reader().maxDoc());
+                }
+                LeafFeatures features = features(context.reader());
+                if (features == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                int docsScored = 0;
+                Bits liveDocs = context.reader().getLiveDocs();
+                try {
+                    for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                        if ((liveDocs == null || liveDocs.get(doc)) && features.advance(doc)) {
+                            docsScored++;
+                            heap.offer(features.fusedDistance(doc, heap.threshold()), context.docBase + doc);
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new ElasticsearchImageProcessException("Failed to calculate score", e);
+                }
+                if (stats != null) {
+                    stats.docsScored().record(docsScored);
+                    stats.score().recordSince(start);
+                }
+            }
+            return ImageSlices.LeafCandidates.of(heap, leaves);
+        }
+
+        /**
+         * Scores all docs of the reader by {@link Fusion#RANK}, keeping the k best if {@code k > 0}
+         */
+        private LeafRanks[] rank(IndexReader indexReader) throws IOException {
+            List<LeafReaderContext> leaves = indexReader.leaves();
+            LeafRanks[] ranks = new LeafRanks[leaves.size()];
+            int total = 0;
+            for (LeafReaderContext context : leaves) {
+                LeafFeatures features = features(context.reader());
+                if (features == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                LeafRanks leaf = new LeafRanks(clauses.length);
+                Bits liveDocs = context.reader().getLiveDocs();
+                for (int doc = 0; doc < context.reader().maxDoc(); doc++) {
+                    if ((liveDocs == null || liveDocs.get(doc)) && features.advance(doc)) {
+                        leaf.add(doc, features.weightedDistances(doc));
+                    }
+                }
+                if (stats != null) {
+                    stats.candidates().record(context.reader().maxDoc());
+                    stats.docsScored().record(leaf.size);
+                    stats.score().recordSince(start);
+                }
+                ranks[context.ord] = leaf;
+                total += leaf.size;
+            }
+
+            // rank of a distance: 1 + the number of smaller distances of the feature, ties share their rank
+            double[][] sorted = new double[clauses.length][total];
+            for (int i = 0; i < clauses.length; i++) {
+                int offset = 0;
+                for (LeafRanks leaf : ranks) {
+                    if (leaf != null) {
+                        System.arraycopy(leaf.distances[i], 0, sorted[i], offset, leaf.size);
+                        offset += leaf.size;
+                    }
+                }
+                Arrays.sort(sorted[i]);
+            }
+            float[] allScores = new float[total];
+            int offset = 0;
+            for (LeafRanks leaf : ranks) {
+                if (leaf == null) {
+                    continue;
+                }
+                leaf.scores = new float[leaf.size];
+                for (int j = 0; j < leaf.size; j++) {
+                    double score = 0.0;
+                    for (int i = 0; i < clauses.length; i++) {
+                        int rank = 1 + lowerBound(sorted[i], leaf.distances[i][j]);
+                        score += clauses[i].weight / (double) (RANK_CONSTANT + rank);
+                    }
+                    leaf.scores[j] = (float) score * boost;
+                    allScores[offset++] = leaf.scores[j];
+                }
+            }
+
+            if (k > 0 && k < total) {
+                // the k best scores, ties with the k-th broken by doc order
+                Arrays.sort(allScores);
+                float kth = allScores[total - k];
+                int ties = k;
+                for (float score : allScores) {
+                    ties -= score > kth ? 1 : 0;
+                }
+                for (LeafRanks leaf : ranks) {
+                    if (leaf == null) {
+                        continue;
+                    }
+                    int size = 0;
+                    for (int j = 0; j < leaf.size; j++) {
+                        if (leaf.scores[j] > kth || (leaf.scores[j] == kth && ties-- > 0)) {
+                            leaf.docs[size] = leaf.docs[j];
+                            leaf.scores[size] = leaf.scores[j];
+                            size++;
+                        }
+                    }
+                    leaf.size = size;
+                }
+            }
+            for (int ord = 0; ord < ranks.length; ord++) {
+                if (ranks[ord] != null) {
+                    ranks[ord].docs = Arrays.copyOf(ranks[ord].docs, ranks[ord].size);
+                    ranks[ord].scores = Arrays.copyOf(ranks[ord].scores, ranks[ord].size);
+                    ranks[ord].distances = null;
+                }
+            }
+            return ranks;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageFusedQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            if (leafRanks != null) {
+                LeafRanks leaf = leafRanks[context.ord];
+                return leaf == null || leaf.size == 0 ? null : new ScoredDocsScorer(this, leaf.docs, leaf.scores);
+            }
+            if (leafCandidates != null) {
+                ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+                if (candidates == null) {
+                    return null;
+                }
+                float[] scores = new float[candidates.docs.length];
+                for (int i = 0; i < scores.length; i++) {
+                    scores[i] = AbstractImageScorer.score(candidates.distances[i], boost);
+                }
+                return new ScoredDocsScorer(this, candidates.docs, scores);
+            }
+            if (stats != null) {
+                stats.candidates().record(context.reader().maxDoc());
+            }
+            LeafFeatures features = features(context.reader());
+            if (features == null) {
+                return null;
+            }
+            FusedScorer scorer = new FusedScorer(this, features, boost);
+            if (stats != null) {
+                scorer.recordStats(stats);
+            }
+            return scorer;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            LeafFeatures features = features(context.reader());
+            Scorer scorer = leafRanks != null || leafCandidates != null ? scorer(context)
+                    : features == null ? null : new FusedScorer(this, features, boost);
+            if (scorer != null && scorer.advance(doc) == doc && features.advance(doc)) {
+                float score = scorer.score();
+                double[] weighted = features.weightedDistances(doc);
+                Collection<Explanation> details = new ArrayList<Explanation>();
+                if (getBoost() != 1.0f) {
+                    details.add(Explanation.match(getBoost(), "boost"));
+                }
+                for (int i = 0; i < clauses.length; i++) {
+                    details.add(Explanation.match((float) weighted[i], "distance of " + clauses[i].featureEnum.name()
+                            + " times weight " + clauses[i].weight));
+                }
+                return Explanation.match(score, "ImageFusedQuery, " + fusion.name().toLowerCase() + " of:", details);
+            }
+            return Explanation.noMatch(k > 0 ? "not in the " + k + " nearest images" : "missing features");
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+        }
+    }
+
+    /**
+     * @return {@code null} if a feature is missing from all docs of the segment
+     */
+    private LeafFeatures features(LeafReader reader) throws IOException {
+        BinaryDocValues[] values = new BinaryDocValues[clauses.length];
+        for (int i = 0; i < clauses.length; i++) {
+            values[i] = reader.getBinaryDocValues(clauses[i].luceneFieldName);
+            if (values[i] == null) {
+                return null;
+            }
+        }
+        return new LeafFeatures(reader, values);
+    }
+
+    /**
+     * Number of values of the sorted array smaller than the value
+     */
+    private static int lowerBound(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageFusedWeight(searcher);
+    }
+
+    @Override
+    public float getBoost() {
+        return this.boost;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(fusion.name().toLowerCase());
+        buffer.append("(");
+        for (int i = 0; i < clauses.length; i++) {
+            if (i > 0) {
+                buffer.append(",");
+            }
+            buffer.append(clauses[i].luceneFieldName);
+            buffer.append("^");
+            buffer.append(clauses[i].weight);
+        }
+        buffer.append(")");
+        if (k > 0) {
+            buffer.append(",k=");
+            buffer.append(k);
+        }
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageFusedQuery))
+            return false;
+        ImageFusedQuery other = (ImageFusedQuery) o;
+        if (getBoost() != other.getBoost() || k != other.k || fusion != other.fusion || clauses.length != other.clauses.length) {
+            return false;
+        }
+        for (int i = 0; i < clauses.length; i++) {
+            if (!clauses[i].luceneFieldName.equals(other.clauses[i].luceneFieldName)
+                    || clauses[i].weight != other.clauses[i].weight
+                    || !clauses[i].lireFeature.equals(other.clauses[i].lireFeature)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        for (Clause clause : clauses) {
+            result = 31 * result + clause.luceneFieldName.hashCode();
+            result = 31 * result + clause.lireFeature.hashCode();
+            result = 31 * result + Float.floatToIntBits(clause.weight);
+        }
+        result = 31 * result + fusion.hashCode();
+        result = 31 * result + k;
+        result = Float.floatToIntBits(getBoost()) ^ result;
+        return result;
+    }
+}
@@ -0,0 +1,215 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Query the {@link HnswGraph} of each segment for its {@code k} nearest images among {@code ef} candidates, and only
+ * calculate score for the {@code k} nearest of all segments. They are computed upfront once per search, so that the
+ * hits do not depend on the number of segments.
+ */
+public class ImageGraphQuery extends Query {
+
+    private String luceneFieldName;
+    private FeatureEnum featureEnum;
+    private LireFeature lireFeature;
+    private DistanceKernel distanceKernel;
+    private int k;
+    private int ef;
+    private int m;
+    private int efConstruction;
+    private HnswGraphCache graphCache;
+    private ImageDistanceCache.QueryDistances distanceCache;
+    private ImageStats.SearchStats stats;
+    private float boost = 1.0f;
+
+    /**
+     * @param m               links per node of the graphs, as mapped
+     * @param efConstruction  candidates while building the graphs, as mapped
+     */
+    public ImageGraphQuery(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, int k, int ef, int m,
+                           int efConstruction, HnswGraphCache graphCache, ImageDistanceCache.QueryDistances distanceCache, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.featureEnum = featureEnum;
+        this.lireFeature = lireFeature;
+        this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+        this.k = k;
+        this.ef = ef;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.graphCache = graphCache;
+        this.distanceCache = distanceCache;
+        this.boost = boost;
+    }
+
+    /**
+     * Where to record the graph search, the docs visited and scoring time of the segments, {@code null} to not
+     * record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+    }
+
+    final class ImageGraphWeight extends Weight {
+
+        private final ImageSlices.LeafCandidates[] leafCandidates;  // top k of all graphs, per leaf ord
+
+        ImageGraphWeight(IndexSearcher searcher) throws IOException {
+            super(ImageGraphQuery.this);
+            this.leafCandidates = topK(searcher.getIndexReader());
+        }
+
+        /**
+         * The k nearest images of the graphs of all segments
+         */
+        private ImageSlices.LeafCandidates[] topK(IndexReader indexReader) throws IOException {
+            List<LeafReaderContext> leaves = indexReader.leaves();
+            DistanceHeap heap = new DistanceHeap(k);
+            for (LeafReaderContext context : leaves) {
+                LeafReader reader = context.reader();
+                BinaryDocValues values = reader.getBinaryDocValues(luceneFieldName);
+                if (values == null) {
+                    continue;
+                }
+                HnswGraph graph = graphCache.graph(reader, luceneFieldName, featureEnum, m, efConstruction);
+                long start = System.nanoTime();
+                HnswGraph.Result nearest = graph.search(distanceKernel, values, reader.getLiveDocs(), k, ef);
+                if (stats != null) {
+                    stats.graphSearch().recordSince(start);
+                    stats.candidates().record(nearest.visited);
+                }
+                for (int i = 0; i < nearest.docs.length; i++) {
+                    heap.offer(nearest.distances[i], context.docBase + nearest.docs[i]);
+                }
+            }
+            return ImageSlices.LeafCandidates.of(heap, leaves);
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageGraphQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+            if (candidates == null) {
+                return null;
+            }
+            ImageCandidateScorer scorer = new ImageCandidateScorer(this, luceneFieldName, distanceKernel, distanceCache,
+                    context.reader(), getBoost(), candidates.docs, candidates.docs.length, candidates.distances);
+            if (stats != null) {
+                scorer.recordStats(stats);
+            }
+            return scorer;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+            if (candidates != null && Arrays.binarySearch(candidates.docs, doc) >= 0) {
+                Scorer scorer = new ImageCandidateScorer(this, luceneFieldName, distanceKernel, distanceCache,
+                        context.reader(), getBoost(), candidates.docs, candidates.docs.length, candidates.distances);
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    Collection<Explanation> details = new ArrayList<Explanation>();
+                    if (getBoost() != 1.0f) {
+                        details.add(Explanation.match(getBoost(), "boost"));
+                        score = score / getBoost();
+                    }
+                    details.add(Explanation.match(score, "image score (1/distance)"));
+                    return Explanation.match(score, "ImageGraphQuery, product of:", details);
+                }
+            }
+            return Explanation.noMatch("not in the " + k + " nearest images of the graphs with ef " + ef);
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageGraphWeight(searcher);
+    }
+
+    @Override
+    public float getBoost() {
+        return this.boost;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(",k=");
+        buffer.append(k);
+        buffer.append(",ef=");
+        buffer.append(ef);
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageGraphQuery))
+            return false;
+
+        ImageGraphQuery that = (ImageGraphQuery) o;
+
+        if (getBoost() != that.getBoost()) return false;
+        if (k != that.k) return false;
+        if (ef != that.ef) return false;
+        if (m != that.m) return false;
+        if (efConstruction != that.efConstruction) return false;
+        if (!luceneFieldName.equals(that.luceneFieldName)) return false;
+        if (!lireFeature.equals(that.lireFeature)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + k;
+        result = 31 * result + ef;
+        result = 31 * result + m;
+        result = 31 * result + efConstruction;
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Query by all hashes at once, count hash collisions per doc and only calculate score once
+ * for docs having at least {@code minCollisions} collisions
+ */
+public class ImageHashCollisionQuery extends Query {
+
+    private String hashFieldName;
+    private BytesRef[] terms;
+    private int minCollisions;
+    private String luceneFieldName;
+    private LireFeature lireFeature;
+    private DistanceKernel distanceKernel;
+    private ImageDistanceCache.QueryDistances distanceCache;
+    private ImageStats.SearchStats stats;
+    private float boost=1.0f;
+
+    public ImageHashCollisionQuery(String hashFieldName, BytesRef[] terms, int minCollisions, String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, ImageDistanceCache.QueryDistances distanceCache, float boost) {
+        this.hashFieldName = hashFieldName;
+        this.terms = terms;
+        this.minCollisions = Math.max(1, minCollisions);
+        this.luceneFieldName = luceneFieldName;
+        this.lireFeature = lireFeature;
+        this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+        this.distanceCache = distanceCache;
+        this.boost=boost;
+    }
+
+    /**
+     * Where to record the hash lookup, candidates, docs scored and scoring time of the segments, {@code null} to not
+     * record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+    }
+
+    final class ImageHashCollisionScorer extends ImageCandidateScorer {
+        private final int[] collisions;
+
+        ImageHashCollisionScorer(Weight weight, LeafReaderContext context, int[] candidates, int size, int[] collisions) {
+            super(weight, luceneFieldName, distanceKernel, distanceCache, context.reader(), ImageHashCollisionQuery.this.getBoost(), candidates, size);
+            this.collisions = collisions;
+        }
+
+        /**
+         * Number of hashes the current doc shares with the query
+         */
+        int collisions() {
+            return collisions[docID()];
+        }
+    }
+
+    final class ImageHashCollisionWeight extends Weight {
+        private final Term[] terms;
+        private final TermContext[] termStates;
+
+        public ImageHashCollisionWeight(IndexSearcher searcher, Term[] terms, TermContext[] termStates)
+                throws IOException {
+            super(ImageHashCollisionQuery.this);
+            this.terms = terms;
+            this.termStates = termStates;
+        }
+
+        @Override
+        public String toString() { return "weight(" + ImageHashCollisionQuery.this + ")"; }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            return scorer(context, stats);
+        }
+
+        private ImageHashCollisionScorer scorer(LeafReaderContext context, ImageStats.SearchStats stats) throws IOException {
+            long start = System.nanoTime();
+            Terms fieldTerms = context.reader().terms(hashFieldName);
+            if (fieldTerms == null) {
+                return null;
+            }
+
+            // merge the postings of all hashes, remembering docs once they reach minCollisions
+            int[] collisions = null;
+            int[] candidates = null;
+            int size = 0;
+            TermsEnum termsEnum = fieldTerms.iterator();
+            PostingsEnum postings = null;
+            for (int i = 0; i < terms.length; i++) {
+                TermState state = termStates[i].get(context.ord);
+                if (state == null) {  // hash is not present in that segment
+                    continue;
+                }
+                termsEnum.seekExact(terms[i].bytes(), state);
+                postings = termsEnum.postings(postings, PostingsEnum.NONE);
+                if (collisions == null) {
+                    collisions = new int[context.reader().maxDoc()];
+                    candidates = new int[16];
+                }
+                for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                    if (++collisions[doc] == minCollisions) {
+                        candidates = ArrayUtil.grow(candidates, size + 1);
+                        candidates[size++] = doc;
+                    }
+                }
+            }
+
+            if (stats != null) {
+                stats.hashLookup().recordSince(start);
+                stats.candidates().record(size);
+            }
+            if (size == 0) {
+                return null;
+            }
+            Arrays.sort(candidates, 0, size);
+            ImageHashCollisionScorer scorer = new ImageHashCollisionScorer(this, context, candidates, size, collisions);
+            if (stats != null) {
+                scorer.recordStats(stats);
+            }
+            return scorer;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+
+            ImageHashCollisionScorer scorer = scorer(context, null);
+            if (scorer != null) {
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    Collection<Explanation> details=new ArrayList<Explanation>();
+                    if (getBoost() != 1.0f) {
+                    	details.add(Explanation.match(getBoost(),"boost"));
+                        score = score / getBoost();
+                    }
+                    details.add(Explanation.match(score ,"image score (1/distance)"));
+                    return Explanation.match(score, "ImageHashCollisionQuery with " + scorer.collisions() + " hash collisions, product of:",details);
+                }
+            }
+
+            return Explanation.noMatch("less than " + minCollisions + " hash collisions");
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            terms.addAll(Arrays.asList(this.terms));
+        }
+    }
+
+    /**
+     * Sorted terms without duplicates: the same hash value from different hash functions, or the home bucket padding
+     * the probes of a table, can be the same term, which only counts once
+     */
+    static BytesRef[] uniqueTerms(BytesRef[] terms) {
+        BytesRef[] uniqueTerms = terms.clone();
+        Arrays.sort(uniqueTerms);
+        int count = 0;
+        for (int i = 0; i < uniqueTerms.length; i++) {
+            if (i == 0 || !uniqueTerms[i].equals(uniqueTerms[i - 1])) {
+                uniqueTerms[count++] = uniqueTerms[i];
+            }
+        }
+        return Arrays.copyOf(uniqueTerms, count);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        BytesRef[] uniqueTerms = uniqueTerms(this.terms);
+        int count = uniqueTerms.length;
+
+        final IndexReaderContext context = searcher.getTopReaderContext();
+        Term[] terms = new Term[count];
+        TermContext[] termStates = new TermContext[count];
+        for (int i = 0; i < count; i++) {
+            terms[i] = new Term(hashFieldName, uniqueTerms[i]);
+            termStates[i] = TermContext.build(context, terms[i]);
+        }
+        return new ImageHashCollisionWeight(searcher, terms, termStates);
+    }
+
+    @Override
+    public float getBoost() {
+      return this.boost;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(hashFieldName);
+        buffer.append(",");
+        buffer.append(Arrays.toString(terms));
+        buffer.append(",");
+        buffer.append(minCollisions);
+        buffer.append(",");
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageHashCollisionQuery))
+            return false;
+
+        ImageHashCollisionQuery that = (ImageHashCollisionQuery) o;
+
+        if (getBoost() != that.getBoost()) return false;
+        if (minCollisions != that.minCollisions) return false;
+        if (!hashFieldName.equals(that.hashFieldName)) return false;
+        if (!Arrays.equals(terms, that.terms)) return false;
+        if (!lireFeature.equals(that.lireFeature)) return false;
+        if (!luceneFieldName.equals(that.luceneFieldName)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + hashFieldName.hashCode();
+        result = 31 * result + Arrays.hashCode(terms);
+        result = 31 * result + minCollisions;
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        return result;
+    }
+}
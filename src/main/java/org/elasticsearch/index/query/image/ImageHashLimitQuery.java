@@ -3,28 +3,31 @@ package org.elasticsearch.index.query.image;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.search.similarities.ClassicSimilarity;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.ToStringUtils;
 import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 
@@ -34,55 +37,64 @@ import net.semanticmetadata.lire.imageanalysis.LireFeature;
 public class ImageHashLimitQuery extends Query {
 
     private String hashFieldName;
-    private int[] hashes;
+    private BytesRef[] terms;
     private int maxResult;//limit query
+    private int minCollisions;
     private String luceneFieldName;
     private LireFeature lireFeature;
+    private DistanceKernel distanceKernel;
+    private ImageDistanceCache.QueryDistances distanceCache;
+    private Executor executor;
+    private int sliceSize;
+    private ImageStats.SearchStats stats;
     private float boost=1.0f; 
     
-    public ImageHashLimitQuery(String hashFieldName, int[] hashes, int maxResult, String luceneFieldName, LireFeature lireFeature, float boost) {
+    public ImageHashLimitQuery(String hashFieldName, BytesRef[] terms, int maxResult, int minCollisions, String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, ImageDistanceCache.QueryDistances distanceCache, float boost) {
         this.hashFieldName = hashFieldName;
-        this.hashes = hashes;
+        this.terms = terms;
         this.maxResult = maxResult;
+        this.minCollisions = Math.max(1, minCollisions);
         this.luceneFieldName = luceneFieldName;
         this.lireFeature = lireFeature;
+        this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+        this.distanceCache = distanceCache;
         this.boost=boost;
     }
 
-    final class ImageHashScorer extends AbstractImageScorer {
-        private final DocIdSetIterator disi;
-        ImageHashScorer(Weight weight, LeafReaderContext context) {
-            super(weight, luceneFieldName, lireFeature, context.reader(),ImageHashLimitQuery.this.getBoost());
-            this.disi =DocIdSetIterator.all(context.reader().maxDoc());
-        }
-        
-        @Override
-        public int docID() {
-          return disi.docID();
-        }
-
-        @Override
-        public int nextDoc() throws IOException {
-          return disi.nextDoc();
-        }
-
-        @Override
-        public int advance(int target) throws IOException {
-          return disi.advance(target);
-        }
+    /**
+     * Computes the distances of the hash candidates upfront on slices of the candidates in parallel
+     */
+    public void setExecutor(Executor executor, int sliceSize) {
+        this.executor = executor;
+        this.sliceSize = sliceSize;
+    }
 
-        @Override
-        public long cost() {
-          return disi.cost();
-        }
+    /**
+     * Where to record the hash lookup of the shard, and the candidates, docs scored and scoring time of the segments,
+     * {@code null} to not record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
     }
 
+    /**
+     * Holds the hash candidates of the top level reader, split per leaf, so scorers only visit them
+     */
     final class ImageHashLimitWeight extends Weight {
 
-        
-        public ImageHashLimitWeight(IndexSearcher searcher)
+        private final int[][] leafCandidates;  // sorted segment doc ids, indexed by leaf ord
+        private final float[][] leafDistances;  // distances of the candidates when computed upfront
+
+        public ImageHashLimitWeight(IndexSearcher searcher, int[][] leafCandidates)
                 throws IOException {
         	super(ImageHashLimitQuery.this);
+        	this.leafCandidates = leafCandidates;
+        	if (executor != null) {
+        	    ImageSlices slices = new ImageSlices(luceneFieldName, distanceKernel, distanceCache, executor, sliceSize, stats);
+        	    this.leafDistances = slices.distances(searcher.getIndexReader(), leafCandidates);
+        	} else {
+        	    this.leafDistances = null;
+        	}
         }
 
         @Override
@@ -99,13 +111,29 @@ public class ImageHashLimitQuery extends Query {
 
         @Override
         public Scorer scorer(LeafReaderContext context) throws IOException {
-        	 return new ImageHashScorer(this, context);
+            return scorer(context, stats);
+        }
+
+        private Scorer scorer(LeafReaderContext context, ImageStats.SearchStats stats) throws IOException {
+            int[] candidates = leafCandidates[context.ord];
+            if (stats != null) {
+                stats.candidates().record(candidates == null ? 0 : candidates.length);
+            }
+            if (candidates == null) {
+                return null;
+            }
+        	float[] distances = leafDistances == null ? null : leafDistances[context.ord];
+        	ImageCandidateScorer scorer = new ImageCandidateScorer(this, luceneFieldName, distanceKernel, distanceCache, context.reader(), getBoost(), candidates, candidates.length, distances);
+        	if (stats != null && distances == null) {  // distances computed upfront are recorded per slice
+        	    scorer.recordStats(stats);
+        	}
+        	return scorer;
         }
 
         @Override
         public Explanation explain(LeafReaderContext context, int doc) throws IOException {
             
-            Scorer scorer = scorer(context);
+            Scorer scorer = scorer(context, null);
             if (scorer != null) {
                 int newDoc = scorer.advance(doc);
                 if (newDoc == doc) {
@@ -134,25 +162,50 @@ public class ImageHashLimitQuery extends Query {
 
     @Override
     public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        long start = System.nanoTime();
         IndexSearcher indexSearcher = new IndexSearcher(searcher.getIndexReader());
         indexSearcher.setSimilarity(new SimpleSimilarity());
 
+        // duplicate terms count once, as with the hash collision query
         BooleanQuery booleanQuery = new BooleanQuery();
-        for (int h : hashes) {
-            booleanQuery.add(new BooleanClause(new TermQuery(new Term(hashFieldName, Integer.toString(h))), BooleanClause.Occur.SHOULD));
+        for (BytesRef term : ImageHashCollisionQuery.uniqueTerms(terms)) {
+            booleanQuery.add(new BooleanClause(new TermQuery(new Term(hashFieldName, term)), BooleanClause.Occur.SHOULD));
         }
+        booleanQuery.setMinimumNumberShouldMatch(minCollisions);
         TopDocs topDocs = indexSearcher.search(booleanQuery, maxResult);
+        if (stats != null) {
+            stats.hashLookup().recordSince(start);
+        }
 
         if (topDocs.scoreDocs.length == 0) {  // no result find
             return Queries.newMatchNoDocsQuery().createWeight(searcher,false);
         }
 
-        BitSet bitSet = new BitSet(topDocs.scoreDocs.length);
-        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
-            bitSet.set(scoreDoc.doc);
+        // map the global doc ids of the top hits to the leaves they belong to
+        int[] docs = new int[topDocs.scoreDocs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = topDocs.scoreDocs[i].doc;
+        }
+        Arrays.sort(docs);
+
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        int[][] leafCandidates = new int[leaves.size()][];
+        int from = 0;
+        while (from < docs.length) {
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docs[from], leaves));
+            int to = from;
+            while (to < docs.length && docs[to] < leaf.docBase + leaf.reader().maxDoc()) {
+                to++;
+            }
+            int[] candidates = new int[to - from];
+            for (int i = from; i < to; i++) {
+                candidates[i - from] = docs[i] - leaf.docBase;
+            }
+            leafCandidates[leaf.ord] = candidates;
+            from = to;
         }
 
-        return new ImageHashLimitWeight(searcher);
+        return new ImageHashLimitWeight(searcher, leafCandidates);
     }
 
     @Override
@@ -165,10 +218,12 @@ public class ImageHashLimitQuery extends Query {
         StringBuilder buffer = new StringBuilder();
         buffer.append(hashFieldName);
         buffer.append(",");
-        buffer.append(Arrays.toString(hashes));
+        buffer.append(Arrays.toString(terms));
         buffer.append(",");
         buffer.append(maxResult);
         buffer.append(",");
+        buffer.append(minCollisions);
+        buffer.append(",");
         buffer.append(luceneFieldName);
         buffer.append(",");
         buffer.append(lireFeature.getClass().getSimpleName());
@@ -185,8 +240,9 @@ public class ImageHashLimitQuery extends Query {
         ImageHashLimitQuery that = (ImageHashLimitQuery) o;
 
         if (maxResult != that.maxResult) return false;
+        if (minCollisions != that.minCollisions) return false;
         if (!hashFieldName.equals(that.hashFieldName)) return false;
-        if (!Arrays.equals(hashes, that.hashes)) return false;
+        if (!Arrays.equals(terms, that.terms)) return false;
         if (!lireFeature.equals(that.lireFeature)) return false;
         if (!luceneFieldName.equals(that.luceneFieldName)) return false;
 
@@ -197,8 +253,9 @@ public class ImageHashLimitQuery extends Query {
     public int hashCode() {
         int result = super.hashCode();
         result = 31 * result + hashFieldName.hashCode();
-        result = 31 * result + Arrays.hashCode(hashes);
+        result = 31 * result + Arrays.hashCode(terms);
         result = 31 * result + maxResult;
+        result = 31 * result + minCollisions;
         result = 31 * result + luceneFieldName.hashCode();
         result = 31 * result + lireFeature.hashCode();
         return result;
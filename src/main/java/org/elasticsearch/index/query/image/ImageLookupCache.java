@@ -0,0 +1,316 @@
+package org.elasticsearch.index.query.image;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.plugin.image.ImageFeaturesFetchSubPhase;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+
+/**
+ * Node level cache of the features of the documents image queries look their image up in, along with the version
+ * of the document they were read from.
+ *
+ * Features are read from their doc values, through {@link ImageFeaturesFetchSubPhase}, so documents are looked up
+ * whether or not their features are also stored. A cached feature is only used while the document still has the same
+ * version: looking it up again gets the version alone, without loading the feature, so a hit still blocks on a get
+ * round trip to a shard of the document. The cache is bounded by {@code image.lookup_cache.size} (memory, defaults to
+ * 10mb, 0 disables it) and evicts least recently used entries first.
+ *
+ * Entries are keyed by the uuid of the index, so that an index deleted and created again under the same name does
+ * not answer from the features of the old one, and the entries of an index are dropped once it is deleted. Lookups
+ * through an alias of several indices or of a missing index are not cached.
+ */
+public class ImageLookupCache extends AbstractComponent {
+
+    public static final String SIZE_SETTING = "image.lookup_cache.size";
+
+    /**
+     * Rough heap cost of an entry besides the feature bytes and the key strings, entry of the keys of its index included
+     */
+    static final int BYTES_PER_ENTRY = 176;
+
+    private final ClusterService clusterService;
+    private final Cache<Key, Lookup> cache;
+    private final ConcurrentMap<String, Set<Key>> indexKeys = new MapMaker().makeMap();
+    private final CounterMetric hits = new CounterMetric();
+    private final CounterMetric misses = new CounterMetric();
+
+    @Inject
+    public ImageLookupCache(Settings settings, ClusterService clusterService) {
+        super(settings);
+        this.clusterService = clusterService;
+        ByteSizeValue size = settings.getAsBytesSize(SIZE_SETTING, new ByteSizeValue(10 * 1024 * 1024));
+        if (size.bytes() > 0) {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumWeight(size.bytes())
+                    .weigher(new Weigher<Key, Lookup>() {
+                        @Override
+                        public int weigh(Key key, Lookup value) {
+                            return BYTES_PER_ENTRY + key.weight() + (value.feature == null ? 0 : value.feature.length);
+                        }
+                    })
+                    .removalListener(new RemovalListener<Key, Lookup>() {
+                        @Override
+                        public void onRemoval(RemovalNotification<Key, Lookup> notification) {
+                            if (notification.getCause() != RemovalCause.REPLACED) {
+                                Set<Key> keys = indexKeys.get(notification.getKey().indexUUID);
+                                if (keys != null) {
+                                    keys.remove(notification.getKey());
+                                }
+                            }
+                        }
+                    })
+                    .build();
+            clusterService.add(new ClusterStateListener() {
+                @Override
+                public void clusterChanged(ClusterChangedEvent event) {
+                    if (event.metaDataChanged()) {
+                        dropDeletedIndices(event);
+                    }
+                }
+            });
+        } else {
+            this.cache = null;
+        }
+        logger.debug("using [{}] image lookup cache with size [{}]", cache == null ? "no" : "lru", size);
+    }
+
+    /**
+     * Looks up the serialized feature of a document, blocks on the search
+     *
+     * @param fieldName lucene field of the feature, {@code path.FEATURE}
+     * @param stats     where to record the lookup, {@code null} to not record it
+     * @return {@code null} if the document does not exist
+     */
+    public Lookup lookup(Client client, String index, String type, String id, String routing, String fieldName,
+                         ImageStats.SearchStats stats) {
+        long start = System.nanoTime();
+        try {
+            Key key = null;
+            String indexUUID = cache == null ? null : indexUUID(index);
+            if (indexUUID != null) {
+                key = new Key(indexUUID, type, id, routing, fieldName);
+                Lookup cached = cache.getIfPresent(key);
+                if (cached != null) {
+                    GetResponse versionResponse = client.get(getRequest(index, type, id, routing).fields(Strings.EMPTY_ARRAY)).actionGet();
+                    if (versionResponse.isExists() && versionResponse.getVersion() == cached.version) {
+                        hits.inc();
+                        return cached;
+                    }
+                    cache.invalidate(key);
+                }
+                misses.inc();
+            }
+
+            Lookup lookup = lookup(client.search(lookupRequest(index, type, id, routing, fieldName)).actionGet(), fieldName);
+            if (lookup != null && key != null) {
+                put(key, lookup);
+            }
+            return lookup;
+        } finally {
+            if (stats != null) {
+                stats.lookup().recordSince(start);
+            }
+        }
+    }
+
+    private void put(Key key, Lookup lookup) {
+        Set<Key> keys = indexKeys.get(key.indexUUID);
+        if (keys == null) {
+            Set<Key> newKeys = Sets.newConcurrentHashSet();
+            keys = indexKeys.putIfAbsent(key.indexUUID, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+            }
+        }
+        keys.add(key);
+        cache.put(key, lookup);
+    }
+
+    /**
+     * Uuid of the index or of the only index of the alias, {@code null} if there is none or several
+     */
+    private String indexUUID(String index) {
+        AliasOrIndex aliasOrIndex = clusterService.state().metaData().getAliasAndIndexLookup().get(index);
+        if (aliasOrIndex == null || aliasOrIndex.getIndices().size() != 1) {
+            return null;
+        }
+        return aliasOrIndex.getIndices().get(0).getIndexUUID();
+    }
+
+    /**
+     * Drops the entries of the indices that are not in the cluster anymore, only visiting their own entries
+     */
+    void dropDeletedIndices(ClusterChangedEvent event) {
+        if (indexKeys.isEmpty()) {
+            return;
+        }
+        Set<String> indexUUIDs = new HashSet<String>();
+        for (IndexMetaData indexMetaData : event.state().metaData()) {
+            indexUUIDs.add(indexMetaData.getIndexUUID());
+        }
+        for (String indexUUID : indexKeys.keySet()) {
+            if (!indexUUIDs.contains(indexUUID)) {
+                Set<Key> keys = indexKeys.remove(indexUUID);
+                if (keys != null) {
+                    cache.invalidateAll(keys);
+                }
+            }
+        }
+    }
+
+    /**
+     * Search for the version and the doc values of the feature of a document, like a get that does not read stored
+     * fields
+     */
+    public static SearchRequest lookupRequest(String index, String type, String id, String routing, String fieldName) {
+        SearchSourceBuilder source = new SearchSourceBuilder().query(QueryBuilders.idsQuery(type).addIds(id))
+                .size(1).noFields().fetchSource(false).version(true);
+        return new SearchRequest(index).types(type).routing(routing).preference("_local").source(source)
+                .extraSource(Collections.singletonMap(ImageFeaturesFetchSubPhase.NAME, fieldName));
+    }
+
+    /**
+     * Feature read by a {@link #lookupRequest}, {@code null} if the document does not exist
+     */
+    public static Lookup lookup(SearchResponse response, String fieldName) {
+        if (response.getShardFailures().length > 0) {
+            throw new ElasticsearchException("failed to look up [{}]: {}", fieldName, response.getShardFailures()[0].reason());
+        }
+        if (response.getHits().getHits().length == 0) {
+            return null;
+        }
+        SearchHit hit = response.getHits().getAt(0);
+        SearchHitField field = hit.field(fieldName);
+        byte[] feature = field == null ? null : ((BytesReference) field.getValue()).toBytes();
+        return new Lookup(hit.getVersion(), feature);
+    }
+
+    private static GetRequest getRequest(String index, String type, String id, String routing) {
+        return new GetRequest(index, type, id).preference("_local").routing(routing).realtime(false);
+    }
+
+    /**
+     * Lookups answered from the cache
+     */
+    public long hits() {
+        return hits.count();
+    }
+
+    public long misses() {
+        return misses.count();
+    }
+
+    public long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Indices with cached entries, for tests
+     */
+    Set<String> cachedIndices() {
+        return indexKeys.keySet();
+    }
+
+    /**
+     * Feature read from a version of a document
+     */
+    public static final class Lookup {
+        private final long version;
+        private final byte[] feature;
+
+        Lookup(long version, byte[] feature) {
+            this.version = version;
+            this.feature = feature;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        /**
+         * Serialized feature, {@code null} if the document does not have it
+         */
+        public byte[] feature() {
+            return feature;
+        }
+    }
+
+    static final class Key {
+        final String indexUUID;
+        final String type;
+        final String id;
+        final String routing;
+        final String fieldName;
+
+        Key(String indexUUID, String type, String id, String routing, String fieldName) {
+            this.indexUUID = indexUUID;
+            this.type = type;
+            this.id = id;
+            this.routing = routing;
+            this.fieldName = fieldName;
+        }
+
+        int weight() {
+            return 2 * (indexUUID.length() + type.length() + id.length() + fieldName.length() + (routing == null ? 0 : routing.length()));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return indexUUID.equals(that.indexUUID) && type.equals(that.type) && id.equals(that.id) && fieldName.equals(that.fieldName)
+                    && (routing == null ? that.routing == null : routing.equals(that.routing));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = indexUUID.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + id.hashCode();
+            result = 31 * result + (routing == null ? 0 : routing.hashCode());
+            result = 31 * result + fieldName.hashCode();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Scan the {@link QuantizedFeatures} of each segment for its {@code k} nearest images by asymmetric distance, and
+ * either score them by that distance, or re-score the {@code rerank} nearest ones by their exact distance. Only the
+ * {@code k} nearest of all segments match, computed upfront once per search.
+ */
+public class ImageQuantizedQuery extends Query {
+
+    private String luceneFieldName;
+    private FeatureEnum featureEnum;
+    private LireFeature lireFeature;
+    private double[] histogram;
+    private DistanceKernel distanceKernel;
+    private int k;
+    private int rerank;
+    private int subspaces;
+    private int centroids;
+    private QuantizedFeaturesCache quantizedCache;
+    private ImageDistanceCache.QueryDistances distanceCache;
+    private ImageStats.SearchStats stats;
+    private float boost = 1.0f;
+
+    /**
+     * @param rerank     docs per segment to re-score by exact distance before keeping the k nearest of all segments,
+     *                   {@code 0} to score by approximate distance
+     * @param subspaces  subspaces of the quantizers, as mapped
+     * @param centroids  centroids per subspace of the quantizers, as mapped
+     */
+    public ImageQuantizedQuery(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, int k, int rerank,
+                               int subspaces, int centroids, QuantizedFeaturesCache quantizedCache,
+                               ImageDistanceCache.QueryDistances distanceCache, float boost) {
+        this.luceneFieldName = luceneFieldName;
+        this.featureEnum = featureEnum;
+        this.lireFeature = lireFeature;
+        this.histogram = lireFeature.getDoubleHistogram();
+        this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+        this.k = k;
+        this.rerank = rerank;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        this.quantizedCache = quantizedCache;
+        this.distanceCache = distanceCache;
+        this.boost = boost;
+    }
+
+    /**
+     * Where to record the scan, the docs scanned and scoring time of the segments, {@code null} to not record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+    }
+
+    final class ImageQuantizedWeight extends Weight {
+
+        private final ImageSlices.LeafCandidates[] leafCandidates;  // top k of all segments, per leaf ord
+
+        ImageQuantizedWeight(IndexSearcher searcher) throws IOException {
+            super(ImageQuantizedQuery.this);
+            this.leafCandidates = topK(searcher.getIndexReader());
+        }
+
+        /**
+         * The k nearest images of all segments, by exact distance among the candidates of the segments with rerank,
+         * by approximate distance without
+         */
+        private ImageSlices.LeafCandidates[] topK(IndexReader indexReader) throws IOException {
+            List<LeafReaderContext> leaves = indexReader.leaves();
+            DistanceHeap heap = new DistanceHeap(k);
+            for (LeafReaderContext context : leaves) {
+                LeafReader reader = context.reader();
+                BinaryDocValues values = reader.getBinaryDocValues(luceneFieldName);
+                if (values == null) {
+                    continue;
+                }
+                QuantizedFeatures features = quantizedCache.features(reader, luceneFieldName, featureEnum, subspaces, centroids);
+                ProductQuantizer quantizer = features.quantizer();
+                if (quantizer == null) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                // the quantizers are trained per segment, so is the table
+                float[] table = quantizer.distanceTable(histogram);
+                DistanceHeap nearest = features.nearest(table, reader.getLiveDocs(), Math.max(k, rerank));
+                if (stats != null) {
+                    stats.quantizedSearch().recordSince(start);
+                    stats.candidates().record(features.docs());
+                }
+                float[] distances = new float[nearest.size()];
+                int[] docs = nearest.docsInOrder(distances);  // offers in doc order, which breaks ties
+                if (rerank > 0) {
+                    start = System.nanoTime();
+                    for (int i = 0; i < docs.length; i++) {
+                        heap.offer(AbstractImageScorer.distance(distanceKernel, distanceCache, reader, values, docs[i],
+                                heap.threshold()), context.docBase + docs[i]);
+                    }
+                    if (stats != null) {
+                        stats.docsScored().record(docs.length);
+                        stats.score().recordSince(start);
+                    }
+                } else {
+                    for (int i = 0; i < docs.length; i++) {
+                        heap.offer((float) Math.sqrt(distances[i]), context.docBase + docs[i]);
+                    }
+                }
+            }
+            return ImageSlices.LeafCandidates.of(heap, leaves);
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + ImageQuantizedQuery.this + ")";
+        }
+
+        @Override
+        public float getValueForNormalization() {
+            return 1f;
+        }
+
+        @Override
+        public void normalize(float norm, float boost) {
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+            if (candidates == null) {
+                return null;
+            }
+            return new ImageCandidateScorer(this, luceneFieldName, distanceKernel, distanceCache, context.reader(), getBoost(),
+                    candidates.docs, candidates.docs.length, candidates.distances);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+            if (candidates != null && Arrays.binarySearch(candidates.docs, doc) >= 0) {
+                Scorer scorer = scorer(context);
+                int newDoc = scorer.advance(doc);
+                if (newDoc == doc) {
+                    float score = scorer.score();
+                    Collection<Explanation> details = new ArrayList<Explanation>();
+                    if (getBoost() != 1.0f) {
+                        details.add(Explanation.match(getBoost(), "boost"));
+                        score = score / getBoost();
+                    }
+                    details.add(Explanation.match(score, rerank > 0 ? "image score (1/distance)" : "image score (1/approximate distance)"));
+                    return Explanation.match(score, "ImageQuantizedQuery, product of:", details);
+                }
+            }
+            return Explanation.noMatch("not in the " + k + " nearest quantized images");
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+        }
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        return new ImageQuantizedWeight(searcher);
+    }
+
+    @Override
+    public float getBoost() {
+        return this.boost;
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(luceneFieldName);
+        buffer.append(",");
+        buffer.append(lireFeature.getClass().getSimpleName());
+        buffer.append(",k=");
+        buffer.append(k);
+        buffer.append(",rerank=");
+        buffer.append(rerank);
+        buffer.append(ToStringUtils.boost(getBoost()));
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageQuantizedQuery))
+            return false;
+
+        ImageQuantizedQuery that = (ImageQuantizedQuery) o;
+
+        if (getBoost() != that.getBoost()) return false;
+        if (k != that.k) return false;
+        if (rerank != that.rerank) return false;
+        if (subspaces != that.subspaces) return false;
+        if (centroids != that.centroids) return false;
+        if (!luceneFieldName.equals(that.luceneFieldName)) return false;
+        if (!lireFeature.equals(that.lireFeature)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + luceneFieldName.hashCode();
+        result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + k;
+        result = 31 * result + rerank;
+        result = 31 * result + subspaces;
+        result = 31 * result + centroids;
+        return result;
+    }
+}
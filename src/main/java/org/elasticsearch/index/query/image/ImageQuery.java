@@ -1,37 +1,72 @@
 package org.elasticsearch.index.query.image;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilteredDocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.ToStringUtils;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+import com.google.common.util.concurrent.MoreExecutors;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 
 
 /**
- * Copied from {@link MatchAllDocsQuery}, calculate score for all docs
+ * Copied from {@link MatchAllDocsQuery}, calculate score for all docs.
+ * With {@code k > 0} only the k nearest images of the reader match. They are computed upfront once per search, by
+ * {@link ImageSlices} on the calling thread, or on slices of the segments in parallel with an executor, so that the
+ * hits do not depend on the order the segments are scored in. The top k of the last reader searched are kept by the
+ * query, for the weights explain creates per hit of the same search not to compute them again.
+ * In a conjunction, the k nearest images of all docs match, intersected with the other clauses: the filter is the way to
+ * get the k nearest images of a subset.
+ * With a {@link FeatureColumnCache}, features are read from the {@link FeatureColumn} of each segment.
+ * With a filter, only the live docs of the filter are scored, its bitset is built per segment before any distance.
  */
 public class ImageQuery extends Query {
 
     private String luceneFieldName;
+    private FeatureEnum featureEnum;
     private LireFeature lireFeature;
+    private DistanceKernel distanceKernel;
+    private ImageDistanceCache.QueryDistances distanceCache;
+    private int k;
+    private Executor executor;
+    private int sliceSize;
+    private FeatureColumnCache columnCache;
+    private ImageStats.SearchStats stats;
+    private Query filter;
+    private volatile TopK topK;
     private float boost=1.0f;  
     @SuppressWarnings("deprecation")
-	public ImageQuery(String luceneFieldName, LireFeature lireFeature, float boost) {
+	public ImageQuery(String luceneFieldName, FeatureEnum featureEnum, LireFeature lireFeature, int k, ImageDistanceCache.QueryDistances distanceCache, float boost) {
         this.luceneFieldName = luceneFieldName;
+        this.featureEnum = featureEnum;
         this.lireFeature = lireFeature;
+        this.distanceKernel = DistanceKernel.forFeature(featureEnum, lireFeature);
+        this.distanceCache = distanceCache;
+        this.k = k;
         this.boost=boost;
     }
     
@@ -40,9 +75,13 @@ public class ImageQuery extends Query {
         private final DocIdSetIterator disi;
         
         ImageScorer(IndexReader reader, Weight w) {
+            this(reader, w, DocIdSetIterator.all(reader.maxDoc()));
+        }
+
+        ImageScorer(IndexReader reader, Weight w, DocIdSetIterator disi) {
         	
-            super(w, luceneFieldName, lireFeature, reader,boost);
-            this.disi =DocIdSetIterator.all(reader.maxDoc());
+            super(w, luceneFieldName, distanceKernel, distanceCache, reader,boost);
+            this.disi = disi;
         }
 
         @Override
@@ -52,12 +91,14 @@ public class ImageQuery extends Query {
 
         @Override
         public int nextDoc() throws IOException {
-          return disi.nextDoc();
+          int doc = disi.nextDoc();
+          return doc == NO_MORE_DOCS ? exhausted() : doc;
         }
 
         @Override
         public int advance(int target) throws IOException {
-          return disi.advance(target);
+          int doc = disi.advance(target);
+          return doc == NO_MORE_DOCS ? exhausted() : doc;
         }
 
         @Override
@@ -66,10 +107,120 @@ public class ImageQuery extends Query {
         }
     }
 
+    /**
+     * Computes the top k on slices of the segments in parallel, requires {@code k > 0}
+     */
+    public void setExecutor(Executor executor, int sliceSize) {
+        this.executor = executor;
+        this.sliceSize = sliceSize;
+    }
+
+    /**
+     * Scans the {@link FeatureColumn} of each segment, built now if it is not cached, the feature must have a column
+     */
+    public void setColumns(FeatureColumnCache columnCache) {
+        this.columnCache = columnCache;
+    }
+
+    /**
+     * Where to record the candidates, docs scored and scoring time of the segments, {@code null} to not record them
+     */
+    public void setStats(ImageStats.SearchStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Only scores the docs matching the filter, the image query of the docs of a tenant or a category for instance
+     */
+    public void setFilter(Query filter) {
+        this.filter = filter;
+        this.topK = null;
+    }
+
+    /**
+     * The k nearest images of a reader, along with the filter bits they were computed from
+     */
+    private static final class TopK {
+        final WeakReference<Object> readerKey;  // queries outlive their search as query cache keys
+        final ImageSlices.LeafCandidates[] leafCandidates;  // per leaf ord
+        final BitSet[] filters;  // per leaf ord, null without filter
+
+        TopK(Object readerKey, ImageSlices.LeafCandidates[] leafCandidates, BitSet[] filters) {
+            this.readerKey = new WeakReference<Object>(readerKey);
+            this.leafCandidates = leafCandidates;
+            this.filters = filters;
+        }
+    }
+
     private class ImageWeight extends Weight {
-    	  
-        public ImageWeight(IndexSearcher searcher) {
-        	super(ImageQuery.this);     	
+
+        private final ImageSlices.LeafCandidates[] leafCandidates;  // top k computed upfront, per leaf ord
+        private final Weight filterWeight;
+        private final BitSet[] filters;  // docs of the filter the top k were computed from, per leaf ord
+
+        public ImageWeight(IndexSearcher searcher) throws IOException {
+        	super(ImageQuery.this);
+        	this.filterWeight = filter == null ? null : searcher.createNormalizedWeight(filter, false);
+        	if (k > 0) {
+        	    TopK topK = topK(searcher);
+        	    this.leafCandidates = topK.leafCandidates;
+        	    this.filters = topK.filters;
+        	} else {
+        	    this.leafCandidates = null;
+        	    this.filters = null;
+        	}
+        }
+
+        /**
+         * Top k of the reader of the searcher, computed by the first weight of the reader only
+         */
+        private TopK topK(IndexSearcher searcher) throws IOException {
+            IndexReader reader = searcher.getIndexReader();
+            Object readerKey = reader.getCombinedCoreAndDeletesKey();
+            TopK topK = ImageQuery.this.topK;
+            if (topK != null && topK.readerKey.get() == readerKey) {
+                return topK;
+            }
+            ImageSlices slices = executor != null
+                    ? new ImageSlices(luceneFieldName, distanceKernel, distanceCache, executor, sliceSize, stats)
+                    : new ImageSlices(luceneFieldName, distanceKernel, distanceCache, MoreExecutors.directExecutor(),
+                            Integer.MAX_VALUE, stats);  // one slice per segment, on the calling thread
+            if (columnCache != null) {
+                slices.useColumns(columnCache, featureEnum);
+            }
+            BitSet[] filters = null;
+            if (filterWeight != null) {
+                List<LeafReaderContext> leaves = reader.leaves();
+                filters = new BitSet[leaves.size()];
+                for (LeafReaderContext leaf : leaves) {
+                    filters[leaf.ord] = filter(leaf);
+                }
+            }
+            topK = new TopK(readerKey, slices.topK(reader, k, filters), filters);
+            ImageQuery.this.topK = topK;
+            return topK;
+        }
+
+        /**
+         * Live docs of the segment matching the filter, {@code null} if there are none
+         */
+        private BitSet filter(LeafReaderContext context) throws IOException {
+            Scorer filterScorer = filterWeight.scorer(context);
+            if (filterScorer == null) {
+                return null;
+            }
+            final Bits liveDocs = context.reader().getLiveDocs();
+            DocIdSetIterator docs = filterScorer;
+            if (liveDocs != null) {
+                docs = new FilteredDocIdSetIterator(filterScorer) {
+                    @Override
+                    protected boolean match(int doc) {
+                        return liveDocs.get(doc);
+                    }
+                };
+            }
+            BitSet bits = BitSet.of(docs, context.reader().maxDoc());
+            return bits.nextSetBit(0) == DocIdSetIterator.NO_MORE_DOCS ? null : bits;
         }
 
         @Override
@@ -88,12 +239,60 @@ public class ImageQuery extends Query {
 
         @Override
         public Scorer scorer(LeafReaderContext context) throws IOException {
-            return new ImageScorer(context.reader(),this);
+            if (leafCandidates != null) {
+                if (stats != null) {
+                    BitSet leafFilter = filters == null ? null : filters[context.ord];
+                    stats.candidates().record(filters == null ? context.reader().maxDoc() : leafFilter == null ? 0 : leafFilter.cardinality());
+                }
+                ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+                if (candidates == null) {
+                    return null;
+                }
+                return new ImageCandidateScorer(this, luceneFieldName, distanceKernel, distanceCache, context.reader(), boost,
+                        candidates.docs, candidates.docs.length, candidates.distances);
+            }
+            DocIdSetIterator docs;
+            if (filterWeight != null) {
+                BitSet bits = filter(context);
+                if (bits == null) {
+                    return null;
+                }
+                docs = new BitSetIterator(bits, bits.approximateCardinality());
+            } else {
+                docs = DocIdSetIterator.all(context.reader().maxDoc());
+            }
+            if (stats != null) {
+                stats.candidates().record(docs.cost());
+            }
+            return recordStats(useColumn(context.reader(), new ImageScorer(context.reader(), this, docs)));
+        }
+
+        private AbstractImageScorer useColumn(LeafReader reader, AbstractImageScorer scorer) throws IOException {
+            if (columnCache != null && reader.getBinaryDocValues(luceneFieldName) != null) {
+                scorer.useColumn(columnCache.column(reader, luceneFieldName, featureEnum));
+            }
+            return scorer;
+        }
+
+        private AbstractImageScorer recordStats(AbstractImageScorer scorer) {
+            if (stats != null) {
+                scorer.recordStats(stats);
+            }
+            return scorer;
         }
         
         @Override
         public Explanation explain(LeafReaderContext context, int doc) throws IOException {
-            Scorer scorer = scorer(context);
+            if (filterWeight != null && !filterWeight.explain(context, doc).isMatch()) {
+                return Explanation.noMatch("not matching the filter");
+            }
+            if (leafCandidates != null) {
+                ImageSlices.LeafCandidates candidates = leafCandidates[context.ord];
+                if (candidates == null || Arrays.binarySearch(candidates.docs, doc) < 0) {
+                    return Explanation.noMatch("not in the " + k + " nearest images");
+                }
+            }
+            Scorer scorer = new ImageScorer(context.reader(), this);  // the exact score
             if (scorer != null) {
                 int newDoc = scorer.advance(doc);
                 if (newDoc == doc) {
@@ -118,7 +317,7 @@ public class ImageQuery extends Query {
     }
 
     @Override
-    public Weight createWeight(IndexSearcher searcher, boolean needsScores) {
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
         return new ImageWeight(searcher);
     }
     
@@ -133,6 +332,20 @@ public class ImageQuery extends Query {
         buffer.append(luceneFieldName);
         buffer.append(",");
         buffer.append(lireFeature.getClass().getSimpleName());
+        if (k > 0) {
+            buffer.append(",k=");
+            buffer.append(k);
+        }
+        if (executor != null) {
+            buffer.append(",parallel");
+        }
+        if (columnCache != null) {
+            buffer.append(",column");
+        }
+        if (filter != null) {
+            buffer.append(",filter=");
+            buffer.append(filter.toString(field));
+        }
         buffer.append(ToStringUtils.boost(getBoost()));
         return buffer.toString();
     }
@@ -144,8 +357,11 @@ public class ImageQuery extends Query {
             return false;
         ImageQuery other = (ImageQuery) o;
         return (this.getBoost() == other.getBoost())
+                && k == other.k
+                && (executor == null) == (other.executor == null)
                 && luceneFieldName.equals(other.luceneFieldName)
-                && lireFeature.equals(other.lireFeature);
+                && lireFeature.equals(other.lireFeature)
+                && (filter == null ? other.filter == null : filter.equals(other.filter));
     }
 
     @Override
@@ -153,6 +369,8 @@ public class ImageQuery extends Query {
         int result = super.hashCode();
         result = 31 * result + luceneFieldName.hashCode();
         result = 31 * result + lireFeature.hashCode();
+        result = 31 * result + k;
+        result = 31 * result + (filter != null ? filter.hashCode() : 0);
         result = Float.floatToIntBits(getBoost()) ^ result;
         return result;
     }
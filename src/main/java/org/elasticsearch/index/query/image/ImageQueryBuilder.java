@@ -2,6 +2,8 @@ package org.elasticsearch.index.query.image;
 
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.BoostableQueryBuilder;
@@ -13,14 +15,38 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
 
     private String feature;
 
+    private Map<String, Float> features;
+
+    private String fusion;
+
     private byte[] image;
 
+    private byte[] featureBytes;
+
     private String hash;
 
+    private int probes = -1;
+
     private float boost = -1;
 
     private int limit = -1;
 
+    private int minCollisions = -1;
+
+    private int k = -1;
+
+    private int ef = -1;
+
+    private Boolean pq;
+
+    private int rerank = -1;
+
+    private Boolean parallel;
+
+    private Boolean cache;
+
+    private QueryBuilder filter;
+
     private String lookupIndex;
 
     private String lookupType;
@@ -40,21 +66,116 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
         return this;
     }
 
+    /**
+     * Scores the feature along with the other features added, instead of a single {@link #feature(String)}, its
+     * distance weighted by {@code weight}
+     */
+    public ImageQueryBuilder feature(String feature, float weight) {
+        if (features == null) {
+            features = new LinkedHashMap<String, Float>();
+        }
+        features.put(feature, weight);
+        return this;
+    }
+
+    /**
+     * How the weighted distances of the features are combined: {@code weighted_sum} (default), {@code rank} or
+     * {@code min}, see {@link ImageFusedQuery.Fusion}
+     */
+    public ImageQueryBuilder fusion(String fusion) {
+        this.fusion = fusion;
+        return this;
+    }
+
     public ImageQueryBuilder image(byte[] image) {
         this.image = image;
         return this;
     }
 
+    /**
+     * Serialized feature of the query image instead of the image, it has to be extracted at the working resolution
+     * of the field
+     */
+    public ImageQueryBuilder featureBytes(byte[] featureBytes) {
+        this.featureBytes = featureBytes;
+        return this;
+    }
+
     public ImageQueryBuilder hash(String hash) {
         this.hash = hash;
         return this;
     }
 
+    /**
+     * Neighbouring buckets to search per hash table, for hash families able to probe them
+     */
+    public ImageQueryBuilder probes(int probes) {
+        this.probes = probes;
+        return this;
+    }
+
     public ImageQueryBuilder limit(int limit) {
         this.limit = limit;
         return this;
     }
 
+    public ImageQueryBuilder minCollisions(int minCollisions) {
+        this.minCollisions = minCollisions;
+        return this;
+    }
+
+    public ImageQueryBuilder k(int k) {
+        this.k = k;
+        return this;
+    }
+
+    /**
+     * Candidates to search in the graphs of the segments for the {@code k} nearest images, for features mapped with
+     * {@code hnsw}. The larger, the better the recall and the slower the query.
+     */
+    public ImageQueryBuilder ef(int ef) {
+        this.ef = ef;
+        return this;
+    }
+
+    /**
+     * Scans the quantized features of the segments for the {@code k} nearest images, for features mapped with
+     * {@code pq}
+     */
+    public ImageQueryBuilder pq(boolean pq) {
+        this.pq = pq;
+        return this;
+    }
+
+    /**
+     * Nearest quantized images per segment to score by their exact distance instead of their approximate distance
+     */
+    public ImageQueryBuilder rerank(int rerank) {
+        this.rerank = rerank;
+        return this;
+    }
+
+    public ImageQueryBuilder parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Caches the exact distances of the query in the node distance cache, for query images searched again and again
+     */
+    public ImageQueryBuilder cache(boolean cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Only scores the docs matching the filter, its docs are found before any distance is computed
+     */
+    public ImageQueryBuilder filter(QueryBuilder filter) {
+        this.filter = filter;
+        return this;
+    }
+
     public ImageQueryBuilder lookupIndex(String lookupIndex) {
         this.lookupIndex = lookupIndex;
         return this;
@@ -91,11 +212,26 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
         builder.startObject(ImageQueryParser.NAME);
 
         builder.startObject(fieldName);
-        builder.field("feature", feature);
+        if (feature != null) {
+            builder.field("feature", feature);
+        }
+        if (features != null) {
+            builder.startObject(ImageQueryParser.FEATURES);
+            for (Map.Entry<String, Float> entry : features.entrySet()) {
+                builder.field(entry.getKey(), entry.getValue());
+            }
+            builder.endObject();
+        }
+        if (fusion != null) {
+            builder.field("fusion", fusion);
+        }
 
         if (image != null) {
             builder.field("image", image);
         }
+        if (featureBytes != null) {
+            builder.field(ImageQueryParser.FEATURE_BYTES, featureBytes);
+        }
         if (lookupIndex != null) {
             builder.field("index", lookupIndex);
         }
@@ -111,6 +247,10 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
             builder.field("hash", hash);
         }
 
+        if (probes != -1) {
+            builder.field("probes", probes);
+        }
+
         if (boost != -1) {
             builder.field("boost", boost);
         }
@@ -119,6 +259,39 @@ public class ImageQueryBuilder extends QueryBuilder implements BoostableQueryBui
             builder.field("limit", limit);
         }
 
+        if (minCollisions != -1) {
+            builder.field("min_collisions", minCollisions);
+        }
+
+        if (k != -1) {
+            builder.field("k", k);
+        }
+
+        if (ef != -1) {
+            builder.field("ef", ef);
+        }
+
+        if (pq != null) {
+            builder.field("pq", pq);
+        }
+
+        if (rerank != -1) {
+            builder.field("rerank", rerank);
+        }
+
+        if (parallel != null) {
+            builder.field("parallel", parallel);
+        }
+
+        if (cache != null) {
+            builder.field("cache", cache);
+        }
+
+        if (filter != null) {
+            builder.field(ImageQueryParser.FILTER);
+            filter.toXContent(builder, params);
+        }
+
         builder.endObject();
 
         builder.endObject();
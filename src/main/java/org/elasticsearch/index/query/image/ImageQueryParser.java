@@ -1,44 +1,103 @@
 package org.elasticsearch.index.query.image;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javax.imageio.ImageIO;
-
-import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.ElasticsearchImageProcessException;
-import org.elasticsearch.action.get.GetRequest;
-import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
-import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashFieldMapper;
+import org.elasticsearch.index.mapper.image.ImageHashService;
+import org.elasticsearch.index.mapper.image.ImageHashes;
 import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.google.common.collect.Maps;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
-import net.semanticmetadata.lire.indexing.hashing.BitSampling;
-import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 
 public class ImageQueryParser implements QueryParser {
 
     public static final String NAME = "image";
 
+    /**
+     * Thread pool used by queries with {@code parallel} set
+     */
+    public static final String THREAD_POOL_NAME = "image_search";
+
+    /**
+     * Serialized feature of the query image, what image queries are rewritten to once the coordinating node extracted
+     * their image, see {@link ImageQueryBuilder#featureBytes}. An object of the serialized feature per feature name for
+     * queries with {@code features}.
+     */
+    public static final String FEATURE_BYTES = "feature_bytes";
+
+    /**
+     * Weight per feature name of queries fusing several features, see {@link ImageFusedQuery}
+     */
+    public static final String FEATURES = "features";
+
+    /**
+     * Query whose docs are the only ones scored, see {@link ImageQuery#setFilter}
+     */
+    public static final String FILTER = "filter";
+
+    /**
+     * Max number of docs per task of parallel queries
+     */
+    public static final String SLICE_SIZE_SETTING = "image.search.slice_size";
+
     private Client client;
 
+    private ImageDistanceCache distanceCache;
+
+    private ImageFeatureCache featureCache;
+
+    private ImageLookupCache lookupCache;
+
+    private ImageHashService hashService;
+
+    private HnswGraphCache graphCache;
+
+    private QuantizedFeaturesCache quantizedCache;
+
+    private FeatureColumnCache columnCache;
+
+    private ThreadPool threadPool;
+
+    private ImageStats imageStats;
+
+    private int sliceSize;
+
     @Inject
-    public ImageQueryParser(Client client) {
+    public ImageQueryParser(Settings settings, Client client, ImageDistanceCache distanceCache, ImageFeatureCache featureCache,
+                            ImageLookupCache lookupCache, ImageHashService hashService, HnswGraphCache graphCache,
+                            QuantizedFeaturesCache quantizedCache, FeatureColumnCache columnCache, ThreadPool threadPool,
+                            ImageStats imageStats) {
         this.client = client;
+        this.distanceCache = distanceCache;
+        this.featureCache = featureCache;
+        this.lookupCache = lookupCache;
+        this.hashService = hashService;
+        this.graphCache = graphCache;
+        this.quantizedCache = quantizedCache;
+        this.columnCache = columnCache;
+        this.threadPool = threadPool;
+        this.imageStats = imageStats;
+        this.sliceSize = settings.getAsInt(SLICE_SIZE_SETTING, 100000);
     }
 
     @Override
@@ -59,9 +118,22 @@ public class ImageQueryParser implements QueryParser {
         String fieldName = parser.currentName();
         FeatureEnum featureEnum = null;
         byte[] image = null;
-        HashEnum hashEnum = null;
+        byte[] featureBytes = null;
+        String hashName = null;
+        int probes = -1;
         float boost = 1.0f;
         int limit = -1;
+        int minCollisions = 1;
+        int k = -1;
+        int ef = -1;
+        boolean pq = false;
+        int rerank = 0;
+        boolean parallel = false;
+        boolean cache = false;
+        Map<FeatureEnum, Float> weights = null;
+        Map<FeatureEnum, byte[]> fusedFeatureBytes = null;
+        ImageFusedQuery.Fusion fusion = null;
+        Query filter = null;
 
         String lookupIndex = parseContext.index().name();
         String lookupType = null;
@@ -75,18 +147,66 @@ public class ImageQueryParser implements QueryParser {
             while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
                 if (token == XContentParser.Token.FIELD_NAME) {
                     currentFieldName = parser.currentName();
+                } else if (token == XContentParser.Token.START_OBJECT && FEATURES.equals(currentFieldName)) {
+                    weights = new LinkedHashMap<FeatureEnum, Float>();  // in the order to score them
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            currentFieldName = parser.currentName();
+                        } else {
+                            weights.put(FeatureEnum.getByName(currentFieldName), parser.floatValue());
+                        }
+                    }
+                } else if (token == XContentParser.Token.START_OBJECT && FILTER.equals(currentFieldName)) {
+                    filter = parseContext.parseInnerFilter();
+                } else if (token == XContentParser.Token.START_OBJECT && FEATURE_BYTES.equals(currentFieldName)) {
+                    fusedFeatureBytes = Maps.newEnumMap(FeatureEnum.class);
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            currentFieldName = parser.currentName();
+                        } else {
+                            fusedFeatureBytes.put(FeatureEnum.getByName(currentFieldName), parser.binaryValue());
+                        }
+                    }
                 } else {
                     if ("feature".equals(currentFieldName)) {
                         featureEnum = FeatureEnum.getByName(parser.text());
                     } else if ("image".equals(currentFieldName)) {
                         image = parser.binaryValue();
+                    } else if (FEATURE_BYTES.equals(currentFieldName)) {
+                        featureBytes = parser.binaryValue();
                     } else if ("hash".equals(currentFieldName)) {
-                        hashEnum = HashEnum.getByName(parser.text());
+                        try {
+                            hashName = ImageHashes.name(parser.text());
+                        } catch (IllegalArgumentException e) {
+                            throw new QueryParsingException(parseContext, e.getMessage());
+                        }
+                    } else if ("probes".equals(currentFieldName)) {
+                        probes = parser.intValue();
                     } else if ("boost".equals(currentFieldName)) {
                         boost = parser.floatValue();
                     } else if ("limit".equals(currentFieldName)) {
                         limit = parser.intValue();
-                    }else if ("index".equals(currentFieldName)) {
+                    } else if ("min_collisions".equals(currentFieldName)) {
+                        minCollisions = parser.intValue();
+                    } else if ("k".equals(currentFieldName)) {
+                        k = parser.intValue();
+                    } else if ("ef".equals(currentFieldName)) {
+                        ef = parser.intValue();
+                    } else if ("pq".equals(currentFieldName)) {
+                        pq = parser.booleanValue();
+                    } else if ("rerank".equals(currentFieldName)) {
+                        rerank = parser.intValue();
+                    } else if ("parallel".equals(currentFieldName)) {
+                        parallel = parser.booleanValue();
+                    } else if ("cache".equals(currentFieldName)) {
+                        cache = parser.booleanValue();
+                    } else if ("fusion".equals(currentFieldName)) {
+                        try {
+                            fusion = ImageFusedQuery.Fusion.fromString(parser.text());
+                        } catch (IllegalArgumentException e) {
+                            throw new QueryParsingException(parseContext, e.getMessage());
+                        }
+                    } else if ("index".equals(currentFieldName)) {
                         lookupIndex = parser.text();
                     } else if ("type".equals(currentFieldName)) {
                         lookupType = parser.text();
@@ -104,6 +224,20 @@ public class ImageQueryParser implements QueryParser {
             parser.nextToken();
         }
 
+        if (weights != null) {
+            if (featureEnum != null) {
+                throw new QueryParsingException(parseContext, "[image] query does not support [feature] together with [" + FEATURES + "]");
+            }
+            if (hashName != null || ef > 0 || pq || parallel || filter != null) {
+                throw new QueryParsingException(parseContext, "[image] query does not support [hash], [ef], [pq], [parallel] or ["
+                        + FILTER + "] together with [" + FEATURES + "]");
+            }
+            return fusedQuery(parseContext, fieldName, weights, fusion != null ? fusion : ImageFusedQuery.Fusion.DEFAULT, image,
+                    fusedFeatureBytes, lookupIndex, lookupType, lookupId, lookupPath, lookupRouting, k, cache, boost);
+        }
+        if (fusion != null) {
+            throw new QueryParsingException(parseContext, "[image] query requires [" + FEATURES + "] for [fusion]");
+        }
         if (featureEnum == null) {
         	throw new QueryParsingException(parseContext,  "No feature specified for image query");
         }
@@ -111,70 +245,206 @@ public class ImageQueryParser implements QueryParser {
         String luceneFieldName = fieldName + "." + featureEnum.name();
         LireFeature feature = null;
 
-        if (image != null) {
+        if (featureBytes != null) {  // extracted by the coordinating node
+            feature = ImageFeatureCache.feature(featureEnum, featureBytes);
+        } else if (image != null) {
             try {
-                feature = featureEnum.getFeatureClass().newInstance();
-                BufferedImage img = ImageIO.read(new  ByteArrayInputStream(image));
-                if (Math.max(img.getHeight(), img.getWidth()) > ImageMapper.MAX_IMAGE_DIMENSION) {
-                    img = ImageUtils.scaleImage(img, ImageMapper.MAX_IMAGE_DIMENSION);
+                ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+                // same resolution as indexing
+                ImageMapper.Resolution resolution = imageMapper != null ? imageMapper.resolution(featureEnum) : ImageMapper.Resolution.DEFAULT;
+                feature = featureCache.extract(image, featureEnum, resolution, imageStats.query());
+                if (feature == null) {
+                    throw new ElasticsearchImageProcessException("Unsupported image format");
                 }
-                feature.extract(img);
             } catch (Exception e) {
                 throw new ElasticsearchImageProcessException("Failed to parse image", e);
             }
         } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
-            String lookupFieldName = lookupPath + "." + featureEnum.name();
-            GetResponse getResponse = client.get(new GetRequest(lookupIndex, lookupType, lookupId).preference("_local").routing(lookupRouting).fields(lookupFieldName).realtime(false)).actionGet();
-            if (getResponse.isExists()) {
-                GetField getField = getResponse.getField(lookupFieldName);
-                if (getField != null) {
-                    BytesReference bytesReference = (BytesReference) getField.getValue();
-                    try {
-                        feature = featureEnum.getFeatureClass().newInstance();
-                        feature.setByteArrayRepresentation(bytesReference.array(), bytesReference.arrayOffset(), bytesReference.length());
-                    } catch (Exception e) {
-                        throw new ElasticsearchImageProcessException("Failed to parse image", e);
-                    }
-                }
-
-            }
-            else{
+            // usually resolved by the coordinating node already, see ImageSearchFilter
+            ImageLookupCache.Lookup lookup = lookupCache.lookup(client, lookupIndex, lookupType, lookupId, lookupRouting,
+                    lookupPath + "." + featureEnum.name(), imageStats.search());
+            if (lookup == null) {
                 try {
                     feature = featureEnum.getFeatureClass().newInstance();
-                }
-                catch (Exception e) {
+                } catch (Exception e) {
                     throw new ElasticsearchImageProcessException("Failed to initial feature", e);
                 }
-
+            } else if (lookup.feature() != null) {
+                feature = ImageFeatureCache.feature(featureEnum, lookup.feature());
             }
         }
         if (feature == null) {
             throw new QueryParsingException(parseContext, "No image specified for image query");
         }
 
-        if (hashEnum == null) {  // no hash, need to scan all documents
-            return new ImageQuery(luceneFieldName, feature, boost);
+        // distances are only cached for the queries asking for it, most queries do not repeat
+        ImageDistanceCache.QueryDistances queryDistances = cache ? distanceCache.forQuery(luceneFieldName, featureEnum, feature) : null;
+        ImageStats.SearchStats searchStats = imageStats.search();
+
+        if (filter != null && (hashName != null || ef > 0 || pq)) {
+            throw new QueryParsingException(parseContext, "[image] query does not support [" + FILTER + "] together with [hash], [ef] or [pq]");
+        }
+
+        if (rerank > 0 && !pq) {
+            throw new QueryParsingException(parseContext, "[image] query requires [pq] for [rerank]");
+        }
+
+        if (pq) {  // scan the quantized features of the segments
+            if (hashName != null || ef > 0) {
+                throw new QueryParsingException(parseContext, "[image] query does not support [pq] together with [hash] or [ef]");
+            }
+            if (k <= 0) {
+                throw new QueryParsingException(parseContext, "[image] query requires [k] for [pq]");
+            }
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            Map<String, Integer> quantizer = imageMapper != null ? imageMapper.pq(featureEnum) : null;
+            if (quantizer == null) {
+                throw new QueryParsingException(parseContext, "[image] query requires [" + ImageMapper.PQ + "] in the mapping of ["
+                        + featureEnum.name() + "] of [" + fieldName + "] for [pq]");
+            }
+            ImageQuantizedQuery query = new ImageQuantizedQuery(luceneFieldName, featureEnum, feature, k, rerank,
+                    quantizer.get(ImageMapper.PQ_SUBSPACES), quantizer.get(ImageMapper.PQ_CENTROIDS), quantizedCache, queryDistances, boost);
+            query.setStats(searchStats);
+            return query;
+        } else if (ef > 0) {  // search the graphs of the segments
+            if (hashName != null) {
+                throw new QueryParsingException(parseContext, "[image] query does not support [ef] together with [hash]");
+            }
+            if (k <= 0) {
+                throw new QueryParsingException(parseContext, "[image] query requires [k] for [ef]");
+            }
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            Map<String, Integer> hnsw = imageMapper != null ? imageMapper.hnsw(featureEnum) : null;
+            if (hnsw == null) {
+                throw new QueryParsingException(parseContext, "[image] query requires [" + ImageMapper.HNSW + "] in the mapping of ["
+                        + featureEnum.name() + "] of [" + fieldName + "] for [ef]");
+            }
+            ImageGraphQuery query = new ImageGraphQuery(luceneFieldName, featureEnum, feature, k, Math.max(ef, k),
+                    hnsw.get(ImageMapper.HNSW_M), hnsw.get(ImageMapper.HNSW_EF_CONSTRUCTION), graphCache, queryDistances, boost);
+            query.setStats(searchStats);
+            return query;
+        } else if (hashName == null) {  // no hash, need to scan all documents
+            ImageQuery query = new ImageQuery(luceneFieldName, featureEnum, feature, k, queryDistances, boost);
+            query.setStats(searchStats);
+            query.setFilter(filter);
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            if (imageMapper != null && imageMapper.column(featureEnum)) {
+                query.setColumns(columnCache);
+            }
+            if (parallel) {
+                if (k <= 0) {
+                    throw new QueryParsingException(parseContext, "[image] query requires [k] for [parallel] without [hash]");
+                }
+                query.setExecutor(threadPool.executor(THREAD_POOL_NAME), sliceSize);
+            }
+            return query;
         } else {  // query by hash first
-            int[] hash = null;
-            if (hashEnum.equals(HashEnum.BIT_SAMPLING)) {
-                hash = BitSampling.generateHashes(feature.getDoubleHistogram());
-            } else if (hashEnum.equals(HashEnum.LSH)) {
-                hash = LocalitySensitiveHashing.generateHashes(feature.getDoubleHistogram());
+            if (k > 0) {
+                throw new QueryParsingException(parseContext, "[image] query does not support [k] together with [hash], use [limit] instead");
             }
-            String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashEnum.name();
+            // the hash the searched index was indexed with
+            ImageHash imageHash = hashService.hash(parseContext.index().name(), fieldName, featureEnum, hashName);
+            long start = System.nanoTime();
+            int[] hash = imageHash.probe(feature.getDoubleHistogram(), probes >= 0 ? probes : imageHash.defaultProbes());
+            imageStats.query().hash(hashName).recordSince(start);
+            String hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hashName;
+            // the terms the field is indexed with
+            ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+            ImageHashFieldMapper.Encoding encoding = imageMapper != null ? imageMapper.hashEncoding(featureEnum) : ImageHashFieldMapper.Encoding.DEFAULT;
+            int tables = encoding == ImageHashFieldMapper.Encoding.TAGGED ? imageHash.hash(feature.getDoubleHistogram()).length : hash.length;
+            BytesRef[] terms = encoding.terms(hash, tables);
 
             if (limit > 0) {  // has max result limit, use ImageHashLimitQuery
-                return new ImageHashLimitQuery(hashFieldName, hash, limit, luceneFieldName, feature, boost);
-            } else {  // no max result limit, use ImageHashQuery
-                BooleanQuery query = new BooleanQuery(true);
-                ImageScoreCache imageScoreCache = new ImageScoreCache();
-
-                for (int h : hash) {
-                    query.add(new BooleanClause(new ImageHashQuery(new Term(hashFieldName, Integer.toString(h)), luceneFieldName, feature, imageScoreCache, boost), BooleanClause.Occur.SHOULD));
+                ImageHashLimitQuery query = new ImageHashLimitQuery(hashFieldName, terms, limit, minCollisions, luceneFieldName, featureEnum, feature, queryDistances, boost);
+                query.setStats(searchStats);
+                if (parallel) {
+                    query.setExecutor(threadPool.executor(THREAD_POOL_NAME), sliceSize);
                 }
                 return query;
+            } else {  // no max result limit, use ImageHashCollisionQuery
+                ImageHashCollisionQuery query = new ImageHashCollisionQuery(hashFieldName, terms, minCollisions, luceneFieldName, featureEnum, feature, queryDistances, boost);
+                query.setStats(searchStats);
+                return query;
+            }
+
+        }
+    }
+
+    /**
+     * Extracts all features of the query image from one decode, or looks each of them up, and scores them in one pass
+     */
+    private Query fusedQuery(QueryParseContext parseContext, String fieldName, Map<FeatureEnum, Float> weights,
+                             ImageFusedQuery.Fusion fusion, byte[] image, Map<FeatureEnum, byte[]> featureBytes,
+                             String lookupIndex, String lookupType, String lookupId, String lookupPath, String lookupRouting,
+                             int k, boolean cache, float boost) {
+        if (weights.isEmpty()) {
+            throw new QueryParsingException(parseContext, "No feature specified for image query");
+        }
+        ImageMapper imageMapper = imageMapper(parseContext, fieldName);
+        Map<FeatureEnum, LireFeature> features = Maps.newEnumMap(FeatureEnum.class);
+        if (featureBytes != null) {  // extracted by the coordinating node
+            for (Map.Entry<FeatureEnum, byte[]> entry : featureBytes.entrySet()) {
+                features.put(entry.getKey(), ImageFeatureCache.feature(entry.getKey(), entry.getValue()));
+            }
+        } else if (image != null) {
+            Map<FeatureEnum, ImageMapper.Resolution> resolutions = Maps.newEnumMap(FeatureEnum.class);
+            for (FeatureEnum featureEnum : weights.keySet()) {
+                // same resolution as indexing
+                resolutions.put(featureEnum, imageMapper != null ? imageMapper.resolution(featureEnum) : ImageMapper.Resolution.DEFAULT);
+            }
+            try {
+                features = featureCache.extract(image, resolutions, imageStats.query());
+                if (features == null) {
+                    throw new ElasticsearchImageProcessException("Unsupported image format");
+                }
+            } catch (Exception e) {
+                throw new ElasticsearchImageProcessException("Failed to parse image", e);
+            }
+        } else if (lookupIndex != null && lookupType != null && lookupId != null && lookupPath != null) {
+            for (FeatureEnum featureEnum : weights.keySet()) {
+                ImageLookupCache.Lookup lookup = lookupCache.lookup(client, lookupIndex, lookupType, lookupId, lookupRouting,
+                        lookupPath + "." + featureEnum.name(), imageStats.search());
+                if (lookup == null) {
+                    try {
+                        features.put(featureEnum, featureEnum.getFeatureClass().newInstance());
+                    } catch (Exception e) {
+                        throw new ElasticsearchImageProcessException("Failed to initial feature", e);
+                    }
+                } else if (lookup.feature() != null) {
+                    features.put(featureEnum, ImageFeatureCache.feature(featureEnum, lookup.feature()));
+                }
             }
+        }
 
+        ImageFusedQuery.Clause[] clauses = new ImageFusedQuery.Clause[weights.size()];
+        int i = 0;
+        for (Map.Entry<FeatureEnum, Float> entry : weights.entrySet()) {
+            FeatureEnum featureEnum = entry.getKey();
+            LireFeature feature = features.get(featureEnum);
+            if (feature == null) {
+                throw new QueryParsingException(parseContext, "No image specified for image query, or no [" + featureEnum.name() + "] of it");
+            }
+            String luceneFieldName = fieldName + "." + featureEnum.name();
+            try {
+                clauses[i++] = new ImageFusedQuery.Clause(luceneFieldName, featureEnum, feature, entry.getValue(),
+                        cache ? distanceCache.forQuery(luceneFieldName, featureEnum, feature) : null, imageMapper != null && imageMapper.column(featureEnum));
+            } catch (IllegalArgumentException e) {
+                throw new QueryParsingException(parseContext, e.getMessage());
+            }
+        }
+        ImageFusedQuery query = new ImageFusedQuery(clauses, fusion, k, boost);
+        query.setStats(imageStats.search());
+        query.setColumns(columnCache);
+        return query;
+    }
+
+    private static ImageMapper imageMapper(QueryParseContext parseContext, String fieldName) {
+        for (DocumentMapper documentMapper : parseContext.mapperService().docMappers(false)) {
+            FieldMapper fieldMapper = documentMapper.mappers().getMapper(fieldName);
+            if (fieldMapper instanceof ImageMapper) {
+                return (ImageMapper) fieldMapper;
+            }
         }
+        return null;
     }
 }
@@ -0,0 +1,136 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Node level cache of a structure built from the features of a field of each segment, built once the segment is
+ * searchable, see {@link ImageSegmentWarmer}, or by the first query needing it.
+ *
+ * Structures of a segment are dropped when the segment core is closed, the cache is bounded by a memory setting and
+ * evicts least recently used structures first, which are built again by the next query.
+ */
+public abstract class ImageSegmentCache<T> extends AbstractComponent {
+
+    private final String name;
+    private final Cache<Key, T> cache;
+    private final ConcurrentMap<Object, Boolean> registeredCoreKeys = new MapMaker().makeMap();
+    private final LeafReader.CoreClosedListener coreClosedListener = new LeafReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+            invalidate(ownerCoreCacheKey);
+        }
+    };
+
+    /**
+     * @param name what the cache holds, for logs and errors
+     */
+    protected ImageSegmentCache(Settings settings, String name, String sizeSetting, String defaultSize) {
+        this(settings, name, settings.getAsMemory(sizeSetting, defaultSize));
+    }
+
+    /**
+     * @param name what the cache holds, for logs and errors
+     * @param size bound of the weights of the cached structures
+     */
+    protected ImageSegmentCache(Settings settings, String name, ByteSizeValue size) {
+        super(settings);
+        this.name = name;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(size.bytes())
+                .weigher(new Weigher<Key, T>() {
+                    @Override
+                    public int weigh(Key key, T value) {
+                        return (int) Math.min(Integer.MAX_VALUE, ramBytesUsed(value));
+                    }
+                })
+                .build();
+        logger.debug("using {} cache with size [{}]", name, size);
+    }
+
+    protected abstract long ramBytesUsed(T value);
+
+    /**
+     * The structure of the field of the segment built with {@code parameters}, built now by {@code builder} if it is
+     * not cached
+     */
+    protected T get(LeafReader reader, String luceneFieldName, Object parameters, Callable<T> builder) throws IOException {
+        Object coreKey = reader.getCoreCacheKey();
+        Key key = new Key(coreKey, luceneFieldName, parameters);
+        T value = cache.getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+        if (registeredCoreKeys.putIfAbsent(coreKey, Boolean.TRUE) == null) {
+            reader.addCoreClosedListener(coreClosedListener);
+        }
+        try {
+            // concurrent queries and warmers of the same structure wait for a single build
+            return cache.get(key, builder);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ElasticsearchImageProcessException("Failed to build " + name + " of [" + luceneFieldName + "]", e.getCause());
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    void invalidate(Object coreKey) {
+        registeredCoreKeys.remove(coreKey);
+        for (Iterator<Key> iterator = cache.asMap().keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().coreKey == coreKey) {
+                iterator.remove();
+            }
+        }
+    }
+
+    static final class Key {
+        final Object coreKey;
+        final String luceneFieldName;
+        final Object parameters;
+
+        Key(Object coreKey, String luceneFieldName, Object parameters) {
+            this.coreKey = coreKey;
+            this.luceneFieldName = luceneFieldName;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key that = (Key) o;
+            return coreKey == that.coreKey && luceneFieldName.equals(that.luceneFieldName) && parameters.equals(that.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(coreKey);
+            result = 31 * result + luceneFieldName.hashCode();
+            result = 31 * result + parameters.hashCode();
+            return result;
+        }
+    }
+}
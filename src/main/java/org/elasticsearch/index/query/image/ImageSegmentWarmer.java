@@ -0,0 +1,154 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.FieldMapper;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesWarmer;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Builds the {@link HnswGraph} of the features mapped with {@code hnsw}, the {@link QuantizedFeatures} of the
+ * features mapped with {@code pq} and the {@link FeatureColumn} of the features mapped with {@code column} of the new
+ * segments of a shard, flushed or merged, before they are searchable, so queries do not wait for them
+ */
+public class ImageSegmentWarmer extends AbstractComponent {
+
+    private final HnswGraphCache graphCache;
+    private final QuantizedFeaturesCache quantizedCache;
+    private final FeatureColumnCache columnCache;
+
+    @Inject
+    public ImageSegmentWarmer(Settings settings, IndicesWarmer indicesWarmer, HnswGraphCache graphCache,
+                              QuantizedFeaturesCache quantizedCache, FeatureColumnCache columnCache) {
+        super(settings);
+        this.graphCache = graphCache;
+        this.quantizedCache = quantizedCache;
+        this.columnCache = columnCache;
+        indicesWarmer.addListener(new Listener());
+    }
+
+    /**
+     * Builds one structure of a field of a segment
+     */
+    private abstract static class WarmTask {
+        final String luceneFieldName;
+        final FeatureEnum featureEnum;
+
+        WarmTask(String luceneFieldName, FeatureEnum featureEnum) {
+            this.luceneFieldName = luceneFieldName;
+            this.featureEnum = featureEnum;
+        }
+
+        abstract String warm(LeafReader reader) throws IOException;
+    }
+
+    private List<WarmTask> warmTasks(IndexShard indexShard) {
+        List<WarmTask> tasks = new ArrayList<WarmTask>();
+        for (DocumentMapper documentMapper : indexShard.mapperService().docMappers(false)) {
+            for (FieldMapper fieldMapper : documentMapper.mappers()) {
+                if (!(fieldMapper instanceof ImageMapper)) {
+                    continue;
+                }
+                ImageMapper imageMapper = (ImageMapper) fieldMapper;
+                for (FeatureEnum featureEnum : FeatureEnum.values()) {
+                    String luceneFieldName = imageMapper.fieldType().names().fullName() + "." + featureEnum.name();
+                    final Map<String, Integer> hnsw = imageMapper.hnsw(featureEnum);
+                    if (hnsw != null) {
+                        tasks.add(new WarmTask(luceneFieldName, featureEnum) {
+                            @Override
+                            String warm(LeafReader reader) throws IOException {
+                                HnswGraph graph = graphCache.graph(reader, luceneFieldName, featureEnum, hnsw.get(ImageMapper.HNSW_M),
+                                        hnsw.get(ImageMapper.HNSW_EF_CONSTRUCTION));
+                                return "hnsw graph with [" + graph.nodes() + "] nodes";
+                            }
+                        });
+                    }
+                    final Map<String, Integer> pq = imageMapper.pq(featureEnum);
+                    if (pq != null) {
+                        tasks.add(new WarmTask(luceneFieldName, featureEnum) {
+                            @Override
+                            String warm(LeafReader reader) throws IOException {
+                                QuantizedFeatures features = quantizedCache.features(reader, luceneFieldName, featureEnum,
+                                        pq.get(ImageMapper.PQ_SUBSPACES), pq.get(ImageMapper.PQ_CENTROIDS));
+                                return "quantized features of [" + features.docs() + "] docs";
+                            }
+                        });
+                    }
+                    if (imageMapper.column(featureEnum)) {
+                        tasks.add(new WarmTask(luceneFieldName, featureEnum) {
+                            @Override
+                            String warm(LeafReader reader) throws IOException {
+                                FeatureColumn column = columnCache.column(reader, luceneFieldName, featureEnum);
+                                return column == null ? "no feature column, too many docs" : "feature column of [" + column.docs() + "] docs";
+                            }
+                        });
+                    }
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private final class Listener extends IndicesWarmer.Listener {
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmNewReaders(final IndexShard indexShard, IndexMetaData indexMetaData,
+                                                              final IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            final List<WarmTask> tasks = warmTasks(indexShard);
+            if (tasks.isEmpty()) {
+                return IndicesWarmer.TerminationHandle.NO_WAIT;
+            }
+            List<LeafReaderContext> leaves = context.searcher().reader().leaves();
+            Executor executor = threadPool.executor(executor());
+            final CountDownLatch latch = new CountDownLatch(leaves.size() * tasks.size());
+            for (final LeafReaderContext leaf : leaves) {
+                for (final WarmTask task : tasks) {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                long start = System.nanoTime();
+                                String warmed = task.warm(leaf.reader());
+                                if (logger.isTraceEnabled()) {
+                                    logger.trace("warmed {} of [{}], took [{}]ms", warmed, task.luceneFieldName,
+                                            (System.nanoTime() - start) / 1000000);
+                                }
+                            } catch (Throwable t) {
+                                logger.warn("failed to warm [{}]", t, task.luceneFieldName);
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+            }
+            return new IndicesWarmer.TerminationHandle() {
+                @Override
+                public void awaitTermination() throws InterruptedException {
+                    latch.await();
+                }
+            };
+        }
+
+        @Override
+        public IndicesWarmer.TerminationHandle warmTopReader(IndexShard indexShard, IndexMetaData indexMetaData,
+                                                             IndicesWarmer.WarmerContext context, ThreadPool threadPool) {
+            return IndicesWarmer.TerminationHandle.NO_WAIT;
+        }
+    }
+}
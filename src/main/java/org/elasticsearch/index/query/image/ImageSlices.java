@@ -0,0 +1,324 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BitSet;
+import org.apache.lucene.util.Bits;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Computes image distances of a whole reader on an executor. Each segment is split in slices of at most
+ * {@code sliceSize} docs, every slice is a separate task. Slices rejected by the executor run on the calling thread.
+ * The docs scored and the scoring time of each slice are recorded in the stats, if any. Docs read from a
+ * {@link FeatureColumn} are scored {@link DistanceBatch#SIZE} at a time by the batch kernels. With filters, only the docs
+ * of the filter of each segment are scored.
+ */
+final class ImageSlices {
+
+    /**
+     * Candidate docs of a segment, in increasing doc order, with their distances
+     */
+    static final class LeafCandidates {
+        final int[] docs;
+        final float[] distances;
+
+        LeafCandidates(int[] docs, float[] distances) {
+            this.docs = docs;
+            this.distances = distances;
+        }
+
+        /**
+         * The docs of a heap of the whole reader, offered with their global doc ids, per leaf ord, {@code null} for
+         * leaves without any
+         */
+        static LeafCandidates[] of(DistanceHeap heap, List<LeafReaderContext> leaves) {
+            long[] entries = new long[heap.size()];  // global doc in the high bits, to sort by doc
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = (long) heap.doc(i) << 32 | (Float.floatToRawIntBits(heap.distance(i)) & 0xFFFFFFFFL);
+            }
+            Arrays.sort(entries);
+
+            LeafCandidates[] leafCandidates = new LeafCandidates[leaves.size()];
+            int from = 0;
+            while (from < entries.length) {
+                LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex((int) (entries[from] >>> 32), leaves));
+                int to = from;
+                while (to < entries.length && (entries[to] >>> 32) < leaf.docBase + leaf.reader().maxDoc()) {
+                    to++;
+                }
+                int[] docs = new int[to - from];
+                float[] distances = new float[to - from];
+                for (int i = from; i < to; i++) {
+                    docs[i - from] = (int) (entries[i] >>> 32) - leaf.docBase;
+                    distances[i - from] = Float.intBitsToFloat((int) entries[i]);
+                }
+                leafCandidates[leaf.ord] = new LeafCandidates(docs, distances);
+                from = to;
+            }
+            return leafCandidates;
+        }
+    }
+
+    private final String luceneFieldName;
+    private final DistanceKernel distanceKernel;
+    private final ImageDistanceCache.QueryDistances distanceCache;
+    private final Executor executor;
+    private final int sliceSize;
+    private final ImageStats.SearchStats stats;
+    private FeatureColumnCache columnCache;
+    private FeatureEnum featureEnum;
+
+    ImageSlices(String luceneFieldName, DistanceKernel distanceKernel, ImageDistanceCache.QueryDistances distanceCache,
+                Executor executor, int sliceSize, ImageStats.SearchStats stats) {
+        this.luceneFieldName = luceneFieldName;
+        this.distanceKernel = distanceKernel;
+        this.distanceCache = distanceCache;
+        this.executor = executor;
+        this.sliceSize = Math.max(1, sliceSize);
+        this.stats = stats;
+    }
+
+    /**
+     * Reads the features from the {@link FeatureColumn} of each segment instead of its doc values
+     */
+    void useColumns(FeatureColumnCache columnCache, FeatureEnum featureEnum) {
+        this.columnCache = columnCache;
+        this.featureEnum = featureEnum;
+    }
+
+    private FeatureColumn column(LeafReader reader) throws IOException {
+        return columnCache == null ? null : columnCache.column(reader, luceneFieldName, featureEnum);
+    }
+
+    /**
+     * The k live docs of the reader nearest to the query image, per leaf ord, {@code null} for leaves without any
+     *
+     * @param filters docs to score per leaf ord, {@code null} for leaves without any, {@code null} to score all docs
+     */
+    LeafCandidates[] topK(IndexReader reader, final int k, BitSet[] filters) {
+        List<LeafReaderContext> leaves = reader.leaves();
+        List<FutureTask<DistanceHeap>> tasks = new ArrayList<FutureTask<DistanceHeap>>();
+        for (final LeafReaderContext leaf : leaves) {
+            final BitSet filter = filters == null ? null : filters[leaf.ord];
+            if (filters != null && filter == null) {
+                continue;
+            }
+            int maxDoc = leaf.reader().maxDoc();
+            for (int from = 0; from < maxDoc; from += sliceSize) {
+                final int sliceFrom = from;
+                final int sliceTo = (int) Math.min(maxDoc, (long) from + sliceSize);
+                tasks.add(new FutureTask<DistanceHeap>(new Callable<DistanceHeap>() {
+                    @Override
+                    public DistanceHeap call() throws Exception {
+                        return sliceTopK(leaf, filter, sliceFrom, sliceTo, k);
+                    }
+                }));
+            }
+        }
+
+        // merge the top k of the slices
+        DistanceHeap heap = new DistanceHeap(k);
+        for (DistanceHeap sliceHeap : run(tasks)) {
+            for (int i = 0; i < sliceHeap.size(); i++) {
+                heap.offer(sliceHeap.distance(i), sliceHeap.doc(i));
+            }
+        }
+
+        return LeafCandidates.of(heap, leaves);
+    }
+
+    /**
+     * Distances of the given candidates, per leaf ord
+     */
+    float[][] distances(IndexReader reader, final int[][] leafCandidates) {
+        List<LeafReaderContext> leaves = reader.leaves();
+        final float[][] distances = new float[leafCandidates.length][];
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        for (final LeafReaderContext leaf : leaves) {
+            final int[] candidates = leafCandidates[leaf.ord];
+            if (candidates == null) {
+                continue;
+            }
+            final float[] leafDistances = distances[leaf.ord] = new float[candidates.length];
+            for (int from = 0; from < candidates.length; from += sliceSize) {
+                final int sliceFrom = from;
+                final int sliceTo = (int) Math.min(candidates.length, (long) from + sliceSize);
+                tasks.add(new FutureTask<Void>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long start = System.nanoTime();
+                        LeafReader reader = leaf.reader();
+                        BinaryDocValues binaryDocValues = reader.getBinaryDocValues(luceneFieldName);
+                        if (binaryDocValues != null) {
+                            FeatureColumn column = column(reader);
+                            DistanceBatch batch = column == null ? null : new DistanceBatch();
+                            int batchFrom = sliceFrom;  // candidate of the first doc of the batch
+                            for (int i = sliceFrom; i < sliceTo; i++) {
+                                if (batch != null && column.has(candidates[i])) {
+                                    if (add(batch, reader, candidates[i])) {
+                                        score(batch, column, reader, Float.POSITIVE_INFINITY, leafDistances, batchFrom);
+                                        batchFrom = i + 1;
+                                    }
+                                    continue;
+                                }
+                                score(batch, column, reader, Float.POSITIVE_INFINITY, leafDistances, batchFrom);
+                                batchFrom = i + 1;
+                                leafDistances[i] = AbstractImageScorer.distance(distanceKernel, distanceCache, reader,
+                                        binaryDocValues, column, candidates[i], Float.POSITIVE_INFINITY);
+                            }
+                            score(batch, column, reader, Float.POSITIVE_INFINITY, leafDistances, batchFrom);
+                            recordStats(start, sliceTo - sliceFrom);
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+        run(tasks);  // the tasks fill the distance arrays
+        return distances;
+    }
+
+    /**
+     * @param filter docs to score, {@code null} to score all docs
+     */
+    private DistanceHeap sliceTopK(LeafReaderContext leaf, BitSet filter, int from, int to, int k) throws IOException {
+        long start = System.nanoTime();
+        DistanceHeap heap = new DistanceHeap(k);
+        LeafReader reader = leaf.reader();
+        BinaryDocValues binaryDocValues = reader.getBinaryDocValues(luceneFieldName);  // per thread instance
+        if (binaryDocValues == null) {
+            return heap;
+        }
+        FeatureColumn column = column(reader);
+        DistanceBatch batch = column == null ? null : new DistanceBatch();
+        Bits liveDocs = reader.getLiveDocs();
+        int docsScored = 0;
+        for (int doc = next(filter, from, to); doc < to; doc = next(filter, doc + 1, to)) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            docsScored++;
+            if (batch != null && column.has(doc)) {
+                if (add(batch, reader, doc)) {
+                    offer(batch, column, reader, heap, leaf.docBase);
+                }
+                continue;
+            }
+            offer(batch, column, reader, heap, leaf.docBase);  // offers stay in doc order, which breaks ties
+            float distance = AbstractImageScorer.distance(distanceKernel, distanceCache, reader, binaryDocValues, column, doc,
+                    heap.threshold());
+            heap.offer(distance, leaf.docBase + doc);
+        }
+        offer(batch, column, reader, heap, leaf.docBase);
+        recordStats(start, docsScored);
+        return heap;
+    }
+
+    /**
+     * First doc of {@code [from, to)} to score, {@code to} if there is none
+     */
+    private static int next(BitSet filter, int from, int to) {
+        if (filter == null || from >= to) {
+            return from;
+        }
+        return Math.min(filter.nextSetBit(from), to);
+    }
+
+    /**
+     * Adds a doc with a feature in the column to the batch, with its distance when cached
+     *
+     * @return whether the batch is full
+     */
+    private boolean add(DistanceBatch batch, LeafReader reader, int doc) {
+        float cached = distanceCache == null ? Float.NaN : distanceCache.get(reader, doc);
+        return Float.isNaN(cached) ? batch.add(doc) : batch.add(doc, cached);
+    }
+
+    /**
+     * Scores the docs of the batch, if any, with one call of the kernel and offers them to the heap in order
+     */
+    private void offer(DistanceBatch batch, FeatureColumn column, LeafReader reader, DistanceHeap heap, int docBase) {
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+        distances(batch, column, reader, heap.threshold());
+        for (int i = 0; i < batch.size(); i++) {
+            heap.offer(batch.distance(i), docBase + batch.doc(i));
+        }
+        batch.clear();
+    }
+
+    /**
+     * Scores the docs of the batch, if any, into {@code distances[from, from + batch.size())}
+     */
+    private void score(DistanceBatch batch, FeatureColumn column, LeafReader reader, float threshold, float[] distances, int from) {
+        if (batch == null || batch.size() == 0) {
+            return;
+        }
+        distances(batch, column, reader, threshold);
+        for (int i = 0; i < batch.size(); i++) {
+            distances[from + i] = batch.distance(i);
+        }
+        batch.clear();
+    }
+
+    private void distances(DistanceBatch batch, FeatureColumn column, LeafReader reader, float threshold) {
+        distanceKernel.distances(column, batch, threshold);
+        if (distanceCache != null) {
+            for (int lane = 0; lane < batch.pending(); lane++) {
+                float distance = batch.pendingDistance(lane);
+                if (distance <= threshold) {  // only exact distances are cached
+                    distanceCache.put(reader, batch.pendingDoc(lane), distance);
+                }
+            }
+        }
+    }
+
+    private void recordStats(long startNanos, int docsScored) {
+        if (stats != null) {
+            stats.docsScored().record(docsScored);
+            stats.score().recordSince(startNanos);
+        }
+    }
+
+    private <T> List<T> run(List<FutureTask<T>> tasks) {
+        for (FutureTask<T> task : tasks) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (FutureTask<T> task : tasks) {
+                results.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ElasticsearchImageProcessException("Interrupted while calculating scores", e);
+        } catch (ExecutionException e) {
+            throw new ElasticsearchImageProcessException("Failed to calculate score", e.getCause());
+        } finally {
+            for (FutureTask<T> task : tasks) {
+                task.cancel(false);
+            }
+        }
+        return results;
+    }
+}
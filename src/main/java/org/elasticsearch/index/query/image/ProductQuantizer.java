@@ -0,0 +1,206 @@
+package org.elasticsearch.index.query.image;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Product quantizer (Jégou, Douze and Schmid, "Product quantization for nearest neighbor search"): the histogram of a
+ * feature is split into {@code subspaces} contiguous ranges of dimensions, and each range is replaced by the closest
+ * of its {@code centroids}, learnt by k-means on a sample. A feature is then a code of one byte per subspace.
+ *
+ * The distance of a query to a code is asymmetric: the query is not quantized, its squared euclidean distance to each
+ * centroid of each subspace is computed once in {@link #distanceTable}, and the distance to a code is the sum of one
+ * entry of the table per subspace. It approximates the squared euclidean distance of the histograms, not the distance
+ * of the feature, so it ranks candidates for the exact {@link DistanceKernel} rather than scoring them.
+ */
+public final class ProductQuantizer {
+
+    public static final int DEFAULT_SUBSPACES = 16;
+    public static final int DEFAULT_CENTROIDS = 256;
+
+    /**
+     * Histograms sampled per centroid to train on
+     */
+    static final int SAMPLE_PER_CENTROID = 32;
+
+    private static final int ITERATIONS = 8;
+
+    private final int dimensions;
+    private final int subspaces;
+    private final int centroids;
+    private final int[] starts;  // first dimension of each subspace, then the number of dimensions
+    private final float[][] codebooks;  // codebooks[subspace][centroid * width + dimension]
+
+    private ProductQuantizer(int dimensions, int subspaces, int centroids, int[] starts, float[][] codebooks) {
+        this.dimensions = dimensions;
+        this.subspaces = subspaces;
+        this.centroids = centroids;
+        this.starts = starts;
+        this.codebooks = codebooks;
+    }
+
+    /**
+     * Learns the centroids of each subspace from histograms of {@code dimensions}, less than {@code centroids} if the
+     * sample has fewer histograms
+     *
+     * @param sample {@code size} histograms one after another
+     */
+    static ProductQuantizer train(float[] sample, int size, int dimensions, int subspaces, int centroids, Random random) {
+        if (subspaces < 1 || centroids < 1 || centroids > 256) {
+            throw new IllegalArgumentException("Invalid product quantizer of [" + subspaces + "] subspaces with [" + centroids
+                    + "] centroids");
+        }
+        subspaces = Math.max(1, Math.min(subspaces, dimensions));
+        centroids = Math.max(1, Math.min(centroids, size));
+        int[] starts = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            starts[s] = (int) ((long) s * dimensions / subspaces);
+        }
+        float[][] codebooks = new float[subspaces][];
+        for (int s = 0; s < subspaces; s++) {
+            codebooks[s] = kMeans(sample, size, dimensions, starts[s], starts[s + 1] - starts[s], centroids, random);
+        }
+        return new ProductQuantizer(dimensions, subspaces, centroids, starts, codebooks);
+    }
+
+    /**
+     * Lloyd iterations from distinct random histograms of the sample, empty clusters restart from another one
+     */
+    private static float[] kMeans(float[] sample, int size, int dimensions, int start, int width, int centroids, Random random) {
+        float[] codebook = new float[centroids * width];
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        for (int i = 0; i < centroids; i++) {
+            int j = i + random.nextInt(size - i);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+            System.arraycopy(sample, order[i] * dimensions + start, codebook, i * width, width);
+        }
+        if (centroids == size) {
+            return codebook;
+        }
+
+        int[] assignments = new int[size];
+        double[] sums = new double[centroids * width];
+        int[] counts = new int[centroids];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            boolean changed = false;
+            for (int i = 0; i < size; i++) {
+                int nearest = nearest(codebook, centroids, width, sample, i * dimensions + start);
+                if (nearest != assignments[i] || iteration == 0) {
+                    changed = true;
+                    assignments[i] = nearest;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                int c = assignments[i];
+                counts[c]++;
+                for (int d = 0; d < width; d++) {
+                    sums[c * width + d] += sample[i * dimensions + start + d];
+                }
+            }
+            for (int c = 0; c < centroids; c++) {
+                if (counts[c] == 0) {
+                    System.arraycopy(sample, random.nextInt(size) * dimensions + start, codebook, c * width, width);
+                    continue;
+                }
+                for (int d = 0; d < width; d++) {
+                    codebook[c * width + d] = (float) (sums[c * width + d] / counts[c]);
+                }
+            }
+        }
+        return codebook;
+    }
+
+    private static int nearest(float[] codebook, int centroids, int width, float[] vector, int offset) {
+        int nearest = 0;
+        float nearestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids; c++) {
+            float distance = 0;
+            int base = c * width;
+            for (int d = 0; d < width && distance < nearestDistance; d++) {
+                float diff = vector[offset + d] - codebook[base + d];
+                distance += diff * diff;
+            }
+            if (distance < nearestDistance) {
+                nearest = c;
+                nearestDistance = distance;
+            }
+        }
+        return nearest;
+    }
+
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Bytes per code
+     */
+    public int subspaces() {
+        return subspaces;
+    }
+
+    public int centroids() {
+        return centroids;
+    }
+
+    /**
+     * Writes the code of a histogram of {@link #dimensions()} at {@code codes[offset, offset + subspaces())}
+     */
+    void encode(float[] histogram, byte[] codes, int offset) {
+        for (int s = 0; s < subspaces; s++) {
+            codes[offset + s] = (byte) nearest(codebooks[s], centroids, starts[s + 1] - starts[s], histogram, starts[s]);
+        }
+    }
+
+    /**
+     * Squared distances of the query histogram to each centroid, {@code table[subspace * centroids() + centroid]}
+     */
+    public float[] distanceTable(double[] query) {
+        float[] table = new float[subspaces * centroids];
+        for (int s = 0; s < subspaces; s++) {
+            int start = starts[s];
+            int width = starts[s + 1] - start;
+            float[] codebook = codebooks[s];
+            for (int c = 0; c < centroids; c++) {
+                float distance = 0;
+                for (int d = 0; d < width; d++) {
+                    float diff = (start + d < query.length ? (float) query[start + d] : 0f) - codebook[c * width + d];
+                    distance += diff * diff;
+                }
+                table[s * centroids + c] = distance;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Approximate squared distance of the query of the table to the code at {@code codes[offset]}
+     */
+    public float distance(float[] table, byte[] codes, int offset) {
+        float distance = 0;
+        for (int s = 0, base = 0; s < subspaces; s++, base += centroids) {
+            distance += table[base + (codes[offset + s] & 0xFF)];
+        }
+        return distance;
+    }
+
+    public long ramBytesUsed() {
+        long bytes = RamUsageEstimator.sizeOf(starts) + RamUsageEstimator.shallowSizeOf(codebooks);
+        for (float[] codebook : codebooks) {
+            bytes += RamUsageEstimator.sizeOf(codebook);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,137 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * The features of a segment as {@link ProductQuantizer} codes, a few bytes per doc next to each other in memory
+ * instead of the full features of the doc values, with the quantizer trained on a sample of the segment.
+ */
+public final class QuantizedFeatures {
+
+    private final ProductQuantizer quantizer;  // null if no doc has a feature
+    private final byte[] codes;  // codes[doc * subspaces, (doc + 1) * subspaces)
+    private final FixedBitSet docsWithCode;
+    private final int docs;
+
+    private QuantizedFeatures(ProductQuantizer quantizer, byte[] codes, FixedBitSet docsWithCode, int docs) {
+        this.quantizer = quantizer;
+        this.codes = codes;
+        this.docsWithCode = docsWithCode;
+        this.docs = docs;
+    }
+
+    /**
+     * Trains the quantizer on a sample of the features of the segment, deleted or not, and encodes all of them
+     */
+    public static QuantizedFeatures build(LeafReader reader, String luceneFieldName, FeatureEnum featureEnum, int subspaces,
+                                         int centroids) throws IOException {
+        int maxDoc = reader.maxDoc();
+        FixedBitSet docsWithCode = new FixedBitSet(Math.max(1, maxDoc));
+        BinaryDocValues values = reader.getBinaryDocValues(luceneFieldName);
+        if (values == null) {
+            return new QuantizedFeatures(null, new byte[0], docsWithCode, 0);
+        }
+
+        // reservoir sample of the histograms, seeded by the segment so the same segment always gets the same codes
+        Random random = new Random(maxDoc);
+        int sampleSize = ProductQuantizer.SAMPLE_PER_CENTROID * centroids;
+        float[] sample = null;
+        int dimensions = 0;
+        int docs = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            double[] histogram = histogram(values, doc, featureEnum);
+            if (histogram == null) {
+                continue;
+            }
+            docsWithCode.set(doc);
+            if (sample == null) {
+                dimensions = histogram.length;
+                sample = new float[Math.min(sampleSize, maxDoc) * dimensions];
+            }
+            int slot = docs < sampleSize ? docs : random.nextInt(docs + 1);
+            if (slot < sampleSize) {
+                copy(histogram, sample, slot * dimensions, dimensions);
+            }
+            docs++;
+        }
+        if (docs == 0 || dimensions == 0) {
+            return new QuantizedFeatures(null, new byte[0], docsWithCode, 0);
+        }
+
+        ProductQuantizer quantizer = ProductQuantizer.train(sample, Math.min(docs, sampleSize), dimensions, subspaces, centroids, random);
+        byte[] codes = new byte[maxDoc * quantizer.subspaces()];
+        float[] histogram = new float[dimensions];
+        for (int doc = docsWithCode.nextSetBit(0); doc != -1; doc = doc + 1 < maxDoc ? docsWithCode.nextSetBit(doc + 1) : -1) {
+            copy(histogram(values, doc, featureEnum), histogram, 0, dimensions);
+            quantizer.encode(histogram, codes, doc * quantizer.subspaces());
+        }
+        return new QuantizedFeatures(quantizer, codes, docsWithCode, docs);
+    }
+
+    private static double[] histogram(BinaryDocValues values, int doc, FeatureEnum featureEnum) {
+        BytesRef bytes = values.get(doc);
+        if (bytes.length == 0) {  // no image
+            return null;
+        }
+        byte[] feature = Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length);
+        return ImageFeatureCache.feature(featureEnum, feature).getDoubleHistogram();
+    }
+
+    /**
+     * Histograms longer than the first one are cut, shorter ones padded with zeros
+     */
+    private static void copy(double[] histogram, float[] to, int offset, int dimensions) {
+        int length = Math.min(histogram.length, dimensions);
+        for (int d = 0; d < length; d++) {
+            to[offset + d] = (float) histogram[d];
+        }
+        Arrays.fill(to, offset + length, offset + dimensions, 0f);
+    }
+
+    /**
+     * Docs with a code
+     */
+    public int docs() {
+        return docs;
+    }
+
+    /**
+     * {@code null} if no doc of the segment has a feature
+     */
+    public ProductQuantizer quantizer() {
+        return quantizer;
+    }
+
+    /**
+     * The {@code n} live docs of the smallest approximate distance to the query of the table
+     */
+    DistanceHeap nearest(float[] table, Bits liveDocs, int n) {
+        DistanceHeap nearest = new DistanceHeap(n);
+        if (quantizer == null) {
+            return nearest;
+        }
+        int subspaces = quantizer.subspaces();
+        int maxDoc = docsWithCode.length();
+        for (int doc = docsWithCode.nextSetBit(0); doc != -1; doc = doc + 1 < maxDoc ? docsWithCode.nextSetBit(doc + 1) : -1) {
+            if (liveDocs != null && !liveDocs.get(doc)) {
+                continue;
+            }
+            nearest.offer(quantizer.distance(table, codes, doc * subspaces), doc);
+        }
+        return nearest;
+    }
+
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(codes) + docsWithCode.ramBytesUsed() + (quantizer != null ? quantizer.ramBytesUsed() : 0);
+    }
+}
@@ -0,0 +1,49 @@
+package org.elasticsearch.index.query.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Node level cache of the {@link QuantizedFeatures} of each feature of each segment, bounded by
+ * {@code image.pq.cache.size} (memory, defaults to 10% of the heap)
+ */
+public class QuantizedFeaturesCache extends ImageSegmentCache<QuantizedFeatures> {
+
+    public static final String SIZE_SETTING = "image.pq.cache.size";
+
+    private final ImageStats imageStats;
+
+    @Inject
+    public QuantizedFeaturesCache(Settings settings, ImageStats imageStats) {
+        super(settings, "quantized features", SIZE_SETTING, "10%");
+        this.imageStats = imageStats;
+    }
+
+    @Override
+    protected long ramBytesUsed(QuantizedFeatures features) {
+        return features.ramBytesUsed();
+    }
+
+    /**
+     * Codes of a feature of the segment, trained and encoded now if they are not cached
+     */
+    public QuantizedFeatures features(final LeafReader reader, final String luceneFieldName, final FeatureEnum featureEnum,
+                                      final int subspaces, final int centroids) throws IOException {
+        return get(reader, luceneFieldName, Arrays.asList(subspaces, centroids), new Callable<QuantizedFeatures>() {
+            @Override
+            public QuantizedFeatures call() throws Exception {
+                long start = System.nanoTime();
+                QuantizedFeatures features = QuantizedFeatures.build(reader, luceneFieldName, featureEnum, subspaces, centroids);
+                imageStats.search().quantize().recordSince(start);
+                return features;
+            }
+        });
+    }
+}
@@ -0,0 +1,160 @@
+package org.elasticsearch.plugin.image;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingAction;
+import org.elasticsearch.action.admin.indices.mapping.put.PutMappingRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.action.support.master.MasterNodeRequest;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.codec.image.ImageCodec;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+/**
+ * Rejects the {@link ImageCodec} on indices whose mappings have {@code completion} fields, which it would write with
+ * the default postings format the completion suggester cannot read. Checked when an index is created with the codec,
+ * when the codec is set on an existing index, and when a mapping is put on an index with the codec. Mappings added by
+ * index templates are not checked.
+ */
+public class ImageCodecFilter extends AbstractComponent implements ActionFilter {
+
+    private final ClusterService clusterService;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+
+    @Inject
+    public ImageCodecFilter(Settings settings, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+    }
+
+    @Override
+    public int order() {
+        return 0;
+    }
+
+    @Override
+    public void apply(String action, ActionRequest request, ActionListener listener, ActionFilterChain chain) {
+        try {
+            if (CreateIndexAction.NAME.equals(action)) {
+                checkCreateIndex((CreateIndexRequest) request);
+            } else if (PutMappingAction.NAME.equals(action)) {
+                checkPutMapping((PutMappingRequest) request);
+            } else if (UpdateSettingsAction.NAME.equals(action)) {
+                checkUpdateSettings((UpdateSettingsRequest) request);
+            }
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        chain.proceed(action, request, listener);
+    }
+
+    @Override
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    private void checkCreateIndex(CreateIndexRequest request) throws IOException {
+        if (!isImageCodec(request.settings())) {
+            return;
+        }
+        for (String mapping : request.mappings().values()) {
+            if (ImageMappings.hasCompletionField(XContentHelper.convertToMap(new BytesArray(mapping), false).v2())) {
+                throw rejected(request.index());
+            }
+        }
+    }
+
+    private void checkPutMapping(PutMappingRequest request) throws IOException {
+        if (request.source() == null
+                || !ImageMappings.hasCompletionField(XContentHelper.convertToMap(new BytesArray(request.source()), false).v2())) {
+            return;
+        }
+        ClusterState clusterState = clusterService.state();
+        for (String index : indexNameExpressionResolver.concreteIndices(clusterState, request)) {
+            IndexMetaData indexMetaData = clusterState.metaData().index(index);
+            if (indexMetaData != null && isImageCodec(indexMetaData.getSettings())) {
+                throw rejected(index);
+            }
+        }
+    }
+
+    private void checkUpdateSettings(UpdateSettingsRequest request) throws IOException {
+        if (!isImageCodec(UpdatedSettings.of(request))) {
+            return;
+        }
+        ClusterState clusterState = clusterService.state();
+        for (String index : indexNameExpressionResolver.concreteIndices(clusterState, request)) {
+            IndexMetaData indexMetaData = clusterState.metaData().index(index);
+            if (indexMetaData == null) {
+                continue;
+            }
+            for (ObjectCursor<MappingMetaData> cursor : indexMetaData.getMappings().values()) {
+                if (ImageMappings.hasCompletionField(cursor.value.sourceAsMap())) {
+                    throw rejected(index);
+                }
+            }
+        }
+    }
+
+    private static boolean isImageCodec(Settings settings) {
+        return ImageCodec.NAME.equals(settings.get("index.codec", settings.get("codec")));
+    }
+
+    private static IllegalArgumentException rejected(String index) {
+        return new IllegalArgumentException("[" + index + "] cannot use the [" + ImageCodec.NAME + "] codec with completion "
+                + "fields, it does not write their postings format");
+    }
+
+    /**
+     * The settings of an update, which the request does not expose, read back from its serialized form
+     */
+    static final class UpdatedSettings extends MasterNodeRequest<UpdatedSettings> {
+
+        private Settings settings;
+
+        static Settings of(UpdateSettingsRequest request) throws IOException {
+            BytesStreamOutput out = new BytesStreamOutput();
+            request.writeTo(out);
+            UpdatedSettings updated = new UpdatedSettings();
+            updated.readFrom(StreamInput.wrap(out.bytes()));
+            return updated.settings;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            return null;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            in.readStringArray();  // indices
+            IndicesOptions.readIndicesOptions(in);
+            settings = Settings.readSettingsFromStream(in);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.elasticsearch.plugin.image;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchParseElement;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.fetch.FetchSubPhaseContext;
+import org.elasticsearch.search.fetch.FetchSubPhaseParseElement;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Returns the serialized features named in the {@code image_features} element of a search, {@code path.FEATURE},
+ * as hit fields read from their doc values, so fetching them neither needs nor decompresses a stored copy
+ */
+public class ImageFeaturesFetchSubPhase implements FetchSubPhase {
+
+    public static final String NAME = "image_features";
+
+    public static final ContextFactory<ImageFeaturesContext> CONTEXT_FACTORY = new ContextFactory<ImageFeaturesContext>() {
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
+        @Override
+        public ImageFeaturesContext newContextInstance() {
+            return new ImageFeaturesContext();
+        }
+    };
+
+    @Inject
+    public ImageFeaturesFetchSubPhase() {
+    }
+
+    @Override
+    public Map<String, ? extends SearchParseElement> parseElements() {
+        return Collections.singletonMap(NAME, new ImageFeaturesParseElement());
+    }
+
+    @Override
+    public boolean hitExecutionNeeded(SearchContext context) {
+        return context.getFetchSubPhaseContext(CONTEXT_FACTORY).hitExecutionNeeded();
+    }
+
+    @Override
+    public void hitExecute(SearchContext context, HitContext hitContext) {
+        for (String fieldName : context.getFetchSubPhaseContext(CONTEXT_FACTORY).fieldNames()) {
+            BinaryDocValues docValues;
+            try {
+                docValues = hitContext.reader().getBinaryDocValues(fieldName);
+            } catch (IOException e) {
+                throw new ElasticsearchException("failed to read the [" + fieldName + "] feature", e);
+            }
+            if (docValues == null) {
+                continue;
+            }
+            BytesRef bytes = docValues.get(hitContext.docId());
+            if (bytes.length == 0) {  // documents without the feature
+                continue;
+            }
+            if (hitContext.hit().fieldsOrNull() == null) {
+                hitContext.hit().fields(new HashMap<String, SearchHitField>(2));
+            }
+            List<Object> values = new ArrayList<Object>(1);
+            values.add(new BytesArray(BytesRef.deepCopyOf(bytes)));
+            hitContext.hit().fields().put(fieldName, new InternalSearchHitField(fieldName, values));
+        }
+    }
+
+    @Override
+    public boolean hitsExecutionNeeded(SearchContext context) {
+        return false;
+    }
+
+    @Override
+    public void hitsExecute(SearchContext context, InternalSearchHit[] hits) {
+    }
+
+    public static class ImageFeaturesContext extends FetchSubPhaseContext {
+
+        private final List<String> fieldNames = new ArrayList<String>();
+
+        public List<String> fieldNames() {
+            return fieldNames;
+        }
+    }
+
+    static class ImageFeaturesParseElement extends FetchSubPhaseParseElement<ImageFeaturesContext> {
+
+        @Override
+        protected void innerParse(XContentParser parser, ImageFeaturesContext context, SearchContext searchContext) throws Exception {
+            XContentParser.Token token = parser.currentToken();
+            if (token == XContentParser.Token.START_ARRAY) {
+                while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    context.fieldNames().add(parser.text());
+                }
+            } else if (token == XContentParser.Token.VALUE_STRING) {
+                context.fieldNames().add(parser.text());
+            } else {
+                throw new IllegalStateException("[" + NAME + "] expects a field name or an array of field names, got [" + token + "]");
+            }
+        }
+
+        @Override
+        protected ContextFactory<ImageFeaturesContext> getContextFactory() {
+            return CONTEXT_FACTORY;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.elasticsearch.plugin.image;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+
+import com.carrotsearch.hppc.cursors.ObjectCursor;
+
+/**
+ * Image fields as seen in the mappings of the cluster state, for nodes extracting query images without holding a shard
+ */
+public final class ImageMappings {
+
+    private ImageMappings() {
+    }
+
+    /**
+     * Resolution of the feature of an image field in the mappings of the indices, {@code null} if none of them
+     * has it. The indices have to agree so that the same query image gets the same features as when it was indexed.
+     *
+     * @throws IllegalArgumentException if the indices have different resolutions
+     */
+    public static ImageMapper.Resolution resolution(ClusterState clusterState, String[] concreteIndices, String field,
+                                                    FeatureEnum featureEnum) throws IOException {
+        ImageMapper.Resolution resolution = null;
+        for (String index : concreteIndices) {
+            IndexMetaData indexMetaData = clusterState.metaData().index(index);
+            if (indexMetaData == null) {
+                continue;
+            }
+            for (ObjectCursor<MappingMetaData> cursor : indexMetaData.getMappings().values()) {
+                ImageMapper.Resolution typeResolution = resolution(cursor.value.sourceAsMap(), field, featureEnum);
+                if (typeResolution == null) {
+                    continue;
+                }
+                if (resolution != null && !resolution.equals(typeResolution)) {
+                    throw new IllegalArgumentException("[" + field + "] has different [" + ImageMapper.MAX_DIMENSION + "] for ["
+                            + featureEnum.name() + "] in the searched indices");
+                }
+                resolution = typeResolution;
+            }
+        }
+        return resolution;
+    }
+
+    private static ImageMapper.Resolution resolution(Map<String, Object> typeMapping, String field, FeatureEnum featureEnum) {
+        Map<String, Object> fieldMapping = fieldMapping(typeMapping, field);
+        return fieldMapping == null ? null : ImageMapper.resolution(fieldMapping, featureEnum);
+    }
+
+    /**
+     * Hash families of the feature of an image field in the mappings of the index, {@code null} if none of its types
+     * has the feature
+     */
+    public static Set<String> hashes(ClusterState clusterState, String index, String field, FeatureEnum featureEnum) throws IOException {
+        IndexMetaData indexMetaData = clusterState.metaData().index(index);
+        if (indexMetaData == null) {
+            return null;
+        }
+        Set<String> hashes = null;
+        for (ObjectCursor<MappingMetaData> cursor : indexMetaData.getMappings().values()) {
+            Map<String, Object> fieldMapping = fieldMapping(cursor.value.sourceAsMap(), field);
+            List<String> typeHashes = fieldMapping == null ? null : ImageMapper.hashes(fieldMapping, featureEnum);
+            if (typeHashes == null) {
+                continue;
+            }
+            if (hashes == null) {
+                hashes = new TreeSet<String>();
+            }
+            hashes.addAll(typeHashes);
+        }
+        return hashes;
+    }
+
+    /**
+     * Whether a mapping, or any object or multi field in it, has a {@code completion} field
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean hasCompletionField(Map<String, Object> mapping) {
+        if ("completion".equals(mapping.get("type"))) {
+            return true;
+        }
+        for (Object value : mapping.values()) {
+            if (value instanceof Map && hasCompletionField((Map<String, Object>) value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> fieldMapping(Map<String, Object> typeMapping, String field) {
+        Map<String, Object> fieldMapping = typeMapping;
+        for (String name : Strings.splitStringToArray(field, '.')) {
+            Object properties = fieldMapping.get("properties");
+            if (!(properties instanceof Map) || !(((Map<String, Object>) properties).get(name) instanceof Map)) {
+                return null;
+            }
+            fieldMapping = (Map<String, Object>) ((Map<String, Object>) properties).get(name);
+        }
+        return fieldMapping;
+    }
+}
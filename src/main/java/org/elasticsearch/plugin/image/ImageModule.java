@@ -0,0 +1,55 @@
+package org.elasticsearch.plugin.image;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashService;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.HnswGraphCache;
+import org.elasticsearch.index.query.image.ImageDistanceCache;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ImageLookupCache;
+import org.elasticsearch.index.query.image.FeatureColumnCache;
+import org.elasticsearch.index.query.image.ImageSegmentWarmer;
+import org.elasticsearch.index.query.image.QuantizedFeaturesCache;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+
+/**
+ * Node level services of the image plugin
+ */
+public class ImageModule extends AbstractModule {
+
+    private final ImageMapper.TypeParser imageMapperTypeParser;
+
+    private final boolean transportClient;
+
+    public ImageModule(ImageMapper.TypeParser imageMapperTypeParser, boolean transportClient) {
+        this.imageMapperTypeParser = imageMapperTypeParser;
+        this.transportClient = transportClient;
+    }
+
+    /**
+     * Registers a hash family other plugins can then use in their mappings and queries, from their
+     * {@code onModule(ImageModule)}
+     */
+    public void registerHash(String name, ImageHash hash) {
+        ImageHashes.register(name, hash);
+    }
+
+    @Override
+    protected void configure() {
+        bind(ImageDistanceCache.class).asEagerSingleton();
+        bind(ImageFeatureCache.class).asEagerSingleton();
+        bind(HnswGraphCache.class).asEagerSingleton();
+        bind(QuantizedFeaturesCache.class).asEagerSingleton();
+        bind(FeatureColumnCache.class).asEagerSingleton();
+        bind(ImageStats.class).asEagerSingleton();
+        // transport clients have no cluster state to read trained hashes and index uuids from, and no mappings to parse
+        if (!transportClient) {
+            bind(ImageLookupCache.class).asEagerSingleton();
+            bind(ImageHashService.class).asEagerSingleton();
+            bind(ImageSegmentWarmer.class).asEagerSingleton();  // builds the graphs, codes and columns of new segments
+            requestInjection(imageMapperTypeParser);  // gives the mapper the node thread pool, stats and hashes
+        }
+    }
+}
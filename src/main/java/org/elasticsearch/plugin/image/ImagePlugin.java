@@ -1,14 +1,39 @@
 package org.elasticsearch.plugin.image;
 
+import java.util.Collection;
+import java.util.Collections;
+
+import org.elasticsearch.action.ActionModule;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterModule;
+import org.elasticsearch.cluster.settings.Validator;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.mapper.image.ImageHashService;
 import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.image.ImageQueryParser;
 import org.elasticsearch.indices.IndicesModule;
+import org.elasticsearch.plugin.image.batch.ImageBatchAction;
+import org.elasticsearch.plugin.image.batch.RestImageBatchAction;
+import org.elasticsearch.plugin.image.batch.TransportImageBatchAction;
+import org.elasticsearch.plugin.image.hash.ImageHashTrainAction;
+import org.elasticsearch.plugin.image.hash.RestImageHashTrainAction;
+import org.elasticsearch.plugin.image.hash.TransportImageHashTrainAction;
+import org.elasticsearch.plugin.image.stats.ImageStatsAction;
+import org.elasticsearch.plugin.image.stats.RestImageStatsAction;
+import org.elasticsearch.plugin.image.stats.TransportImageStatsAction;
 import org.elasticsearch.plugins.Plugin;
-import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.search.SearchModule;
 
 public class ImagePlugin extends Plugin {
 
+	private final Settings settings;
+
+	private final boolean transportClient;
+
 	private final ImageMapper.TypeParser imageMapperTypeParser;
     @Override
     public String name() {
@@ -21,12 +46,67 @@ public class ImagePlugin extends Plugin {
     }
     
     public ImagePlugin(Settings settings){
-    	 ThreadPool threadPool=new ThreadPool(settings);
-    	 this.imageMapperTypeParser=new ImageMapper.TypeParser(threadPool); 
+    	 this.settings = settings;
+    	 this.transportClient = TransportClient.CLIENT_TYPE.equals(settings.get(Client.CLIENT_TYPE_SETTING));
+    	 this.imageMapperTypeParser=new ImageMapper.TypeParser();
+    }
+
+    /**
+     * Default sizes of the thread pools of the plugin, can be changed in the node settings
+     */
+    @Override
+    public Settings additionalSettings() {
+        int processors = EsExecutors.boundedNumberOfProcessors(settings);
+        String extractPool = "threadpool." + ImageMapper.THREAD_POOL_NAME;
+        String searchPool = "threadpool." + ImageQueryParser.THREAD_POOL_NAME;
+        return Settings.builder()
+                .put(extractPool + ".type", "fixed")
+                .put(extractPool + ".size", processors)
+                .put(extractPool + ".queue_size", 200)
+                .put(searchPool + ".type", "fixed")
+                .put(searchPool + ".size", processors)
+                .put(searchPool + ".queue_size", 1000)
+                .build();
+    }
+
+    @Override
+    public Collection<Module> nodeModules() {
+        return Collections.<Module>singletonList(new ImageModule(imageMapperTypeParser, transportClient));
     }
 
     public void onModule(IndicesModule indicesModule){
     	indicesModule.registerQueryParser(ImageQueryParser.class);   //注册查询解析类
 		indicesModule.registerMapper("image", imageMapperTypeParser);// 注册type为"image"的处理类
     }
+
+    /**
+     * Trained hash parameters are updated on open indices, see {@link ImageHashService}
+     */
+    public void onModule(ClusterModule clusterModule) {
+        clusterModule.registerIndexDynamicSetting(ImageHashService.SETTING_PREFIX + "*", Validator.EMPTY);
+    }
+
+    public void onModule(ActionModule actionModule) {
+        actionModule.registerAction(ImageStatsAction.INSTANCE, TransportImageStatsAction.class);
+        actionModule.registerAction(ImageBatchAction.INSTANCE, TransportImageBatchAction.class);
+        actionModule.registerAction(ImageHashTrainAction.INSTANCE, TransportImageHashTrainAction.class);
+        // transport clients load plugins too, but have no cluster state to resolve the query images or mappings against
+        if (!transportClient) {
+            actionModule.registerFilter(ImageSearchFilter.class);
+            actionModule.registerFilter(ImageCodecFilter.class);
+        }
+    }
+
+    /**
+     * Lookups read the features from their doc values, see {@link ImageFeaturesFetchSubPhase}
+     */
+    public void onModule(SearchModule searchModule) {
+        searchModule.registerFetchSubPhase(ImageFeaturesFetchSubPhase.class);
+    }
+
+    public void onModule(RestModule restModule) {
+        restModule.addRestAction(RestImageStatsAction.class);
+        restModule.addRestAction(RestImageBatchAction.class);
+        restModule.addRestAction(RestImageHashTrainAction.class);
+    }
 }
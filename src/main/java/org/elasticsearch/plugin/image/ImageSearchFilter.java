@@ -0,0 +1,415 @@
+package org.elasticsearch.plugin.image;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.ActionFilterChain;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Provider;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ImageLookupCache;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Extracts the images of the {@code image} queries of a search once, on the coordinating node, and sends their
+ * serialized features to the shards instead, so that shards do not each decode and extract the same image. Images
+ * looked up by id are resolved the same way, instead of each shard getting the document on a search thread. Queries
+ * fusing several {@code features} get all of them from one decode, or none.
+ *
+ * Queries on fields whose resolution differs between the searched indices, lookups without an index over several
+ * indices (each shard looks up in its own index), and queries whose image cannot be extracted or looked up are left
+ * for the shards. Disabled with {@code image.search.extract_on_coordinating_node: false}.
+ *
+ * Images are extracted on the {@link ImageMapper#THREAD_POOL_NAME} pool, searches are rejected when its queue is full,
+ * and lookups on the generic pool.
+ *
+ * Only the query, the post filter and the rescore queries of the search are looked into, sources without the bytes
+ * of {@code image} are not parsed at all.
+ */
+public class ImageSearchFilter extends AbstractComponent implements ActionFilter {
+
+    public static final String EXTRACT_ON_COORDINATING_NODE_SETTING = "image.search.extract_on_coordinating_node";
+
+    /**
+     * Keys of the search source and of the bodies of queries whose values are queries
+     */
+    private static final Set<String> SEARCH_QUERIES = ImmutableSet.of("query", "post_filter", "filter");
+    private static final Set<String> QUERY_CLAUSES = ImmutableSet.of("query", "filter", "must", "should", "must_not",
+            "queries", "filters", "positive", "negative", "no_match_query");
+
+    private static final byte[] IMAGE_BYTES = ImageQueryParser.NAME.getBytes(StandardCharsets.UTF_8);
+
+    private final ClusterService clusterService;
+    private final IndexNameExpressionResolver indexNameExpressionResolver;
+    private final ThreadPool threadPool;
+    private final ImageFeatureCache featureCache;
+    private final ImageLookupCache lookupCache;
+    private final Provider<Client> client;
+    private final ImageStats imageStats;
+    private final boolean enabled;
+
+    @Inject
+    public ImageSearchFilter(Settings settings, ClusterService clusterService, IndexNameExpressionResolver indexNameExpressionResolver,
+                             ThreadPool threadPool, ImageFeatureCache featureCache, ImageLookupCache lookupCache,
+                             Provider<Client> client, ImageStats imageStats) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.indexNameExpressionResolver = indexNameExpressionResolver;
+        this.threadPool = threadPool;
+        this.featureCache = featureCache;
+        this.lookupCache = lookupCache;
+        this.client = client;  // the client needs the actions, which need their filters
+        this.imageStats = imageStats;
+        this.enabled = settings.getAsBoolean(EXTRACT_ON_COORDINATING_NODE_SETTING, true);
+    }
+
+    @Override
+    public int order() {
+        return 0;
+    }
+
+    @Override
+    public void apply(final String action, final ActionRequest request, final ActionListener listener, final ActionFilterChain chain) {
+        if (!enabled || !SearchAction.NAME.equals(action) || !mayHaveImageQuery(((SearchRequest) request).source())) {
+            chain.proceed(action, request, listener);
+            return;
+        }
+        final SearchRequest searchRequest = (SearchRequest) request;
+        final Tuple<XContentType, Map<String, Object>> source;
+        final List<Tuple<String, Map<String, Object>>> queries = new ArrayList<Tuple<String, Map<String, Object>>>();
+        try {
+            source = XContentHelper.convertToMap(searchRequest.source(), true);
+            findImageQueries(source.v2(), queries);
+        } catch (Exception e) {
+            // let the search report a malformed source
+            chain.proceed(action, request, listener);
+            return;
+        }
+        if (queries.isEmpty()) {
+            chain.proceed(action, request, listener);
+            return;
+        }
+
+        final List<Tuple<String, Map<String, Object>>> images = new ArrayList<Tuple<String, Map<String, Object>>>();
+        final List<Tuple<String, Map<String, Object>>> lookups = new ArrayList<Tuple<String, Map<String, Object>>>();
+        for (Tuple<String, Map<String, Object>> query : queries) {
+            (query.v2().get("image") != null ? images : lookups).add(query);
+        }
+        if (images.isEmpty()) {
+            lookUp(action, searchRequest, source, lookups, false, listener, chain);
+            return;
+        }
+
+        // decoding and extracting are bounded by the extraction pool, whose full queue rejects the search
+        threadPool.executor(ImageMapper.THREAD_POOL_NAME).execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                boolean extracted = false;
+                for (Tuple<String, Map<String, Object>> image : images) {
+                    extracted |= extract(searchRequest, image);
+                }
+                if (lookups.isEmpty()) {
+                    proceed(action, searchRequest, source, extracted, listener, chain);
+                } else {
+                    lookUp(action, searchRequest, source, lookups, extracted, listener, chain);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    /**
+     * Lookups block on a search of the document, keep them off the transport and extraction threads
+     */
+    private void lookUp(final String action, final SearchRequest searchRequest, final Tuple<XContentType, Map<String, Object>> source,
+                        final List<Tuple<String, Map<String, Object>>> lookups, final boolean extracted,
+                        final ActionListener listener, final ActionFilterChain chain) {
+        threadPool.generic().execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                boolean rewritten = extracted;
+                for (Tuple<String, Map<String, Object>> lookup : lookups) {
+                    rewritten |= extract(searchRequest, lookup);
+                }
+                proceed(action, searchRequest, source, rewritten, listener, chain);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    private void proceed(String action, SearchRequest searchRequest, Tuple<XContentType, Map<String, Object>> source, boolean rewritten,
+                         ActionListener listener, ActionFilterChain chain) throws IOException {
+        if (rewritten) {
+            searchRequest.source(XContentFactory.contentBuilder(source.v1()).map(source.v2()));
+        }
+        chain.proceed(action, searchRequest, listener);
+    }
+
+    @Override
+    public void apply(String action, ActionResponse response, ActionListener listener, ActionFilterChain chain) {
+        chain.proceed(action, response, listener);
+    }
+
+    /**
+     * Whether the source contains the name of the query at all, whatever its content type: field names of smile and
+     * cbor are their utf-8 bytes too. A miss only leaves the extraction to the shards.
+     */
+    static boolean mayHaveImageQuery(BytesReference source) {
+        if (source == null) {
+            return false;
+        }
+        byte[] bytes = source.hasArray() ? source.array() : source.toBytes();
+        int offset = source.hasArray() ? source.arrayOffset() : 0;
+        int end = offset + source.length() - IMAGE_BYTES.length;
+        for (int i = offset; i <= end; i++) {
+            int j = 0;
+            while (j < IMAGE_BYTES.length && bytes[i + j] == IMAGE_BYTES[j]) {
+                j++;
+            }
+            if (j == IMAGE_BYTES.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Field and body of the {@code image} queries with an image or a lookup of the query, post filter and rescore
+     * queries of the search source, leaving out source filtering, aggregations, suggesters or highlighting
+     */
+    static void findImageQueries(Map<String, Object> source, List<Tuple<String, Map<String, Object>>> queries) {
+        for (Map.Entry<String, Object> entry : source.entrySet()) {
+            if (SEARCH_QUERIES.contains(entry.getKey())) {
+                findInQuery(entry.getValue(), queries);
+            } else if ("rescore".equals(entry.getKey())) {
+                findInRescore(entry.getValue(), queries);
+            }
+        }
+    }
+
+    /**
+     * A rescorer or a list of rescorers, {@code {"query": {"rescore_query": {query}}}}
+     */
+    @SuppressWarnings("unchecked")
+    private static void findInRescore(Object node, List<Tuple<String, Map<String, Object>>> queries) {
+        if (node instanceof Map) {
+            Object rescorer = ((Map<String, Object>) node).get("query");
+            if (rescorer instanceof Map) {
+                findInQuery(((Map<String, Object>) rescorer).get("rescore_query"), queries);
+            }
+        } else if (node instanceof List) {
+            for (Object child : (List<Object>) node) {
+                findInRescore(child, queries);
+            }
+        }
+    }
+
+    /**
+     * A query or a list of queries, {@code {"name": {body}}}
+     */
+    @SuppressWarnings("unchecked")
+    private static void findInQuery(Object node, List<Tuple<String, Map<String, Object>>> queries) {
+        if (node instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) node).entrySet()) {
+                if (ImageQueryParser.NAME.equals(entry.getKey()) && entry.getValue() instanceof Map
+                        && ((Map<String, Object>) entry.getValue()).size() == 1) {
+                    Map.Entry<String, Object> fieldQuery = ((Map<String, Object>) entry.getValue()).entrySet().iterator().next();
+                    if (fieldQuery.getValue() instanceof Map) {
+                        Map<String, Object> query = (Map<String, Object>) fieldQuery.getValue();
+                        boolean hasFeature = query.get("feature") != null || query.get(ImageQueryParser.FEATURES) instanceof Map;
+                        if (hasFeature && (query.get("image") != null || isLookup(query))) {
+                            queries.add(new Tuple<String, Map<String, Object>>(fieldQuery.getKey(), query));
+                            continue;
+                        }
+                    }
+                }
+                findInClauses(entry.getValue(), queries);
+            }
+        } else if (node instanceof List) {
+            for (Object child : (List<Object>) node) {
+                findInQuery(child, queries);
+            }
+        }
+    }
+
+    /**
+     * The body of a query: only its clauses that are queries themselves, not the documents of a
+     * {@code more_like_this} or the script of a {@code script} query, and the filters of {@code function_score}
+     */
+    @SuppressWarnings("unchecked")
+    private static void findInClauses(Object body, List<Tuple<String, Map<String, Object>>> queries) {
+        if (body instanceof Map) {
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) body).entrySet()) {
+                if (QUERY_CLAUSES.contains(entry.getKey())) {
+                    findInQuery(entry.getValue(), queries);
+                } else if ("functions".equals(entry.getKey())) {
+                    findInClauses(entry.getValue(), queries);
+                }
+            }
+        } else if (body instanceof List) {
+            for (Object child : (List<Object>) body) {
+                findInClauses(child, queries);
+            }
+        }
+    }
+
+    private static boolean isLookup(Map<String, Object> query) {
+        return query.get("type") != null && query.get("id") != null && query.get("path") != null;
+    }
+
+    /**
+     * Replaces the image or the lookup of the query by its feature
+     *
+     * @return whether the query was rewritten
+     */
+    private boolean extract(SearchRequest searchRequest, Tuple<String, Map<String, Object>> fieldQuery) {
+        String field = fieldQuery.v1();
+        Map<String, Object> query = fieldQuery.v2();
+        try {
+            ClusterState clusterState = clusterService.state();
+            String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, searchRequest);
+            if (query.get(ImageQueryParser.FEATURES) instanceof Map) {
+                return extractFused(field, query, clusterState, concreteIndices);
+            }
+            FeatureEnum featureEnum = FeatureEnum.getByName(query.get("feature").toString());
+            if (query.get("image") == null) {
+                return lookup(query, featureEnum, concreteIndices);
+            }
+            ImageMapper.Resolution resolution = ImageMappings.resolution(clusterState, concreteIndices, field, featureEnum);
+            if (resolution == null) {
+                return false;
+            }
+            Object image = query.get("image");
+            byte[] imageBytes = image instanceof byte[] ? (byte[]) image : Base64.decode(image.toString());
+            LireFeature lireFeature = featureCache.extract(imageBytes, featureEnum, resolution, imageStats.query());
+            if (lireFeature == null) {
+                return false;
+            }
+            query.remove("image");
+            query.put(ImageQueryParser.FEATURE_BYTES, lireFeature.getByteArrayRepresentation());
+            return true;
+        } catch (Exception e) {
+            logger.warn("failed to extract the query image of [{}] on the coordinating node, leaving it to the shards", e, field);
+            return false;
+        }
+    }
+
+    private boolean lookup(Map<String, Object> query, FeatureEnum featureEnum, String[] concreteIndices) {
+        byte[] feature = lookup(query, concreteIndices, featureEnum);
+        if (feature == null) {  // let the shards report it
+            return false;
+        }
+        removeLookup(query);
+        query.put(ImageQueryParser.FEATURE_BYTES, feature);
+        return true;
+    }
+
+    /**
+     * Replaces the image or the lookup of a query with {@code features} by an object of all its features
+     *
+     * @return whether the query was rewritten
+     */
+    @SuppressWarnings("unchecked")
+    private boolean extractFused(String field, Map<String, Object> query, ClusterState clusterState, String[] concreteIndices)
+            throws Exception {
+        Map<String, Object> featureBytes = new LinkedHashMap<String, Object>();
+        if (query.get("image") == null) {
+            for (String name : ((Map<String, Object>) query.get(ImageQueryParser.FEATURES)).keySet()) {
+                byte[] feature = lookup(query, concreteIndices, FeatureEnum.getByName(name));
+                if (feature == null) {
+                    return false;
+                }
+                featureBytes.put(name, feature);
+            }
+            removeLookup(query);
+        } else {
+            Map<FeatureEnum, ImageMapper.Resolution> resolutions = Maps.newEnumMap(FeatureEnum.class);
+            for (String name : ((Map<String, Object>) query.get(ImageQueryParser.FEATURES)).keySet()) {
+                FeatureEnum featureEnum = FeatureEnum.getByName(name);
+                ImageMapper.Resolution resolution = ImageMappings.resolution(clusterState, concreteIndices, field, featureEnum);
+                if (resolution == null) {
+                    return false;
+                }
+                resolutions.put(featureEnum, resolution);
+            }
+            Object image = query.get("image");
+            byte[] imageBytes = image instanceof byte[] ? (byte[]) image : Base64.decode(image.toString());
+            Map<FeatureEnum, LireFeature> features = featureCache.extract(imageBytes, resolutions, imageStats.query());
+            if (features == null || features.size() < resolutions.size()) {
+                return false;
+            }
+            for (Map.Entry<FeatureEnum, LireFeature> entry : features.entrySet()) {
+                featureBytes.put(entry.getKey().name(), entry.getValue().getByteArrayRepresentation());
+            }
+            query.remove("image");
+        }
+        query.put(ImageQueryParser.FEATURE_BYTES, featureBytes);
+        return true;
+    }
+
+    /**
+     * Serialized feature of the document the query looks its image up in, {@code null} to leave the lookup for the shards
+     */
+    private byte[] lookup(Map<String, Object> query, String[] concreteIndices, FeatureEnum featureEnum) {
+        String index;
+        if (query.get("index") != null) {
+            index = query.get("index").toString();
+        } else if (concreteIndices.length == 1) {
+            index = concreteIndices[0];
+        } else {
+            return null;
+        }
+        Object routing = query.get("routing");
+        ImageLookupCache.Lookup lookup = lookupCache.lookup(client.get(), index, query.get("type").toString(),
+                query.get("id").toString(), routing == null ? null : routing.toString(),
+                query.get("path") + "." + featureEnum.name(), imageStats.search());
+        return lookup == null ? null : lookup.feature();
+    }
+
+    private static void removeLookup(Map<String, Object> query) {
+        for (String parameter : new String[] {"index", "type", "id", "path", "routing"}) {
+            query.remove(parameter);
+        }
+    }
+}
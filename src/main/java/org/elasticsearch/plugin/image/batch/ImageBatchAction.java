@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.image.batch;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Searches the nearest images of many query images at once, see {@link ImageBatchRequest}
+ */
+public class ImageBatchAction extends Action<ImageBatchRequest, ImageBatchResponse, ImageBatchRequestBuilder> {
+
+    public static final ImageBatchAction INSTANCE = new ImageBatchAction();
+    public static final String NAME = "indices:data/read/image/batch";
+
+    private ImageBatchAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageBatchResponse newResponse() {
+        return new ImageBatchResponse();
+    }
+
+    @Override
+    public ImageBatchRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ImageBatchRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,285 @@
+package org.elasticsearch.plugin.image.batch;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * Many query images against one image field and feature, each gets its own top k. The features of all query images are
+ * extracted once on the coordinating node, then each shard reads its doc values once for all of them.
+ */
+public class ImageBatchRequest extends BroadcastRequest<ImageBatchRequest> {
+
+    public static final int DEFAULT_K = 10;
+
+    /**
+     * A query image, given by its bytes or by the document it is indexed in
+     */
+    public static final class Item implements Streamable {
+
+        private byte[] image;
+        private String index;
+        private String type;
+        private String id;
+        private String path;
+        private String routing;
+
+        Item() {
+        }
+
+        public static Item image(byte[] image) {
+            Item item = new Item();
+            item.image = image;
+            return item;
+        }
+
+        /**
+         * The image indexed in the document, {@code index} defaults to the searched index and {@code path} to the
+         * searched field
+         */
+        public static Item lookup(String index, String type, String id, String path) {
+            Item item = new Item();
+            item.index = index;
+            item.type = type;
+            item.id = id;
+            item.path = path;
+            return item;
+        }
+
+        public Item routing(String routing) {
+            this.routing = routing;
+            return this;
+        }
+
+        public byte[] image() {
+            return image;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String path() {
+            return path;
+        }
+
+        public String routing() {
+            return routing;
+        }
+
+        static Item parse(XContentParser parser) throws IOException {
+            if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("[images] must be an array of objects");
+            }
+            Item item = new Item();
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if ("image".equals(currentFieldName)) {
+                    item.image = parser.binaryValue();
+                } else if ("index".equals(currentFieldName)) {
+                    item.index = parser.text();
+                } else if ("type".equals(currentFieldName)) {
+                    item.type = parser.text();
+                } else if ("id".equals(currentFieldName)) {
+                    item.id = parser.text();
+                } else if ("path".equals(currentFieldName)) {
+                    item.path = parser.text();
+                } else if ("routing".equals(currentFieldName)) {
+                    item.routing = parser.textOrNull();
+                } else {
+                    throw new ElasticsearchParseException("[images] do not support [{}]", currentFieldName);
+                }
+            }
+            return item;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            if (in.readBoolean()) {
+                image = in.readByteArray();
+            }
+            index = in.readOptionalString();
+            type = in.readOptionalString();
+            id = in.readOptionalString();
+            path = in.readOptionalString();
+            routing = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeBoolean(image != null);
+            if (image != null) {
+                out.writeByteArray(image);
+            }
+            out.writeOptionalString(index);
+            out.writeOptionalString(type);
+            out.writeOptionalString(id);
+            out.writeOptionalString(path);
+            out.writeOptionalString(routing);
+        }
+    }
+
+    private String field;
+    private FeatureEnum feature;
+    private int k = DEFAULT_K;
+    private List<Item> items = new ArrayList<Item>();
+
+    // features of the items and why the ones without could not be extracted, resolved on the coordinating node
+    byte[][] features;
+    String[] failures;
+
+    public ImageBatchRequest() {
+    }
+
+    public ImageBatchRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageBatchRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public FeatureEnum feature() {
+        return feature;
+    }
+
+    public ImageBatchRequest feature(FeatureEnum feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * Number of nearest images returned per query image
+     */
+    public ImageBatchRequest k(int k) {
+        this.k = k;
+        return this;
+    }
+
+    public List<Item> items() {
+        return items;
+    }
+
+    public ImageBatchRequest add(Item item) {
+        items.add(item);
+        return this;
+    }
+
+    /**
+     * Parses {@code field}, {@code feature}, {@code k} and the {@code images} array of the body
+     */
+    public ImageBatchRequest source(BytesReference source) throws IOException {
+        XContentParser parser = XContentHelper.createParser(source);
+        try {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("[image] batch malformed, expected an object");
+            }
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if ("images".equals(currentFieldName) && token == XContentParser.Token.START_ARRAY) {
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        items.add(Item.parse(parser));
+                    }
+                } else if ("field".equals(currentFieldName)) {
+                    field = parser.text();
+                } else if ("feature".equals(currentFieldName)) {
+                    feature = FeatureEnum.getByName(parser.text());
+                } else if ("k".equals(currentFieldName)) {
+                    k = parser.intValue();
+                } else {
+                    throw new ElasticsearchParseException("[image] batch does not support [{}]", currentFieldName);
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("no [field] specified", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("no [feature] specified", validationException);
+        }
+        if (k <= 0) {
+            validationException = addValidationError("[k] must be greater than 0", validationException);
+        }
+        if (items.isEmpty()) {
+            validationException = addValidationError("no [images] specified", validationException);
+        }
+        for (int i = 0; i < items.size(); i++) {
+            Item item = items.get(i);
+            if (item.image == null && (item.type == null || item.id == null)) {
+                validationException = addValidationError("[images][" + i + "] needs an [image] or a [type] and [id]", validationException);
+            }
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = FeatureEnum.getByName(in.readString());
+        k = in.readVInt();
+        int size = in.readVInt();
+        items = new ArrayList<Item>(size);
+        for (int i = 0; i < size; i++) {
+            Item item = new Item();
+            item.readFrom(in);
+            items.add(item);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature.name());
+        out.writeVInt(k);
+        out.writeVInt(items.size());
+        for (Item item : items) {
+            item.writeTo(out);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.elasticsearch.plugin.image.batch;
+
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+public class ImageBatchRequestBuilder extends BroadcastOperationRequestBuilder<ImageBatchRequest, ImageBatchResponse, ImageBatchRequestBuilder> {
+
+    public ImageBatchRequestBuilder(ElasticsearchClient client, ImageBatchAction action) {
+        super(client, action, new ImageBatchRequest());
+    }
+
+    public ImageBatchRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageBatchRequestBuilder setFeature(FeatureEnum feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageBatchRequestBuilder setK(int k) {
+        request.k(k);
+        return this;
+    }
+
+    public ImageBatchRequestBuilder addImage(byte[] image) {
+        request.add(ImageBatchRequest.Item.image(image));
+        return this;
+    }
+
+    public ImageBatchRequestBuilder addLookup(String index, String type, String id, String path) {
+        request.add(ImageBatchRequest.Item.lookup(index, type, id, path));
+        return this;
+    }
+
+    public ImageBatchRequestBuilder add(ImageBatchRequest.Item item) {
+        request.add(item);
+        return this;
+    }
+}
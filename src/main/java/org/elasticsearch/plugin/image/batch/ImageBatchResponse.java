@@ -0,0 +1,185 @@
+package org.elasticsearch.plugin.image.batch;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.action.support.RestActions;
+
+/**
+ * One {@link Result} per query image, in the order of the request
+ */
+public class ImageBatchResponse extends BroadcastResponse implements ToXContent {
+
+    /**
+     * A nearest image, scored like the {@code image} query without boost
+     */
+    public static final class Hit implements Streamable {
+
+        private String index;
+        private String type;
+        private String id;
+        private float score;
+
+        Hit() {
+        }
+
+        Hit(String index, String type, String id, float score) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.score = score;
+        }
+
+        static Hit readHit(StreamInput in) throws IOException {
+            Hit hit = new Hit();
+            hit.readFrom(in);
+            return hit;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            index = in.readString();
+            type = in.readString();
+            id = in.readString();
+            score = in.readFloat();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(id);
+            out.writeFloat(score);
+        }
+    }
+
+    /**
+     * The nearest images of a query image by decreasing score, or why its features could not be extracted
+     */
+    public static final class Result implements Streamable {
+
+        private Hit[] hits;
+        private String failure;
+
+        Result() {
+        }
+
+        Result(Hit[] hits, String failure) {
+            this.hits = hits;
+            this.failure = failure;
+        }
+
+        public Hit[] getHits() {
+            return hits;
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        public String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            failure = in.readOptionalString();
+            hits = new Hit[in.readVInt()];
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] = Hit.readHit(in);
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeOptionalString(failure);
+            out.writeVInt(hits.length);
+            for (Hit hit : hits) {
+                hit.writeTo(out);
+            }
+        }
+    }
+
+    private Result[] results;
+
+    ImageBatchResponse() {
+    }
+
+    ImageBatchResponse(Result[] results, int totalShards, int successfulShards, int failedShards,
+                       List<ShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.results = results;
+    }
+
+    public Result[] getResults() {
+        return results;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        results = new Result[in.readVInt()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new Result();
+            results[i].readFrom(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(results.length);
+        for (Result result : results) {
+            result.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        RestActions.buildBroadcastShardsHeader(builder, params, this);
+        builder.startArray("responses");
+        for (Result result : results) {
+            builder.startObject();
+            if (result.isFailed()) {
+                builder.field("error", result.getFailure());
+            } else {
+                builder.startArray("hits");
+                for (Hit hit : result.getHits()) {
+                    builder.startObject();
+                    builder.field("_index", hit.getIndex());
+                    builder.field("_type", hit.getType());
+                    builder.field("_id", hit.getId());
+                    builder.field("_score", hit.getScore());
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+}
@@ -0,0 +1,32 @@
+package org.elasticsearch.plugin.image.batch;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * {@code POST /{index}/_image/batch}, see {@link ImageBatchRequest#source} for the body
+ */
+public class RestImageBatchAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageBatchAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(RestRequest.Method.POST, "/_image/batch", this);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_image/batch", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        ImageBatchRequest imageBatchRequest = new ImageBatchRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        imageBatchRequest.source(RestActions.getRestContent(request));
+        client.execute(ImageBatchAction.INSTANCE, imageBatchRequest, new RestToXContentListener<ImageBatchResponse>(channel));
+    }
+}
@@ -0,0 +1,76 @@
+package org.elasticsearch.plugin.image.batch;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * The extracted features of the query images, {@code null} for the ones that failed
+ */
+public class ShardImageBatchRequest extends BroadcastShardRequest {
+
+    private String field;
+    private FeatureEnum feature;
+    private int k;
+    private byte[][] features;
+
+    public ShardImageBatchRequest() {
+    }
+
+    ShardImageBatchRequest(ShardId shardId, ImageBatchRequest request) {
+        super(shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.k = request.k();
+        this.features = request.features;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public FeatureEnum feature() {
+        return feature;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    public byte[][] features() {
+        return features;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = FeatureEnum.getByName(in.readString());
+        k = in.readVInt();
+        features = new byte[in.readVInt()][];
+        for (int i = 0; i < features.length; i++) {
+            if (in.readBoolean()) {
+                features[i] = in.readByteArray();
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature.name());
+        out.writeVInt(k);
+        out.writeVInt(features.length);
+        for (byte[] feature : features) {
+            out.writeBoolean(feature != null);
+            if (feature != null) {
+                out.writeByteArray(feature);
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.elasticsearch.plugin.image.batch;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Top k of the shard per query image, empty for the ones that failed
+ */
+public class ShardImageBatchResponse extends BroadcastShardResponse {
+
+    private ImageBatchResponse.Hit[][] hits;
+
+    ShardImageBatchResponse() {
+    }
+
+    ShardImageBatchResponse(ShardId shardId, ImageBatchResponse.Hit[][] hits) {
+        super(shardId);
+        this.hits = hits;
+    }
+
+    public ImageBatchResponse.Hit[][] hits() {
+        return hits;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        hits = new ImageBatchResponse.Hit[in.readVInt()][];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new ImageBatchResponse.Hit[in.readVInt()];
+            for (int j = 0; j < hits[i].length; j++) {
+                hits[i][j] = ImageBatchResponse.Hit.readHit(in);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(hits.length);
+        for (ImageBatchResponse.Hit[] queryHits : hits) {
+            out.writeVInt(queryHits.length);
+            for (ImageBatchResponse.Hit hit : queryHits) {
+                hit.writeTo(out);
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package org.elasticsearch.plugin.image.batch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.TransportMultiSearchAction;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.JustUidFieldsVisitor;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.DistanceKernel;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ImageBatch;
+import org.elasticsearch.index.query.image.ImageLookupCache;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.plugin.image.ImageMappings;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Extracts the features of the query images on the coordinating node, in parallel on the
+ * {@link ImageMapper#THREAD_POOL_NAME} pool, then sends them to one copy of each shard and merges the top k of the shards.
+ */
+public class TransportImageBatchAction extends TransportBroadcastAction<ImageBatchRequest, ImageBatchResponse, ShardImageBatchRequest, ShardImageBatchResponse> {
+
+    private static final Comparator<ImageBatchResponse.Hit> BY_SCORE = new Comparator<ImageBatchResponse.Hit>() {
+        @Override
+        public int compare(ImageBatchResponse.Hit o1, ImageBatchResponse.Hit o2) {
+            return Float.compare(o2.getScore(), o1.getScore());
+        }
+    };
+
+    private final IndicesService indicesService;
+    private final TransportMultiSearchAction multiSearchAction;
+    private final ImageFeatureCache featureCache;
+    private final ImageStats imageStats;
+
+    @Inject
+    public TransportImageBatchAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                     TransportService transportService, ActionFilters actionFilters,
+                                     IndexNameExpressionResolver indexNameExpressionResolver, IndicesService indicesService,
+                                     TransportMultiSearchAction multiSearchAction, ImageFeatureCache featureCache, ImageStats imageStats) {
+        super(settings, ImageBatchAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, ImageBatchRequest.class, ShardImageBatchRequest.class, ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+        this.multiSearchAction = multiSearchAction;
+        this.featureCache = featureCache;
+        this.imageStats = imageStats;
+    }
+
+    @Override
+    protected void doExecute(final ImageBatchRequest request, final ActionListener<ImageBatchResponse> listener) {
+        // extraction and lookups block, keep them off the transport threads
+        threadPool.generic().execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() throws Exception {
+                resolveFeatures(request);
+                TransportImageBatchAction.super.doExecute(request, listener);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    private void resolveFeatures(ImageBatchRequest request) throws Exception {
+        List<ImageBatchRequest.Item> items = request.items();
+        final FeatureEnum featureEnum = request.feature();
+        final byte[][] features = new byte[items.size()][];
+        String[] failures = new String[items.size()];
+
+        ClusterState clusterState = clusterService.state();
+        String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, request);
+        final ImageMapper.Resolution resolution = ImageMappings.resolution(clusterState, concreteIndices, request.field(), featureEnum);
+        if (resolution == null) {
+            throw new IllegalArgumentException("[" + request.field() + "] is not an image field with feature [" + featureEnum.name() + "]");
+        }
+
+        // images, extracted in parallel
+        Executor executor = threadPool.executor(ImageMapper.THREAD_POOL_NAME);
+        List<FutureTask<byte[]>> tasks = new ArrayList<FutureTask<byte[]>>();
+        for (final ImageBatchRequest.Item item : items) {
+            if (item.image() == null) {
+                tasks.add(null);
+                continue;
+            }
+            FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    LireFeature lireFeature = featureCache.extract(item.image(), featureEnum, resolution, imageStats.query());
+                    if (lireFeature == null) {
+                        throw new ElasticsearchImageProcessException("Unsupported image format");
+                    }
+                    return lireFeature.getByteArrayRepresentation();
+                }
+            });
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            tasks.add(task);
+        }
+
+        // documents, looked up together from the doc values of their features
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+        List<Integer> lookups = new ArrayList<Integer>();
+        List<String> lookupFieldNames = new ArrayList<String>();
+        for (int i = 0; i < items.size(); i++) {
+            ImageBatchRequest.Item item = items.get(i);
+            if (item.image() != null) {
+                continue;
+            }
+            String index = item.index();
+            if (index == null) {
+                if (request.indices() == null || request.indices().length != 1) {
+                    failures[i] = "No [index] to look up [" + item.id() + "] in";
+                    continue;
+                }
+                index = request.indices()[0];
+            }
+            String lookupFieldName = (item.path() != null ? item.path() : request.field()) + "." + featureEnum.name();
+            multiSearchRequest.add(ImageLookupCache.lookupRequest(index, item.type(), item.id(), item.routing(), lookupFieldName));
+            lookups.add(i);
+            lookupFieldNames.add(lookupFieldName);
+        }
+        if (!lookups.isEmpty()) {
+            long start = System.nanoTime();
+            MultiSearchResponse multiSearchResponse = multiSearchAction.execute(multiSearchRequest).actionGet();
+            imageStats.search().lookup().recordSince(start);
+            MultiSearchResponse.Item[] responses = multiSearchResponse.getResponses();
+            for (int j = 0; j < responses.length; j++) {
+                int i = lookups.get(j);
+                MultiSearchResponse.Item response = responses[j];
+                if (response.isFailure()) {
+                    failures[i] = response.getFailureMessage();
+                    continue;
+                }
+                try {
+                    ImageLookupCache.Lookup lookup = ImageLookupCache.lookup(response.getResponse(), lookupFieldNames.get(j));
+                    if (lookup == null) {
+                        failures[i] = "Document [" + items.get(i).id() + "] not found";
+                    } else if (lookup.feature() == null) {
+                        failures[i] = "Document [" + items.get(i).id() + "] has no [" + featureEnum.name() + "] feature";
+                    } else {
+                        features[i] = lookup.feature();
+                    }
+                } catch (ElasticsearchException e) {
+                    failures[i] = e.getMessage();
+                }
+            }
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            FutureTask<byte[]> task = tasks.get(i);
+            if (task == null) {
+                continue;
+            }
+            try {
+                features[i] = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ElasticsearchImageProcessException("Interrupted while extracting images", e);
+            } catch (ExecutionException e) {
+                failures[i] = "Failed to parse image: " + e.getCause().getMessage();
+            }
+        }
+
+        request.features = features;
+        request.failures = failures;
+    }
+
+    @Override
+    protected ShardImageBatchRequest newShardRequest(int numShards, ShardRouting shard, ImageBatchRequest request) {
+        return new ShardImageBatchRequest(shard.shardId(), request);
+    }
+
+    @Override
+    protected ShardImageBatchResponse newShardResponse() {
+        return new ShardImageBatchResponse();
+    }
+
+    @Override
+    protected ShardImageBatchResponse shardOperation(ShardImageBatchRequest request) {
+        IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        IndexShard indexShard = indexService.shardSafe(request.shardId().id());
+        FeatureEnum featureEnum = request.feature();
+        byte[][] features = request.features();
+
+        DistanceKernel[] distanceKernels = new DistanceKernel[features.length];
+        for (int i = 0; i < features.length; i++) {
+            if (features[i] != null) {
+                distanceKernels[i] = DistanceKernel.forFeature(featureEnum, ImageFeatureCache.feature(featureEnum, features[i]));
+            }
+        }
+
+        String luceneFieldName = request.field() + "." + featureEnum.name();
+        ImageBatch batch = new ImageBatch(luceneFieldName, distanceKernels, request.k(), imageStats.search());
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_batch");
+        try {
+            ImageBatch.Hits[] batchHits = batch.topK(searcher.reader());
+            ImageBatchResponse.Hit[][] hits = new ImageBatchResponse.Hit[batchHits.length][];
+            JustUidFieldsVisitor visitor = new JustUidFieldsVisitor();
+            for (int i = 0; i < batchHits.length; i++) {
+                int size = batchHits[i] == null ? 0 : batchHits[i].size();
+                hits[i] = new ImageBatchResponse.Hit[size];
+                for (int j = 0; j < size; j++) {
+                    visitor.reset();
+                    searcher.reader().document(batchHits[i].doc(j), visitor);
+                    Uid uid = visitor.uid();
+                    hits[i][j] = new ImageBatchResponse.Hit(request.shardId().getIndex(), uid.type(), uid.id(),
+                            ImageBatch.score(batchHits[i].distance(j)));
+                }
+            }
+            return new ShardImageBatchResponse(request.shardId(), hits);
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to search images", e);
+        } finally {
+            searcher.close();
+        }
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageBatchRequest request, String[] concreteIndices) {
+        Map<String, Set<String>> routingMap = indexNameExpressionResolver.resolveSearchRouting(clusterState, null, request.indices());
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, routingMap, "_local");
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageBatchRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageBatchRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    @Override
+    protected ImageBatchResponse newResponse(ImageBatchRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<List<ImageBatchResponse.Hit>> hits = new ArrayList<List<ImageBatchResponse.Hit>>();
+        for (int i = 0; i < request.items().size(); i++) {
+            hits.add(new ArrayList<ImageBatchResponse.Hit>());
+        }
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                continue;
+            }
+            if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new ArrayList<ShardOperationFailedException>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+                continue;
+            }
+            ImageBatchResponse.Hit[][] shardHits = ((ShardImageBatchResponse) shardResponse).hits();
+            for (int j = 0; j < shardHits.length; j++) {
+                hits.get(j).addAll(Arrays.asList(shardHits[j]));
+            }
+            successfulShards++;
+        }
+
+        ImageBatchResponse.Result[] results = new ImageBatchResponse.Result[hits.size()];
+        for (int i = 0; i < results.length; i++) {
+            List<ImageBatchResponse.Hit> queryHits = hits.get(i);
+            Collections.sort(queryHits, BY_SCORE);
+            queryHits = queryHits.subList(0, Math.min(request.k(), queryHits.size()));
+            results[i] = new ImageBatchResponse.Result(queryHits.toArray(new ImageBatchResponse.Hit[queryHits.size()]),
+                    request.failures[i]);
+        }
+        return new ImageBatchResponse(results, shardsResponses.length(), successfulShards, failedShards, shardFailures);
+    }
+}
@@ -0,0 +1,117 @@
+package org.elasticsearch.plugin.image.hash;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.image.ImageHash;
+
+/**
+ * How evenly a hash family spreads sample features over its terms, as their postings would be if the sample was
+ * indexed. Hash queries read the postings of the terms of the query feature, so a family with a few large postings
+ * makes most docs candidates of most queries.
+ */
+public class HashBalance implements Streamable, ToXContent {
+
+    private long distinctTerms;
+    private double largestTerm;
+    private double meanPosting;
+
+    HashBalance() {
+    }
+
+    HashBalance(long distinctTerms, double largestTerm, double meanPosting) {
+        this.distinctTerms = distinctTerms;
+        this.largestTerm = largestTerm;
+        this.meanPosting = meanPosting;
+    }
+
+    /**
+     * Balance of the terms of the hash family over the sample histograms
+     */
+    public static HashBalance of(ImageHash hash, List<double[]> sample) {
+        Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+        long postings = 0;
+        for (double[] histogram : sample) {
+            int[] terms = hash.hash(histogram);
+            Arrays.sort(terms);
+            for (int i = 0; i < terms.length; i++) {
+                if (i > 0 && terms[i] == terms[i - 1]) {  // indexed once per doc
+                    continue;
+                }
+                int[] count = counts.get(terms[i]);
+                if (count == null) {
+                    counts.put(terms[i], count = new int[1]);
+                }
+                count[0]++;
+                postings++;
+            }
+        }
+        if (postings == 0) {
+            return new HashBalance(0, 0, 0);
+        }
+        long largest = 0;
+        double sumOfSquares = 0;
+        for (int[] count : counts.values()) {
+            largest = Math.max(largest, count[0]);
+            sumOfSquares += (double) count[0] * count[0];
+        }
+        return new HashBalance(counts.size(), (double) largest / sample.size(), sumOfSquares / postings / sample.size());
+    }
+
+    public long getDistinctTerms() {
+        return distinctTerms;
+    }
+
+    /**
+     * Share of the sample in the largest posting
+     */
+    public double getLargestTerm() {
+        return largestTerm;
+    }
+
+    /**
+     * Share of the sample in the posting of a term of a sample feature, on average: how much of the index one term of
+     * a query reads
+     */
+    public double getMeanPosting() {
+        return meanPosting;
+    }
+
+    static HashBalance readHashBalance(StreamInput in) throws IOException {
+        HashBalance balance = new HashBalance();
+        balance.readFrom(in);
+        return balance;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        distinctTerms = in.readVLong();
+        largestTerm = in.readDouble();
+        meanPosting = in.readDouble();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(distinctTerms);
+        out.writeDouble(largestTerm);
+        out.writeDouble(meanPosting);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("distinct_terms", distinctTerms);
+        builder.field("largest_term", largestTerm);
+        builder.field("mean_posting", meanPosting);
+        builder.endObject();
+        return builder;
+    }
+}
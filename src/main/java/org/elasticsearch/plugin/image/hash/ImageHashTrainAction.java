@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.image.hash;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Trains the hash families of an image feature on the features of an index, see {@link ImageHashTrainRequest}
+ */
+public class ImageHashTrainAction extends Action<ImageHashTrainRequest, ImageHashTrainResponse, ImageHashTrainRequestBuilder> {
+
+    public static final ImageHashTrainAction INSTANCE = new ImageHashTrainAction();
+    public static final String NAME = "indices:admin/image/hash/train";
+
+    private ImageHashTrainAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageHashTrainResponse newResponse() {
+        return new ImageHashTrainResponse();
+    }
+
+    @Override
+    public ImageHashTrainRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ImageHashTrainRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,193 @@
+package org.elasticsearch.plugin.image.hash;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+/**
+ * Trains the hash families of the feature of an image field on a random sample of the features indexed in one index,
+ * and stores the trained parameters in its settings unless {@link #dryRun}. Each shard samples its share of the
+ * features from its doc values, the coordinating node trains on all of them. Storing them requires {@link #force}, the
+ * docs already indexed keep the terms of the untrained families.
+ */
+public class ImageHashTrainRequest extends BroadcastRequest<ImageHashTrainRequest> {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+    private String field;
+    private FeatureEnum feature;
+    private String[] hashes = Strings.EMPTY_ARRAY;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private boolean dryRun;
+    private boolean force;
+
+    // the index and the families to train, resolved on the coordinating node
+    String index;
+    String[] resolvedHashes;
+
+    public ImageHashTrainRequest() {
+    }
+
+    public ImageHashTrainRequest(String... indices) {
+        super(indices);
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public ImageHashTrainRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public FeatureEnum feature() {
+        return feature;
+    }
+
+    public ImageHashTrainRequest feature(FeatureEnum feature) {
+        this.feature = feature;
+        return this;
+    }
+
+    public String[] hashes() {
+        return hashes;
+    }
+
+    /**
+     * Families to train, all the families the feature is hashed with in the mapping if none
+     */
+    public ImageHashTrainRequest hashes(String... hashes) {
+        this.hashes = hashes;
+        return this;
+    }
+
+    public int sampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Number of features to train on, drawn from all the shards
+     */
+    public ImageHashTrainRequest sampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    public boolean dryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Whether to only report the balance of the trained families, without storing them
+     */
+    public ImageHashTrainRequest dryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    public boolean force() {
+        return force;
+    }
+
+    /**
+     * Whether to store the trained families in the settings of the index although its docs are hashed with the current
+     * ones, queries only find them again once they are reindexed
+     */
+    public ImageHashTrainRequest force(boolean force) {
+        this.force = force;
+        return this;
+    }
+
+    /**
+     * Parses {@code field}, {@code feature}, {@code hash}, {@code sample_size}, {@code dry_run} and {@code force} of the body
+     */
+    public ImageHashTrainRequest source(BytesReference source) throws IOException {
+        XContentParser parser = XContentHelper.createParser(source);
+        try {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                throw new ElasticsearchParseException("[image] hash training malformed, expected an object");
+            }
+            String currentFieldName = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    currentFieldName = parser.currentName();
+                } else if ("hash".equals(currentFieldName) && token == XContentParser.Token.START_ARRAY) {
+                    List<String> values = new ArrayList<String>();
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        values.add(parser.text());
+                    }
+                    hashes = values.toArray(new String[values.size()]);
+                } else if ("hash".equals(currentFieldName)) {
+                    hashes = new String[] {parser.text()};
+                } else if ("field".equals(currentFieldName)) {
+                    field = parser.text();
+                } else if ("feature".equals(currentFieldName)) {
+                    feature = FeatureEnum.getByName(parser.text());
+                } else if ("sample_size".equals(currentFieldName)) {
+                    sampleSize = parser.intValue();
+                } else if ("dry_run".equals(currentFieldName)) {
+                    dryRun = parser.booleanValue();
+                } else if ("force".equals(currentFieldName)) {
+                    force = parser.booleanValue();
+                } else {
+                    throw new ElasticsearchParseException("[image] hash training does not support [{}]", currentFieldName);
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return this;
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("no [field] specified", validationException);
+        }
+        if (feature == null) {
+            validationException = addValidationError("no [feature] specified", validationException);
+        }
+        if (sampleSize <= 0) {
+            validationException = addValidationError("[sample_size] must be greater than 0", validationException);
+        }
+        return validationException;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = FeatureEnum.getByName(in.readString());
+        hashes = in.readStringArray();
+        sampleSize = in.readVInt();
+        dryRun = in.readBoolean();
+        force = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature.name());
+        out.writeStringArray(hashes);
+        out.writeVInt(sampleSize);
+        out.writeBoolean(dryRun);
+        out.writeBoolean(force);
+    }
+}
@@ -0,0 +1,42 @@
+package org.elasticsearch.plugin.image.hash;
+
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+public class ImageHashTrainRequestBuilder extends BroadcastOperationRequestBuilder<ImageHashTrainRequest, ImageHashTrainResponse, ImageHashTrainRequestBuilder> {
+
+    public ImageHashTrainRequestBuilder(ElasticsearchClient client, ImageHashTrainAction action) {
+        super(client, action, new ImageHashTrainRequest());
+    }
+
+    public ImageHashTrainRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public ImageHashTrainRequestBuilder setFeature(FeatureEnum feature) {
+        request.feature(feature);
+        return this;
+    }
+
+    public ImageHashTrainRequestBuilder setHashes(String... hashes) {
+        request.hashes(hashes);
+        return this;
+    }
+
+    public ImageHashTrainRequestBuilder setSampleSize(int sampleSize) {
+        request.sampleSize(sampleSize);
+        return this;
+    }
+
+    public ImageHashTrainRequestBuilder setDryRun(boolean dryRun) {
+        request.dryRun(dryRun);
+        return this;
+    }
+
+    public ImageHashTrainRequestBuilder setForce(boolean force) {
+        request.force(force);
+        return this;
+    }
+}
@@ -0,0 +1,190 @@
+package org.elasticsearch.plugin.image.hash;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.action.support.RestActions;
+
+/**
+ * The balance of each hash family over the sample before and after training, and the index settings it was trained to
+ */
+public class ImageHashTrainResponse extends BroadcastResponse implements ToXContent {
+
+    /**
+     * A hash family, not trained if it cannot be
+     */
+    public static final class Result implements Streamable {
+
+        private String hash;
+        private HashBalance before;
+        private HashBalance after;
+        private Settings settings;
+
+        Result() {
+        }
+
+        Result(String hash, HashBalance before, HashBalance after, Settings settings) {
+            this.hash = hash;
+            this.before = before;
+            this.after = after;
+            this.settings = settings;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public boolean isTrained() {
+            return after != null;
+        }
+
+        /**
+         * Balance of the family the index hashes with until now
+         */
+        public HashBalance getBefore() {
+            return before;
+        }
+
+        /**
+         * Balance of the trained family, {@code null} if not trained
+         */
+        public HashBalance getAfter() {
+            return after;
+        }
+
+        /**
+         * Index settings of the trained family, {@code null} if not trained
+         */
+        public Settings getSettings() {
+            return settings;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            hash = in.readString();
+            before = HashBalance.readHashBalance(in);
+            if (in.readBoolean()) {
+                after = HashBalance.readHashBalance(in);
+                settings = Settings.readSettingsFromStream(in);
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(hash);
+            before.writeTo(out);
+            out.writeBoolean(after != null);
+            if (after != null) {
+                after.writeTo(out);
+                Settings.writeSettingsToStream(settings, out);
+            }
+        }
+    }
+
+    private String index;
+    private int sampleSize;
+    private boolean stored;
+    private Result[] results;
+
+    // the features drawn by the shards, trained on by the coordinating node
+    List<byte[]> sample;
+
+    ImageHashTrainResponse() {
+    }
+
+    ImageHashTrainResponse(String index, List<byte[]> sample, int totalShards, int successfulShards, int failedShards,
+                           List<ShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.index = index;
+        this.sample = sample;
+        this.sampleSize = sample.size();
+    }
+
+    void results(Result[] results, boolean stored) {
+        this.results = results;
+        this.stored = stored;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    /**
+     * Number of features trained on
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Whether the trained families were stored in the index settings
+     */
+    public boolean isStored() {
+        return stored;
+    }
+
+    public Result[] getResults() {
+        return results;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        index = in.readString();
+        sampleSize = in.readVInt();
+        stored = in.readBoolean();
+        results = new Result[in.readVInt()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new Result();
+            results[i].readFrom(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(index);
+        out.writeVInt(sampleSize);
+        out.writeBoolean(stored);
+        out.writeVInt(results.length);
+        for (Result result : results) {
+            result.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        RestActions.buildBroadcastShardsHeader(builder, params, this);
+        builder.field("index", index);
+        builder.field("sample_size", sampleSize);
+        builder.field("stored", stored);
+        builder.startObject("hashes");
+        for (Result result : results) {
+            builder.startObject(result.getHash(), XContentBuilder.FieldCaseConversion.NONE);
+            builder.field("trained", result.isTrained());
+            builder.field("before");
+            result.getBefore().toXContent(builder, params);
+            if (result.isTrained()) {
+                builder.field("after");
+                result.getAfter().toXContent(builder, params);
+                builder.startObject("settings");
+                for (Map.Entry<String, String> entry : result.getSettings().getAsMap().entrySet()) {
+                    builder.field(entry.getKey(), entry.getValue(), XContentBuilder.FieldCaseConversion.NONE);
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
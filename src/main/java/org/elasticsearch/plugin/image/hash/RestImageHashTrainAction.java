@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.image.hash;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestActions;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * {@code POST /{index}/_image/hash/_train}, see {@link ImageHashTrainRequest#source} for the body
+ */
+public class RestImageHashTrainAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageHashTrainAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(RestRequest.Method.POST, "/{index}/_image/hash/_train", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        ImageHashTrainRequest trainRequest = new ImageHashTrainRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        trainRequest.source(RestActions.getRestContent(request));
+        client.execute(ImageHashTrainAction.INSTANCE, trainRequest, new RestToXContentListener<ImageHashTrainResponse>(channel));
+    }
+}
@@ -0,0 +1,57 @@
+package org.elasticsearch.plugin.image.hash;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * The share of the sample a shard draws from its features
+ */
+public class ShardImageHashTrainRequest extends BroadcastShardRequest {
+
+    private String field;
+    private FeatureEnum feature;
+    private int sampleSize;
+
+    public ShardImageHashTrainRequest() {
+    }
+
+    ShardImageHashTrainRequest(ShardId shardId, ImageHashTrainRequest request, int sampleSize) {
+        super(shardId, request);
+        this.field = request.field();
+        this.feature = request.feature();
+        this.sampleSize = sampleSize;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public FeatureEnum feature() {
+        return feature;
+    }
+
+    public int sampleSize() {
+        return sampleSize;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        feature = FeatureEnum.getByName(in.readString());
+        sampleSize = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeString(feature.name());
+        out.writeVInt(sampleSize);
+    }
+}
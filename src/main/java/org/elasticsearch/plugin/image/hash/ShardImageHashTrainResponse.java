@@ -0,0 +1,46 @@
+package org.elasticsearch.plugin.image.hash;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Sample features of the shard, as they are stored in its doc values
+ */
+public class ShardImageHashTrainResponse extends BroadcastShardResponse {
+
+    private byte[][] features;
+
+    ShardImageHashTrainResponse() {
+    }
+
+    ShardImageHashTrainResponse(ShardId shardId, byte[][] features) {
+        super(shardId);
+        this.features = features;
+    }
+
+    public byte[][] features() {
+        return features;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        features = new byte[in.readVInt()][];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = in.readByteArray();
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(features.length);
+        for (byte[] feature : features) {
+            out.writeByteArray(feature);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.elasticsearch.plugin.image.hash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchImageProcessException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.admin.indices.settings.put.TransportUpdateSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashService;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+import org.elasticsearch.index.mapper.image.TrainableImageHash;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.plugin.image.ImageMappings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/**
+ * Draws the sample from one copy of each shard, then trains on the generic pool of the coordinating node and stores
+ * the trained families with an update of the index settings. Queries are hashed with the trained families as soon as
+ * they are stored, so storing them in the index the sample was drawn from, which has docs by then, takes {@code force}.
+ */
+public class TransportImageHashTrainAction extends TransportBroadcastAction<ImageHashTrainRequest, ImageHashTrainResponse, ShardImageHashTrainRequest, ShardImageHashTrainResponse> {
+
+    private final IndicesService indicesService;
+    private final TransportUpdateSettingsAction updateSettingsAction;
+    private final ImageHashService hashService;
+
+    @Inject
+    public TransportImageHashTrainAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                         TransportService transportService, ActionFilters actionFilters,
+                                         IndexNameExpressionResolver indexNameExpressionResolver, IndicesService indicesService,
+                                         TransportUpdateSettingsAction updateSettingsAction, ImageHashService hashService) {
+        super(settings, ImageHashTrainAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, ImageHashTrainRequest.class, ShardImageHashTrainRequest.class, ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+        this.updateSettingsAction = updateSettingsAction;
+        this.hashService = hashService;
+    }
+
+    @Override
+    protected void doExecute(final ImageHashTrainRequest request, final ActionListener<ImageHashTrainResponse> listener) {
+        try {
+            resolveHashes(request);
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        super.doExecute(request, new ActionListener<ImageHashTrainResponse>() {
+            @Override
+            public void onResponse(final ImageHashTrainResponse response) {
+                // training reads the whole sample once per family, keep it off the transport threads
+                threadPool.generic().execute(new AbstractRunnable() {
+                    @Override
+                    protected void doRun() throws Exception {
+                        train(request, response, listener);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        listener.onFailure(t);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * The trained parameters are per index, so the request has to resolve to one
+     */
+    private void resolveHashes(ImageHashTrainRequest request) throws IOException {
+        if (!request.dryRun() && !request.force()) {
+            // training needs the features of the index, whose docs would no longer match the queries
+            throw new IllegalArgumentException("Storing trained hashes in an index with documents makes them unfindable until "
+                    + "reindexed: use [dry_run] and create a new index with the trained settings, or [force] to store them anyway");
+        }
+        ClusterState clusterState = clusterService.state();
+        String[] concreteIndices = indexNameExpressionResolver.concreteIndices(clusterState, request);
+        if (concreteIndices.length != 1) {
+            throw new IllegalArgumentException("Hashes are trained for one index at a time, got " + Arrays.toString(concreteIndices));
+        }
+        FeatureEnum featureEnum = request.feature();
+        Set<String> mappedHashes = ImageMappings.hashes(clusterState, concreteIndices[0], request.field(), featureEnum);
+        if (mappedHashes == null) {
+            throw new IllegalArgumentException("[" + request.field() + "] is not an image field with feature [" + featureEnum.name()
+                    + "] in [" + concreteIndices[0] + "]");
+        }
+        String[] hashes = request.hashes().length == 0 ? mappedHashes.toArray(new String[mappedHashes.size()]) : new String[request.hashes().length];
+        for (int i = 0; i < request.hashes().length; i++) {
+            hashes[i] = ImageHashes.name(request.hashes()[i]);
+            if (!mappedHashes.contains(hashes[i])) {
+                throw new IllegalArgumentException("[" + request.field() + "] does not hash [" + featureEnum.name() + "] with ["
+                        + hashes[i] + "] in [" + concreteIndices[0] + "]");
+            }
+        }
+        if (hashes.length == 0) {
+            throw new IllegalArgumentException("[" + request.field() + "] does not hash [" + featureEnum.name() + "] in ["
+                    + concreteIndices[0] + "]");
+        }
+        request.index = concreteIndices[0];
+        request.resolvedHashes = hashes;
+    }
+
+    private void train(ImageHashTrainRequest request, final ImageHashTrainResponse response,
+                       final ActionListener<ImageHashTrainResponse> listener) {
+        FeatureEnum featureEnum = request.feature();
+        if (response.sample.isEmpty()) {
+            throw new IllegalArgumentException("No [" + featureEnum.name() + "] features in [" + request.field() + "] of ["
+                    + request.index + "] to train on");
+        }
+        List<double[]> sample = new ArrayList<double[]>(response.sample.size());
+        for (byte[] feature : response.sample) {
+            sample.add(ImageFeatureCache.feature(featureEnum, feature).getDoubleHistogram());
+        }
+
+        ImageHashTrainResponse.Result[] results = new ImageHashTrainResponse.Result[request.resolvedHashes.length];
+        Settings.Builder indexSettings = Settings.builder();
+        for (int i = 0; i < results.length; i++) {
+            String hashName = request.resolvedHashes[i];
+            ImageHash current = hashService.hash(request.index, request.field(), featureEnum, hashName);
+            HashBalance before = HashBalance.of(current, sample);
+            ImageHash hash = ImageHashes.get(hashName);
+            if (!(hash instanceof TrainableImageHash)) {
+                results[i] = new ImageHashTrainResponse.Result(hashName, before, null, null);
+                continue;
+            }
+            long start = System.nanoTime();
+            TrainableImageHash trainable = (TrainableImageHash) hash;
+            Settings parameters = trainable.train(sample);
+            HashBalance after = HashBalance.of(trainable.trained(parameters), sample);
+            logger.debug("trained [{}] for [{}] feature [{}] of [{}] on [{}] features in [{}ms]", hashName, request.field(),
+                    featureEnum.name(), request.index, sample.size(), (System.nanoTime() - start) / 1000000);
+
+            Settings.Builder hashSettings = Settings.builder();
+            String prefix = ImageHashService.settingPrefix(request.field(), featureEnum, hashName);
+            for (Map.Entry<String, String> entry : parameters.getAsMap().entrySet()) {
+                hashSettings.put(prefix + entry.getKey(), entry.getValue());
+            }
+            results[i] = new ImageHashTrainResponse.Result(hashName, before, after, hashSettings.build());
+            indexSettings.put(results[i].getSettings());
+        }
+
+        final Settings settings = indexSettings.build();
+        if (request.dryRun() || settings.getAsMap().isEmpty()) {
+            response.results(results, false);
+            listener.onResponse(response);
+            return;
+        }
+        final ImageHashTrainResponse.Result[] trainedResults = results;
+        updateSettingsAction.execute(new UpdateSettingsRequest(request.index).settings(settings), new ActionListener<UpdateSettingsResponse>() {
+            @Override
+            public void onResponse(UpdateSettingsResponse updateSettingsResponse) {
+                response.results(trainedResults, updateSettingsResponse.isAcknowledged());
+                listener.onResponse(response);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    @Override
+    protected ShardImageHashTrainRequest newShardRequest(int numShards, ShardRouting shard, ImageHashTrainRequest request) {
+        return new ShardImageHashTrainRequest(shard.shardId(), request, (request.sampleSize() + numShards - 1) / numShards);
+    }
+
+    @Override
+    protected ShardImageHashTrainResponse newShardResponse() {
+        return new ShardImageHashTrainResponse();
+    }
+
+    /**
+     * Reservoir sample of the live docs having the feature, seeded by the shard so the same shard gives the same sample
+     */
+    @Override
+    protected ShardImageHashTrainResponse shardOperation(ShardImageHashTrainRequest request) {
+        IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        IndexShard indexShard = indexService.shardSafe(request.shardId().id());
+        String luceneFieldName = request.field() + "." + request.feature().name();
+        byte[][] sample = new byte[request.sampleSize()][];
+        Random random = new Random(request.shardId().id());
+        long seen = 0;
+        Engine.Searcher searcher = indexShard.acquireSearcher("image_hash_train");
+        try {
+            for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                LeafReader leafReader = leaf.reader();
+                BinaryDocValues binaryDocValues = leafReader.getBinaryDocValues(luceneFieldName);
+                if (binaryDocValues == null) {
+                    continue;
+                }
+                Bits liveDocs = leafReader.getLiveDocs();
+                int maxDoc = leafReader.maxDoc();
+                for (int doc = 0; doc < maxDoc; doc++) {
+                    if (liveDocs != null && !liveDocs.get(doc)) {
+                        continue;
+                    }
+                    BytesRef bytes = binaryDocValues.get(doc);
+                    if (bytes.length == 0) {  // no image
+                        continue;
+                    }
+                    long slot = seen < sample.length ? seen : (long) (random.nextDouble() * (seen + 1));
+                    if (slot < sample.length) {
+                        sample[(int) slot] = Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length);
+                    }
+                    seen++;
+                }
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchImageProcessException("Failed to sample features", e);
+        } finally {
+            searcher.close();
+        }
+        return new ShardImageHashTrainResponse(request.shardId(), seen < sample.length ? Arrays.copyOf(sample, (int) seen) : sample);
+    }
+
+    @Override
+    protected GroupShardsIterator shards(ClusterState clusterState, ImageHashTrainRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, "_local");
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, ImageHashTrainRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, ImageHashTrainRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    @Override
+    protected ImageHashTrainResponse newResponse(ImageHashTrainRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<ShardOperationFailedException> shardFailures = null;
+        List<byte[]> sample = new ArrayList<byte[]>();
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                continue;
+            }
+            if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                if (shardFailures == null) {
+                    shardFailures = new ArrayList<ShardOperationFailedException>();
+                }
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+                continue;
+            }
+            sample.addAll(Arrays.asList(((ShardImageHashTrainResponse) shardResponse).features()));
+            successfulShards++;
+        }
+        if (sample.size() > request.sampleSize()) {  // each shard rounds its share up
+            sample = sample.subList(0, request.sampleSize());
+        }
+        return new ImageHashTrainResponse(request.index, sample, shardsResponses.length(), successfulShards, failedShards, shardFailures);
+    }
+}
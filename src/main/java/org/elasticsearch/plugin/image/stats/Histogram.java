@@ -0,0 +1,203 @@
+package org.elasticsearch.plugin.image.stats;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.metrics.MeanMetric;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Lock free histogram of non negative values. Each power of two is split in 4 buckets, so percentiles are
+ * within 25% of the recorded values. Timers record nanoseconds and are rendered in microseconds.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    private final boolean time;
+    private final MeanMetric counts = new MeanMetric();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private Histogram(boolean time) {
+        this.time = time;
+    }
+
+    /**
+     * Histogram of durations in nanoseconds
+     */
+    public static Histogram time() {
+        return new Histogram(true);
+    }
+
+    /**
+     * Histogram of counts
+     */
+    public static Histogram count() {
+        return new Histogram(false);
+    }
+
+    /**
+     * Records the time since {@code startNanos}, a {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.inc(value);
+        buckets.incrementAndGet(bucket(value));
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(time, this.counts.count(), this.counts.sum(), max.get(), counts);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + subBucket;
+    }
+
+    /**
+     * Largest value of a bucket
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+        long lowerBound = subBucket << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Point in time copy of a histogram, as sent between nodes
+     */
+    public static final class Snapshot implements Streamable, ToXContent {
+
+        private boolean time;
+        private long count;
+        private long sum;
+        private long max;
+        private long[] buckets;
+
+        Snapshot() {
+        }
+
+        Snapshot(boolean time, long count, long sum, long max, long[] buckets) {
+            this.time = time;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        public static Snapshot readSnapshot(StreamInput in) throws IOException {
+            Snapshot snapshot = new Snapshot();
+            snapshot.readFrom(in);
+            return snapshot;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Upper bound of the bucket holding the percentile, at most the max
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            time = in.readBoolean();
+            count = in.readVLong();
+            sum = in.readVLong();
+            max = in.readVLong();
+            buckets = new long[BUCKETS];
+            for (int size = in.readVInt(), i = 0; i < size; i++) {
+                buckets[in.readVInt()] = in.readVLong();
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeBoolean(time);
+            out.writeVLong(count);
+            out.writeVLong(sum);
+            out.writeVLong(max);
+            int size = 0;
+            for (long bucket : buckets) {
+                if (bucket > 0) {
+                    size++;
+                }
+            }
+            out.writeVInt(size);
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] > 0) {
+                    out.writeVInt(i);
+                    out.writeVLong(buckets[i]);
+                }
+            }
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("count", count);
+            String suffix = time ? "_in_micros" : "";
+            builder.field("total" + suffix, value(sum));
+            builder.field("max" + suffix, value(max));
+            for (double percentile : PERCENTILES) {
+                builder.field("p" + (int) percentile + suffix, value(getPercentile(percentile)));
+            }
+            builder.endObject();
+            return builder;
+        }
+
+        private long value(long value) {
+            return time ? value / 1000 : value;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.elasticsearch.plugin.image.stats;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+
+/**
+ * Node level timers and counters of the image plugin, per phase of indexing and searching images.
+ * See {@link ImageStatsAction} to get them.
+ */
+public class ImageStats extends AbstractComponent {
+
+    private final ExtractStats indexing = new ExtractStats();
+    private final Histogram metadata = Histogram.time();
+    private final ExtractStats query = new ExtractStats();
+    private final SearchStats search = new SearchStats();
+
+    @Inject
+    public ImageStats(Settings settings) {
+        super(settings);
+    }
+
+    /**
+     * Extraction of the features of indexed images
+     */
+    public ExtractStats indexing() {
+        return indexing;
+    }
+
+    /**
+     * Metadata extraction of indexed images
+     */
+    public Histogram metadata() {
+        return metadata;
+    }
+
+    /**
+     * Extraction of the features of query images
+     */
+    public ExtractStats query() {
+        return query;
+    }
+
+    public SearchStats search() {
+        return search;
+    }
+
+    /**
+     * Decoding an image, extracting its features and hashing them
+     */
+    public static final class ExtractStats {
+
+        private final Histogram decode = Histogram.time();
+        private final Histogram scale = Histogram.time();
+        private final Map<FeatureEnum, Histogram> extract = new EnumMap<FeatureEnum, Histogram>(FeatureEnum.class);
+        private final ConcurrentMap<String, Histogram> hash = new ConcurrentSkipListMap<String, Histogram>();
+
+        public ExtractStats() {
+            for (FeatureEnum featureEnum : FeatureEnum.values()) {
+                extract.put(featureEnum, Histogram.time());
+            }
+            for (HashEnum hashEnum : HashEnum.values()) {
+                hash.put(hashEnum.name(), Histogram.time());
+            }
+        }
+
+        /**
+         * Decoding the image bytes, including subsampling
+         */
+        public Histogram decode() {
+            return decode;
+        }
+
+        /**
+         * Scaling a decoded image down to a working resolution
+         */
+        public Histogram scale() {
+            return scale;
+        }
+
+        /**
+         * Extracting a feature, {@link FeatureEnum#JCD} is recorded as its CEDD and FCTH parts
+         */
+        public Histogram extract(FeatureEnum featureEnum) {
+            return extract.get(featureEnum);
+        }
+
+        /**
+         * Hashing a feature with a hash family, see {@link ImageHashes}
+         */
+        public Histogram hash(String name) {
+            Histogram histogram = hash.get(name);
+            if (histogram == null) {  // registered by another plugin
+                histogram = Histogram.time();
+                Histogram existing = hash.putIfAbsent(name, histogram);
+                if (existing != null) {
+                    histogram = existing;
+                }
+            }
+            return histogram;
+        }
+
+        void snapshot(NodeImageStats.Phases phases) {
+            phases.put("decode", decode.snapshot());
+            phases.put("scale", scale.snapshot());
+            for (Map.Entry<FeatureEnum, Histogram> entry : extract.entrySet()) {
+                if (entry.getKey() != FeatureEnum.JCD) {
+                    phases.put("extract", entry.getKey().name(), entry.getValue().snapshot());
+                }
+            }
+            for (Map.Entry<String, Histogram> entry : hash.entrySet()) {
+                phases.put("hash", entry.getKey(), entry.getValue().snapshot());
+            }
+        }
+    }
+
+    /**
+     * Executing image queries on the segments of a shard
+     */
+    public static final class SearchStats {
+
+        private final Histogram lookup = Histogram.time();
+        private final Histogram hashLookup = Histogram.time();
+        private final Histogram graphBuild = Histogram.time();
+        private final Histogram graphSearch = Histogram.time();
+        private final Histogram quantize = Histogram.time();
+        private final Histogram quantizedSearch = Histogram.time();
+        private final Histogram columnBuild = Histogram.time();
+        private final Histogram candidates = Histogram.count();
+        private final Histogram docsScored = Histogram.count();
+        private final Histogram score = Histogram.time();
+
+        /**
+         * Getting the feature of the lookup document of queries by id
+         */
+        public Histogram lookup() {
+            return lookup;
+        }
+
+        /**
+         * Finding the docs sharing hashes with the query, per segment or per shard for queries with a limit
+         */
+        public Histogram hashLookup() {
+            return hashLookup;
+        }
+
+        /**
+         * Building the hnsw graph of a feature of a segment, see {@link org.elasticsearch.index.query.image.HnswGraph}
+         */
+        public Histogram graphBuild() {
+            return graphBuild;
+        }
+
+        /**
+         * Searching the hnsw graph of a segment for the nearest docs
+         */
+        public Histogram graphSearch() {
+            return graphSearch;
+        }
+
+        /**
+         * Training the product quantizer of a feature of a segment and encoding its docs, see
+         * {@link org.elasticsearch.index.query.image.QuantizedFeatures}
+         */
+        public Histogram quantize() {
+            return quantize;
+        }
+
+        /**
+         * Scanning the quantized features of a segment for the nearest docs
+         */
+        public Histogram quantizedSearch() {
+            return quantizedSearch;
+        }
+
+        /**
+         * Decoding the features of a segment to their fixed width column, see
+         * {@link org.elasticsearch.index.query.image.FeatureColumn}
+         */
+        public Histogram columnBuild() {
+            return columnBuild;
+        }
+
+        /**
+         * Docs of a segment the query computes distances for: all docs without hash, the hash matches otherwise, the
+         * docs visited in the graph with {@code ef}, the live docs of the quantized features
+         */
+        public Histogram candidates() {
+            return candidates;
+        }
+
+        /**
+         * Docs the distance is computed or taken from the distance cache for, per segment or per slice of parallel queries
+         */
+        public Histogram docsScored() {
+            return docsScored;
+        }
+
+        /**
+         * Time scoring a segment, from the creation of its scorer until it is exhausted, or a slice of parallel queries
+         */
+        public Histogram score() {
+            return score;
+        }
+
+        void snapshot(NodeImageStats.Phases phases) {
+            phases.put("lookup", lookup.snapshot());
+            phases.put("hash_lookup", hashLookup.snapshot());
+            phases.put("graph_build", graphBuild.snapshot());
+            phases.put("graph_search", graphSearch.snapshot());
+            phases.put("pq_build", quantize.snapshot());
+            phases.put("pq_search", quantizedSearch.snapshot());
+            phases.put("column_build", columnBuild.snapshot());
+            phases.put("candidates", candidates.snapshot());
+            phases.put("docs_scored", docsScored.snapshot());
+            phases.put("score", score.snapshot());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.plugin.image.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Gets the {@link ImageStats} of nodes
+ */
+public class ImageStatsAction extends Action<ImageStatsRequest, ImageStatsResponse, ImageStatsRequestBuilder> {
+
+    public static final ImageStatsAction INSTANCE = new ImageStatsAction();
+    public static final String NAME = "cluster:monitor/nodes/image/stats";
+
+    private ImageStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ImageStatsResponse newResponse() {
+        return new ImageStatsResponse();
+    }
+
+    @Override
+    public ImageStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ImageStatsRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,16 @@
+package org.elasticsearch.plugin.image.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+public class ImageStatsRequest extends BaseNodesRequest<ImageStatsRequest> {
+
+    public ImageStatsRequest() {
+    }
+
+    /**
+     * Stats of the given nodes, all nodes if none is given
+     */
+    public ImageStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
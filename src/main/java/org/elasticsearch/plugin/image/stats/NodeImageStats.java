@@ -0,0 +1,259 @@
+package org.elasticsearch.plugin.image.stats;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Image stats of a single node
+ */
+public class NodeImageStats extends BaseNodeResponse implements ToXContent {
+
+    /**
+     * Histograms by phase name, some phases are grouped, per feature or per hash
+     */
+    public static final class Phases implements Streamable, ToXContent {
+
+        private final Map<String, Histogram.Snapshot> phases = new LinkedHashMap<String, Histogram.Snapshot>();
+        private final Map<String, Map<String, Histogram.Snapshot>> groups = new LinkedHashMap<String, Map<String, Histogram.Snapshot>>();
+
+        void put(String phase, Histogram.Snapshot snapshot) {
+            phases.put(phase, snapshot);
+        }
+
+        void put(String group, String phase, Histogram.Snapshot snapshot) {
+            Map<String, Histogram.Snapshot> groupPhases = groups.get(group);
+            if (groupPhases == null) {
+                groupPhases = new LinkedHashMap<String, Histogram.Snapshot>();
+                groups.put(group, groupPhases);
+            }
+            groupPhases.put(phase, snapshot);
+        }
+
+        /**
+         * Histogram of a phase, {@code null} if there is no such phase
+         */
+        public Histogram.Snapshot get(String phase) {
+            return phases.get(phase);
+        }
+
+        public Histogram.Snapshot get(String group, String phase) {
+            Map<String, Histogram.Snapshot> groupPhases = groups.get(group);
+            return groupPhases == null ? null : groupPhases.get(phase);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            readPhases(in, phases);
+            for (int size = in.readVInt(), i = 0; i < size; i++) {
+                Map<String, Histogram.Snapshot> groupPhases = new LinkedHashMap<String, Histogram.Snapshot>();
+                groups.put(in.readString(), groupPhases);
+                readPhases(in, groupPhases);
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            writePhases(out, phases);
+            out.writeVInt(groups.size());
+            for (Map.Entry<String, Map<String, Histogram.Snapshot>> entry : groups.entrySet()) {
+                out.writeString(entry.getKey());
+                writePhases(out, entry.getValue());
+            }
+        }
+
+        private static void readPhases(StreamInput in, Map<String, Histogram.Snapshot> phases) throws IOException {
+            for (int size = in.readVInt(), i = 0; i < size; i++) {
+                phases.put(in.readString(), Histogram.Snapshot.readSnapshot(in));
+            }
+        }
+
+        private static void writePhases(StreamOutput out, Map<String, Histogram.Snapshot> phases) throws IOException {
+            out.writeVInt(phases.size());
+            for (Map.Entry<String, Histogram.Snapshot> entry : phases.entrySet()) {
+                out.writeString(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            for (Map.Entry<String, Histogram.Snapshot> entry : phases.entrySet()) {
+                builder.field(entry.getKey());
+                entry.getValue().toXContent(builder, params);
+            }
+            for (Map.Entry<String, Map<String, Histogram.Snapshot>> group : groups.entrySet()) {
+                builder.startObject(group.getKey(), XContentBuilder.FieldCaseConversion.NONE);
+                for (Map.Entry<String, Histogram.Snapshot> entry : group.getValue().entrySet()) {
+                    builder.field(entry.getKey());
+                    entry.getValue().toXContent(builder, params);
+                }
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    private Phases indexing;
+    private Phases search;
+    private long distanceCacheSize;
+    private long distanceCacheHits;
+    private long distanceCacheMisses;
+    private long distanceCacheEvictions;
+    private long featureCacheSize;
+    private long featureCacheHits;
+    private long featureCacheMisses;
+    private long featureCacheEvictions;
+    private long lookupCacheSize;
+    private long lookupCacheHits;
+    private long lookupCacheMisses;
+
+    NodeImageStats() {
+    }
+
+    NodeImageStats(DiscoveryNode node, Phases indexing, Phases search, long distanceCacheSize, CacheStats distanceCacheStats,
+                   long featureCacheSize, CacheStats featureCacheStats, long lookupCacheSize, long lookupCacheHits,
+                   long lookupCacheMisses) {
+        super(node);
+        this.indexing = indexing;
+        this.search = search;
+        this.distanceCacheSize = distanceCacheSize;
+        this.distanceCacheHits = distanceCacheStats.hitCount();
+        this.distanceCacheMisses = distanceCacheStats.missCount();
+        this.distanceCacheEvictions = distanceCacheStats.evictionCount();
+        this.featureCacheSize = featureCacheSize;
+        this.featureCacheHits = featureCacheStats.hitCount();
+        this.featureCacheMisses = featureCacheStats.missCount();
+        this.featureCacheEvictions = featureCacheStats.evictionCount();
+        this.lookupCacheSize = lookupCacheSize;
+        this.lookupCacheHits = lookupCacheHits;
+        this.lookupCacheMisses = lookupCacheMisses;
+    }
+
+    public static NodeImageStats readNodeImageStats(StreamInput in) throws IOException {
+        NodeImageStats stats = new NodeImageStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    /**
+     * Decoding, feature extraction, hashing and metadata extraction of indexed images
+     */
+    public Phases getIndexing() {
+        return indexing;
+    }
+
+    /**
+     * Feature extraction of query images and execution of the image queries
+     */
+    public Phases getSearch() {
+        return search;
+    }
+
+    public long getDistanceCacheHits() {
+        return distanceCacheHits;
+    }
+
+    public long getDistanceCacheMisses() {
+        return distanceCacheMisses;
+    }
+
+    /**
+     * Query images whose feature was found in the feature cache
+     */
+    public long getFeatureCacheHits() {
+        return featureCacheHits;
+    }
+
+    public long getFeatureCacheMisses() {
+        return featureCacheMisses;
+    }
+
+    /**
+     * Looked up query images whose cached feature was still current
+     */
+    public long getLookupCacheHits() {
+        return lookupCacheHits;
+    }
+
+    public long getLookupCacheMisses() {
+        return lookupCacheMisses;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        indexing = new Phases();
+        indexing.readFrom(in);
+        search = new Phases();
+        search.readFrom(in);
+        distanceCacheSize = in.readVLong();
+        distanceCacheHits = in.readVLong();
+        distanceCacheMisses = in.readVLong();
+        distanceCacheEvictions = in.readVLong();
+        featureCacheSize = in.readVLong();
+        featureCacheHits = in.readVLong();
+        featureCacheMisses = in.readVLong();
+        featureCacheEvictions = in.readVLong();
+        lookupCacheSize = in.readVLong();
+        lookupCacheHits = in.readVLong();
+        lookupCacheMisses = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        indexing.writeTo(out);
+        search.writeTo(out);
+        out.writeVLong(distanceCacheSize);
+        out.writeVLong(distanceCacheHits);
+        out.writeVLong(distanceCacheMisses);
+        out.writeVLong(distanceCacheEvictions);
+        out.writeVLong(featureCacheSize);
+        out.writeVLong(featureCacheHits);
+        out.writeVLong(featureCacheMisses);
+        out.writeVLong(featureCacheEvictions);
+        out.writeVLong(lookupCacheSize);
+        out.writeVLong(lookupCacheHits);
+        out.writeVLong(lookupCacheMisses);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name());
+        builder.field("indexing");
+        indexing.toXContent(builder, params);
+        builder.field("search");
+        search.toXContent(builder, params);
+        builder.startObject("distance_cache");
+        builder.field("size", distanceCacheSize);
+        builder.field("hits", distanceCacheHits);
+        builder.field("misses", distanceCacheMisses);
+        builder.field("evictions", distanceCacheEvictions);
+        builder.endObject();
+        builder.startObject("feature_cache");
+        builder.field("size", featureCacheSize);
+        builder.field("hits", featureCacheHits);
+        builder.field("misses", featureCacheMisses);
+        builder.field("evictions", featureCacheEvictions);
+        builder.endObject();
+        builder.startObject("lookup_cache");
+        builder.field("size", lookupCacheSize);
+        builder.field("hits", lookupCacheHits);
+        builder.field("misses", lookupCacheMisses);
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,31 @@
+package org.elasticsearch.plugin.image.stats;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+
+/**
+ * {@code GET /_image/stats} and {@code GET /_image/{nodeId}/stats}
+ */
+public class RestImageStatsAction extends BaseRestHandler {
+
+    @Inject
+    public RestImageStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(RestRequest.Method.GET, "/_image/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_image/{nodeId}/stats", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) {
+        ImageStatsRequest imageStatsRequest = new ImageStatsRequest(Strings.splitStringByCommaToArray(request.param("nodeId")));
+        imageStatsRequest.timeout(request.param("timeout"));
+        client.execute(ImageStatsAction.INSTANCE, imageStatsRequest, new RestToXContentListener<ImageStatsResponse>(channel));
+    }
+}
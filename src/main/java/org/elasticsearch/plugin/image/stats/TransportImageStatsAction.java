@@ -0,0 +1,109 @@
+package org.elasticsearch.plugin.image.stats;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.image.ImageDistanceCache;
+import org.elasticsearch.index.query.image.ImageFeatureCache;
+import org.elasticsearch.index.query.image.ImageLookupCache;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportImageStatsAction extends TransportNodesAction<ImageStatsRequest, ImageStatsResponse, TransportImageStatsAction.NodeRequest, NodeImageStats> {
+
+    private final ImageStats imageStats;
+    private final ImageDistanceCache distanceCache;
+    private final ImageFeatureCache featureCache;
+    private final ImageLookupCache lookupCache;
+
+    @Inject
+    public TransportImageStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool, ClusterService clusterService,
+                                     TransportService transportService, ActionFilters actionFilters,
+                                     IndexNameExpressionResolver indexNameExpressionResolver, ImageStats imageStats,
+                                     ImageDistanceCache distanceCache, ImageFeatureCache featureCache,
+                                     ImageLookupCache lookupCache) {
+        super(settings, ImageStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, ImageStatsRequest.class, NodeRequest.class, ThreadPool.Names.MANAGEMENT);
+        this.imageStats = imageStats;
+        this.distanceCache = distanceCache;
+        this.featureCache = featureCache;
+        this.lookupCache = lookupCache;
+    }
+
+    @Override
+    protected ImageStatsResponse newResponse(ImageStatsRequest request, AtomicReferenceArray responses) {
+        List<NodeImageStats> nodes = new ArrayList<NodeImageStats>();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof NodeImageStats) {
+                nodes.add((NodeImageStats) response);
+            }
+        }
+        return new ImageStatsResponse(clusterName, nodes.toArray(new NodeImageStats[nodes.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, ImageStatsRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected NodeImageStats newNodeResponse() {
+        return new NodeImageStats();
+    }
+
+    @Override
+    protected NodeImageStats nodeOperation(NodeRequest request) {
+        NodeImageStats.Phases indexing = new NodeImageStats.Phases();
+        imageStats.indexing().snapshot(indexing);
+        indexing.put("metadata", imageStats.metadata().snapshot());
+        NodeImageStats.Phases search = new NodeImageStats.Phases();
+        imageStats.query().snapshot(search);
+        imageStats.search().snapshot(search);
+        return new NodeImageStats(clusterService.localNode(), indexing, search, distanceCache.size(), distanceCache.stats(),
+                featureCache.size(), featureCache.stats(), lookupCache.size(), lookupCache.hits(), lookupCache.misses());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private ImageStatsRequest request;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, ImageStatsRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new ImageStatsRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
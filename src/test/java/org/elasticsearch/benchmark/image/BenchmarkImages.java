@@ -0,0 +1,83 @@
+package org.elasticsearch.benchmark.image;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.elasticsearch.index.mapper.image.ImageMapper;
+
+/**
+ * Image corpora of the benchmarks
+ */
+public final class BenchmarkImages {
+
+    public static final String SYNTHETIC = "synthetic";
+
+    private BenchmarkImages() {
+    }
+
+    /**
+     * {@code count} images of the corpus at most {@code maxDimension} on their longest side. The corpus is either
+     * {@link #SYNTHETIC} or a directory of photos, decoded like the mapper does and repeated if there are less than
+     * {@code count} of them.
+     */
+    public static BufferedImage[] corpus(String corpus, int count, int maxDimension) throws IOException {
+        BufferedImage[] images = new BufferedImage[count];
+        if (SYNTHETIC.equals(corpus)) {
+            Random random = new Random(0);
+            for (int i = 0; i < count; i++) {
+                images[i] = randomImage(random, maxDimension);
+            }
+            return images;
+        }
+
+        File[] files = new File(corpus).listFiles();
+        if (files == null) {
+            throw new IllegalArgumentException("[" + corpus + "] is neither [" + SYNTHETIC + "] nor a directory of photos");
+        }
+        Arrays.sort(files);
+        List<BufferedImage> photos = new ArrayList<BufferedImage>();
+        for (int i = 0; i < files.length && photos.size() < count; i++) {
+            BufferedImage photo = files[i].isFile() ? ImageMapper.readImage(Files.readAllBytes(files[i].toPath()), maxDimension, true) : null;
+            if (photo != null) {
+                photos.add(photo);
+            }
+        }
+        if (photos.isEmpty()) {
+            throw new IllegalArgumentException("No photos found in [" + corpus + "]");
+        }
+        for (int i = 0; i < count; i++) {
+            images[i] = photos.get(i % photos.size());
+        }
+        return images;
+    }
+
+    /**
+     * Random shapes on a gradient
+     */
+    public static BufferedImage randomImage(Random random, int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), size, size, new Color(random.nextInt(0xFFFFFF))));
+        g.fillRect(0, 0, size, size);
+        for (int i = 0; i < 20; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            int x = random.nextInt(size), y = random.nextInt(size), w = random.nextInt(size / 3 + 1) + 1, h = random.nextInt(size / 3 + 1) + 1;
+            if (random.nextBoolean()) {
+                g.fillRect(x, y, w, h);
+            } else {
+                g.fillOval(x, y, w, h);
+            }
+        }
+        g.dispose();
+        return image;
+    }
+}
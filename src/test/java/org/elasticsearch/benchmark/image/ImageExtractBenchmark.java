@@ -0,0 +1,85 @@
+package org.elasticsearch.benchmark.image;
+
+import java.awt.image.BufferedImage;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageFeatureExtractor;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Index time feature extraction throughput per configured feature set, extracting every feature on its own
+ * from the image like before versus the shared {@link ImageFeatureExtractor}. Single threaded.
+ *
+ * Run with {@code java -cp <test classpath> org.elasticsearch.benchmark.image.ImageExtractBenchmark [size] [images]}
+ */
+public class ImageExtractBenchmark {
+
+    @SuppressWarnings("unchecked")
+    private static final EnumSet<FeatureEnum>[] FEATURE_SETS = new EnumSet[] {
+            EnumSet.of(FeatureEnum.CEDD),
+            EnumSet.of(FeatureEnum.CEDD, FeatureEnum.FCTH, FeatureEnum.JCD),
+            EnumSet.of(FeatureEnum.JCD, FeatureEnum.COLOR_LAYOUT, FeatureEnum.EDGE_HISTOGRAM),
+            EnumSet.of(FeatureEnum.COLOR_LAYOUT, FeatureEnum.EDGE_HISTOGRAM, FeatureEnum.SCALABLE_COLOR),
+    };
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int numImages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Random random = new Random(0);
+        BufferedImage[] images = new BufferedImage[numImages];
+        for (int i = 0; i < numImages; i++) {
+            images[i] = randomImage(random, size);
+        }
+
+        System.out.println("images: " + numImages + " of " + size + "x" + size);
+        for (EnumSet<FeatureEnum> featureSet : FEATURE_SETS) {
+            // warm up
+            perFeature(images, featureSet);
+            shared(images, featureSet);
+
+            long start = System.nanoTime();
+            perFeature(images, featureSet);
+            long perFeature = System.nanoTime() - start;
+            start = System.nanoTime();
+            shared(images, featureSet);
+            long shared = System.nanoTime() - start;
+
+            System.out.printf("%-100s per feature: %8.2f images/s, shared: %8.2f images/s%n", featureSet,
+                    numImages * 1e9 / perFeature, numImages * 1e9 / shared);
+        }
+    }
+
+    private static void perFeature(BufferedImage[] images, EnumSet<FeatureEnum> featureSet) throws Exception {
+        for (BufferedImage image : images) {
+            for (FeatureEnum featureEnum : featureSet) {
+                LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+                lireFeature.extract(image);
+            }
+        }
+    }
+
+    private static void shared(BufferedImage[] images, EnumSet<FeatureEnum> featureSet) {
+        for (BufferedImage image : images) {
+            new ImageFeatureExtractor(image).extract(featureSet, null, false);
+        }
+    }
+
+    /**
+     * Random gradients with noise, in the RGB layout ImageIO decodes PNGs to
+     */
+    private static BufferedImage randomImage(Random random, int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        int r = random.nextInt(256), g = random.nextInt(256), b = random.nextInt(256);
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                int noise = random.nextInt(32);
+                image.setRGB(x, y, ((r + x + noise) & 0xFF) << 16 | ((g + y + noise) & 0xFF) << 8 | ((b + x + y) & 0xFF));
+            }
+        }
+        return image;
+    }
+}
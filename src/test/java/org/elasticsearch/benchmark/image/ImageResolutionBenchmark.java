@@ -0,0 +1,99 @@
+package org.elasticsearch.benchmark.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+/**
+ * Extraction time and retrieval quality of features per working resolution, see {@code max_dimension} in the mapping.
+ * Every image is queried with a distorted copy of itself (noise, brightness, slight crop): recall@1 is how often the
+ * original is the nearest image, mean rank its average position.
+ *
+ * Run with {@code java -cp <test classpath> org.elasticsearch.benchmark.image.ImageResolutionBenchmark [size] [images]}
+ */
+public class ImageResolutionBenchmark {
+
+    private static final FeatureEnum[] FEATURES = {FeatureEnum.CEDD, FeatureEnum.COLOR_LAYOUT, FeatureEnum.EDGE_HISTOGRAM,
+            FeatureEnum.FCTH, FeatureEnum.PHOG};
+
+    private static final int[] RESOLUTIONS = {128, 256, 512, 1024};
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int numImages = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Random random = new Random(0);
+        BufferedImage[] images = new BufferedImage[numImages];
+        BufferedImage[] queries = new BufferedImage[numImages];
+        for (int i = 0; i < numImages; i++) {
+            images[i] = BenchmarkImages.randomImage(random, size);
+            queries[i] = distort(random, images[i]);
+        }
+
+        System.out.println("images: " + numImages + " of " + size + "x" + size);
+        for (FeatureEnum featureEnum : FEATURES) {
+            for (int resolution : RESOLUTIONS) {
+                if (resolution > size) {
+                    continue;
+                }
+                extract(featureEnum, queries, resolution);  // warm up
+                long start = System.nanoTime();
+                LireFeature[] features = extract(featureEnum, images, resolution);
+                long took = System.nanoTime() - start;
+                LireFeature[] queryFeatures = extract(featureEnum, queries, resolution);
+
+                int hits = 0;
+                long ranks = 0;
+                for (int i = 0; i < numImages; i++) {
+                    float distance = queryFeatures[i].getDistance(features[i]);
+                    int rank = 1;
+                    for (int j = 0; j < numImages; j++) {
+                        if (j != i && queryFeatures[i].getDistance(features[j]) < distance) {
+                            rank++;
+                        }
+                    }
+                    if (rank == 1) {
+                        hits++;
+                    }
+                    ranks += rank;
+                }
+                System.out.printf("%-16s %5dpx extract: %7.2f ms/image, recall@1: %.3f, mean rank: %.2f%n", featureEnum,
+                        resolution, took / 1e6 / numImages, (double) hits / numImages, (double) ranks / numImages);
+            }
+        }
+    }
+
+    private static LireFeature[] extract(FeatureEnum featureEnum, BufferedImage[] images, int resolution) throws Exception {
+        LireFeature[] features = new LireFeature[images.length];
+        for (int i = 0; i < images.length; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(ImageUtils.scaleImage(images[i], resolution));
+            // some features keep a reference to the image, only keep the descriptor
+            features[i] = featureEnum.getFeatureClass().newInstance();
+            features[i].setByteArrayRepresentation(lireFeature.getByteArrayRepresentation());
+        }
+        return features;
+    }
+
+    private static BufferedImage distort(Random random, BufferedImage image) {
+        int crop = image.getWidth() / 20;
+        BufferedImage distorted = new BufferedImage(image.getWidth() - 2 * crop, image.getHeight() - 2 * crop, BufferedImage.TYPE_INT_RGB);
+        int brightness = random.nextInt(31) - 15;
+        for (int x = 0; x < distorted.getWidth(); x++) {
+            for (int y = 0; y < distorted.getHeight(); y++) {
+                int rgb = image.getRGB(x + crop, y + crop);
+                int noise = random.nextInt(21) - 10 + brightness;
+                distorted.setRGB(x, y, clamp((rgb >> 16 & 0xFF) + noise) << 16 | clamp((rgb >> 8 & 0xFF) + noise) << 8 | clamp((rgb & 0xFF) + noise));
+            }
+        }
+        return distorted;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
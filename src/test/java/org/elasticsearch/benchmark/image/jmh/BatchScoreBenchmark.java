@@ -0,0 +1,165 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.query.image.DistanceBatch;
+import org.elasticsearch.index.query.image.DistanceKernel;
+import org.elasticsearch.index.query.image.FeatureColumn;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Distance of one doc to the query image for the features with a {@link FeatureColumn}: the {@link DistanceKernel} on
+ * the doc values, on the column one doc at a time, and on the column {@link DistanceBatch#SIZE} docs at a time, with
+ * the threshold of a top 10 and without any.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class BatchScoreBenchmark {
+
+    private static final int DOCS = 1024;
+
+    @Param({"CEDD", "COLOR_LAYOUT", "FCTH", "JCD"})
+    public String feature;
+
+    @Param({BenchmarkImages.SYNTHETIC})
+    public String corpus;
+
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private BinaryDocValues docValues;
+    private FeatureColumn column;
+    private DistanceKernel distanceKernel;
+    private DistanceBatch batch;
+    private float threshold;
+
+    @Setup
+    public void setup() throws Exception {
+        FeatureEnum featureEnum = FeatureEnum.getByName(feature);
+        String luceneFieldName = "img." + featureEnum.name();
+        BufferedImage[] images = BenchmarkImages.corpus(corpus, 64, 256);
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        LireFeature queryFeature = null;
+        for (int i = 0; i < DOCS; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(images[i % images.length]);
+            if (i == 0) {
+                queryFeature = lireFeature;
+            }
+            Document document = new Document();
+            document.add(new BinaryDocValuesField(luceneFieldName, new BytesRef(lireFeature.getByteArrayRepresentation())));
+            writer.addDocument(document);
+        }
+        writer.forceMerge(1);
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        LeafReader leaf = reader.leaves().get(0).reader();
+        docValues = leaf.getBinaryDocValues(luceneFieldName);
+        column = FeatureColumn.build(leaf, luceneFieldName, featureEnum);
+        distanceKernel = DistanceKernel.forFeature(featureEnum, queryFeature);
+        batch = new DistanceBatch();
+
+        // threshold of a top 10 out of the docs, as when scoring with k
+        float[] distances = new float[DOCS];
+        for (int doc = 0; doc < DOCS; doc++) {
+            distances[doc] = distanceKernel.distance(column, doc, Float.POSITIVE_INFINITY);
+        }
+        Arrays.sort(distances);
+        threshold = distances[10];
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void docValues(Blackhole blackhole) {
+        for (int doc = 0; doc < DOCS; doc++) {
+            blackhole.consume(distanceKernel.distance(docValues.get(doc), threshold));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void docValuesExact(Blackhole blackhole) {
+        for (int doc = 0; doc < DOCS; doc++) {
+            blackhole.consume(distanceKernel.distance(docValues.get(doc), Float.POSITIVE_INFINITY));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void columnExact(Blackhole blackhole) {
+        for (int doc = 0; doc < DOCS; doc++) {
+            blackhole.consume(distanceKernel.distance(column, doc, Float.POSITIVE_INFINITY));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void column(Blackhole blackhole) {
+        for (int doc = 0; doc < DOCS; doc++) {
+            blackhole.consume(distanceKernel.distance(column, doc, threshold));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void columnBatch(Blackhole blackhole) {
+        batch(blackhole, threshold);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void columnBatchExact(Blackhole blackhole) {
+        batch(blackhole, Float.POSITIVE_INFINITY);
+    }
+
+    private void batch(Blackhole blackhole, float threshold) {
+        for (int doc = 0; doc < DOCS; doc++) {
+            if (batch.add(doc) || doc == DOCS - 1) {
+                distanceKernel.distances(column, batch, threshold);
+                for (int i = 0; i < batch.size(); i++) {
+                    blackhole.consume(batch.distance(i));
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * {@link LireFeature#extract} per feature and working resolution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ExtractBenchmark {
+
+    @Param({"CEDD", "COLOR_LAYOUT", "EDGE_HISTOGRAM", "FCTH", "JCD", "PHOG", "SCALABLE_COLOR"})
+    public String feature;
+
+    @Param({"256", "512", "1024"})
+    public int resolution;
+
+    /**
+     * {@code synthetic} or a directory of photos
+     */
+    @Param({BenchmarkImages.SYNTHETIC})
+    public String corpus;
+
+    private FeatureEnum featureEnum;
+    private BufferedImage[] images;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        featureEnum = FeatureEnum.getByName(feature);
+        images = BenchmarkImages.corpus(corpus, 16, resolution);
+    }
+
+    @Benchmark
+    public LireFeature extract() throws Exception {
+        LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+        lireFeature.extract(images[next++ % images.length]);
+        return lireFeature;
+    }
+}
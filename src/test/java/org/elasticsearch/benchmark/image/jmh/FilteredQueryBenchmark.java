@@ -0,0 +1,125 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.query.image.ImageQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * The top 10 images of one tenant owning {@code 1 / tenants} of the docs: the {@link ImageQuery} with the tenant as
+ * its filter, in a {@code bool} with the tenant as a filter clause, and the image query of all docs for reference.
+ * The {@code bool} computes the top 10 of all docs before intersecting them with the tenant, it costs as much as the
+ * query of all docs and matches fewer docs than the filter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class FilteredQueryBenchmark {
+
+    private static final String FIELD = "img";
+
+    @Param({"CEDD", "JCD"})
+    public String feature;
+
+    @Param({"100"})
+    public int tenants;
+
+    @Param({"100000"})
+    public int numDocs;
+
+    private FeatureEnum featureEnum;
+    private String luceneFieldName;
+    private LireFeature queryFeature;
+    private Query tenantQuery;
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+
+    @Setup
+    public void setup() throws Exception {
+        featureEnum = FeatureEnum.getByName(feature);
+        luceneFieldName = FIELD + "." + featureEnum.name();
+        tenantQuery = new TermQuery(new Term("tenant", "0"));
+
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        Random random = new Random(0);
+        for (int i = 0; i < numDocs; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(BenchmarkImages.randomImage(random, 32));
+            if (i == 0) {
+                queryFeature = lireFeature;
+            }
+            Document document = new Document();
+            document.add(new StringField("tenant", Integer.toString(random.nextInt(tenants)), Field.Store.NO));
+            document.add(new BinaryDocValuesField(luceneFieldName, new BytesRef(lireFeature.getByteArrayRepresentation())));
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);  // build the bitset of the tenant on each query
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs topKFilter() throws Exception {
+        ImageQuery query = new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f);
+        query.setFilter(tenantQuery);
+        return searcher.search(query, 10);
+    }
+
+    @Benchmark
+    public TopDocs topKBool() throws Exception {
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        query.add(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f), BooleanClause.Occur.MUST);
+        query.add(tenantQuery, BooleanClause.Occur.FILTER);
+        return searcher.search(query.build(), 10);
+    }
+
+    @Benchmark
+    public TopDocs topKAll() throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f), 10);
+    }
+}
@@ -0,0 +1,71 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Hashes of a feature, as generated at index time, and the probed hashes of hash queries
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HashBenchmark {
+
+    @Param({"CEDD", "COLOR_LAYOUT", "FCTH", "JCD"})
+    public String feature;
+
+    @Param({"BIT_SAMPLING", "LSH", "MULTI_PROBE_LSH"})
+    public String hash;
+
+    @Param({BenchmarkImages.SYNTHETIC})
+    public String corpus;
+
+    private ImageHash imageHash;
+    private double[][] histograms;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        imageHash = ImageHashes.get(hash);
+        FeatureEnum featureEnum = FeatureEnum.getByName(feature);
+        BufferedImage[] images = BenchmarkImages.corpus(corpus, 64, 256);
+        histograms = new double[images.length][];
+        for (int i = 0; i < images.length; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(images[i]);
+            histograms[i] = lireFeature.getDoubleHistogram();
+        }
+    }
+
+    @Benchmark
+    public int[] generateHashes() {
+        return imageHash.hash(histograms[next++ % histograms.length]);
+    }
+
+    @Benchmark
+    public int[] probe() {
+        double[] histogram = histograms[next++ % histograms.length];
+        return imageHash.probe(histogram, imageHash.defaultProbes());
+    }
+}
@@ -0,0 +1,173 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashFieldMapper;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.ImageHashCollisionQuery;
+import org.elasticsearch.index.query.image.ImageQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Recall and latency of the hash families against the brute force {@link ImageQuery}: the recall of the top 10 of
+ * the hash query, over query images that are not indexed, is printed once per trial along with the share of docs
+ * the probed hashes made candidates; the benchmarks time both queries.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HashRecallBenchmark {
+
+    private static final String FIELD = "img";
+    private static final int TOP = 10;
+    private static final int QUERIES = 100;
+
+    @Param({"CEDD", "JCD"})
+    public String feature;
+
+    @Param({"BIT_SAMPLING", "LSH", "MULTI_PROBE_LSH"})
+    public String hash;
+
+    /**
+     * Terms the hashes are indexed as, see {@link ImageHashFieldMapper.Encoding}
+     */
+    @Param({"BINARY", "TAGGED"})
+    public String encoding;
+
+    /**
+     * Neighbouring buckets probed per table, -1 for the default of the family
+     */
+    @Param({"0", "-1"})
+    public int probes;
+
+    @Param({"100000"})
+    public int numDocs;
+
+    @Param({BenchmarkImages.SYNTHETIC})
+    public String corpus;
+
+    private FeatureEnum featureEnum;
+    private String luceneFieldName;
+    private String hashFieldName;
+    private LireFeature[] queryFeatures;
+    private BytesRef[][] queryTerms;
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        featureEnum = FeatureEnum.getByName(feature);
+        ImageHash imageHash = ImageHashes.get(hash);
+        ImageHashFieldMapper.Encoding hashEncoding = ImageHashFieldMapper.Encoding.fromString(encoding);
+        luceneFieldName = FIELD + "." + featureEnum.name();
+        hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hash;
+
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        BufferedImage[] images = BenchmarkImages.corpus(corpus, numDocs + QUERIES, 32);
+        queryFeatures = new LireFeature[QUERIES];
+        queryTerms = new BytesRef[QUERIES][];
+        for (int i = 0; i < images.length; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(images[i]);
+            if (i >= numDocs) {  // the queries are not indexed
+                queryFeatures[i - numDocs] = lireFeature;
+                int[] queryHashes = imageHash.probe(lireFeature.getDoubleHistogram(), probes >= 0 ? probes : imageHash.defaultProbes());
+                queryTerms[i - numDocs] = hashEncoding.terms(queryHashes, imageHash.hash(lireFeature.getDoubleHistogram()).length);
+                continue;
+            }
+            Document document = new Document();
+            document.add(new BinaryDocValuesField(luceneFieldName, new BytesRef(lireFeature.getByteArrayRepresentation())));
+            int[] hashes = imageHash.hash(lireFeature.getDoubleHistogram());
+            for (BytesRef term : hashEncoding.terms(hashes, hashes.length)) {
+                document.add(new StringField(hashFieldName, term, Field.Store.NO));
+            }
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+
+        double recall = 0;
+        long candidates = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            Set<Integer> exact = new HashSet<Integer>();
+            for (ScoreDoc scoreDoc : bruteForce(i).scoreDocs) {
+                exact.add(scoreDoc.doc);
+            }
+            TopDocs approximate = hashCollisions(i);
+            candidates += approximate.totalHits;
+            for (ScoreDoc scoreDoc : approximate.scoreDocs) {
+                if (exact.contains(scoreDoc.doc)) {
+                    recall += 1.0 / exact.size();
+                }
+            }
+        }
+        System.out.printf("%n%s %s %s probes=%d: recall@%d=%.3f, %.1f%% of the docs are candidates%n", feature, hash,
+                encoding, probes, TOP, recall / QUERIES, 100.0 * candidates / QUERIES / numDocs);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs bruteForce() throws Exception {
+        return bruteForce(next++ % QUERIES);
+    }
+
+    @Benchmark
+    public TopDocs hashCollisions() throws Exception {
+        return hashCollisions(next++ % QUERIES);
+    }
+
+    private TopDocs bruteForce(int query) throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeatures[query], TOP, null, 1f), TOP);
+    }
+
+    private TopDocs hashCollisions(int query) throws Exception {
+        return searcher.search(new ImageHashCollisionQuery(hashFieldName, queryTerms[query], 1, luceneFieldName, featureEnum,
+                queryFeatures[query], null, 1f), TOP);
+    }
+}
@@ -0,0 +1,180 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageHash;
+import org.elasticsearch.index.mapper.image.ImageHashFieldMapper;
+import org.elasticsearch.index.mapper.image.ImageHashes;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.index.query.image.FeatureColumnCache;
+import org.elasticsearch.index.query.image.ImageDistanceCache;
+import org.elasticsearch.index.query.image.ImageHashCollisionQuery;
+import org.elasticsearch.index.query.image.ImageHashLimitQuery;
+import org.elasticsearch.index.query.image.ImageQuery;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * The image queries over an in-memory index with the same fields as the image mapper: the brute force
+ * {@link ImageQuery}, with and without k, on the doc values or on the feature columns, against the hash queries.
+ * The {@code cached} variants pass the query distances of a node {@link ImageDistanceCache}, as queries with
+ * {@code cache} set do: the brute force one puts every doc in the cache, the same query looks them up again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class QueryBenchmark {
+
+    private static final String FIELD = "img";
+    private static final int SLICE_SIZE = 10000;
+
+    @Param({"CEDD", "JCD"})
+    public String feature;
+
+    @Param({"BIT_SAMPLING", "LSH", "MULTI_PROBE_LSH"})
+    public String hash;
+
+    /**
+     * Terms the hashes are indexed as, see {@link ImageHashFieldMapper.Encoding}
+     */
+    @Param({"STRING", "BINARY"})
+    public String encoding;
+
+    @Param({"10000", "100000"})
+    public int numDocs;
+
+    private FeatureEnum featureEnum;
+    private String luceneFieldName;
+    private String hashFieldName;
+    private LireFeature queryFeature;
+    private BytesRef[] queryTerms;
+    private RAMDirectory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private ExecutorService executor;
+    private FeatureColumnCache columnCache;
+    private ImageDistanceCache distanceCache;
+
+    @Setup
+    public void setup() throws Exception {
+        featureEnum = FeatureEnum.getByName(feature);
+        ImageHash imageHash = ImageHashes.get(hash);
+        ImageHashFieldMapper.Encoding hashEncoding = ImageHashFieldMapper.Encoding.fromString(encoding);
+        luceneFieldName = FIELD + "." + featureEnum.name();
+        hashFieldName = luceneFieldName + "." + ImageMapper.HASH + "." + hash;
+
+        // small images keep the setup time reasonable, the query cost only depends on the features
+        directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        Random random = new Random(0);
+        for (int i = 0; i < numDocs; i++) {
+            LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+            lireFeature.extract(BenchmarkImages.randomImage(random, 32));
+            if (i == 0) {
+                queryFeature = lireFeature;
+                int[] queryHashes = imageHash.probe(lireFeature.getDoubleHistogram(), imageHash.defaultProbes());
+                queryTerms = hashEncoding.terms(queryHashes, imageHash.hash(lireFeature.getDoubleHistogram()).length);
+            }
+            Document document = new Document();
+            document.add(new BinaryDocValuesField(luceneFieldName, new BytesRef(lireFeature.getByteArrayRepresentation())));
+            int[] hashes = imageHash.hash(lireFeature.getDoubleHistogram());
+            for (BytesRef term : hashEncoding.terms(hashes, hashes.length)) {
+                document.add(new StringField(hashFieldName, term, Field.Store.NO));
+            }
+            writer.addDocument(document);
+        }
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        columnCache = new FeatureColumnCache(Settings.EMPTY, new ImageStats(Settings.EMPTY));
+        distanceCache = new ImageDistanceCache(Settings.EMPTY);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public TopDocs bruteForce() throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 0, null, 1f), 10);
+    }
+
+    @Benchmark
+    public TopDocs topK() throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f), 10);
+    }
+
+    @Benchmark
+    public TopDocs bruteForceCached() throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 0,
+                distanceCache.forQuery(luceneFieldName, featureEnum, queryFeature), 1f), 10);
+    }
+
+    @Benchmark
+    public TopDocs topKCached() throws Exception {
+        return searcher.search(new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10,
+                distanceCache.forQuery(luceneFieldName, featureEnum, queryFeature), 1f), 10);
+    }
+
+    @Benchmark
+    public TopDocs topKParallel() throws Exception {
+        ImageQuery query = new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f);
+        query.setExecutor(executor, SLICE_SIZE);
+        return searcher.search(query, 10);
+    }
+
+    @Benchmark
+    public TopDocs topKColumn() throws Exception {
+        ImageQuery query = new ImageQuery(luceneFieldName, featureEnum, queryFeature, 10, null, 1f);
+        query.setColumns(columnCache);  // built by the first invocation, like the warmer does on refresh
+        return searcher.search(query, 10);
+    }
+
+    @Benchmark
+    public TopDocs hashCollisions() throws Exception {
+        return searcher.search(new ImageHashCollisionQuery(hashFieldName, queryTerms, 1, luceneFieldName, featureEnum, queryFeature, null, 1f), 10);
+    }
+
+    @Benchmark
+    public TopDocs hashLimit() throws Exception {
+        return searcher.search(new ImageHashLimitQuery(hashFieldName, queryTerms, 100, 1, luceneFieldName, featureEnum, queryFeature, null, 1f), 10);
+    }
+}
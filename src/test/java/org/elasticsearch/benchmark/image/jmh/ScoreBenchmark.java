@@ -0,0 +1,104 @@
+package org.elasticsearch.benchmark.image.jmh;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.benchmark.image.BenchmarkImages;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.query.image.DistanceKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Distance of one doc to the query image, the per doc cost of the image scorers: deserializing the doc feature and
+ * asking LIRE like the scorers used to, versus the {@link DistanceKernel} on the doc values bytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScoreBenchmark {
+
+    private static final int DOCS = 1024;
+
+    @Param({"CEDD", "COLOR_LAYOUT", "EDGE_HISTOGRAM", "FCTH", "JCD", "PHOG", "SCALABLE_COLOR"})
+    public String feature;
+
+    @Param({BenchmarkImages.SYNTHETIC})
+    public String corpus;
+
+    private FeatureEnum featureEnum;
+    private LireFeature queryFeature;
+    private DistanceKernel distanceKernel;
+    private byte[][] docs;
+    private float threshold;
+
+    @Setup
+    public void setup() throws Exception {
+        featureEnum = FeatureEnum.getByName(feature);
+        BufferedImage[] images = BenchmarkImages.corpus(corpus, 64, 256);
+        docs = new byte[DOCS][];
+        for (int i = 0; i < DOCS; i++) {
+            if (i < images.length) {
+                LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+                lireFeature.extract(images[i]);
+                docs[i] = lireFeature.getByteArrayRepresentation();
+            } else {
+                docs[i] = docs[i % images.length];
+            }
+        }
+        queryFeature = featureEnum.getFeatureClass().newInstance();
+        queryFeature.setByteArrayRepresentation(docs[0]);
+        distanceKernel = DistanceKernel.forFeature(featureEnum, queryFeature);
+
+        // threshold of a top 10 out of the docs, as when scoring with k
+        float[] distances = new float[images.length];
+        for (int i = 0; i < images.length; i++) {
+            distances[i] = distanceKernel.distance(docs[i], 0, docs[i].length);
+        }
+        Arrays.sort(distances);
+        threshold = distances[Math.min(10, distances.length - 1)];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void lire(Blackhole blackhole) throws Exception {
+        for (byte[] doc : docs) {
+            LireFeature docFeature = featureEnum.getFeatureClass().newInstance();
+            docFeature.setByteArrayRepresentation(doc, 0, doc.length);
+            blackhole.consume(queryFeature.getDistance(docFeature));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void kernel(Blackhole blackhole) {
+        for (byte[] doc : docs) {
+            blackhole.consume(distanceKernel.distance(doc, 0, doc.length));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCS)
+    public void kernelWithThreshold(Blackhole blackhole) {
+        for (byte[] doc : docs) {
+            blackhole.consume(distanceKernel.distance(doc, 0, doc.length, threshold));
+        }
+    }
+}
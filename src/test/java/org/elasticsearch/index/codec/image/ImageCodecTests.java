@@ -0,0 +1,100 @@
+package org.elasticsearch.index.codec.image;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class ImageCodecTests extends ESTestCase {
+
+    @Test
+    public void test_merge_drops_stored_features() throws Exception {
+        assertTrue("registered for index.codec", Codec.forName(ImageCodec.NAME) instanceof ImageCodec);
+
+        Directory directory = newDirectory();
+        // existing segments, written with the stored copies
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(1, 20);
+        for (int i = 0; i < numDocs; i++) {
+            writer.addDocument(document(i));
+            if (rarely()) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        assertNotNull(reader.document(0).getBinaryValue("img.CEDD"));
+        reader.close();
+
+        // switched to the image codec, merged into one segment
+        writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()).setCodec(new ImageCodec()));
+        writer.addDocument(document(numDocs));
+        writer.forceMerge(1);
+        writer.close();
+
+        reader = DirectoryReader.open(directory);
+        assertEquals(1, reader.leaves().size());
+        LeafReader leaf = reader.leaves().get(0).reader();
+        BinaryDocValues docValues = leaf.getBinaryDocValues("img.CEDD");
+        for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+            Document document = leaf.document(doc);
+            assertNull("stored copy is dropped", document.getBinaryValue("img.CEDD"));
+            assertNotNull("hashes are kept", document.getBinaryValue("img.CEDD.hash.BIT_SAMPLING"));
+            assertNotNull("other fields are kept", document.get("id"));
+            assertNotNull("other binary fields are kept", document.getBinaryValue("thumbnail"));
+            assertNotNull("binary fields named like a feature without doc values are kept", document.getBinaryValue("photo.CEDD"));
+            int id = Integer.parseInt(document.get("id"));
+            assertEquals(feature(id), docValues.get(doc));
+        }
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_flush_drops_stored_features() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()).setCodec(new ImageCodec()));
+        int numDocs = randomIntBetween(1, 5);
+        for (int i = 0; i < numDocs; i++) {
+            writer.addDocument(document(i));
+        }
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(directory);
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            Document document = reader.document(doc);
+            assertNull("stored copy is dropped, first document of the segment included", document.getBinaryValue("img.CEDD"));
+            assertNotNull(document.getBinaryValue("photo.CEDD"));
+            assertEquals(Integer.toString(doc), document.get("id"));
+        }
+        reader.close();
+        directory.close();
+    }
+
+    private static Document document(int id) {
+        Document document = new Document();
+        document.add(new StringField("id", Integer.toString(id), Field.Store.YES));
+        document.add(new StoredField("img.CEDD", feature(id)));
+        document.add(new BinaryDocValuesField("img.CEDD", feature(id)));
+        document.add(new StoredField("img.CEDD.hash.BIT_SAMPLING", feature(id)));
+        document.add(new StoredField("thumbnail", feature(id)));
+        document.add(new StoredField("photo.CEDD", feature(id)));
+        return document;
+    }
+
+    private static BytesRef feature(int id) {
+        return new BytesRef(new byte[] {(byte) id, 1, 2, 3});
+    }
+}
@@ -0,0 +1,93 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+public class ImageFeatureExtractorTests extends ESTestCase {
+
+    private static final int[] IMAGE_TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_BGR,
+            BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY};
+
+    @Test
+    public void test_same_features_as_lire() throws Exception {
+        BufferedImage image = randomImage(IMAGE_TYPES[randomInt(IMAGE_TYPES.length - 1)]);
+        ImageFeatureExtractor extractor = new ImageFeatureExtractor(image);
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            byte[] expected = lireFeature(featureEnum, image);
+            if (expected == null) {  // feature does not support that image type
+                continue;
+            }
+            byte[] actual = extractor.extract(featureEnum).getByteArrayRepresentation();
+            assertTrue(featureEnum + " of image type " + image.getType(), Arrays.equals(expected, actual));
+        }
+    }
+
+    @Test
+    public void test_extract_multiple_features() throws Exception {
+        BufferedImage image = randomImage(IMAGE_TYPES[randomInt(IMAGE_TYPES.length - 1)]);
+        EnumSet<FeatureEnum> featureEnums = EnumSet.of(FeatureEnum.JCD, FeatureEnum.CEDD, FeatureEnum.COLOR_LAYOUT, FeatureEnum.LUMINANCE_LAYOUT);
+        if (randomBoolean()) {
+            featureEnums.remove(FeatureEnum.CEDD);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Map<FeatureEnum, LireFeature> features = new ImageFeatureExtractor(image).extract(featureEnums, randomBoolean() ? executor : null, false);
+            assertEquals(featureEnums, features.keySet());
+            for (FeatureEnum featureEnum : featureEnums) {
+                assertTrue(featureEnum.name(), Arrays.equals(lireFeature(featureEnum, image), features.get(featureEnum).getByteArrayRepresentation()));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void test_extract_at_working_resolution() throws Exception {
+        BufferedImage image = randomImage(BufferedImage.TYPE_INT_RGB);
+        Map<FeatureEnum, Integer> maxDimensions = Maps.newEnumMap(FeatureEnum.class);
+        maxDimensions.put(FeatureEnum.CEDD, randomIntBetween(4, 64));
+        maxDimensions.put(FeatureEnum.JCD, randomIntBetween(4, 64));
+        maxDimensions.put(FeatureEnum.COLOR_LAYOUT, randomIntBetween(4, 64));
+
+        Map<FeatureEnum, LireFeature> features = new ImageFeatureExtractor(image, maxDimensions).extract(maxDimensions.keySet(), null, false);
+        for (Map.Entry<FeatureEnum, Integer> entry : maxDimensions.entrySet()) {
+            byte[] expected = lireFeature(entry.getKey(), ImageUtils.scaleImage(image, entry.getValue()));
+            assertTrue(entry.getKey().name(), Arrays.equals(expected, features.get(entry.getKey()).getByteArrayRepresentation()));
+        }
+    }
+
+    private byte[] lireFeature(FeatureEnum featureEnum, BufferedImage image) throws Exception {
+        LireFeature lireFeature = featureEnum.getFeatureClass().newInstance();
+        try {
+            lireFeature.extract(image);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return lireFeature.getByteArrayRepresentation();
+    }
+
+    private BufferedImage randomImage(int type) {
+        BufferedImage image = new BufferedImage(randomIntBetween(8, 64), randomIntBetween(8, 64), type);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,87 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.ImageHashFieldMapper.Encoding;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class ImageHashFieldMapperTests extends ESTestCase {
+
+    @Test
+    public void test_binary_terms() throws Exception {
+        int[] hashes = new int[] {0, 1, 4095, Integer.MAX_VALUE, randomInt()};
+        BytesRef[] terms = Encoding.BINARY.terms(hashes, hashes.length);
+        assertEquals(hashes.length, terms.length);
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals("fixed width", 4, terms[i].length);
+            assertEquals(hashes[i], ((terms[i].bytes[terms[i].offset] & 0xFF) << 24) | ((terms[i].bytes[terms[i].offset + 1] & 0xFF) << 16)
+                    | ((terms[i].bytes[terms[i].offset + 2] & 0xFF) << 8) | (terms[i].bytes[terms[i].offset + 3] & 0xFF));
+        }
+        assertEquals("the same hash of two tables is the same term", Encoding.BINARY.terms(new int[] {7, 7}, 2)[0],
+                Encoding.BINARY.terms(new int[] {7, 7}, 2)[1]);
+    }
+
+    @Test
+    public void test_tagged_terms() throws Exception {
+        int tables = randomIntBetween(1, 300);
+        int perTable = randomIntBetween(1, 4);
+        int[] hashes = new int[tables * perTable];  // the same hash in every table
+        BytesRef[] terms = Encoding.TAGGED.terms(hashes, tables);
+        Set<BytesRef> distinct = new HashSet<BytesRef>();
+        for (int i = 0; i < terms.length; i++) {
+            assertEquals("fixed width", 6, terms[i].length);
+            int table = ((terms[i].bytes[terms[i].offset] & 0xFF) << 8) | (terms[i].bytes[terms[i].offset + 1] & 0xFF);
+            assertEquals("grouped by table", i / perTable, table);
+            distinct.add(terms[i]);
+        }
+        assertEquals("tables tag their terms", tables, distinct.size());
+
+        try {
+            Encoding.TAGGED.terms(new int[] {1, 2, 3}, 2);
+            fail("hashes not grouped by table should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_string_terms() throws Exception {
+        int h = randomIntBetween(0, Integer.MAX_VALUE);
+        assertEquals(new BytesRef(Integer.toString(h)), Encoding.STRING.terms(new int[] {h}, 1)[0]);
+    }
+
+    @Test
+    public void test_encoding_names() throws Exception {
+        for (Encoding encoding : Encoding.values()) {
+            assertEquals(encoding, Encoding.fromString(encoding.toString()));
+        }
+        assertEquals(Encoding.TAGGED, Encoding.fromString("TAGGED"));
+        try {
+            Encoding.fromString("unknown");
+            fail("unknown encodings should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_probes_can_be_tagged() throws Exception {
+        // a single projection has two neighbouring buckets only, the other probes repeat the bucket
+        MultiProbeLsh lsh = new MultiProbeLsh(randomIntBetween(1, 16), 1, 1.5f, 32, randomLong());
+        double[] histogram = new double[randomIntBetween(16, 192)];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = randomInt(16);
+        }
+        int probes = randomIntBetween(3, 10);
+        int[] probed = lsh.probe(histogram, probes);
+        assertEquals(lsh.tables() * (probes + 1), probed.length);
+        BytesRef[] terms = Encoding.TAGGED.terms(probed, lsh.hash(histogram).length);
+        int[] hashes = lsh.hash(histogram);
+        for (int t = 0; t < lsh.tables(); t++) {
+            assertEquals("each table starts with its bucket", Encoding.TAGGED.terms(hashes, hashes.length)[t], terms[t * (probes + 1)]);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.elasticsearch.index.mapper.image;
+
+import static org.hamcrest.Matchers.lessThan;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+public class ImageMapperTests extends ESTestCase {
+
+    @Test
+    public void test_read_image_without_subsampling() throws Exception {
+        int maxDimension = randomIntBetween(16, 64);
+        byte[] content = encode(randomImage(randomIntBetween(8, 2 * maxDimension), randomIntBetween(8, 2 * maxDimension)), randomFrom("png", "jpg"));
+
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(content));
+        if (Math.max(expected.getHeight(), expected.getWidth()) > maxDimension) {
+            expected = ImageUtils.scaleImage(expected, maxDimension);
+        }
+        BufferedImage actual = ImageMapper.readImage(content, maxDimension, randomBoolean());
+
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int x = 0; x < expected.getWidth(); x++) {
+            for (int y = 0; y < expected.getHeight(); y++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void test_read_image_with_subsampling() throws Exception {
+        int maxDimension = 256;
+        BufferedImage image = randomImage(randomIntBetween(1100, 2100), randomIntBetween(400, 800));
+        byte[] content = encode(image, randomFrom("png", "jpg"));
+
+        BufferedImage actual = ImageMapper.readImage(content, maxDimension, true);
+        assertEquals(maxDimension, actual.getWidth(), 1.0);  // ImageUtils.scaleImage truncates
+        assertEquals((double) maxDimension * image.getHeight() / image.getWidth(), actual.getHeight(), 2.0);
+
+        // subsampling changes the pixels about as much as scaling down the full resolution image does
+        BufferedImage expected = ImageUtils.scaleImage(ImageIO.read(new ByteArrayInputStream(content)), maxDimension);
+        double difference = 0;
+        for (int x = 0; x < actual.getWidth(); x++) {
+            for (int y = 0; y < actual.getHeight(); y++) {
+                int expectedRGB = expected.getRGB(x * expected.getWidth() / actual.getWidth(), y * expected.getHeight() / actual.getHeight());
+                int actualRGB = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    difference += Math.abs((expectedRGB >> shift & 0xFF) - (actualRGB >> shift & 0xFF));
+                }
+            }
+        }
+        assertThat(difference / (3 * actual.getWidth() * actual.getHeight()), lessThan(20.0));
+
+        // without subsampling, the same pixels as the full resolution image scaled down
+        BufferedImage full = ImageMapper.readImage(content, maxDimension, false);
+        assertEquals(expected.getWidth(), full.getWidth());
+        assertEquals(expected.getHeight(), full.getHeight());
+        for (int x = 0; x < expected.getWidth(); x++) {
+            for (int y = 0; y < expected.getHeight(); y++) {
+                assertEquals(expected.getRGB(x, y), full.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void test_read_unsupported_image() throws Exception {
+        assertNull(ImageMapper.readImage("not an image".getBytes("UTF-8"), 1024, randomBoolean()));
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Smooth gradients, so subsampling does not change the image too much
+     */
+    private BufferedImage randomImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        int r = randomInt(255), g = randomInt(255), b = randomInt(255);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, ((r + x) & 0xFF) << 16 | ((g + y) & 0xFF) << 8 | ((b + (x + y) / 2) & 0xFF));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,103 @@
+package org.elasticsearch.index.mapper.image;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class MultiProbeLshTests extends ESTestCase {
+
+    @Test
+    public void test_hash_one_term_per_table() throws Exception {
+        MultiProbeLsh lsh = new MultiProbeLsh(randomIntBetween(1, 16), randomIntBetween(1, 12), 1.5f, 32, randomLong());
+        double[] histogram = randomHistogram(randomIntBetween(16, 192));
+        int[] hashes = lsh.hash(histogram);
+        assertEquals(lsh.tables(), hashes.length);
+        assertTrue("hashes only depend on the feature", Arrays.equals(hashes, lsh.hash(histogram.clone())));
+        for (int h : hashes) {
+            assertTrue("hash terms are not negative", h >= 0);
+        }
+        assertTrue("hashes do not depend on the scale of the histogram", Arrays.equals(hashes, lsh.hash(scale(histogram, 2))));
+    }
+
+    @Test
+    public void test_probe_neighbouring_buckets() throws Exception {
+        int projections = randomIntBetween(4, 12);
+        MultiProbeLsh lsh = new MultiProbeLsh(randomIntBetween(1, 16), projections, 1.5f, 32, randomLong());
+        double[] histogram = randomHistogram(randomIntBetween(16, 192));
+        int[] hashes = lsh.hash(histogram);
+        assertTrue("no probes are the hashes", Arrays.equals(hashes, lsh.probe(histogram, 0)));
+
+        int probes = randomIntBetween(1, 2 * projections);
+        int[] probed = lsh.probe(histogram, probes);
+        assertEquals(lsh.tables() * (probes + 1), probed.length);
+        Set<Integer> terms = new HashSet<Integer>();
+        for (int h : probed) {
+            terms.add(h);
+        }
+        assertEquals("probes are distinct buckets", probed.length, terms.size());
+        for (int h : hashes) {
+            assertTrue("probes start with the buckets of the feature", terms.contains(h));
+        }
+    }
+
+    @Test
+    public void test_probes_find_close_features() throws Exception {
+        MultiProbeLsh lsh = new MultiProbeLsh(1, 10, 1.5f, 0, randomLong());
+        int found = 0, foundByProbing = 0;
+        for (int i = 0; i < 100; i++) {
+            double[] histogram = randomHistogram(144);
+            double[] close = histogram.clone();
+            for (int j = 0; j < close.length; j++) {
+                close[j] += randomDouble() * 0.5;
+            }
+            int bucket = lsh.hash(close)[0];
+            for (int h : lsh.probe(histogram, 0)) {
+                found += h == bucket ? 1 : 0;
+            }
+            for (int h : lsh.probe(histogram, 32)) {
+                foundByProbing += h == bucket ? 1 : 0;
+            }
+        }
+        assertTrue("probing finds at least the buckets of the feature", foundByProbing >= found);
+        assertTrue("probing finds close features in neighbouring buckets", foundByProbing > found);
+    }
+
+    @Test
+    public void test_registry() throws Exception {
+        for (HashEnum hashEnum : HashEnum.values()) {
+            assertNotNull(ImageHashes.get(hashEnum.name()));
+        }
+        assertEquals(HashEnum.MULTI_PROBE_LSH.name(), ImageHashes.name("multi_probe_lsh"));
+        try {
+            ImageHashes.get("unknown");
+            fail("unknown hash should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("unknown"));
+        }
+        try {
+            ImageHashes.register("lsh", new MultiProbeLsh(1, 1, 1, 0, 0));
+            fail("hashes should not be registered twice");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private double[] randomHistogram(int length) {
+        double[] histogram = new double[length];
+        for (int i = 0; i < length; i++) {
+            histogram[i] = randomInt(7);
+        }
+        return histogram;
+    }
+
+    private static double[] scale(double[] histogram, double factor) {
+        double[] scaled = new double[histogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            scaled[i] = histogram[i] * factor;
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,118 @@
+package org.elasticsearch.index.mapper.image;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.plugin.image.hash.HashBalance;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class TrainableImageHashTests extends ESTestCase {
+
+    @Test
+    public void test_training_balances_skewed_features() throws Exception {
+        List<double[]> sample = skewedSample(1000, 144);
+        for (HashEnum hashEnum : HashEnum.values()) {
+            TrainableImageHash hash = (TrainableImageHash) ImageHashes.get(hashEnum.name());
+            HashBalance before = HashBalance.of(hash, sample);
+            HashBalance after = HashBalance.of(hash.trained(hash.train(sample)), sample);
+            assertThat(hashEnum + " postings should be smaller", after.getMeanPosting(), lessThan(before.getMeanPosting()));
+            assertThat(hashEnum + " largest posting should not grow", after.getLargestTerm(), lessThanOrEqualTo(before.getLargestTerm()));
+            assertThat(hashEnum + " should have more terms", before.getDistinctTerms(), lessThan(after.getDistinctTerms()));
+        }
+    }
+
+    @Test
+    public void test_trained_parameters_round_trip() throws Exception {
+        List<double[]> sample = skewedSample(randomIntBetween(2, 200), 144);
+        double[] histogram = skewedSample(1, 144).get(0);
+        for (HashEnum hashEnum : HashEnum.values()) {
+            TrainableImageHash hash = (TrainableImageHash) ImageHashes.get(hashEnum.name());
+            Settings parameters = hash.train(sample);
+            assertEquals("the same sample gives the same parameters", parameters, hash.train(sample));
+            // as read back from the index settings
+            Settings stored = Settings.builder().put(parameters.getAsMap()).build();
+            assertTrue(Arrays.equals(hash.trained(parameters).hash(histogram), hash.trained(stored).hash(histogram)));
+            for (int h : hash.trained(stored).hash(histogram)) {
+                assertTrue("hash terms are not negative", h >= 0);
+            }
+            try {
+                hash.trained(Settings.builder().put(parameters.getAsMap()).put("tables", 1000).build());
+                fail("parameters of other tables should be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void test_multi_probe_lsh_trained_for_one_length() throws Exception {
+        MultiProbeLsh lsh = new MultiProbeLsh(randomIntBetween(1, 16), randomIntBetween(1, 12), 1.5f, 32, randomLong());
+        MultiProbeLsh trained = lsh.trained(lsh.train(skewedSample(100, 144)));
+        assertTrue(trained.isTrained());
+        assertFalse(lsh.isTrained());
+        assertEquals(lsh.tables(), trained.tables());
+        double[] other = skewedSample(1, 168).get(0);
+        assertTrue("other lengths are hashed untrained", Arrays.equals(lsh.probe(other, 3), trained.probe(other, 3)));
+    }
+
+    @Test
+    public void test_balance() throws Exception {
+        List<double[]> sample = skewedSample(randomIntBetween(1, 100), 16);
+        HashBalance same = HashBalance.of(new FixedHash(7, 7, 7), sample);
+        assertEquals(1, same.getDistinctTerms());
+        assertEquals(1.0, same.getLargestTerm(), 0.0);
+        assertEquals(1.0, same.getMeanPosting(), 0.0);
+
+        HashBalance none = HashBalance.of(new FixedHash(), sample);
+        assertEquals(0, none.getDistinctTerms());
+        assertEquals(0.0, none.getMeanPosting(), 0.0);
+    }
+
+    /**
+     * Histograms of one base image with a few bins changed, as a catalog of photos on the same background
+     */
+    private List<double[]> skewedSample(int size, int length) {
+        double[] base = new double[length];
+        for (int i = 0; i < length; i++) {
+            base[i] = randomInt(7);
+        }
+        List<double[]> sample = new ArrayList<double[]>(size);
+        for (int n = 0; n < size; n++) {
+            double[] histogram = base.clone();
+            for (int j = 0; j < length / 8; j++) {
+                histogram[randomInt(length - 1)] = randomInt(7);
+            }
+            sample.add(histogram);
+        }
+        return sample;
+    }
+
+    private static final class FixedHash implements ImageHash {
+        private final int[] hashes;
+
+        FixedHash(int... hashes) {
+            this.hashes = hashes;
+        }
+
+        @Override
+        public int[] hash(double[] histogram) {
+            return hashes.clone();
+        }
+
+        @Override
+        public int[] probe(double[] histogram, int probes) {
+            return hash(histogram);
+        }
+
+        @Override
+        public int defaultProbes() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.elasticsearch.index.query.image;
+
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class DistanceKernelTests extends ESTestCase {
+
+    @Test
+    public void test_kernel_matches_lire_distance() throws Exception {
+        BufferedImage queryImage = randomImage();
+        BufferedImage[] docImages = new BufferedImage[5];
+        for (int i = 0; i < docImages.length; i++) {
+            docImages[i] = randomImage();
+        }
+        docImages[0] = queryImage;  // exact match
+
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            LireFeature queryFeature = featureEnum.getFeatureClass().newInstance();
+            queryFeature.extract(queryImage);
+            DistanceKernel kernel = DistanceKernel.forFeature(featureEnum, queryFeature);
+
+            // the query may also come from a stored feature (lookup by id)
+            LireFeature storedQueryFeature = featureEnum.getFeatureClass().newInstance();
+            storedQueryFeature.setByteArrayRepresentation(queryFeature.getByteArrayRepresentation());
+            DistanceKernel storedKernel = DistanceKernel.forFeature(featureEnum, storedQueryFeature);
+
+            for (BufferedImage docImage : docImages) {
+                LireFeature extracted = featureEnum.getFeatureClass().newInstance();
+                extracted.extract(docImage);
+                byte[] bytes = extracted.getByteArrayRepresentation();
+
+                LireFeature docFeature = featureEnum.getFeatureClass().newInstance();
+                docFeature.setByteArrayRepresentation(bytes);
+
+                assertDistance(featureEnum, queryFeature.getDistance(docFeature), kernel, bytes);
+                assertDistance(featureEnum, storedQueryFeature.getDistance(docFeature), storedKernel, bytes);
+            }
+        }
+    }
+
+    private void assertDistance(FeatureEnum featureEnum, float expected, DistanceKernel kernel, byte[] bytes) {
+        assertEquals(featureEnum.name(), expected, kernel.distance(bytes, 0, bytes.length), 0f);
+
+        // doc values may hand out a slice of a larger shared buffer
+        int offset = randomIntBetween(1, 16);
+        byte[] padded = new byte[offset + bytes.length + randomIntBetween(1, 16)];
+        for (int i = 0; i < padded.length; i++) {
+            padded[i] = (byte) randomInt();
+        }
+        System.arraycopy(bytes, 0, padded, offset, bytes.length);
+        assertEquals(featureEnum.name(), expected, kernel.distance(new BytesRef(padded, offset, bytes.length)), 0f);
+
+        // below the threshold the distance is exact, above it any greater value may be returned
+        float threshold = randomBoolean() ? expected : expected * randomFloat() * 2;
+        float bounded = kernel.distance(new BytesRef(padded, offset, bytes.length), threshold);
+        if (expected <= threshold) {
+            assertEquals(featureEnum.name(), expected, bounded, 0f);
+        } else {
+            assertThat(featureEnum.name(), bounded, greaterThan(threshold));
+        }
+    }
+
+    @Test
+    public void test_heap_keeps_k_smallest_distances() {
+        int k = randomIntBetween(1, 20);
+        DistanceHeap heap = new DistanceHeap(k);
+        float[] distances = new float[randomIntBetween(0, 200)];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = randomFloat() * 100;
+            float threshold = heap.threshold();
+            assertEquals(distances[i] < threshold, heap.offer(distances[i]));
+        }
+        Arrays.sort(distances);
+        if (distances.length < k) {
+            assertEquals(distances.length, heap.size());
+            assertEquals(Float.POSITIVE_INFINITY, heap.threshold(), 0f);
+        } else {
+            assertEquals(k, heap.size());
+            assertEquals(distances[k - 1], heap.threshold(), 0f);
+        }
+    }
+
+    private BufferedImage randomImage() {
+        int width = randomIntBetween(64, 160);
+        int height = randomIntBetween(64, 160);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int blockSize = randomIntBetween(4, 32);
+        for (int x = 0; x < width; x += blockSize) {
+            for (int y = 0; y < height; y += blockSize) {
+                int rgb = randomInt(0xFFFFFF);
+                for (int i = x; i < Math.min(width, x + blockSize); i++) {
+                    for (int j = y; j < Math.min(height, y + blockSize); j++) {
+                        image.setRGB(i, j, randomBoolean() ? rgb : rgb ^ randomInt(0x0F0F0F));
+                    }
+                }
+            }
+        }
+        return image;
+    }
+}
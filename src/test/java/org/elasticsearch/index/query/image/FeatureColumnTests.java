@@ -0,0 +1,235 @@
+package org.elasticsearch.index.query.image;
+
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class FeatureColumnTests extends ESTestCase {
+
+    private static final FeatureEnum[] COLUMN_FEATURES = {FeatureEnum.CEDD, FeatureEnum.FCTH, FeatureEnum.JCD, FeatureEnum.COLOR_LAYOUT};
+
+    @Test
+    public void test_column_distance_matches_doc_values() throws Exception {
+        for (FeatureEnum featureEnum : FeatureEnum.values()) {
+            boolean hasColumn = false;
+            for (FeatureEnum columnFeature : COLUMN_FEATURES) {
+                hasColumn |= columnFeature == featureEnum;
+            }
+            assertEquals(featureEnum.name(), hasColumn, FeatureColumn.stride(featureEnum) > 0);
+        }
+
+        for (FeatureEnum featureEnum : COLUMN_FEATURES) {
+            String field = "img." + featureEnum.name();
+            Directory directory = newDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+            int numDocs = randomIntBetween(1, 20);
+            for (int i = 0; i < numDocs; i++) {
+                Document document = new Document();
+                if (i == 0 || randomInt(9) > 0) {
+                    document.add(new BinaryDocValuesField(field, new BytesRef(extract(featureEnum, randomImage()).getByteArrayRepresentation())));
+                }
+                writer.addDocument(document);
+            }
+            writer.close();
+            DirectoryReader reader = DirectoryReader.open(directory);
+            LeafReader leaf = reader.leaves().get(0).reader();
+            FeatureColumn column = FeatureColumn.build(leaf, field, featureEnum);
+            BinaryDocValues docValues = leaf.getBinaryDocValues(field);
+
+            DistanceKernel kernel = DistanceKernel.forFeature(featureEnum, extract(featureEnum, randomImage()));
+            int docs = 0;
+            for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+                if (docValues.get(doc).length == 0) {
+                    assertFalse(column.has(doc));
+                    continue;
+                }
+                docs++;
+                assertTrue(column.has(doc));
+                float expected = kernel.distance(docValues.get(doc));
+                assertEquals(featureEnum.name(), expected, kernel.distance(column, doc, Float.POSITIVE_INFINITY), 0f);
+
+                // below the threshold the distance is exact, above it any greater value may be returned
+                float threshold = randomBoolean() ? expected : expected * randomFloat() * 2;
+                float bounded = kernel.distance(column, doc, threshold);
+                if (expected <= threshold) {
+                    assertEquals(featureEnum.name(), expected, bounded, 0f);
+                } else {
+                    assertThat(featureEnum.name(), bounded, greaterThan(threshold));
+                }
+            }
+            assertEquals(docs, column.docs());
+            reader.close();
+            directory.close();
+        }
+    }
+
+    @Test
+    public void test_batch_distances_match_column() throws Exception {
+        for (FeatureEnum featureEnum : COLUMN_FEATURES) {
+            String field = "img." + featureEnum.name();
+            Directory directory = newDirectory();
+            IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+            int numDocs = randomIntBetween(1, 3 * DistanceBatch.SIZE);
+            for (int i = 0; i < numDocs; i++) {
+                Document document = new Document();
+                document.add(new BinaryDocValuesField(field, new BytesRef(extract(featureEnum, randomImage()).getByteArrayRepresentation())));
+                writer.addDocument(document);
+            }
+            writer.close();
+            DirectoryReader reader = DirectoryReader.open(directory);
+            LeafReader leaf = reader.leaves().get(0).reader();
+            FeatureColumn column = FeatureColumn.build(leaf, field, featureEnum);
+            DistanceKernel kernel = DistanceKernel.forFeature(featureEnum, extract(featureEnum, randomImage()));
+
+            // the same batch is reused, with docs of known distance in between
+            DistanceBatch batch = new DistanceBatch();
+            for (int iter = 0; iter < 3; iter++) {
+                float threshold = randomBoolean() ? Float.POSITIVE_INFINITY : kernel.distance(column, randomInt(numDocs - 1), Float.POSITIVE_INFINITY);
+                batch.clear();
+                boolean full = false;
+                while (!full) {
+                    int doc = randomInt(numDocs - 1);
+                    full = rarely() ? batch.add(doc, -1f) : batch.add(doc);
+                }
+                kernel.distances(column, batch, threshold);
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.distance(i) == -1f) {
+                        continue;  // known distances are kept
+                    }
+                    float expected = kernel.distance(column, batch.doc(i), Float.POSITIVE_INFINITY);
+                    if (expected <= threshold) {
+                        assertEquals(featureEnum.name(), expected, batch.distance(i), 0f);
+                    } else {
+                        assertThat(featureEnum.name(), batch.distance(i), greaterThan(threshold));
+                    }
+                }
+            }
+            reader.close();
+            directory.close();
+        }
+    }
+
+    @Test
+    public void test_column_query_matches_exact_query() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        String field = "img.CEDD";
+        int numDocs = randomIntBetween(10, 50);
+        LireFeature[] docFeatures = new LireFeature[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            docFeatures[i] = extract(FeatureEnum.CEDD, randomImage());
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            document.add(new BinaryDocValuesField(field, new BytesRef(docFeatures[i].getByteArrayRepresentation())));
+            writer.addDocument(document);
+            if (rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("id", "0"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        ImageStats imageStats = new ImageStats(Settings.EMPTY);
+        FeatureColumnCache columnCache = new FeatureColumnCache(Settings.EMPTY, imageStats);
+        LireFeature queryFeature = docFeatures[randomIntBetween(1, numDocs - 1)];
+        int k = randomIntBetween(1, 10);
+        for (int queryK : new int[] {0, k}) {
+            TopDocs exact = searcher.search(new ImageQuery(field, FeatureEnum.CEDD, queryFeature, queryK, null, 1f), k);
+            ImageQuery columnQuery = new ImageQuery(field, FeatureEnum.CEDD, queryFeature, queryK, null, 1f);
+            columnQuery.setColumns(columnCache);
+            TopDocs columnDocs = searcher.search(columnQuery, k);
+            assertEquals(exact.scoreDocs.length, columnDocs.scoreDocs.length);
+            for (int i = 0; i < exact.scoreDocs.length; i++) {
+                assertEquals(exact.scoreDocs[i].score, columnDocs.scoreDocs[i].score, 0f);
+            }
+        }
+
+        // parallel slices read the same columns
+        ImageQuery parallelQuery = new ImageQuery(field, FeatureEnum.CEDD, queryFeature, k, null, 1f);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        parallelQuery.setExecutor(executor, randomIntBetween(1, numDocs));
+        parallelQuery.setColumns(columnCache);
+        TopDocs parallelDocs = searcher.search(parallelQuery, k);
+        executor.shutdown();
+        TopDocs exact = searcher.search(new ImageQuery(field, FeatureEnum.CEDD, queryFeature, k, null, 1f), k);
+        for (int i = 0; i < exact.scoreDocs.length; i++) {
+            assertEquals(exact.scoreDocs[i].score, parallelDocs.scoreDocs[i].score, 0f);
+        }
+        assertEquals(reader.leaves().size(), columnCache.size());
+        assertEquals("built once per segment", reader.leaves().size(), imageStats.search().columnBuild().snapshot().getCount());
+        for (LeafReaderContext leaf : reader.leaves()) {
+            assertEquals(leaf.reader().maxDoc(), columnCache.column(leaf.reader(), field, FeatureEnum.CEDD).docs());
+        }
+
+        reader.close();
+        assertEquals("columns are dropped with their segments", 0, columnCache.size());
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_cache_size_is_absolute() throws Exception {
+        assertEquals(FeatureColumnCache.DEFAULT_SIZE, FeatureColumnCache.size(Settings.EMPTY));
+        assertEquals(64 * 1024 * 1024, FeatureColumnCache.size(Settings.builder().put(FeatureColumnCache.SIZE_SETTING, "64mb").build()).bytes());
+        try {
+            FeatureColumnCache.size(Settings.builder().put(FeatureColumnCache.SIZE_SETTING, "10%").build());
+            fail("columns are in direct memory, a share of the heap should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(FeatureColumnCache.SIZE_SETTING));
+        }
+    }
+
+    @Test
+    public void test_large_segments_have_no_column() throws Exception {
+        for (FeatureEnum featureEnum : COLUMN_FEATURES) {
+            int maxDocs = Integer.MAX_VALUE / FeatureColumn.stride(featureEnum);
+            assertTrue(FeatureColumn.fits(maxDocs, featureEnum));
+            assertFalse("the column would not fit in a buffer", FeatureColumn.fits(maxDocs + 1, featureEnum));
+        }
+    }
+
+    private LireFeature extract(FeatureEnum featureEnum, BufferedImage image) throws Exception {
+        LireFeature feature = featureEnum.getFeatureClass().newInstance();
+        feature.extract(image);
+        return feature;
+    }
+
+    private BufferedImage randomImage() {
+        BufferedImage image = new BufferedImage(randomIntBetween(8, 48), randomIntBetween(8, 48), BufferedImage.TYPE_INT_RGB);
+        int base = randomInt(0xFFFFFF);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomBoolean() ? base : randomInt(0xFFFFFF));
+            }
+        }
+        return image;
+    }
+}
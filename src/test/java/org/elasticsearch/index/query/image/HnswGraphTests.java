@@ -0,0 +1,186 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class HnswGraphTests extends ESTestCase {
+
+    private static final String FIELD = "img.CEDD";
+
+    @Test
+    public void test_recall_against_brute_force() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(200, 400);
+        LireFeature[] docFeatures = new LireFeature[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            docFeatures[i] = randomFeature();
+            writer.addDocument(document(i, docFeatures[i]));
+        }
+        writer.forceMerge(1);
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        LeafReader leaf = reader.leaves().get(0).reader();
+
+        HnswGraph graph = HnswGraph.build(leaf, FIELD, FeatureEnum.CEDD, HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION);
+        assertEquals(numDocs, graph.nodes());
+        assertTrue(graph.ramBytesUsed() > 0);
+
+        int k = 10;
+        int queries = 20;
+        int found = 0;
+        for (int q = 0; q < queries; q++) {
+            LireFeature queryFeature = randomBoolean() ? randomFeature() : docFeatures[randomInt(numDocs - 1)];
+            DistanceKernel kernel = DistanceKernel.forFeature(FeatureEnum.CEDD, queryFeature);
+            HnswGraph.Result result = graph.search(kernel, leaf.getBinaryDocValues(FIELD), null, k, 100);
+            assertEquals(k, result.docs.length);
+            assertTrue(result.visited >= k);
+            for (int i = 1; i < result.docs.length; i++) {
+                assertTrue("sorted by doc", result.docs[i - 1] < result.docs[i]);
+            }
+            for (int i = 0; i < result.docs.length; i++) {
+                assertEquals(kernel.distance(leaf.getBinaryDocValues(FIELD).get(result.docs[i])), result.distances[i], 0f);
+            }
+
+            TopDocs exact = searcher.search(new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, 0, null, 1f), k);
+            Set<Integer> graphDocs = new HashSet<Integer>();
+            for (int doc : result.docs) {
+                graphDocs.add(doc);
+            }
+            for (ScoreDoc scoreDoc : exact.scoreDocs) {
+                if (graphDocs.contains(scoreDoc.doc)) {
+                    found++;
+                }
+            }
+        }
+        assertTrue("recall of the top " + k + " was " + (float) found / (queries * k), found >= 0.9 * queries * k);
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_query_skips_deleted_docs() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(20, 60);
+        LireFeature[] docFeatures = new LireFeature[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            docFeatures[i] = randomFeature();
+            writer.addDocument(document(i, docFeatures[i]));
+            if (i == numDocs / 2 || rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        Document noImage = new Document();
+        noImage.add(new StringField("id", "none", Field.Store.NO));
+        writer.addDocument(noImage);
+        writer.deleteDocuments(new Term("id", "0"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        ImageStats imageStats = new ImageStats(Settings.EMPTY);
+        HnswGraphCache graphCache = new HnswGraphCache(Settings.EMPTY, imageStats);
+        ImageGraphQuery query = new ImageGraphQuery(FIELD, FeatureEnum.CEDD, docFeatures[0], numDocs, numDocs + 1,
+                HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION, graphCache, null, 1f);
+        query.setStats(imageStats.search());
+        TopDocs topDocs = searcher.search(query, numDocs + 1);
+        assertEquals("all live docs with an image, the deleted one excluded", numDocs - 1, topDocs.totalHits);
+        assertTrue(graphCache.size() > 0);
+        assertEquals(graphCache.size(), imageStats.search().graphBuild().snapshot().getCount());
+
+        // the exact query also scores the doc without image
+        TopDocs exact = searcher.search(new ImageQuery(FIELD, FeatureEnum.CEDD, docFeatures[0], 0, null, 1f), numDocs + 1);
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            assertEquals(exact.scoreDocs[i].score, topDocs.scoreDocs[i].score, 0f);
+        }
+
+        // only the k nearest of all segments match, however many segments there are
+        int k = randomIntBetween(1, 5);
+        ImageGraphQuery topK = new ImageGraphQuery(FIELD, FeatureEnum.CEDD, docFeatures[0], k, numDocs + 1,
+                HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION, graphCache, null, 1f);
+        TopDocs topKDocs = searcher.search(topK, numDocs + 1);
+        assertEquals(k, topKDocs.totalHits);
+        for (int i = 0; i < k; i++) {
+            assertEquals(exact.scoreDocs[i].score, topKDocs.scoreDocs[i].score, 0f);
+        }
+
+        // the second query reuses the graphs
+        searcher.search(query, 1);
+        assertEquals(graphCache.size(), imageStats.search().graphBuild().snapshot().getCount());
+
+        reader.close();
+        assertEquals("graphs are dropped with their segments", 0, graphCache.size());
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_empty_segment() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        Document document = new Document();
+        document.add(new StringField("id", "0", Field.Store.NO));
+        writer.addDocument(document);
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        LeafReader leaf = reader.leaves().get(0).reader();
+
+        HnswGraph graph = HnswGraph.build(leaf, FIELD, FeatureEnum.CEDD, HnswGraph.DEFAULT_M, HnswGraph.DEFAULT_EF_CONSTRUCTION);
+        assertEquals(0, graph.nodes());
+        HnswGraph.Result result = graph.search(DistanceKernel.forFeature(FeatureEnum.CEDD, randomFeature()),
+                leaf.getBinaryDocValues(FIELD), null, 10, 100);
+        assertEquals(0, result.docs.length);
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    private static Document document(int id, LireFeature feature) {
+        Document document = new Document();
+        document.add(new StringField("id", Integer.toString(id), Field.Store.NO));
+        document.add(new BinaryDocValuesField(FIELD, new BytesRef(feature.getByteArrayRepresentation())));
+        return document;
+    }
+
+    private LireFeature randomFeature() {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt(0xFFFFFF));
+            }
+        }
+        CEDD feature = new CEDD();
+        feature.extract(image);
+        return feature;
+    }
+}
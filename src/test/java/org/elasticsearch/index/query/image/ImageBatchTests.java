@@ -0,0 +1,97 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ImageBatchTests extends ESTestCase {
+
+    private static final String FIELD = "img.CEDD";
+
+    @Test
+    public void test_same_top_k_as_image_queries() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(20, 60);
+        LireFeature[] docFeatures = new LireFeature[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            docFeatures[i] = randomFeature();
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            document.add(new BinaryDocValuesField(FIELD, new BytesRef(docFeatures[i].getByteArrayRepresentation())));
+            writer.addDocument(document);
+            if (rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("id", "0"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        int k = randomIntBetween(1, 10);
+        LireFeature[] queryFeatures = {randomFeature(), docFeatures[1], null, randomFeature()};
+        DistanceKernel[] distanceKernels = new DistanceKernel[queryFeatures.length];
+        for (int i = 0; i < queryFeatures.length; i++) {
+            if (queryFeatures[i] != null) {
+                distanceKernels[i] = DistanceKernel.forFeature(FeatureEnum.CEDD, queryFeatures[i]);
+            }
+        }
+        ImageStats.SearchStats stats = new ImageStats.SearchStats();
+        ImageBatch.Hits[] hits = new ImageBatch(FIELD, distanceKernels, k, stats).topK(reader);
+
+        assertEquals(queryFeatures.length, hits.length);
+        assertNull("skipped query images have no hits", hits[2]);
+        for (int i = 0; i < queryFeatures.length; i++) {
+            if (queryFeatures[i] == null) {
+                continue;
+            }
+            TopDocs topDocs = searcher.search(new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeatures[i], 0, null, 1f), k);
+            assertEquals(topDocs.scoreDocs.length, hits[i].size());
+            for (int j = 0; j < hits[i].size(); j++) {
+                assertEquals(topDocs.scoreDocs[j].score, ImageBatch.score(hits[i].distance(j)), 0f);
+                if (j > 0) {
+                    assertTrue("hits are sorted by distance", hits[i].distance(j - 1) <= hits[i].distance(j));
+                }
+            }
+        }
+        assertEquals("the image of a doc is its own nearest image", 2f, ImageBatch.score(hits[1].distance(0)), 0f);
+        assertEquals(reader.leaves().size(), stats.docsScored().snapshot().getCount());
+        assertEquals(numDocs - 1, stats.docsScored().snapshot().getSum());
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    private LireFeature randomFeature() {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt(0xFFFFFF));
+            }
+        }
+        CEDD feature = new CEDD();
+        feature.extract(image);
+        return feature;
+    }
+}
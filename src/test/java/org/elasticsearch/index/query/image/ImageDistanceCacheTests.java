@@ -0,0 +1,157 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ImageDistanceCacheTests extends ESTestCase {
+
+    @Test
+    public void test_cache_distances_per_segment_and_query() throws Exception {
+        ImageDistanceCache cache = new ImageDistanceCache(Settings.builder().put(ImageDistanceCache.SIZE_SETTING, "1mb").build());
+        ImageDistanceCache.QueryDistances query = cache.forQuery("img.CEDD", FeatureEnum.CEDD, randomFeature());
+        ImageDistanceCache.QueryDistances otherQuery = cache.forQuery("img.CEDD", FeatureEnum.CEDD, randomFeature());
+
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        writer.addDocument(new Document());
+        writer.addDocument(new Document());
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        LeafReader leafReader = reader.leaves().get(0).reader();
+
+        assertTrue(Float.isNaN(query.get(leafReader, 0)));
+        query.put(leafReader, 0, 1.5f);
+        query.put(leafReader, 1, 2.5f);
+        assertEquals(1.5f, query.get(leafReader, 0), 0f);
+        assertEquals(2.5f, query.get(leafReader, 1), 0f);
+        assertTrue(Float.isNaN(otherQuery.get(leafReader, 0)));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.stats().hitCount());
+        assertEquals(2, cache.stats().missCount());
+        query.put(leafReader, 0, 1.5f);
+        assertEquals("replacing an entry by itself does not count it twice", 2, cache.size());
+        otherQuery.put(leafReader, 0, 3.5f);
+        assertEquals(cache.stats().evictionCount() > 0 ? 2 : 3, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        query.put(leafReader, 0, 1.5f);
+        assertEquals(1, cache.size());
+
+        reader.close();
+        assertEquals("closing the segment should drop its distances", 0, cache.size());
+
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_closing_a_segment_only_drops_its_distances() throws Exception {
+        // a few entries, so that some of them are evicted
+        ImageDistanceCache cache = new ImageDistanceCache(Settings.builder()
+                .put(ImageDistanceCache.SIZE_SETTING, (ImageDistanceCache.BYTES_PER_ENTRY * 50) + "b").build());
+        ImageDistanceCache.QueryDistances query = cache.forQuery("img.CEDD", FeatureEnum.CEDD, randomFeature());
+
+        Directory directory = newDirectory();
+        Directory otherDirectory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        IndexWriter otherWriter = new IndexWriter(otherDirectory, new IndexWriterConfig(new KeywordAnalyzer()));
+        for (int i = 0; i < 40; i++) {
+            writer.addDocument(new Document());
+            otherWriter.addDocument(new Document());
+        }
+        writer.commit();
+        otherWriter.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        DirectoryReader otherReader = DirectoryReader.open(otherDirectory);
+        LeafReader leafReader = reader.leaves().get(0).reader();
+        LeafReader otherLeafReader = otherReader.leaves().get(0).reader();
+
+        for (int doc = 0; doc < 40; doc++) {
+            query.put(leafReader, doc, doc);
+            query.put(otherLeafReader, doc, doc);
+        }
+        assertTrue("entries should have been evicted", cache.size() < 80);
+        assertTrue(cache.stats().evictionCount() > 0);
+
+        long otherEntries = 0;
+        for (int doc = 0; doc < 40; doc++) {
+            float distance = query.get(otherLeafReader, doc);
+            if (Float.isNaN(distance) == false) {
+                assertEquals(doc, distance, 0f);
+                otherEntries++;
+            }
+        }
+        reader.close();
+        assertEquals("closing the segment should only drop its distances", otherEntries, cache.size());
+        otherReader.close();
+        assertEquals(0, cache.size());
+
+        writer.close();
+        otherWriter.close();
+        directory.close();
+        otherDirectory.close();
+    }
+
+    @Test
+    public void test_distances_of_a_closed_segment_are_replaced() throws Exception {
+        ImageDistanceCache cache = new ImageDistanceCache(Settings.builder().put(ImageDistanceCache.SIZE_SETTING, "1mb").build());
+        ImageDistanceCache.QueryDistances query = cache.forQuery("img.CEDD", FeatureEnum.CEDD, randomFeature());
+
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        writer.addDocument(new Document());
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        query.put(reader.leaves().get(0).reader(), 0, 1.5f);
+        reader.close();
+
+        // same doc in a new segment
+        writer.deleteAll();
+        writer.addDocument(new Document());
+        writer.commit();
+        reader = DirectoryReader.open(directory);
+        LeafReader leafReader = reader.leaves().get(0).reader();
+        assertTrue("a new segment should not see the distances of a closed one", Float.isNaN(query.get(leafReader, 0)));
+        query.put(leafReader, 0, 2.5f);
+        assertEquals(2.5f, query.get(leafReader, 0), 0f);
+        assertEquals(1, cache.size());
+        reader.close();
+
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_cache_disabled() throws Exception {
+        ImageDistanceCache cache = new ImageDistanceCache(Settings.builder().put(ImageDistanceCache.SIZE_SETTING, "0b").build());
+        assertNull(cache.forQuery("img.CEDD", FeatureEnum.CEDD, randomFeature()));
+        assertEquals(0, cache.size());
+    }
+
+    private LireFeature randomFeature() {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt(0xFFFFFF));
+            }
+        }
+        CEDD feature = new CEDD();
+        feature.extract(image);
+        return feature;
+    }
+}
@@ -0,0 +1,112 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.index.mapper.image.ImageMapper;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import com.google.common.collect.Maps;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ImageFeatureCacheTests extends ESTestCase {
+
+    @Test
+    public void test_cache_features_per_image_feature_and_resolution() throws Exception {
+        ImageFeatureCache cache = new ImageFeatureCache(Settings.builder().put(ImageFeatureCache.SIZE_SETTING, "1mb").build());
+        byte[] image = randomImage();
+        ImageMapper.Resolution resolution = new ImageMapper.Resolution(64, 128);
+
+        LireFeature feature = cache.extract(image, FeatureEnum.CEDD, resolution, null);
+        LireFeature cached = cache.extract(image.clone(), FeatureEnum.CEDD, resolution, null);
+        assertTrue(Arrays.equals(feature.getByteArrayRepresentation(), cached.getByteArrayRepresentation()));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.stats().hitCount());
+
+        cache.extract(image, FeatureEnum.FCTH, resolution, null);
+        cache.extract(image, FeatureEnum.CEDD, new ImageMapper.Resolution(32, 128), null);
+        cache.extract(randomImage(), FeatureEnum.CEDD, resolution, null);
+        assertEquals("other features, resolutions and images are not hits", 1, cache.stats().hitCount());
+        assertEquals(4, cache.size());
+
+        assertNull("unsupported formats are not cached", cache.extract(new byte[] {1, 2, 3}, FeatureEnum.CEDD, resolution, null));
+        assertEquals(4, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void test_extract_features_from_one_decode() throws Exception {
+        ImageFeatureCache cache = new ImageFeatureCache(Settings.builder().put(ImageFeatureCache.SIZE_SETTING, "1mb").build());
+        byte[] image = randomImage();
+        ImageMapper.Resolution resolution = new ImageMapper.Resolution(64, 128);
+        LireFeature cedd = cache.extract(image, FeatureEnum.CEDD, resolution, null);
+
+        Map<FeatureEnum, ImageMapper.Resolution> resolutions = Maps.newEnumMap(FeatureEnum.class);
+        resolutions.put(FeatureEnum.CEDD, resolution);
+        resolutions.put(FeatureEnum.JCD, new ImageMapper.Resolution(32, 128));
+        resolutions.put(FeatureEnum.COLOR_LAYOUT, resolution);
+        Map<FeatureEnum, LireFeature> features = cache.extract(image, resolutions, null);
+        assertEquals(3, features.size());
+        assertEquals("cached features are not extracted again", 1, cache.stats().hitCount());
+        assertTrue(Arrays.equals(cedd.getByteArrayRepresentation(), features.get(FeatureEnum.CEDD).getByteArrayRepresentation()));
+        for (FeatureEnum featureEnum : new FeatureEnum[] {FeatureEnum.JCD, FeatureEnum.COLOR_LAYOUT}) {
+            LireFeature single = new ImageFeatureCache(Settings.builder().put(ImageFeatureCache.SIZE_SETTING, "0b").build())
+                    .extract(image, featureEnum, resolutions.get(featureEnum), null);
+            assertTrue("same as extracted on its own", Arrays.equals(single.getByteArrayRepresentation(),
+                    features.get(featureEnum).getByteArrayRepresentation()));
+        }
+        assertEquals(3, cache.size());
+
+        assertEquals(3, cache.extract(image, resolutions, null).size());
+        assertEquals(4, cache.stats().hitCount());
+        assertNull(cache.extract(new byte[] {1, 2, 3}, resolutions, null));
+    }
+
+    @Test
+    public void test_extracted_features_are_read_back_like_cached_ones() throws Exception {
+        ImageFeatureCache cache = new ImageFeatureCache(Settings.builder().put(ImageFeatureCache.SIZE_SETTING, "1mb").build());
+        ImageMapper.Resolution resolution = new ImageMapper.Resolution(64, 128);
+        for (int i = 0; i < 5; i++) {
+            byte[] image = randomImage();
+            LireFeature extracted = cache.extract(image, FeatureEnum.JCD, resolution, null);
+            LireFeature cached = cache.extract(image, FeatureEnum.JCD, resolution, null);
+            assertTrue("same histogram as the documents hash and score",
+                    Arrays.equals(extracted.getDoubleHistogram(), cached.getDoubleHistogram()));
+            assertTrue(Arrays.equals(extracted.getDoubleHistogram(),
+                    ImageFeatureCache.feature(FeatureEnum.JCD, extracted.getByteArrayRepresentation()).getDoubleHistogram()));
+        }
+    }
+
+    @Test
+    public void test_cache_disabled() throws Exception {
+        ImageFeatureCache cache = new ImageFeatureCache(Settings.builder().put(ImageFeatureCache.SIZE_SETTING, "0b").build());
+        byte[] image = randomImage();
+        LireFeature feature = cache.extract(image, FeatureEnum.CEDD, ImageMapper.Resolution.DEFAULT, null);
+        LireFeature again = cache.extract(image, FeatureEnum.CEDD, ImageMapper.Resolution.DEFAULT, null);
+        assertTrue(Arrays.equals(feature.getByteArrayRepresentation(), again.getByteArrayRepresentation()));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.stats().hitCount());
+    }
+
+    private byte[] randomImage() throws Exception {
+        BufferedImage image = new BufferedImage(randomIntBetween(32, 256), randomIntBetween(32, 256), BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt(0xFFFFFF));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
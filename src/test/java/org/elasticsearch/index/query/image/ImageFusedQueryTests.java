@@ -0,0 +1,233 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ImageFusedQueryTests extends ESTestCase {
+
+    private static final FeatureEnum[] FEATURES = {FeatureEnum.CEDD, FeatureEnum.COLOR_LAYOUT, FeatureEnum.EDGE_HISTOGRAM};
+
+    @Test
+    public void test_fused_scores_match_feature_distances() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(10, 50);
+        LireFeature[][] docFeatures = new LireFeature[numDocs][];
+        for (int i = 0; i < numDocs; i++) {
+            BufferedImage image = randomImage();
+            docFeatures[i] = new LireFeature[FEATURES.length];
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            for (int f = 0; f < FEATURES.length; f++) {
+                if (i > 0 && rarely()) {
+                    continue;  // docs missing a feature do not match
+                }
+                docFeatures[i][f] = extract(FEATURES[f], image);
+                document.add(new BinaryDocValuesField(field(FEATURES[f]), new BytesRef(docFeatures[i][f].getByteArrayRepresentation())));
+            }
+            writer.addDocument(document);
+            if (rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("id", "0"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        LireFeature[] queryFeatures = new LireFeature[FEATURES.length];
+        BufferedImage queryImage = randomImage();
+        float[] weights = new float[FEATURES.length];
+        for (int f = 0; f < FEATURES.length; f++) {
+            queryFeatures[f] = extract(FEATURES[f], queryImage);
+            weights[f] = new float[] {1f, 0.5f, randomFloat() + 0.01f}[randomInt(2)];
+        }
+
+        // weighted distances of the live docs with all features, as if scored feature by feature
+        Map<String, double[]> expected = new HashMap<String, double[]>();
+        for (int i = 1; i < numDocs; i++) {
+            double[] weighted = new double[FEATURES.length];
+            for (int f = 0; f < FEATURES.length; f++) {
+                if (docFeatures[i][f] == null) {
+                    weighted = null;
+                    break;
+                }
+                DistanceKernel kernel = DistanceKernel.forFeature(FEATURES[f], queryFeatures[f]);
+                weighted[f] = (double) weights[f] * kernel.distance(new BytesRef(docFeatures[i][f].getByteArrayRepresentation()));
+            }
+            if (weighted != null) {
+                expected.put(Integer.toString(i), weighted);
+            }
+        }
+
+        float boost = randomBoolean() ? 1f : 5f;
+        for (ImageFusedQuery.Fusion fusion : ImageFusedQuery.Fusion.values()) {
+            Map<String, Float> expectedScores = new HashMap<String, Float>();
+            for (Map.Entry<String, double[]> entry : expected.entrySet()) {
+                expectedScores.put(entry.getKey(), expectedScore(fusion, entry.getValue(), expected, weights, boost));
+            }
+
+            ImageFusedQuery query = fusedQuery(queryFeatures, weights, fusion, 0, boost);
+            TopDocs all = searcher.search(query, numDocs);
+            assertEquals(fusion.name(), expected.size(), all.totalHits);
+            for (ScoreDoc scoreDoc : all.scoreDocs) {
+                String id = searcher.doc(scoreDoc.doc).get("id");
+                assertEquals(fusion.name(), expectedScores.get(id), scoreDoc.score, 0f);
+            }
+
+            // the top k are the k best of all docs
+            int k = randomIntBetween(1, 10);
+            TopDocs topK = searcher.search(fusedQuery(queryFeatures, weights, fusion, k, boost), k);
+            assertEquals(fusion.name(), Math.min(k, expected.size()), topK.scoreDocs.length);
+            TopDocs allOfTopK = searcher.search(fusedQuery(queryFeatures, weights, fusion, k, boost), numDocs);
+            assertEquals(fusion.name() + " matches exactly k docs", Math.min(k, expected.size()), allOfTopK.totalHits);
+            for (int i = 0; i < topK.scoreDocs.length; i++) {
+                assertEquals(fusion.name(), all.scoreDocs[i].score, topK.scoreDocs[i].score, 0f);
+            }
+        }
+
+        // a single feature with weight 1 is the image query of the feature
+        ImageFusedQuery.Clause clause = new ImageFusedQuery.Clause(field(FeatureEnum.CEDD), FeatureEnum.CEDD, queryFeatures[0], 1f, null, false);
+        TopDocs fused = searcher.search(new ImageFusedQuery(new ImageFusedQuery.Clause[] {clause},
+                randomBoolean() ? ImageFusedQuery.Fusion.WEIGHTED_SUM : ImageFusedQuery.Fusion.MIN, 0, 1f), numDocs);
+        TopDocs single = searcher.search(new ImageQuery(field(FeatureEnum.CEDD), FeatureEnum.CEDD, queryFeatures[0], 0, null, 1f), numDocs);
+        Map<Integer, Float> singleScores = new HashMap<Integer, Float>();
+        for (ScoreDoc scoreDoc : single.scoreDocs) {
+            singleScores.put(scoreDoc.doc, scoreDoc.score);
+        }
+        int withFeature = 0;
+        for (int i = 1; i < numDocs; i++) {
+            withFeature += docFeatures[i][0] != null ? 1 : 0;
+        }
+        assertEquals(withFeature, fused.scoreDocs.length);
+        for (ScoreDoc scoreDoc : fused.scoreDocs) {
+            assertEquals(singleScores.get(scoreDoc.doc), scoreDoc.score, 0f);
+        }
+
+        // columns and the distance cache give the same scores
+        ImageStats imageStats = new ImageStats(Settings.EMPTY);
+        ImageDistanceCache distanceCache = new ImageDistanceCache(Settings.EMPTY);
+        ImageFusedQuery.Clause[] clauses = new ImageFusedQuery.Clause[FEATURES.length];
+        for (int f = 0; f < FEATURES.length; f++) {
+            clauses[f] = new ImageFusedQuery.Clause(field(FEATURES[f]), FEATURES[f], queryFeatures[f], weights[f],
+                    distanceCache.forQuery(field(FEATURES[f]), FEATURES[f], queryFeatures[f]), FeatureColumn.stride(FEATURES[f]) > 0);
+        }
+        ImageFusedQuery columnQuery = new ImageFusedQuery(clauses, ImageFusedQuery.Fusion.WEIGHTED_SUM, 0, boost);
+        columnQuery.setColumns(new FeatureColumnCache(Settings.EMPTY, imageStats));
+        TopDocs exact = searcher.search(fusedQuery(queryFeatures, weights, ImageFusedQuery.Fusion.WEIGHTED_SUM, 0, boost), numDocs);
+        long builds = 0;
+        for (int iter = 0; iter < 2; iter++) {  // then from the cache
+            TopDocs columnDocs = searcher.search(columnQuery, numDocs);
+            assertEquals(exact.scoreDocs.length, columnDocs.scoreDocs.length);
+            for (int i = 0; i < exact.scoreDocs.length; i++) {
+                assertEquals(exact.scoreDocs[i].score, columnDocs.scoreDocs[i].score, 0f);
+            }
+            if (iter == 0) {
+                builds = imageStats.search().columnBuild().snapshot().getCount();
+                assertTrue("columns of CEDD and COLOR_LAYOUT are built", builds > 0);
+            }
+        }
+        assertEquals("built once per segment", builds, imageStats.search().columnBuild().snapshot().getCount());
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    private float expectedScore(ImageFusedQuery.Fusion fusion, double[] weighted, Map<String, double[]> all, float[] weights, float boost) {
+        switch (fusion) {
+            case WEIGHTED_SUM:
+                double sum = 0.0;
+                for (double distance : weighted) {
+                    sum += distance;
+                }
+                return AbstractImageScorer.score((float) sum, boost);
+            case MIN:
+                double min = Double.POSITIVE_INFINITY;
+                for (double distance : weighted) {
+                    min = Math.min(min, distance);
+                }
+                return AbstractImageScorer.score((float) min, boost);
+            case RANK:
+                double score = 0.0;
+                for (int f = 0; f < weighted.length; f++) {
+                    int rank = 1;
+                    for (double[] other : all.values()) {
+                        rank += other[f] < weighted[f] ? 1 : 0;
+                    }
+                    score += weights[f] / (double) (ImageFusedQuery.RANK_CONSTANT + rank);
+                }
+                return (float) score * boost;
+            default:
+                throw new AssertionError(fusion);
+        }
+    }
+
+    private ImageFusedQuery fusedQuery(LireFeature[] queryFeatures, float[] weights, ImageFusedQuery.Fusion fusion, int k, float boost) {
+        ImageFusedQuery.Clause[] clauses = new ImageFusedQuery.Clause[FEATURES.length];
+        for (int f = 0; f < FEATURES.length; f++) {
+            clauses[f] = new ImageFusedQuery.Clause(field(FEATURES[f]), FEATURES[f], queryFeatures[f], weights[f], null, false);
+        }
+        return new ImageFusedQuery(clauses, fusion, k, boost);
+    }
+
+    @Test
+    public void test_weights_must_be_positive() throws Exception {
+        LireFeature feature = extract(FeatureEnum.CEDD, randomImage());
+        for (float weight : new float[] {0f, -1f, Float.NaN, Float.POSITIVE_INFINITY}) {
+            try {
+                new ImageFusedQuery.Clause(field(FeatureEnum.CEDD), FeatureEnum.CEDD, feature, weight, null, false);
+                fail("weight " + weight);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Weight of [CEDD]"));
+            }
+        }
+        assertEquals(ImageFusedQuery.Fusion.RANK, ImageFusedQuery.Fusion.fromString("rank"));
+        assertTrue(Arrays.asList(ImageFusedQuery.Fusion.values()).contains(ImageFusedQuery.Fusion.DEFAULT));
+    }
+
+    private static String field(FeatureEnum featureEnum) {
+        return "img." + featureEnum.name();
+    }
+
+    private LireFeature extract(FeatureEnum featureEnum, BufferedImage image) throws Exception {
+        LireFeature feature = featureEnum.getFeatureClass().newInstance();
+        feature.extract(image);
+        return feature;
+    }
+
+    private BufferedImage randomImage() {
+        BufferedImage image = new BufferedImage(randomIntBetween(8, 48), randomIntBetween(8, 48), BufferedImage.TYPE_INT_RGB);
+        int base = randomInt(0xFFFFFF);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomBoolean() ? base : randomInt(0xFFFFFF));
+            }
+        }
+        return image;
+    }
+}
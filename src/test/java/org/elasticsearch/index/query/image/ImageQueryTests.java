@@ -0,0 +1,275 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ImageQueryTests extends ESTestCase {
+
+    private static final String FIELD = "img.CEDD";
+
+    @Test
+    public void test_filter_scores_only_filtered_docs() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(20, 200);
+        List<Float> tenantDistances = new ArrayList<Float>();
+        List<Float> distances = new ArrayList<Float>();
+        List<Float> otherDistances = new ArrayList<Float>();
+        LireFeature queryFeature = extract(randomImage());
+        DistanceKernel kernel = DistanceKernel.forFeature(FeatureEnum.CEDD, queryFeature);
+        for (int i = 0; i < numDocs; i++) {
+            LireFeature feature = extract(randomImage());
+            boolean deleted = i > 0 && rarely();
+            boolean tenant = i == 0 || randomInt(9) == 0;
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            document.add(new StringField("tenant", tenant ? "a" : "b", Field.Store.NO));
+            document.add(new StringField("deleted", Boolean.toString(deleted), Field.Store.NO));
+            document.add(new BinaryDocValuesField(FIELD, new BytesRef(feature.getByteArrayRepresentation())));
+            writer.addDocument(document);
+            if (!deleted) {
+                float distance = kernel.distance(new BytesRef(feature.getByteArrayRepresentation()));
+                distances.add(distance);
+                (tenant ? tenantDistances : otherDistances).add(distance);
+            }
+            if (rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("deleted", "true"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        Query tenantQuery = new TermQuery(new Term("tenant", "a"));
+        Collections.sort(tenantDistances);
+        Collections.sort(distances);
+
+        // all docs of the tenant
+        ImageQuery all = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, 0, null, 1f);
+        all.setFilter(tenantQuery);
+        assertEquals(tenantDistances.size(), searcher.search(all, numDocs).totalHits);
+
+        // the k nearest docs of the tenant, each scored once, sequentially or on slices, from the columns or not
+        int k = randomIntBetween(1, 10);
+        for (int iter = 0; iter < 4; iter++) {
+            ImageStats imageStats = new ImageStats(Settings.EMPTY);
+            ImageQuery query = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, null, 1f);
+            query.setFilter(tenantQuery);
+            query.setStats(imageStats.search());
+            if (iter % 2 == 1) {
+                query.setExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }, randomIntBetween(1, 50));
+            }
+            if (iter >= 2) {
+                query.setColumns(new FeatureColumnCache(Settings.EMPTY, imageStats));
+            }
+            assertTopK(searcher.search(query, k), tenantDistances, k);
+            assertEquals(query.toString(), tenantDistances.size(), imageStats.search().docsScored().snapshot().getSum());
+        }
+
+        // in a conjunction, the k nearest images of all docs that match the other clauses
+        BooleanQuery.Builder conjunction = new BooleanQuery.Builder();
+        conjunction.add(new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, null, 1f), BooleanClause.Occur.MUST);
+        conjunction.add(tenantQuery, BooleanClause.Occur.FILTER);
+        List<Float> nearestOfTenant = new ArrayList<Float>();
+        for (float distance : distances.subList(0, Math.min(k, distances.size()))) {
+            if (!otherDistances.contains(distance)) {
+                nearestOfTenant.add(distance);
+            }
+        }
+        assertTopK(searcher.search(conjunction.build(), k), nearestOfTenant, nearestOfTenant.size());
+
+        // docs out of the filter do not match
+        ImageQuery other = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, 0, null, 1f);
+        other.setFilter(new TermQuery(new Term("tenant", "b")));
+        assertFalse(searcher.explain(other, searcher.search(all, 1).scoreDocs[0].doc).isMatch());
+        assertNotEquals(all, other);
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_top_k_matches_k_docs() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(20, 200);
+        List<Float> distances = new ArrayList<Float>();
+        LireFeature queryFeature = extract(randomImage());
+        DistanceKernel kernel = DistanceKernel.forFeature(FeatureEnum.CEDD, queryFeature);
+        for (int i = 0; i < numDocs; i++) {
+            LireFeature feature = extract(randomImage());
+            boolean deleted = rarely();
+            Document document = new Document();
+            document.add(new StringField("deleted", Boolean.toString(deleted), Field.Store.NO));
+            document.add(new BinaryDocValuesField(FIELD, new BytesRef(feature.getByteArrayRepresentation())));
+            writer.addDocument(document);
+            if (!deleted) {
+                distances.add(kernel.distance(new BytesRef(feature.getByteArrayRepresentation())));
+            }
+            if (rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("deleted", "true"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        Collections.sort(distances);
+
+        // exactly the k nearest live docs match, whatever the order the segments are scored in
+        int k = randomIntBetween(1, 10);
+        ImageQuery query = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, null, 1f);
+        TopDocs topK = searcher.search(query, numDocs);
+        assertEquals(Math.min(k, distances.size()), topK.totalHits);
+        assertTopK(topK, distances, k);
+
+        // a weight scores the same docs each time
+        Weight weight = searcher.createNormalizedWeight(query, true);
+        for (int iter = 0; iter < 2; iter++) {
+            int hits = 0;
+            for (LeafReaderContext leaf : reader.leaves()) {
+                Scorer scorer = weight.scorer(leaf);
+                if (scorer == null) {
+                    continue;
+                }
+                while (scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    hits++;
+                }
+            }
+            assertEquals(Math.min(k, distances.size()), hits);
+        }
+
+        // docs out of the k nearest do not match
+        ImageQuery all = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, 0, null, 1f);
+        TopDocs allDocs = searcher.search(all, numDocs);
+        if (allDocs.scoreDocs.length > k) {
+            assertFalse(searcher.explain(query, allDocs.scoreDocs[allDocs.scoreDocs.length - 1].doc).isMatch());
+        }
+        assertTrue(searcher.explain(query, allDocs.scoreDocs[0].doc).isMatch());
+
+        // explaining the hits of a search does not compute the top k again
+        ImageStats imageStats = new ImageStats(Settings.EMPTY);
+        query = new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, null, 1f);
+        query.setStats(imageStats.search());
+        topK = searcher.search(query, numDocs);
+        long docsScored = imageStats.search().docsScored().snapshot().getSum();
+        for (ScoreDoc scoreDoc : topK.scoreDocs) {
+            assertTrue(searcher.explain(query, scoreDoc.doc).isMatch());
+        }
+        assertEquals(docsScored, imageStats.search().docsScored().snapshot().getSum());
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    @Test
+    public void test_limit_counts_duplicate_terms_once() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        String hashField = FIELD + ".hash.MULTI_PROBE_LSH";
+        int numDocs = randomIntBetween(20, 100);
+        for (int i = 0; i < numDocs; i++) {
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            for (int bucket = 0; bucket < 4; bucket++) {
+                if (randomBoolean()) {
+                    document.add(new StringField(hashField, Integer.toString(bucket), Field.Store.NO));
+                }
+            }
+            document.add(new BinaryDocValuesField(FIELD, new BytesRef(extract(randomImage()).getByteArrayRepresentation())));
+            writer.addDocument(document);
+        }
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+        LireFeature queryFeature = extract(randomImage());
+
+        // the home bucket 0 pads the probes of the table
+        BytesRef[] terms = new BytesRef[] {new BytesRef("0"), new BytesRef("1"), new BytesRef("0"), new BytesRef("2"), new BytesRef("0")};
+        int minCollisions = 2;
+        TopDocs collisions = searcher.search(new ImageHashCollisionQuery(hashField, terms, minCollisions, FIELD, FeatureEnum.CEDD,
+                queryFeature, null, 1f), numDocs);
+        TopDocs limited = searcher.search(new ImageHashLimitQuery(hashField, terms, numDocs, minCollisions, FIELD, FeatureEnum.CEDD,
+                queryFeature, null, 1f), numDocs);
+        assertEquals("same candidates with and without limit", docs(collisions), docs(limited));
+
+        reader.close();
+        writer.close();
+        directory.close();
+    }
+
+    private Set<Integer> docs(TopDocs topDocs) {
+        Set<Integer> docs = new HashSet<Integer>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            docs.add(scoreDoc.doc);
+        }
+        return docs;
+    }
+
+    private void assertTopK(TopDocs topDocs, List<Float> distances, int k) {
+        assertEquals(Math.min(k, distances.size()), topDocs.scoreDocs.length);
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            ScoreDoc scoreDoc = topDocs.scoreDocs[i];
+            assertEquals(AbstractImageScorer.score(distances.get(i), 1f), scoreDoc.score, 0f);
+        }
+    }
+
+    private LireFeature extract(BufferedImage image) throws Exception {
+        LireFeature feature = FeatureEnum.CEDD.getFeatureClass().newInstance();
+        feature.extract(image);
+        return feature;
+    }
+
+    private BufferedImage randomImage() {
+        BufferedImage image = new BufferedImage(randomIntBetween(8, 32), randomIntBetween(8, 32), BufferedImage.TYPE_INT_RGB);
+        int base = randomInt(0xFFFFFF);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomBoolean() ? base : randomInt(0xFFFFFF));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,159 @@
+package org.elasticsearch.index.query.image;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.image.FeatureEnum;
+import org.elasticsearch.plugin.image.stats.ImageStats;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+public class ProductQuantizerTests extends ESTestCase {
+
+    private static final String FIELD = "img.CEDD";
+
+    @Test
+    public void test_asymmetric_distance() throws Exception {
+        int dimensions = randomIntBetween(8, 64);
+        int size = randomIntBetween(1, 50);
+        float[] sample = new float[size * dimensions];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = randomInt(7);
+        }
+        // as many centroids as histograms, each histogram is its own centroid
+        ProductQuantizer quantizer = ProductQuantizer.train(sample, size, dimensions, randomIntBetween(1, 16), 256, new Random(randomLong()));
+        assertEquals(size, quantizer.centroids());
+        assertTrue(quantizer.subspaces() <= dimensions);
+
+        double[] query = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            query[d] = randomInt(7);
+        }
+        float[] table = quantizer.distanceTable(query);
+        byte[] codes = new byte[quantizer.subspaces()];
+        for (int i = 0; i < size; i++) {
+            float[] histogram = new float[dimensions];
+            System.arraycopy(sample, i * dimensions, histogram, 0, dimensions);
+            quantizer.encode(histogram, codes, 0);
+            double exact = 0;
+            for (int d = 0; d < dimensions; d++) {
+                exact += (query[d] - histogram[d]) * (query[d] - histogram[d]);
+            }
+            assertEquals(exact, quantizer.distance(table, codes, 0), 1e-3);
+        }
+    }
+
+    @Test
+    public void test_fewer_centroids_than_histograms() throws Exception {
+        int dimensions = 16;
+        int size = 200;
+        float[] sample = new float[size * dimensions];
+        for (int i = 0; i < size; i++) {
+            // two clusters
+            for (int d = 0; d < dimensions; d++) {
+                sample[i * dimensions + d] = (i % 2 == 0 ? 0 : 10) + randomFloat();
+            }
+        }
+        ProductQuantizer quantizer = ProductQuantizer.train(sample, size, dimensions, 4, 2, new Random(randomLong()));
+        assertEquals(2, quantizer.centroids());
+        byte[] even = new byte[4];
+        byte[] odd = new byte[4];
+        float[] histogram = new float[dimensions];
+        System.arraycopy(sample, 0, histogram, 0, dimensions);
+        quantizer.encode(histogram, even, 0);
+        System.arraycopy(sample, dimensions, histogram, 0, dimensions);
+        quantizer.encode(histogram, odd, 0);
+        for (int s = 0; s < 4; s++) {
+            assertTrue("the clusters get different centroids", even[s] != odd[s]);
+        }
+    }
+
+    @Test
+    public void test_rerank_matches_exact_query() throws Exception {
+        Directory directory = newDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
+        int numDocs = randomIntBetween(20, 60);
+        LireFeature[] docFeatures = new LireFeature[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            docFeatures[i] = randomFeature();
+            Document document = new Document();
+            document.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+            document.add(new BinaryDocValuesField(FIELD, new BytesRef(docFeatures[i].getByteArrayRepresentation())));
+            writer.addDocument(document);
+            if (i == numDocs / 2 || rarely()) {
+                writer.commit();  // several segments
+            }
+        }
+        writer.deleteDocuments(new Term("id", "0"));
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        IndexSearcher searcher = new IndexSearcher(reader);
+
+        ImageStats imageStats = new ImageStats(Settings.EMPTY);
+        QuantizedFeaturesCache quantizedCache = new QuantizedFeaturesCache(Settings.EMPTY, imageStats);
+        int k = randomIntBetween(1, 10);
+        LireFeature queryFeature = docFeatures[1];
+
+        // re-ranking all docs is the exact query
+        ImageQuantizedQuery query = new ImageQuantizedQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, numDocs, 4, 16,
+                quantizedCache, null, 1f);
+        query.setStats(imageStats.search());
+        TopDocs topDocs = searcher.search(query, numDocs);
+        assertEquals("only the k nearest of all segments match", k, topDocs.totalHits);
+        TopDocs exact = searcher.search(new ImageQuery(FIELD, FeatureEnum.CEDD, queryFeature, 0, null, 1f), k);
+        assertEquals(exact.scoreDocs.length, topDocs.scoreDocs.length);
+        for (int i = 0; i < topDocs.scoreDocs.length; i++) {
+            assertEquals(exact.scoreDocs[i].score, topDocs.scoreDocs[i].score, 0f);
+        }
+        assertEquals("the deleted doc is not scored", numDocs - 1, imageStats.search().docsScored().snapshot().getSum());
+        assertEquals(reader.leaves().size(), quantizedCache.size());
+        for (LeafReaderContext leaf : reader.leaves()) {
+            QuantizedFeatures features = quantizedCache.features(leaf.reader(), FIELD, FeatureEnum.CEDD, 4, 16);
+            assertEquals(leaf.reader().maxDoc(), features.docs());
+            assertEquals(4, features.quantizer().subspaces());
+        }
+
+        // without re-ranking only the approximate distances are computed
+        ImageQuantizedQuery approximate = new ImageQuantizedQuery(FIELD, FeatureEnum.CEDD, queryFeature, k, 0, 4, 16,
+                quantizedCache, null, 1f);
+        TopDocs approximateDocs = searcher.search(approximate, numDocs);
+        assertEquals(k, approximateDocs.totalHits);
+        assertEquals(k, approximateDocs.scoreDocs.length);
+        assertEquals("built once per segment", reader.leaves().size(), imageStats.search().quantize().snapshot().getCount());
+
+        reader.close();
+        assertEquals("codes are dropped with their segments", 0, quantizedCache.size());
+        writer.close();
+        directory.close();
+    }
+
+    private LireFeature randomFeature() {
+        BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                image.setRGB(x, y, randomInt(0xFFFFFF));
+            }
+        }
+        CEDD feature = new CEDD();
+        feature.extract(image);
+        return feature;
+    }
+}
@@ -0,0 +1,46 @@
+package org.elasticsearch.plugin.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class ImageSearchFilterTests extends ESTestCase {
+
+    private static final String IMAGE_QUERY = "{\"image\": {\"img\": {\"feature\": \"CEDD\", \"image\": \"AAAA\"}}}";
+
+    @Test
+    public void test_find_image_queries_of_query_contexts_only() throws Exception {
+        String source = "{"
+                + "\"query\": {\"bool\": {\"must\": [" + IMAGE_QUERY + "],"
+                + "  \"filter\": {\"more_like_this\": {\"like\": [{\"doc\": " + IMAGE_QUERY + "}]}}}},"
+                + "\"post_filter\": {\"function_score\": {\"functions\": [{\"filter\": " + IMAGE_QUERY + ", \"weight\": 2}]}},"
+                + "\"rescore\": {\"query\": {\"rescore_query\": " + IMAGE_QUERY + "}},"
+                + "\"_source\": {\"include\": " + IMAGE_QUERY + "},"
+                + "\"aggs\": {\"similar\": {\"filter\": " + IMAGE_QUERY + "}}"
+                + "}";
+        List<Tuple<String, Map<String, Object>>> queries = new ArrayList<Tuple<String, Map<String, Object>>>();
+        ImageSearchFilter.findImageQueries(XContentHelper.convertToMap(new BytesArray(source), true).v2(), queries);
+        assertEquals(3, queries.size());
+        for (Tuple<String, Map<String, Object>> query : queries) {
+            assertEquals("img", query.v1());
+            assertEquals("AAAA", query.v2().get("image"));
+        }
+    }
+
+    @Test
+    public void test_sources_without_image_are_not_parsed() throws Exception {
+        assertTrue(ImageSearchFilter.mayHaveImageQuery(new BytesArray("{\"query\": " + IMAGE_QUERY + "}")));
+        assertFalse(ImageSearchFilter.mayHaveImageQuery(new BytesArray("{\"query\": {\"term\": {\"tag\": \"imag\"}}}")));
+        assertFalse(ImageSearchFilter.mayHaveImageQuery(new BytesArray("imag")));
+        assertFalse(ImageSearchFilter.mayHaveImageQuery(null));
+        byte[] bytes = ("xx" + IMAGE_QUERY).getBytes("UTF-8");
+        assertTrue(ImageSearchFilter.mayHaveImageQuery(new BytesArray(bytes, 2, bytes.length - 2)));
+        assertFalse(ImageSearchFilter.mayHaveImageQuery(new BytesArray(bytes, 0, 8)));
+    }
+}
@@ -0,0 +1,55 @@
+package org.elasticsearch.plugin.image.stats;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.util.Arrays;
+
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.test.ESTestCase;
+import org.junit.Test;
+
+public class HistogramTests extends ESTestCase {
+
+    @Test
+    public void test_buckets() {
+        for (int i = 0; i < 1000; i++) {
+            long value = randomBoolean() ? randomIntBetween(0, 100) : randomLong() & Long.MAX_VALUE;
+            int bucket = Histogram.bucket(value);
+            assertThat(bucket, lessThanOrEqualTo(Histogram.BUCKETS - 1));
+            assertThat(Histogram.bucketUpperBound(bucket), greaterThanOrEqualTo(value));
+            if (bucket > 0) {
+                assertThat("value should not fit the previous bucket", Histogram.bucketUpperBound(bucket - 1), lessThanOrEqualTo(value - 1));
+            }
+        }
+    }
+
+    @Test
+    public void test_percentiles() throws Exception {
+        Histogram histogram = Histogram.count();
+        long[] values = new long[randomIntBetween(1, 1000)];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = randomIntBetween(0, 1000000);
+            sum += values[i];
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        // stats are sent between nodes
+        BytesStreamOutput out = new BytesStreamOutput();
+        histogram.snapshot().writeTo(out);
+        Histogram.Snapshot snapshot = Histogram.Snapshot.readSnapshot(StreamInput.wrap(out.bytes()));
+
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(sum, snapshot.getSum());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double percentile : new double[] {50, 90, 99, 100}) {
+            long expected = values[(int) Math.ceil(values.length * percentile / 100) - 1];
+            long actual = snapshot.getPercentile(percentile);
+            assertThat(actual, greaterThanOrEqualTo(expected));
+            assertThat(actual, lessThanOrEqualTo(expected + expected / 4));
+        }
+    }
+}
@@ -2,39 +2,74 @@ package org.elasticsearch.plugin.image.test;
 
 import static org.elasticsearch.client.Requests.putMappingRequest;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
 import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
 import org.elasticsearch.Version;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.codec.image.ImageCodec;
 import org.elasticsearch.index.mapper.image.FeatureEnum;
 import org.elasticsearch.index.mapper.image.HashEnum;
+import org.elasticsearch.index.mapper.image.ImageHashService;
+import org.elasticsearch.index.mapper.image.ImageMapper;
 import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.query.image.ImageLookupCache;
+import org.elasticsearch.index.query.image.HnswGraph;
+import org.elasticsearch.index.query.image.ImageFusedQuery;
 import org.elasticsearch.index.query.image.ImageQueryBuilder;
+import org.elasticsearch.index.query.image.ProductQuantizer;
+import org.elasticsearch.index.query.image.ImageQueryParser;
+import org.elasticsearch.plugin.image.ImageFeaturesFetchSubPhase;
 import org.elasticsearch.plugin.image.ImagePlugin;
+import org.elasticsearch.plugin.image.batch.ImageBatchAction;
+import org.elasticsearch.plugin.image.batch.ImageBatchRequestBuilder;
+import org.elasticsearch.plugin.image.batch.ImageBatchResponse;
+import org.elasticsearch.plugin.image.hash.ImageHashTrainAction;
+import org.elasticsearch.plugin.image.hash.ImageHashTrainRequestBuilder;
+import org.elasticsearch.plugin.image.hash.ImageHashTrainResponse;
+import org.elasticsearch.plugin.image.stats.ImageStatsAction;
+import org.elasticsearch.plugin.image.stats.ImageStatsRequest;
+import org.elasticsearch.plugin.image.stats.ImageStatsResponse;
+import org.elasticsearch.plugin.image.stats.NodeImageStats;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.threadpool.ThreadPoolStats;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -57,12 +92,19 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         return pluginList(ImagePlugin.class);
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        return pluginList(ImagePlugin.class);
+    }
+
     @Override
     protected Settings nodeSettings(int nodeOrdinal) {
         return Settings.builder()
                 .put(super.nodeSettings(nodeOrdinal))
                 .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT.id)
                 .put("plugins." + LOAD_PLUGIN_FROM_CLASSPATH, true)
+                .put(ImageQueryParser.SLICE_SIZE_SETTING, randomIntBetween(1, 20))
                 .build();
     }
 
@@ -87,6 +129,7 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
     }
 
 
+    @SuppressWarnings("unchecked")
     @Test
     public void test_index_search_image() throws Exception {
 
@@ -100,6 +143,22 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         String mapping =  Streams.copyToString((new InputStreamReader(is, Charsets.UTF_8)));
         client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
 
+        // working resolutions are stored in the mapping, the field one resolved from the index default
+        Map<String, Object> imgMapping = (Map<String, Object>) XContentMapValues.extractValue("properties.img",
+                client().admin().indices().prepareGetMappings(INDEX_NAME).get().getMappings().get(INDEX_NAME).get(DOC_TYPE_NAME).sourceAsMap());
+        assertThat(imgMapping.get(ImageMapper.MAX_DIMENSION), equalTo((Object) ImageMapper.MAX_IMAGE_DIMENSION));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.max_dimension", imgMapping), equalTo((Object) 256));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.hnsw.m", imgMapping), equalTo((Object) 8));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.hnsw.ef_construction", imgMapping), equalTo((Object) HnswGraph.DEFAULT_EF_CONSTRUCTION));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.pq.subspaces", imgMapping), equalTo((Object) 8));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.pq.centroids", imgMapping), equalTo((Object) ProductQuantizer.DEFAULT_CENTROIDS));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.store", imgMapping), equalTo((Object) false));
+        assertThat(XContentMapValues.extractValue("feature.JCD.store", imgMapping), equalTo((Object) true));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.column", imgMapping), equalTo((Object) true));
+        assertNull(XContentMapValues.extractValue("feature.JCD.column", imgMapping));
+        assertThat("mappings without an encoding keep string terms", XContentMapValues.extractValue("feature.FCTH.hash_encoding", imgMapping), equalTo((Object) "string"));
+        assertThat(XContentMapValues.extractValue("feature.CEDD.hash_encoding", imgMapping), equalTo((Object) "binary"));
+
         int totalImages = randomIntBetween(10, 50);
         // generate random images and index
         String nameToSearch = null;
@@ -119,6 +178,20 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
 
         refresh();
 
+        // features are extracted on the image_extract pool, which shows up in node stats
+        String useThreadPool = client().admin().indices().prepareGetSettings(INDEX_NAME).get().getSetting(INDEX_NAME, "index.image.use_thread_pool");
+        long extracted = 0;
+        for (NodeStats nodeStats : client().admin().cluster().prepareNodesStats().setThreadPool(true).get().getNodes()) {
+            for (ThreadPoolStats.Stats stats : nodeStats.getThreadPool()) {
+                if (ImageMapper.THREAD_POOL_NAME.equals(stats.getName())) {
+                    extracted += stats.getCompleted();
+                }
+            }
+        }
+        if (Boolean.parseBoolean(useThreadPool)) {
+            assertThat("Should extract features on the image_extract pool", extracted, greaterThanOrEqualTo((long) totalImages));
+        }
+
         // test search with hash
         ImageQueryBuilder ImgQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name());
         SearchResponse searchResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder).addFields("img.metadata.exif_ifd0.x_resolution", "name").setSize(totalImages).get();
@@ -130,6 +203,16 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         assertImageScore(hits, nameToSearch, 2.0f);
         assertThat("Should have metadata", hit.getFields().get("img.metadata.exif_ifd0.x_resolution").getValues(), hasSize(1));
 
+        // test search with hash and min collisions, exact match shares all hashes
+        ImageQueryBuilder ImgQueryBuilder1 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).minCollisions(10);
+        SearchResponse searchResponse1 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder1).setSize(totalImages).get();
+        assertNoFailures(searchResponse1);
+        SearchHits hits1 = searchResponse1.getHits();
+        assertThat("Should match at least one image", hits1.getTotalHits(), greaterThanOrEqualTo(1l));
+        assertThat("Should not match more than without min collisions", hits1.getTotalHits(), lessThanOrEqualTo(hits.getTotalHits()));
+        assertThat("First should be exact match and has score 2", hits1.getMaxScore(), equalTo(2.0f));
+        assertImageScore(hits1, nameToSearch, 2.0f);
+
         // test search without hash and with boost
         ImageQueryBuilder ImgQueryBuilder2 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f);
         SearchResponse searchResponse2 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder2).setSize(totalImages).get();
@@ -139,6 +222,66 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         assertThat("First should be exact match and has score 2", searchResponse2.getHits().getMaxScore(), equalTo(10.0f));
         assertImageScore(hits2, nameToSearch, 10.0f);
 
+        // test search without hash and with k, top k should be the same as scoring all docs
+        int k = randomIntBetween(1, totalImages);
+        ImageQueryBuilder ImgQueryBuilderK = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f).k(k);
+        SearchResponse searchResponseK = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderK).setSize(k).get();
+        assertNoFailures(searchResponseK);
+        SearchHits hitsK = searchResponseK.getHits();
+        assertThat("Should get at least k images", hitsK.getTotalHits(), greaterThanOrEqualTo((long) k));
+        assertThat(hitsK.getHits().length, equalTo(k));
+        for (int i = 0; i < k; i++) {
+            assertThat("Top k scores should match scoring all docs", hitsK.getAt(i).getScore(), equalTo(hits2.getAt(i).getScore()));
+        }
+
+        // test search without hash, with k and in parallel
+        ImageQueryBuilder ImgQueryBuilderParallel = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f).k(k).parallel(true);
+        SearchResponse searchResponseParallel = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderParallel).setSize(k).get();
+        assertNoFailures(searchResponseParallel);
+        SearchHits hitsParallel = searchResponseParallel.getHits();
+        assertThat(hitsParallel.getHits().length, equalTo(k));
+        for (int i = 0; i < k; i++) {
+            assertThat("Top k scores should match scoring all docs", hitsParallel.getAt(i).getScore(), equalTo(hits2.getAt(i).getScore()));
+        }
+
+        // test search with k caching its distances, twice for the second one to read them from the cache
+        ImageQueryBuilder ImgQueryBuilderCached = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f).k(k).cache(true);
+        for (int run = 0; run < 2; run++) {
+            SearchResponse searchResponseCached = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderCached).setSize(k).get();
+            assertNoFailures(searchResponseCached);
+            SearchHits hitsCached = searchResponseCached.getHits();
+            assertThat(hitsCached.getHits().length, equalTo(k));
+            for (int i = 0; i < k; i++) {
+                assertThat("Cached scores should match scoring all docs", hitsCached.getAt(i).getScore(), equalTo(hits2.getAt(i).getScore()));
+            }
+        }
+
+        // test search of the hnsw graphs, with ef larger than the segments
+        ImageQueryBuilder ImgQueryBuilderGraph = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f).k(k).ef(totalImages);
+        SearchResponse searchResponseGraph = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderGraph).setSize(k).get();
+        assertNoFailures(searchResponseGraph);
+        SearchHits hitsGraph = searchResponseGraph.getHits();
+        assertThat(hitsGraph.getHits().length, equalTo(k));
+        assertThat("First should be exact match", hitsGraph.getMaxScore(), equalTo(10.0f));
+        // random images can share their features, any of them may be the first exact match then
+        Set<String> exactMatches = new HashSet<String>();
+        for (SearchHit exactMatch : hits2) {
+            if (exactMatch.getScore() == 10.0f) {
+                exactMatches.add(exactMatch.getId());
+            }
+        }
+        assertThat(exactMatches, hasItem(hitsGraph.getAt(0).getId()));
+
+        // test search of the quantized features, re-ranking all docs is the same as scoring all docs
+        ImageQueryBuilder ImgQueryBuilderPq = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f).k(k).pq(true).rerank(totalImages);
+        SearchResponse searchResponsePq = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderPq).setSize(k).get();
+        assertNoFailures(searchResponsePq);
+        SearchHits hitsPq = searchResponsePq.getHits();
+        assertThat(hitsPq.getHits().length, equalTo(k));
+        for (int i = 0; i < k; i++) {
+            assertThat("Top k scores should match scoring all docs", hitsPq.getAt(i).getScore(), equalTo(hits2.getAt(i).getScore()));
+        }
+
         // test search for name as well
         BoolQueryBuilder boolQueryBuilder = QueryBuilders.boolQuery();
         boolQueryBuilder.must(QueryBuilders.termQuery("name", nameToSearch));
@@ -150,6 +293,16 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         SearchHit hit3 = hits3.getHits()[0];
         assertThat((String)hit3.getSource().get("name"), equalTo(nameToSearch));
 
+        // test search with k only among the docs of the filter
+        ImageQueryBuilder ImgQueryBuilderFilter = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).boost(5.0f)
+                .k(k).filter(QueryBuilders.termQuery("name", nameToSearch));
+        SearchResponse searchResponseFilter = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderFilter).setSize(k).get();
+        assertNoFailures(searchResponseFilter);
+        SearchHits hitsFilter = searchResponseFilter.getHits();
+        assertThat("Should match the filtered document only", hitsFilter.getTotalHits(), equalTo(1l));
+        assertThat((String) hitsFilter.getAt(0).getSource().get("name"), equalTo(nameToSearch));
+        assertThat("Filtered doc should be exact match", hitsFilter.getAt(0).getScore(), equalTo(10.0f));
+
         // test search with hash and limit  NO
         ImageQueryBuilder ImgQueryBuilder4 = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name()).image(imgToSearch).hash(HashEnum.BIT_SAMPLING.name()).limit(10);
         SearchResponse searchResponse4 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder4).setSize(totalImages).get();
@@ -160,6 +313,28 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         assertThat("First should be exact match and has score 1", hit4.getScore(), equalTo(2.0f));
         assertImageScore(hits4, nameToSearch, 2.0f);
 
+        // test search with hash and limit in parallel, same candidates and scores
+        SearchResponse searchResponse4Parallel = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder4.parallel(true)).setSize(totalImages).get();
+        assertNoFailures(searchResponse4Parallel);
+        SearchHits hits4Parallel = searchResponse4Parallel.getHits();
+        assertThat(hits4Parallel.getTotalHits(), equalTo(hits4.getTotalHits()));
+        for (int i = 0; i < hits4.getHits().length; i++) {
+            assertThat(hits4Parallel.getAt(i).getScore(), equalTo(hits4.getAt(i).getScore()));
+        }
+
+        // test search with multi-probe LSH, probing neighbouring buckets only adds candidates
+        ImageQueryBuilder ImgQueryBuilderProbes0 = new ImageQueryBuilder("img").feature(FeatureEnum.FCTH.name()).image(imgToSearch).hash(HashEnum.MULTI_PROBE_LSH.name()).probes(0);
+        SearchResponse searchResponseProbes0 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderProbes0).setSize(totalImages).get();
+        assertNoFailures(searchResponseProbes0);
+        SearchHits hitsProbes0 = searchResponseProbes0.getHits();
+        assertThat("First should be exact match and has score 2", hitsProbes0.getMaxScore(), equalTo(2.0f));
+        assertImageScore(hitsProbes0, nameToSearch, 2.0f);
+        ImageQueryBuilder ImgQueryBuilderProbes = new ImageQueryBuilder("img").feature(FeatureEnum.FCTH.name()).image(imgToSearch).hash(HashEnum.MULTI_PROBE_LSH.name());
+        SearchResponse searchResponseProbes = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderProbes).setSize(totalImages).get();
+        assertNoFailures(searchResponseProbes);
+        assertThat(searchResponseProbes.getHits().getTotalHits(), greaterThanOrEqualTo(hitsProbes0.getTotalHits()));
+        assertImageScore(searchResponseProbes.getHits(), nameToSearch, 2.0f);
+
         // test search metadata YES
         TermQueryBuilder termQueryBuilder = QueryBuilders.termQuery("img.metadata.exif_ifd0.x_resolution", "72 dots per inch");
         SearchResponse searchResponse5 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(termQueryBuilder).setSize(totalImages).get();
@@ -182,17 +357,236 @@ public  class ImageIntegrationTests extends ESIntegTestCase {
         SearchResponse searchResponse7 = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilder7).setSize(totalImages).get();
         assertNoFailures(searchResponse7);
         SearchHits hits7 = searchResponse7.getHits();
-        assertThat("Should match at least one image", hits7.getTotalHits(), equalTo((long) totalImages));
+        assertThat("Should match the same images as the image itself", hits7.getTotalHits(), equalTo(hits.getTotalHits()));
         SearchHit hit7 = hits7.getHits()[0];
         assertThat("First should be exact match and has score 1", hit7.getScore(), equalTo(2.0f));
         assertImageScore(hits7, nameToSearch, 2.0f);
+
+        // test batch search, each query image gets the same top k as its own image query
+        ImageBatchResponse batchResponse = new ImageBatchRequestBuilder(client(), ImageBatchAction.INSTANCE).setIndices(INDEX_NAME)
+                .setField("img").setFeature(FeatureEnum.CEDD).setK(k)
+                .addImage(imgToSearch)
+                .addLookup(INDEX_NAME, DOC_TYPE_NAME, idToSearch, "img")
+                .addImage(new byte[] {1, 2, 3})
+                .get();
+        assertThat(batchResponse.getFailedShards(), equalTo(0));
+        ImageBatchResponse.Result[] results = batchResponse.getResults();
+        assertThat(results.length, equalTo(3));
+        assertThat(results[0].getHits().length, equalTo(k));
+        assertThat(results[1].getHits().length, equalTo(k));
+        for (int i = 0; i < k; i++) {
+            assertThat("Batch scores should match the image query", results[0].getHits()[i].getScore() * 5.0f, equalTo(hits2.getAt(i).getScore()));
+            assertThat("Batch scores should match the image query", results[1].getHits()[i].getScore(), equalTo(hits6.getAt(i).getScore()));
+        }
+        assertThat(results[1].getHits()[0].getScore(), equalTo(2.0f));
+        assertTrue("Unreadable image should fail on its own", results[2].isFailed());
+
+        // every phase is recorded on the nodes that indexed and searched
+        ImageStatsResponse statsResponse = client().execute(ImageStatsAction.INSTANCE, new ImageStatsRequest()).actionGet();
+        assertThat(statsResponse.getNodes().length, equalTo(cluster().size()));
+        long decoded = 0, extractedCedd = 0, hashed = 0, metadata = 0, queryExtracted = 0, lookups = 0, hashLookups = 0, candidates = 0, docsScored = 0, featureCacheHits = 0, columnBuilds = 0;
+        for (NodeImageStats nodeStats : statsResponse) {
+            decoded += nodeStats.getIndexing().get("decode").getCount();
+            extractedCedd += nodeStats.getIndexing().get("extract", FeatureEnum.CEDD.name()).getCount();
+            hashed += nodeStats.getIndexing().get("hash", HashEnum.BIT_SAMPLING.name()).getCount();
+            metadata += nodeStats.getIndexing().get("metadata").getCount();
+            queryExtracted += nodeStats.getSearch().get("extract", FeatureEnum.CEDD.name()).getCount();
+            lookups += nodeStats.getSearch().get("lookup").getCount();
+            hashLookups += nodeStats.getSearch().get("hash_lookup").getCount();
+            candidates += nodeStats.getSearch().get("candidates").getSum();
+            docsScored += nodeStats.getSearch().get("docs_scored").getSum();
+            featureCacheHits += nodeStats.getFeatureCacheHits();
+            columnBuilds += nodeStats.getSearch().get("column_build").getCount();
+        }
+        assertThat(decoded, greaterThanOrEqualTo((long) totalImages));
+        assertThat(extractedCedd, greaterThanOrEqualTo((long) totalImages));
+        assertThat(hashed, greaterThanOrEqualTo((long) totalImages));
+        assertThat(metadata, greaterThanOrEqualTo((long) totalImages));
+        assertThat(queryExtracted, greaterThanOrEqualTo(1L));
+        assertThat(lookups, greaterThanOrEqualTo(1L));
+        assertThat("Lookups should be resolved once per search, not once per shard", lookups, lessThanOrEqualTo(3L));
+        assertThat(hashLookups, greaterThanOrEqualTo(1L));
+        assertThat(candidates, greaterThanOrEqualTo((long) totalImages));
+        assertThat(docsScored, greaterThanOrEqualTo((long) totalImages));
+        assertThat("Searching the same image again should hit the feature cache", featureCacheHits, greaterThanOrEqualTo(1L));
+        assertThat("Columns of the CEDD feature should be built for its searches", columnBuilds, greaterThanOrEqualTo(1L));
+
+        // test search fusing several features, extracted from one decode, the exact match is at distance 0 by all of them
+        ImageQueryBuilder ImgQueryBuilderFused = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name(), 1f)
+                .feature(FeatureEnum.JCD.name(), 0.5f).image(imgToSearch).boost(5.0f);
+        SearchResponse searchResponseFused = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderFused).setSize(totalImages).get();
+        assertNoFailures(searchResponseFused);
+        assertThat("Should get all images", searchResponseFused.getHits().getTotalHits(), equalTo((long) totalImages));
+        assertThat("First should be exact match and has score 2", searchResponseFused.getHits().getMaxScore(), equalTo(10.0f));
+        assertImageScore(searchResponseFused.getHits(), nameToSearch, 10.0f);
+
+        // by rank and by the closest feature, looking the image up, ranks and top k are per shard
+        ImageQueryBuilder ImgQueryBuilderRank = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name(), 1f)
+                .feature(FeatureEnum.FCTH.name(), 1f).fusion("rank").k(k).lookupIndex(INDEX_NAME).lookupType(DOC_TYPE_NAME).lookupId(idToSearch).lookupPath("img");
+        SearchResponse searchResponseRank = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderRank).setSize(totalImages).get();
+        assertNoFailures(searchResponseRank);
+        assertThat(searchResponseRank.getHits().getHits().length, greaterThanOrEqualTo(k));
+        assertImageScore(searchResponseRank.getHits(), nameToSearch, (float) (2.0 / (ImageFusedQuery.RANK_CONSTANT + 1)));
+        ImageQueryBuilder ImgQueryBuilderMin = new ImageQueryBuilder("img").feature(FeatureEnum.CEDD.name(), 1f)
+                .feature(FeatureEnum.FCTH.name(), 2f).fusion("min").lookupIndex(INDEX_NAME).lookupType(DOC_TYPE_NAME).lookupId(idToSearch).lookupPath("img");
+        SearchResponse searchResponseMin = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(ImgQueryBuilderMin).setSize(totalImages).get();
+        assertNoFailures(searchResponseMin);
+        assertThat(searchResponseMin.getHits().getMaxScore(), equalTo(2.0f));
+        assertImageScore(searchResponseMin.getHits(), nameToSearch, 2.0f);
+
+        // looked up features are reused until the document gets a new version
+        ImageLookupCache lookupCache = internalCluster().getInstance(ImageLookupCache.class);
+        String lookupField = "img." + FeatureEnum.CEDD.name();
+        ImageLookupCache.Lookup lookup = lookupCache.lookup(client(), INDEX_NAME, DOC_TYPE_NAME, idToSearch, null, lookupField, null);
+        long lookupCacheHits = lookupCache.hits();
+        assertSame(lookup, lookupCache.lookup(client(), INDEX_NAME, DOC_TYPE_NAME, idToSearch, null, lookupField, null));
+        assertThat(lookupCache.hits(), equalTo(lookupCacheHits + 1));
+        index(INDEX_NAME, DOC_TYPE_NAME, idToSearch, jsonBuilder().startObject().field("img", imgToSearch).field("name", nameToSearch).endObject());
+        refresh();
+        ImageLookupCache.Lookup updated = lookupCache.lookup(client(), INDEX_NAME, DOC_TYPE_NAME, idToSearch, null, lookupField, null);
+        assertThat(lookupCache.hits(), equalTo(lookupCacheHits + 1));
+        assertThat(updated.version(), equalTo(lookup.version() + 1));
+        assertTrue(Arrays.equals(lookup.feature(), updated.feature()));
+
+        // features mapped without store are only in doc values, where lookups and fetches read them
+        GetResponse getResponse = client().prepareGet(INDEX_NAME, DOC_TYPE_NAME, idToSearch).setFields(lookupField, "img.JCD").get();
+        assertNull(getResponse.getField(lookupField));
+        assertNotNull(getResponse.getField("img.JCD"));
+        SearchResponse featuresResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME)
+                .setQuery(QueryBuilders.idsQuery(DOC_TYPE_NAME).addIds(idToSearch)).setNoFields()
+                .setExtraSource(Collections.singletonMap(ImageFeaturesFetchSubPhase.NAME, lookupField)).get();
+        assertNoFailures(featuresResponse);
+        assertTrue(Arrays.equals(lookup.feature(), ((BytesReference) featuresResponse.getHits().getAt(0).field(lookupField).getValue()).toBytes()));
+
+        // hashes trained on the features of the index are only stored in its settings when forced
+        try {
+            new ImageHashTrainRequestBuilder(client(), ImageHashTrainAction.INSTANCE).setIndices(INDEX_NAME)
+                    .setField("img").setFeature(FeatureEnum.JCD).get();
+            fail("storing trained hashes in an index with documents should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("force"));
+        }
+        ImageHashTrainResponse dryRunResponse = new ImageHashTrainRequestBuilder(client(), ImageHashTrainAction.INSTANCE).setIndices(INDEX_NAME)
+                .setField("img").setFeature(FeatureEnum.JCD).setDryRun(true).get();
+        assertFalse(dryRunResponse.isStored());
+        for (ImageHashTrainResponse.Result result : dryRunResponse.getResults()) {
+            assertThat("settings of a new index", result.getSettings(), notNullValue());
+        }
+        assertThat(client().admin().indices().prepareGetSettings(INDEX_NAME).get().getSetting(INDEX_NAME,
+                ImageHashService.settingPrefix("img", FeatureEnum.JCD, HashEnum.LSH.name()) + "tables"), nullValue());
+
+        // forced, they hash the documents indexed from then on
+        ImageHashTrainResponse trainResponse = new ImageHashTrainRequestBuilder(client(), ImageHashTrainAction.INSTANCE).setIndices(INDEX_NAME)
+                .setField("img").setFeature(FeatureEnum.JCD).setForce(true).get();
+        assertThat(trainResponse.getFailedShards(), equalTo(0));
+        assertThat(trainResponse.getSampleSize(), equalTo(totalImages));
+        assertTrue(trainResponse.isStored());
+        assertThat(trainResponse.getResults().length, equalTo(2));
+        for (ImageHashTrainResponse.Result result : trainResponse.getResults()) {
+            assertTrue(result.isTrained());
+            assertThat(result.getAfter().getLargestTerm(), lessThanOrEqualTo(result.getBefore().getLargestTerm()));
+            String tables = client().admin().indices().prepareGetSettings(INDEX_NAME).get()
+                    .getSetting(INDEX_NAME, ImageHashService.settingPrefix("img", FeatureEnum.JCD, result.getHash()) + "tables");
+            assertThat(tables, notNullValue());
+        }
+        String trainedName = randomAsciiOfLength(6);
+        index(INDEX_NAME, DOC_TYPE_NAME, jsonBuilder().startObject().field("img", imgToSearch).field("name", trainedName).endObject());
+        refresh();
+        for (String hash : new String[] {HashEnum.BIT_SAMPLING.name(), HashEnum.LSH.name()}) {
+            ImageQueryBuilder trainedQueryBuilder = new ImageQueryBuilder("img").feature(FeatureEnum.JCD.name()).image(imgToSearch).hash(hash);
+            SearchResponse trainedResponse = client().prepareSearch(INDEX_NAME).setTypes(DOC_TYPE_NAME).setQuery(trainedQueryBuilder).setSize(totalImages + 1).get();
+            assertNoFailures(trainedResponse);
+            assertImageScore(trainedResponse.getHits(), trainedName, 2.0f);
+        }
+    }
+
+    @Test
+    public void test_hashes_of_deleted_indices_are_dropped() throws Exception {
+        final ImageHashService hashService = internalCluster().getInstance(ImageHashService.class);
+        hashService.hash(INDEX_NAME, "img", FeatureEnum.JCD, HashEnum.LSH.name());
+        assertThat(hashService.size(), greaterThanOrEqualTo(1L));
+
+        cluster().wipeIndices(INDEX_NAME);
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                assertThat(hashService.size(), equalTo(0L));
+            }
+        });
+    }
+
+    @Test
+    public void test_lookup_cache_is_per_index_instance() throws Exception {
+        String mapping = Streams.copyToString(new InputStreamReader(Streams.class.getResourceAsStream("/mapping/test-mapping.json"), Charsets.UTF_8));
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        index(INDEX_NAME, DOC_TYPE_NAME, "1", jsonBuilder().startObject().field("img", getRandomImage()).endObject());
+        refresh();
+        final ImageLookupCache lookupCache = internalCluster().getInstance(ImageLookupCache.class);
+        String lookupField = "img." + FeatureEnum.CEDD.name();
+        ImageLookupCache.Lookup lookup = lookupCache.lookup(client(), INDEX_NAME, DOC_TYPE_NAME, "1", null, lookupField, null);
+        assertThat(lookupCache.size(), greaterThanOrEqualTo(1L));
+
+        // the entries of a deleted index are dropped, and the same document in a new index of the same name is looked up again
+        cluster().wipeIndices(INDEX_NAME);
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                assertThat(lookupCache.size(), equalTo(0L));
+            }
+        });
+        createIndex(INDEX_NAME);
+        client().admin().indices().putMapping(putMappingRequest(INDEX_NAME).type(DOC_TYPE_NAME).source(mapping)).actionGet();
+        ensureGreen();
+        byte[] otherImage = getRandomImage();
+        index(INDEX_NAME, DOC_TYPE_NAME, "1", jsonBuilder().startObject().field("img", otherImage).endObject());
+        refresh();
+        long lookupCacheHits = lookupCache.hits();
+        ImageLookupCache.Lookup recreated = lookupCache.lookup(client(), INDEX_NAME, DOC_TYPE_NAME, "1", null, lookupField, null);
+        assertThat(recreated.version(), equalTo(lookup.version()));
+        assertThat(lookupCache.hits(), equalTo(lookupCacheHits));
+        assertNotSame(lookup, recreated);
+    }
+
+    @Test
+    public void test_image_codec_is_refused_with_completion_fields() throws Exception {
+        String completionMapping = jsonBuilder().startObject().startObject("properties")
+                .startObject("suggest").field("type", "completion").endObject()
+                .endObject().endObject().string();
+        try {
+            client().admin().indices().prepareCreate("codec").setSettings(Settings.builder().put("index.codec", ImageCodec.NAME))
+                    .addMapping(DOC_TYPE_NAME, completionMapping).get();
+            fail("an index with completion fields should not be created with the image codec");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("completion"));
+        }
+
+        // completion fields are not put in an index with the codec
+        assertAcked(client().admin().indices().prepareCreate("codec").setSettings(Settings.builder().put("index.codec", ImageCodec.NAME)));
+        try {
+            client().admin().indices().preparePutMapping("codec").setType(DOC_TYPE_NAME).setSource(completionMapping).get();
+            fail("completion fields should not be put in an index with the image codec");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("completion"));
+        }
+
+        // the codec is not set on an index with completion fields
+        client().admin().indices().preparePutMapping(INDEX_NAME).setType(DOC_TYPE_NAME).setSource(completionMapping).get();
+        client().admin().indices().prepareClose(INDEX_NAME).get();
+        try {
+            client().admin().indices().prepareUpdateSettings(INDEX_NAME).setSettings(Settings.builder().put("index.codec", ImageCodec.NAME)).get();
+            fail("the image codec should not be set on an index with completion fields");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), containsString("completion"));
+        }
+        client().admin().indices().prepareOpen(INDEX_NAME).get();
+        ensureGreen(INDEX_NAME);
     }
 
     private void assertImageScore(SearchHits hits, String name, float score) {
         for (SearchHit hit : hits) {
 
             if ((hit.getSource() != null && hit.getSource().get("name").equals(name))
-                    || (hit.getFields() != null && !hit.getFields().isEmpty() && hit.getFields().get("name").getValue().equals(name))){
+                    || (hit.getFields() != null && hit.getFields().get("name") != null && hit.getFields().get("name").getValue().equals(name))){
                 assertThat(hit.getScore(), equalTo(score));
                 return;
             }